@@ -0,0 +1,79 @@
+/*
+ * Native side of com.sshdaemon.util.FileAllocator: reserves disk space for a file without changing
+ * its size, so readers of the file never see the reserved range.
+ */
+
+#define _GNU_SOURCE
+
+#include <jni.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#ifndef FALLOC_FL_KEEP_SIZE
+#define FALLOC_FL_KEEP_SIZE 0x01
+#endif
+
+static void throw_io_exception(JNIEnv *env, const char *what, int error) {
+    char message[256];
+    snprintf(message, sizeof(message), "%s: %s", what, strerror(error));
+    jclass exception = (*env)->FindClass(env, "java/io/IOException");
+    if (exception != NULL) {
+        (*env)->ThrowNew(env, exception, message);
+    }
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sshdaemon_util_FileAllocator_open(JNIEnv *env, jclass clazz, jstring path) {
+    const char *file = (*env)->GetStringUTFChars(env, path, NULL);
+    if (file == NULL) {
+        return -1;
+    }
+    int fd;
+    do {
+        fd = open(file, O_WRONLY | O_CLOEXEC);
+    } while (fd < 0 && errno == EINTR);
+    int error = errno;
+    (*env)->ReleaseStringUTFChars(env, path, file);
+    if (fd < 0) {
+        throw_io_exception(env, "open", error);
+    }
+    return fd;
+}
+
+JNIEXPORT void JNICALL
+Java_com_sshdaemon_util_FileAllocator_allocate(JNIEnv *env, jclass clazz, jint fd, jlong offset, jlong length) {
+    int result;
+    do {
+        result = fallocate(fd, FALLOC_FL_KEEP_SIZE, (off_t) offset, (off_t) length);
+    } while (result != 0 && errno == EINTR);
+    if (result != 0) {
+        throw_io_exception(env, "fallocate", errno);
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_com_sshdaemon_util_FileAllocator_release(JNIEnv *env, jclass clazz, jint fd) {
+    // Truncating to the current size frees the blocks reserved past the end
+    struct stat status;
+    if (fstat(fd, &status) != 0) {
+        throw_io_exception(env, "fstat", errno);
+        return;
+    }
+    int result;
+    do {
+        result = ftruncate(fd, status.st_size);
+    } while (result != 0 && errno == EINTR);
+    if (result != 0) {
+        throw_io_exception(env, "ftruncate", errno);
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_com_sshdaemon_util_FileAllocator_close(JNIEnv *env, jclass clazz, jint fd) {
+    close(fd);
+}
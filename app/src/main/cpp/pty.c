@@ -0,0 +1,392 @@
+/*
+ * Native side of com.sshdaemon.sshd.Pty: starts a process on a new pseudo terminal and moves bytes
+ * through its master side. Terminal modes are encoded as in the SSH pty-req, RFC 4254 section 8.
+ */
+
+#include <jni.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/ioctl.h>
+#include <sys/wait.h>
+#include <termios.h>
+#include <unistd.h>
+
+#if defined(__ANDROID__) || defined(__linux__)
+#include <pty.h>
+#endif
+
+#define TTY_OP_ISPEED 128
+#define TTY_OP_OSPEED 129
+// Descriptors closed in the child, up to the limit, as the limit can be very large
+#define MAX_INHERITED_FD 65536
+
+static void throw_io_exception(JNIEnv *env, const char *what, int error) {
+    char message[256];
+    snprintf(message, sizeof(message), "%s: %s", what, strerror(error));
+    jclass exception = (*env)->FindClass(env, "java/io/IOException");
+    if (exception != NULL) {
+        (*env)->ThrowNew(env, exception, message);
+    }
+}
+
+static void set_flag(tcflag_t *flags, tcflag_t flag, int value) {
+    if (value) {
+        *flags |= flag;
+    } else {
+        *flags &= ~flag;
+    }
+}
+
+static speed_t baud(int value) {
+    switch (value) {
+        case 9600: return B9600;
+        case 19200: return B19200;
+        case 38400: return B38400;
+        case 57600: return B57600;
+        case 115200: return B115200;
+        case 230400: return B230400;
+        default: return B38400;
+    }
+}
+
+/* Applies one terminal mode of the client, modes the driver does not know are ignored */
+static void apply_mode(struct termios *tio, int opcode, int value) {
+    switch (opcode) {
+#define CHARACTER(code, index) case code: tio->c_cc[index] = (cc_t) value; break;
+#define INPUT(code, flag) case code: set_flag(&tio->c_iflag, flag, value); break;
+#define LOCAL(code, flag) case code: set_flag(&tio->c_lflag, flag, value); break;
+#define OUTPUT(code, flag) case code: set_flag(&tio->c_oflag, flag, value); break;
+#define CONTROL(code, flag) case code: set_flag(&tio->c_cflag, flag, value); break;
+        CHARACTER(1, VINTR)
+        CHARACTER(2, VQUIT)
+        CHARACTER(3, VERASE)
+        CHARACTER(4, VKILL)
+        CHARACTER(5, VEOF)
+        CHARACTER(6, VEOL)
+        CHARACTER(7, VEOL2)
+        CHARACTER(8, VSTART)
+        CHARACTER(9, VSTOP)
+        CHARACTER(10, VSUSP)
+        CHARACTER(12, VREPRINT)
+        CHARACTER(13, VWERASE)
+        CHARACTER(14, VLNEXT)
+        CHARACTER(18, VDISCARD)
+        INPUT(30, IGNPAR)
+        INPUT(31, PARMRK)
+        INPUT(32, INPCK)
+        INPUT(33, ISTRIP)
+        INPUT(34, INLCR)
+        INPUT(35, IGNCR)
+        INPUT(36, ICRNL)
+#ifdef IUCLC
+        INPUT(37, IUCLC)
+#endif
+        INPUT(38, IXON)
+        INPUT(39, IXANY)
+        INPUT(40, IXOFF)
+        INPUT(41, IMAXBEL)
+#ifdef IUTF8
+        INPUT(42, IUTF8)
+#endif
+        LOCAL(50, ISIG)
+        LOCAL(51, ICANON)
+        LOCAL(53, ECHO)
+        LOCAL(54, ECHOE)
+        LOCAL(55, ECHOK)
+        LOCAL(56, ECHONL)
+        LOCAL(57, NOFLSH)
+        LOCAL(58, TOSTOP)
+        LOCAL(59, IEXTEN)
+        LOCAL(60, ECHOCTL)
+        LOCAL(61, ECHOKE)
+        LOCAL(62, PENDIN)
+        OUTPUT(70, OPOST)
+#ifdef OLCUC
+        OUTPUT(71, OLCUC)
+#endif
+        OUTPUT(72, ONLCR)
+        OUTPUT(73, OCRNL)
+        OUTPUT(74, ONOCR)
+        OUTPUT(75, ONLRET)
+        CONTROL(92, PARENB)
+        CONTROL(93, PARODD)
+#undef CHARACTER
+#undef INPUT
+#undef LOCAL
+#undef OUTPUT
+#undef CONTROL
+        case 90:
+        case 91:
+            if (value) {
+                tio->c_cflag = (tio->c_cflag & ~CSIZE) | (opcode == 90 ? CS7 : CS8);
+            }
+            break;
+        case TTY_OP_ISPEED:
+            cfsetispeed(tio, baud(value));
+            break;
+        case TTY_OP_OSPEED:
+            cfsetospeed(tio, baud(value));
+            break;
+        default:
+            break;
+    }
+}
+
+/* Copies the strings of the array into a NULL terminated array, NULL if out of memory */
+static char **to_strings(JNIEnv *env, jobjectArray array) {
+    jsize count = (*env)->GetArrayLength(env, array);
+    char **strings = calloc((size_t) count + 1, sizeof(char *));
+    if (strings == NULL) {
+        return NULL;
+    }
+    for (jsize i = 0; i < count; i++) {
+        jstring string = (jstring) (*env)->GetObjectArrayElement(env, array, i);
+        const char *chars = (*env)->GetStringUTFChars(env, string, NULL);
+        strings[i] = chars != NULL ? strdup(chars) : NULL;
+        if (chars != NULL) {
+            (*env)->ReleaseStringUTFChars(env, string, chars);
+        }
+        (*env)->DeleteLocalRef(env, string);
+        if (strings[i] == NULL) {
+            return strings;
+        }
+    }
+    return strings;
+}
+
+static void free_strings(char **strings) {
+    if (strings == NULL) {
+        return;
+    }
+    for (char **string = strings; *string != NULL; string++) {
+        free(*string);
+    }
+    free(strings);
+}
+
+/* Runs in the child: makes the terminal the controlling one and executes the program */
+static void exec_child(int slave, const char *path, char **argv, char **envp, const char *dir) {
+    // Signals stay blocked until the handlers of the daemon are reset, none sent meanwhile is lost
+    for (int signal = 1; signal < NSIG; signal++) {
+        if (signal != SIGKILL && signal != SIGSTOP) {
+            struct sigaction action;
+            memset(&action, 0, sizeof(action));
+            action.sa_handler = SIG_DFL;
+            sigaction(signal, &action, NULL);
+        }
+    }
+    sigset_t signals;
+    sigemptyset(&signals);
+    sigprocmask(SIG_SETMASK, &signals, NULL);
+    setsid();
+    ioctl(slave, TIOCSCTTY, 0);
+    dup2(slave, STDIN_FILENO);
+    dup2(slave, STDOUT_FILENO);
+    dup2(slave, STDERR_FILENO);
+    // Descriptors of the daemon are not passed on
+    long max = sysconf(_SC_OPEN_MAX);
+    if (max <= 0 || max > MAX_INHERITED_FD) {
+        max = MAX_INHERITED_FD;
+    }
+    for (int fd = STDERR_FILENO + 1; fd < max; fd++) {
+        close(fd);
+    }
+    if (chdir(dir) != 0) {
+        chdir("/");
+    }
+    execve(path, argv, envp);
+    _exit(127);
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_sshdaemon_sshd_Pty_spawn(JNIEnv *env, jclass clazz, jstring path, jobjectArray argv, jobjectArray envp,
+                                  jstring dir, jintArray modes, jint columns, jint rows) {
+    int master;
+    int slave;
+    struct winsize size;
+    memset(&size, 0, sizeof(size));
+    size.ws_col = (unsigned short) columns;
+    size.ws_row = (unsigned short) rows;
+    if (openpty(&master, &slave, NULL, NULL, &size) != 0) {
+        throw_io_exception(env, "openpty", errno);
+        return NULL;
+    }
+    fcntl(master, F_SETFD, FD_CLOEXEC);
+
+    struct termios tio;
+    if (tcgetattr(slave, &tio) == 0) {
+        jsize count = (*env)->GetArrayLength(env, modes);
+        jint *values = (*env)->GetIntArrayElements(env, modes, NULL);
+        for (jsize i = 0; values != NULL && i + 1 < count; i += 2) {
+            apply_mode(&tio, values[i], values[i + 1]);
+        }
+        if (values != NULL) {
+            (*env)->ReleaseIntArrayElements(env, modes, values, JNI_ABORT);
+        }
+        tcsetattr(slave, TCSANOW, &tio);
+    }
+
+    const char *program = (*env)->GetStringUTFChars(env, path, NULL);
+    const char *directory = (*env)->GetStringUTFChars(env, dir, NULL);
+    char **arguments = to_strings(env, argv);
+    char **environment = to_strings(env, envp);
+    pid_t pid = -1;
+    int error = ENOMEM;
+    if (program != NULL && directory != NULL && arguments != NULL && environment != NULL) {
+        sigset_t all;
+        sigset_t previous;
+        sigfillset(&all);
+        pthread_sigmask(SIG_SETMASK, &all, &previous);
+        pid = fork();
+        error = errno;
+        if (pid == 0) {
+            close(master);
+            exec_child(slave, program, arguments, environment, directory);
+        }
+        pthread_sigmask(SIG_SETMASK, &previous, NULL);
+    }
+    free_strings(arguments);
+    free_strings(environment);
+    if (program != NULL) {
+        (*env)->ReleaseStringUTFChars(env, path, program);
+    }
+    if (directory != NULL) {
+        (*env)->ReleaseStringUTFChars(env, dir, directory);
+    }
+    close(slave);
+    if (pid < 0) {
+        close(master);
+        throw_io_exception(env, "fork", error);
+        return NULL;
+    }
+
+    jintArray result = (*env)->NewIntArray(env, 2);
+    if (result != NULL) {
+        jint values[2] = {master, pid};
+        (*env)->SetIntArrayRegion(env, result, 0, 2, values);
+    }
+    return result;
+}
+
+/*
+ * Waits up to the timeout for the descriptor to become ready, returns 0 on timeout, 1 when ready
+ * and -1 with errno set on failure. Hang-ups and errors count as ready, the following call reports them.
+ */
+static int await_ready(int fd, short events, int timeout) {
+    struct pollfd ready = {.fd = fd, .events = events};
+    int result;
+    do {
+        result = poll(&ready, 1, timeout);
+    } while (result < 0 && errno == EINTR);
+    return result;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sshdaemon_sshd_Pty_read(JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer, jint offset, jint length,
+                                 jint timeout) {
+    int ready = await_ready(fd, POLLIN, timeout);
+    if (ready == 0) {
+        return 0;
+    }
+    if (ready < 0) {
+        throw_io_exception(env, "read", errno);
+        return -1;
+    }
+    jbyte *data = malloc((size_t) length);
+    if (data == NULL) {
+        throw_io_exception(env, "read", ENOMEM);
+        return -1;
+    }
+    ssize_t count;
+    do {
+        count = read(fd, data, (size_t) length);
+    } while (count < 0 && errno == EINTR);
+    int error = errno;
+    if (count > 0) {
+        (*env)->SetByteArrayRegion(env, buffer, offset, (jsize) count, data);
+    }
+    free(data);
+    if (count == 0 || (count < 0 && error == EIO)) {
+        // Every process on the terminal has closed it
+        return -1;
+    }
+    if (count < 0) {
+        throw_io_exception(env, "read", error);
+        return -1;
+    }
+    return (jint) count;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sshdaemon_sshd_Pty_write(JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer, jint offset, jint length,
+                                  jint timeout) {
+    int ready = await_ready(fd, POLLOUT, timeout);
+    if (ready == 0) {
+        return 0;
+    }
+    if (ready < 0) {
+        throw_io_exception(env, "write", errno);
+        return -1;
+    }
+    jbyte *copy = malloc((size_t) length);
+    if (copy == NULL) {
+        throw_io_exception(env, "write", ENOMEM);
+        return -1;
+    }
+    (*env)->GetByteArrayRegion(env, buffer, offset, length, copy);
+    ssize_t count;
+    do {
+        count = write(fd, copy, (size_t) length);
+    } while (count < 0 && errno == EINTR);
+    int error = errno;
+    free(copy);
+    if (count < 0) {
+        throw_io_exception(env, "write", error);
+        return -1;
+    }
+    return (jint) count;
+}
+
+JNIEXPORT void JNICALL
+Java_com_sshdaemon_sshd_Pty_resize(JNIEnv *env, jclass clazz, jint fd, jint columns, jint rows) {
+    struct winsize size;
+    memset(&size, 0, sizeof(size));
+    size.ws_col = (unsigned short) columns;
+    size.ws_row = (unsigned short) rows;
+    if (ioctl(fd, TIOCSWINSZ, &size) != 0) {
+        throw_io_exception(env, "resize", errno);
+    }
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sshdaemon_sshd_Pty_waitFor(JNIEnv *env, jclass clazz, jint pid) {
+    int status;
+    while (waitpid(pid, &status, 0) < 0) {
+        if (errno != EINTR) {
+            return -1;
+        }
+    }
+    if (WIFEXITED(status)) {
+        return WEXITSTATUS(status);
+    }
+    return WIFSIGNALED(status) ? 128 + WTERMSIG(status) : -1;
+}
+
+JNIEXPORT void JNICALL
+Java_com_sshdaemon_sshd_Pty_signal(JNIEnv *env, jclass clazz, jint pid, jint signal) {
+    // The shell leads a process group of its own, the signal reaches its jobs too
+    if (kill(-pid, signal) != 0) {
+        kill(pid, signal);
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_com_sshdaemon_sshd_Pty_close(JNIEnv *env, jclass clazz, jint fd) {
+    close(fd);
+}
@@ -0,0 +1,186 @@
+package com.sshdaemon.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * File channel of an upload written to a hidden temporary file next to the target. Closing the
+ * channel syncs the data and renames the temporary file over the target, so the target holds either
+ * its previous or its complete new content. An upload creating a new file never replaces one created
+ * meanwhile. An aborted upload only removes the temporary file.
+ */
+public class AtomicUploadFileChannel extends ForwardingFileChannel {
+    private static final Logger logger = LoggerFactory.getLogger(AtomicUploadFileChannel.class);
+
+    private static final int MAX_NAME_LENGTH = 200;
+    private static final Pattern TEMP_FILE_NAME = Pattern.compile("\\..+\\.[0-9a-f]{1,16}\\.upload");
+
+    private final Path file;
+    private final Path tempFile;
+    private final DirectorySyncer directorySyncer;
+    private final boolean createNew;
+
+    private volatile boolean aborted;
+
+    public AtomicUploadFileChannel(FileChannel delegate, Path file, Path tempFile, DirectorySyncer directorySyncer) {
+        this(delegate, file, tempFile, directorySyncer, false);
+    }
+
+    /**
+     * @param delegate        channel of the temporary file
+     * @param file            file replaced on close
+     * @param tempFile        temporary file in the directory of the target
+     * @param directorySyncer syncer persisting the rename, {@code null} to leave it to the file system
+     * @param createNew       whether closing fails rather than replace a file existing by then
+     */
+    public AtomicUploadFileChannel(FileChannel delegate, Path file, Path tempFile, DirectorySyncer directorySyncer,
+                                   boolean createNew) {
+        super(delegate);
+        this.file = file;
+        this.tempFile = tempFile;
+        this.directorySyncer = directorySyncer;
+        this.createNew = createNew;
+    }
+
+    /**
+     * Returns a new hidden name for the temporary file of an upload to the given file
+     */
+    public static Path tempFileOf(Path file) {
+        var name = file.getFileName().toString();
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(0, MAX_NAME_LENGTH);
+        }
+        var suffix = Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 1);
+        return file.resolveSibling("." + name + "." + suffix + ".upload");
+    }
+
+    /**
+     * Returns whether the name is one of a temporary file of an upload
+     */
+    public static boolean isTempFile(Path file) {
+        var name = file.getFileName();
+        return name != null && TEMP_FILE_NAME.matcher(name.toString()).matches();
+    }
+
+    /**
+     * Removes temporary files in the directory not modified within the given time, left behind by
+     * uploads the daemon did not get to complete or abort
+     *
+     * @return the number of files removed
+     */
+    public static int removeStaleTempFiles(Path directory, long maxAgeMillis) throws IOException {
+        var removed = 0;
+        var oldest = System.currentTimeMillis() - maxAgeMillis;
+        try (var entries = Files.newDirectoryStream(directory, AtomicUploadFileChannel::isTempFile)) {
+            for (var entry : entries) {
+                try {
+                    if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)
+                            && Files.getLastModifiedTime(entry, LinkOption.NOFOLLOW_LINKS).toMillis() < oldest
+                            && Files.deleteIfExists(entry)) {
+                        logger.info("Removed stale temporary file {}", entry);
+                        removed++;
+                    }
+                } catch (IOException e) {
+                    logger.debug("Failed to remove stale temporary file {}: {}", entry, e.getMessage());
+                }
+            }
+        }
+        return removed;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public Path getTempFile() {
+        return tempFile;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Discards the upload, closing the channel removes the temporary file instead of replacing the target
+     */
+    public void abort() {
+        aborted = true;
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            if (!aborted) {
+                delegate.force(false);
+            }
+        } catch (IOException e) {
+            aborted = true;
+            throw e;
+        } finally {
+            try {
+                super.implCloseChannel();
+            } finally {
+                if (aborted) {
+                    discard();
+                }
+            }
+        }
+        if (aborted) {
+            return;
+        }
+        try {
+            if (createNew) {
+                publishNew();
+            } else {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        if (directorySyncer != null) {
+            directorySyncer.sync(file.toAbsolutePath().getParent());
+        }
+    }
+
+    /**
+     * Moves the temporary file to the target unless the target exists. A rename replaces an existing
+     * target, linking fails on it, so the file is published by a link where the file system has them.
+     */
+    private void publishNew() throws IOException {
+        try {
+            Files.createLink(file, tempFile);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (FileSystemException | UnsupportedOperationException e) {
+            logger.debug("No links on the file system of {}, checking for the file before moving: {}",
+                    file, e.getMessage());
+            Files.move(tempFile, file);
+            return;
+        }
+        try {
+            Files.delete(tempFile);
+        } catch (IOException e) {
+            logger.warn("Failed to remove temporary file {} of a completed upload: {}", tempFile, e.getMessage());
+        }
+    }
+
+    private void discard() {
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            logger.warn("Failed to remove temporary file {} of an aborted upload: {}", tempFile, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.digest.BuiltinDigests;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent index of whole-file digests keyed by file identity. A digest is only served while the
+ * inode, size and modification time of the file are the ones it was computed for, so unchanged files
+ * are never hashed twice. The index is written back shortly after it changes and on close, stale
+ * entries can be rehashed in the background while the device is charging.
+ */
+public class ContentHashIndex implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ContentHashIndex.class);
+
+    private static final int MAGIC = 0x53444849;
+    private static final int VERSION = 1;
+    private static final long SAVE_DELAY_MILLIS = 30_000;
+
+    private final Path indexFile;
+    private final FileHasher hasher;
+    private final LinkedHashMap<String, Entry> entries;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final Object saveLock = new Object();
+
+    private ScheduledFuture<?> scheduledSave;
+    private ScheduledFuture<?> scheduledRefresh;
+    private volatile boolean refreshing;
+    private boolean dirty;
+
+    /**
+     * @param hasher hasher rehashing stale entries in the background
+     */
+    public ContentHashIndex(Path indexFile, int maxEntries, FileHasher hasher) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Index size must be positive: " + maxEntries);
+        }
+        this.indexFile = indexFile;
+        this.hasher = hasher;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Hash-Index");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        load();
+    }
+
+    /**
+     * Returns the digest of the whole file from the index, or computes and records it when the file
+     * changed since it was hashed last
+     */
+    public byte[] digest(Path file, String algorithm, Computation computation) throws IOException {
+        var identity = Identity.of(file);
+        var key = identity.fileKey + '\0' + algorithm;
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null && entry.matches(identity)) {
+                hits.incrementAndGet();
+                return entry.digest.clone();
+            }
+        }
+        misses.incrementAndGet();
+        var digest = computation.compute();
+        // Attributes are read before hashing, a change while hashing makes the entry stale right away
+        put(key, new Entry(algorithm, realPath(file), identity.size, identity.modified, digest.clone()));
+        return digest;
+    }
+
+    /**
+     * Rehashes entries of changed files and drops entries of deleted files every interval until
+     * refreshing is stopped
+     */
+    public synchronized void startRefreshing(long intervalMillis) {
+        if (scheduledRefresh != null) {
+            return;
+        }
+        refreshing = true;
+        try {
+            scheduledRefresh = executor.scheduleWithFixedDelay(this::refresh, 0, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+            logger.info("Refreshing content hash index every {} ms", intervalMillis);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Content hash index already closed");
+        }
+    }
+
+    public synchronized void stopRefreshing() {
+        refreshing = false;
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+    }
+
+    /**
+     * Rehashes stale entries in the calling thread, stops early once refreshing is stopped
+     *
+     * @return number of rehashed entries
+     */
+    int refresh() {
+        Map<String, Entry> snapshot;
+        synchronized (this) {
+            snapshot = new LinkedHashMap<>(entries);
+        }
+        var count = 0;
+        for (var item : snapshot.entrySet()) {
+            if (!refreshing) {
+                break;
+            }
+            var entry = item.getValue();
+            var file = Paths.get(entry.path);
+            try {
+                var identity = Identity.of(file);
+                if (!item.getKey().startsWith(identity.fileKey + '\0')) {
+                    // Another file took the path, the old one is gone
+                    replace(item.getKey(), entry, null);
+                } else if (!entry.matches(identity)) {
+                    var factory = BuiltinDigests.fromFactoryName(entry.algorithm);
+                    if (factory == null) {
+                        replace(item.getKey(), entry, null);
+                        continue;
+                    }
+                    byte[] digest;
+                    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                        digest = hasher.hash(channel, factory, 0, identity.size);
+                    }
+                    replace(item.getKey(), entry,
+                            new Entry(entry.algorithm, entry.path, identity.size, identity.modified, digest));
+                    refreshed.incrementAndGet();
+                    count++;
+                }
+            } catch (NoSuchFileException e) {
+                replace(item.getKey(), entry, null);
+            } catch (IOException e) {
+                logger.debug("Failed to refresh digest of {}: {}", entry.path, e.getMessage());
+            }
+        }
+        return count;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRefreshed() {
+        return refreshed.get();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the index to disk, replacing the previous version atomically
+     */
+    public void save() throws IOException {
+        synchronized (saveLock) {
+            Map<String, Entry> snapshot;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                snapshot = new LinkedHashMap<>(entries);
+                dirty = false;
+            }
+            write(snapshot);
+        }
+    }
+
+    private void write(Map<String, Entry> snapshot) throws IOException {
+        var temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (var entry : snapshot.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+        try {
+            Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        logger.debug("Saved {} content hashes to {}", snapshot.size(), indexFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopRefreshing();
+        executor.shutdownNow();
+        save();
+    }
+
+    private void load() {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("Ignoring content hash index {} of unknown format", indexFile);
+                return;
+            }
+            var count = in.readInt();
+            var loaded = new LinkedHashMap<String, Entry>();
+            for (var i = 0; i < count; i++) {
+                var key = in.readUTF();
+                loaded.put(key, Entry.readFrom(in));
+            }
+            synchronized (this) {
+                entries.putAll(loaded);
+            }
+            logger.info("Loaded {} content hashes from {}", loaded.size(), indexFile);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable content hash index {}: {}", indexFile, e.getMessage());
+        }
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+        changed();
+    }
+
+    /**
+     * Replaces or removes an entry read earlier, unless a request has recorded a newer one meanwhile
+     */
+    private synchronized void replace(String key, Entry previous, Entry entry) {
+        var replaced = entry == null ? entries.remove(key, previous) : entries.replace(key, previous, entry);
+        if (replaced) {
+            changed();
+        }
+    }
+
+    private void changed() {
+        dirty = true;
+        if (scheduledSave != null && !scheduledSave.isDone()) {
+            return;
+        }
+        try {
+            scheduledSave = executor.schedule(this::deferredSave, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Content hash index closed, saving on close only");
+        }
+    }
+
+    private void deferredSave() {
+        try {
+            save();
+        } catch (IOException e) {
+            logger.warn("Failed to save content hash index {}: {}", indexFile, e.getMessage());
+        }
+    }
+
+    private static String realPath(Path file) {
+        return file.toAbsolutePath().normalize().toFile().getPath();
+    }
+
+    /**
+     * Computes the digest of the whole file
+     */
+    public interface Computation {
+        byte[] compute() throws IOException;
+    }
+
+    private static final class Identity {
+        private final String fileKey;
+        private final long size;
+        private final long modified;
+
+        private Identity(String fileKey, long size, long modified) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        static Identity of(Path file) throws IOException {
+            var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            // The key holds device and inode, the path is only a fallback for file systems without one
+            var fileKey = attributes.fileKey() != null ? attributes.fileKey().toString() : realPath(file);
+            return new Identity(fileKey, attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private static final class Entry {
+        private final String algorithm;
+        private final String path;
+        private final long size;
+        private final long modified;
+        private final byte[] digest;
+
+        Entry(String algorithm, String path, long size, long modified, byte[] digest) {
+            this.algorithm = algorithm;
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+
+        boolean matches(Identity identity) {
+            return size == identity.size && modified == identity.modified;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(algorithm);
+            out.writeUTF(path);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeShort(digest.length);
+            out.write(digest);
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            var algorithm = in.readUTF();
+            var path = in.readUTF();
+            var size = in.readLong();
+            var modified = in.readLong();
+            var digest = new byte[in.readUnsignedShort()];
+            in.readFully(digest);
+            return new Entry(algorithm, path, size, modified, digest);
+        }
+    }
+}
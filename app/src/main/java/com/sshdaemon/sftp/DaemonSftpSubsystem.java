@@ -0,0 +1,529 @@
+package com.sshdaemon.sftp;
+
+import static org.apache.sshd.sftp.common.SftpConstants.ACE4_READ_DATA;
+import static org.apache.sshd.sftp.common.SftpConstants.ACE4_WRITE_DATA;
+import static org.apache.sshd.sftp.common.SftpConstants.MIN_CHKFILE_BLOCKSIZE;
+import static org.apache.sshd.sftp.common.SftpConstants.SFTP_V3;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FILEXFER_ATTR_ALL;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FX_EOF;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_BLOCK;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_CLOSE;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_EXTENDED;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_EXTENDED_REPLY;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_FSETSTAT;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_FSTAT;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_READ;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_READDIR;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_UNBLOCK;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_WRITE;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.digest.Digest;
+import org.apache.sshd.common.util.ValidateUtils;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.sftp.server.DirectoryHandle;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpSubsystem;
+import org.apache.sshd.sftp.server.SftpSubsystemConfigurator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SFTP subsystem whose requests are processed by the daemon-wide {@link SftpScheduler} instead of a
+ * dedicated thread blocking on the request queue for the lifetime of the channel. Directory listings
+ * are streamed in packet sized batches whose entry attributes are read in parallel, copy-data is
+ * served with {@link FileChannel#transferTo} and check-file hashes blocks in parallel, whole-file
+ * digests of unchanged files come from the {@link ContentHashIndex}. Whole subtrees are listed in one
+ * go through the {@value TreeScanHandle#TREE_SCAN} extension. On a {@link VolumeFileSystem}
+ * each request is queued with the workers of the volume it operates on. Atomic uploads still open
+ * when the session ends are discarded, attributes of their files are read from and written to the
+ * temporary files until they are closed.
+ */
+public class DaemonSftpSubsystem extends SftpSubsystem {
+
+    private static final int INITIAL_ENTRY_SIZE_ESTIMATE = 256;
+    private static final int TREE_SCAN_PARALLELISM = 4;
+    private static final int TREE_SCAN_MAX_BUFFERED = 16384;
+    private static final int REPLY_HEADER_SIZE = 64;
+    private static final Set<Integer> HANDLE_REQUESTS = Set.of(SSH_FXP_CLOSE, SSH_FXP_READ, SSH_FXP_WRITE,
+            SSH_FXP_FSTAT, SSH_FXP_FSETSTAT, SSH_FXP_READDIR, SSH_FXP_BLOCK, SSH_FXP_UNBLOCK);
+
+    private final SftpScheduler scheduler;
+    private final FileHasher hasher;
+    private final ContentHashIndex contentHashIndex;
+    private final SftpScheduler.Lane lane;
+    private final int packetSize;
+    private final AtomicBoolean exited = new AtomicBoolean();
+
+    private int entrySizeEstimate = INITIAL_ENTRY_SIZE_ESTIMATE;
+    private long sentBytes;
+
+    public DaemonSftpSubsystem(ChannelSession channel, SftpSubsystemConfigurator configurator,
+                               SftpScheduler scheduler, ContentHashIndex contentHashIndex) {
+        super(channel, configurator);
+        var window = channel.getLocalWindow();
+        this.scheduler = scheduler;
+        this.hasher = new FileHasher(scheduler);
+        this.contentHashIndex = contentHashIndex;
+        var session = channel.getServerSession();
+        this.lane = scheduler.register(session, session.getUsername(), window::release);
+        this.packetSize = (int) Math.min(channel.getRemoteWindow().getPacketSize(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void start(ChannelSession channel, Environment env) {
+        this.env = env;
+    }
+
+    @Override
+    public int data(ChannelSession channel, byte[] buf, int start, int len) throws IOException {
+        var consumed = super.data(channel, buf, start, len);
+        Buffer request;
+        while ((request = requests.poll()) != null) {
+            var pending = request;
+            lane.submit(queueOf(pending), () -> processRequest(pending));
+        }
+        return consumed;
+    }
+
+    @Override
+    public void close() {
+        requests.clear();
+        if (!lane.submitLast(() -> exit(0))) {
+            exit(0);
+        }
+    }
+
+    @Override
+    public void destroy(ChannelSession channel) {
+        requests.clear();
+        // The handles are closed right away, against the file system of the session the base class
+        // closes. Requests still running fail on them, the channel they would answer is gone.
+        exit(0);
+        super.destroy(channel);
+    }
+
+    @Override
+    protected void send(Buffer buffer) throws IOException {
+        sentBytes += buffer.available();
+        super.send(buffer);
+    }
+
+    @Override
+    protected int doReadDir(int id, String handle, DirectoryHandle dir, Buffer buffer, int maxSize,
+                            boolean followLinks) throws IOException {
+        var options = getFileSystemAccessor().resolveFileAccessLinkOptions(
+                this, dir.getFile(), SSH_FXP_READDIR, "", followLinks);
+        // Keep each reply within a single SSH packet of the channel
+        var limit = Math.min(maxSize, packetSize);
+        var entries = new TreeMap<String, Path>();
+        var batch = new ArrayList<DirEntry>();
+        addDotEntries(dir, batch);
+        var written = 0;
+        while (buffer.wpos() < limit && (!batch.isEmpty() || dir.hasNext())) {
+            // Only pull as many names as are expected to fit, so nothing is left over for the next request
+            var expected = Math.max(1, (limit - buffer.wpos()) / entrySizeEstimate);
+            while (batch.size() < expected && dir.hasNext()) {
+                var entry = nextEntry(dir);
+                if (entry != null) {
+                    batch.add(entry);
+                }
+            }
+            var start = buffer.wpos();
+            var attributes = scheduler.computeAll(batch, entry -> readEntryAttributes(entry, options));
+            for (var i = 0; i < batch.size(); i++) {
+                writeDirEntry(batch.get(i), attributes.get(i), entries, buffer);
+            }
+            if (!batch.isEmpty()) {
+                entrySizeEstimate = Math.max(1, (buffer.wpos() - start) / batch.size());
+            }
+            written += batch.size();
+            batch.clear();
+        }
+        getSftpEventListenerProxy().readEntries(getServerSession(), handle, dir, entries);
+        return written;
+    }
+
+    @Override
+    protected NavigableMap<String, Object> resolveFileAttributes(Path file, int flags, boolean neverFollowSymLinks,
+                                                                 LinkOption... options) throws IOException {
+        return super.resolveFileAttributes(uploadedFile(file), flags, neverFollowSymLinks, options);
+    }
+
+    @Override
+    protected void doSetAttributes(int cmd, String extension, Path file, Map<String, ?> attributes,
+                                   boolean followLinks) throws IOException {
+        super.doSetAttributes(cmd, extension, uploadedFile(file), attributes, followLinks);
+    }
+
+    @Override
+    protected void appendExtensions(Buffer buffer, String supportedVersions) {
+        super.appendExtensions(buffer, supportedVersions);
+        buffer.putString(TreeScanHandle.TREE_SCAN);
+        buffer.putString("1");
+    }
+
+    @Override
+    protected void executeExtendedCommand(Buffer buffer, int id, String extension) throws IOException {
+        if (TreeScanHandle.TREE_SCAN.equals(extension)) {
+            doTreeScan(buffer, id);
+        } else if (TreeScanHandle.TREE_SCAN_READ.equals(extension)) {
+            doTreeScanRead(buffer, id);
+        } else {
+            super.executeExtendedCommand(buffer, id, extension);
+        }
+    }
+
+    protected void doTreeScan(Buffer buffer, int id) throws IOException {
+        var path = buffer.getString();
+        String handle;
+        try {
+            var directory = resolveFile(path);
+            if (!Files.isDirectory(directory)) {
+                throw new NotDirectoryException(path);
+            }
+            handle = generateFileHandle(directory);
+            var scanner = new TreeScanner(directory, scheduler.getTreeScanExecutor(), TREE_SCAN_PARALLELISM,
+                    TREE_SCAN_MAX_BUFFERED);
+            var scan = new TreeScanHandle(this, directory, handle, scanner);
+            handles.put(handle, scan);
+            scan.start();
+        } catch (IOException | RuntimeException e) {
+            sendStatus(prepareReply(buffer), id, e, SSH_FXP_EXTENDED, TreeScanHandle.TREE_SCAN, path);
+            return;
+        }
+        sendHandle(prepareReply(buffer), id, handle);
+    }
+
+    protected void doTreeScanRead(Buffer buffer, int id) throws IOException {
+        var handle = buffer.getString();
+        try {
+            var scan = validateHandle(handle, handles.get(handle), TreeScanHandle.class);
+            var reply = prepareReply(buffer);
+            reply.putByte((byte) SSH_FXP_EXTENDED_REPLY);
+            reply.putInt(id);
+            // Keep each reply within a single SSH packet of the channel
+            if (scan.writeEntries(reply, packetSize - REPLY_HEADER_SIZE) == 0) {
+                sendStatus(prepareReply(buffer), id, SSH_FX_EOF, "End of tree scan");
+                return;
+            }
+            send(reply);
+        } catch (IOException | RuntimeException e) {
+            sendStatus(prepareReply(buffer), id, e, SSH_FXP_EXTENDED, TreeScanHandle.TREE_SCAN_READ, handle);
+        }
+    }
+
+    @Override
+    protected void doCopyData(int id, String readHandle, long readOffset, long readLength, String writeHandle,
+                              long writeOffset) throws IOException {
+        var source = validateHandle(readHandle, handles.get(readHandle), FileHandle.class);
+        var target = readHandle.equals(writeHandle)
+                ? source : validateHandle(writeHandle, handles.get(writeHandle), FileHandle.class);
+        if (!(source.getFileChannel() instanceof FileChannel) || !(target.getFileChannel() instanceof FileChannel)) {
+            super.doCopyData(id, readHandle, readOffset, readLength, writeHandle, writeOffset);
+            return;
+        }
+        var sourcePath = source.getFile().toString();
+        if ((source.getAccessMask() & ACE4_READ_DATA) != ACE4_READ_DATA) {
+            throw new AccessDeniedException(sourcePath, sourcePath, "Source file not opened for read");
+        }
+        ValidateUtils.checkTrue(readLength >= 0L, "Invalid read length: %d", readLength);
+        ValidateUtils.checkTrue(readOffset >= 0L, "Invalid read offset: %d", readOffset);
+        var length = effectiveLength(Files.size(source.getFile()), readOffset, readLength);
+        ValidateUtils.checkTrue(length > 0L, "Non-positive effective copy data length: %d", length);
+        if ((target.getAccessMask() & ACE4_WRITE_DATA) != ACE4_WRITE_DATA) {
+            throw new AccessDeniedException(target.toString(), target.toString(), "Source handle not opened for write");
+        }
+        ValidateUtils.checkTrue(writeOffset >= 0L, "Invalid write offset: %d", writeOffset);
+        if (source == target && readOffset < writeOffset + length && writeOffset < readOffset + length) {
+            throw new IllegalArgumentException("Write range [" + writeOffset + "-" + (writeOffset + length)
+                    + "] overlaps with read range [" + readOffset + "-" + (readOffset + length) + "]");
+        }
+
+        var input = directChannel(source.getFileChannel());
+        var output = directChannel(target.getFileChannel());
+        // The target channel may be shared with other handles, which only write positionally
+        synchronized (output) {
+            output.position(writeOffset);
+            // The kernel copies the data, nothing passes through buffers of the subsystem
+            var position = readOffset;
+            var remaining = length;
+            while (remaining > 0) {
+                var transferred = input.transferTo(position, remaining, output);
+                if (transferred <= 0) {
+                    throw new EOFException("Premature EOF while still remaining " + remaining + " bytes");
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
+    @Override
+    protected void doCheckFileHash(int id, Path file, NamedFactory<? extends Digest> factory, long startOffset,
+                                   long length, int blockSize, Buffer buffer) throws Exception {
+        ValidateUtils.checkTrue(startOffset >= 0L, "Invalid start offset: %d", startOffset);
+        ValidateUtils.checkTrue(length >= 0L, "Invalid length: %d", length);
+        ValidateUtils.checkTrue(blockSize == 0 || blockSize >= MIN_CHKFILE_BLOCKSIZE, "Invalid block size: %d",
+                blockSize);
+        Objects.requireNonNull(factory, "No digest factory provided");
+        var size = Files.size(file);
+        var effectiveLength = effectiveLength(size, startOffset, length);
+        ValidateUtils.checkTrue(effectiveLength > 0L, "Non-positive effective hash data length: %d",
+                effectiveLength);
+
+        var accessor = getFileSystemAccessor();
+        var channel = accessor.openFile(this, null, file, null, Collections.emptySet());
+        try {
+            if (!(channel instanceof FileChannel)) {
+                super.doCheckFileHash(id, file, factory, startOffset, length, blockSize, buffer);
+                return;
+            }
+            var input = directChannel(channel);
+            buffer.putString(factory.getName());
+            if (blockSize == 0 && startOffset == 0 && effectiveLength == size && contentHashIndex != null) {
+                buffer.putBytes(contentHashIndex.digest(file, factory.getName(),
+                        () -> hasher.hash(input, factory, 0, size)));
+            } else if (blockSize == 0) {
+                buffer.putBytes(hasher.hash(input, factory, startOffset, effectiveLength));
+            } else {
+                for (var digest : hasher.hashBlocks(input, factory, startOffset, effectiveLength, blockSize)) {
+                    buffer.putBytes(digest);
+                }
+            }
+        } finally {
+            accessor.closeFile(this, null, file, null, channel, Collections.emptySet());
+        }
+    }
+
+    /**
+     * Returns the length of the requested range within the file, 0 requesting everything up to the end
+     */
+    private static long effectiveLength(long size, long offset, long length) {
+        if (length == 0 || offset + length > size) {
+            return size - offset;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the file channel below the wrappers of the accessor, after writing out data the wrappers
+     * still hold back, so positional reads and kernel copies see the current content
+     */
+    private static FileChannel directChannel(SeekableByteChannel channel) throws IOException {
+        var fileChannel = (FileChannel) channel;
+        while (fileChannel instanceof ForwardingFileChannel) {
+            if (fileChannel instanceof WriteBehindFileChannel) {
+                ((WriteBehindFileChannel) fileChannel).flush();
+            }
+            fileChannel = ((ForwardingFileChannel) fileChannel).getDelegate();
+        }
+        return fileChannel;
+    }
+
+    /**
+     * Returns the temporary file of an atomic upload to the given file open in this session, the file
+     * itself if there is none
+     */
+    private Path uploadedFile(Path file) {
+        for (var handle : handles.values()) {
+            if (handle instanceof FileHandle && file.equals(handle.getFile())) {
+                var upload = atomicUpload(((FileHandle) handle).getFileChannel());
+                if (upload != null) {
+                    return upload.getTempFile();
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Frees the space reserved past the data of the files uploaded in this session
+     */
+    private void releaseReservedSpace() {
+        for (var handle : handles.values()) {
+            if (handle instanceof FileHandle) {
+                var upload = wrapped(((FileHandle) handle).getFileChannel(), UploadFileChannel.class);
+                if (upload == null) {
+                    continue;
+                }
+                try {
+                    upload.release();
+                } catch (IOException e) {
+                    log.debug("Failed to release space reserved for {}: {}", handle.getFile(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static AtomicUploadFileChannel atomicUpload(SeekableByteChannel channel) {
+        return wrapped(channel, AtomicUploadFileChannel.class);
+    }
+
+    private static <T extends FileChannel> T wrapped(SeekableByteChannel channel, Class<T> type) {
+        while (channel instanceof ForwardingFileChannel) {
+            if (type.isInstance(channel)) {
+                return type.cast(channel);
+            }
+            channel = ((ForwardingFileChannel) channel).getDelegate();
+        }
+        return null;
+    }
+
+    private void addDotEntries(DirectoryHandle dir, ArrayList<DirEntry> batch) {
+        if (dir.isWithDots()) {
+            return;
+        }
+        if (dir.isSendDot()) {
+            batch.add(new DirEntry(dir.getFile(), "."));
+            dir.markDotSent();
+        }
+        if (dir.isSendDotDot()) {
+            var parent = dir.getFile().getParent();
+            if (parent != null) {
+                batch.add(new DirEntry(parent, ".."));
+            }
+            dir.markDotDotSent();
+        }
+    }
+
+    private DirEntry nextEntry(DirectoryHandle dir) throws IOException {
+        var file = dir.next();
+        var name = getShortName(file);
+        if (".".equals(name)) {
+            if (!dir.isSendDot()) {
+                return null;
+            }
+            dir.markDotSent();
+        } else if ("..".equals(name)) {
+            if (!dir.isSendDotDot()) {
+                return null;
+            }
+            dir.markDotDotSent();
+        }
+        return new DirEntry(file, name);
+    }
+
+    private NavigableMap<String, Object> readEntryAttributes(DirEntry entry, LinkOption... options)
+            throws IOException {
+        var followLinks = resolvePathResolutionFollowLinks(SSH_FXP_READDIR, "", entry.file);
+        return resolveFileAttributes(entry.file, SSH_FILEXFER_ATTR_ALL, !followLinks, options);
+    }
+
+    private void writeDirEntry(DirEntry entry, Map<String, ?> attributes, Map<String, Path> entries, Buffer buffer)
+            throws IOException {
+        entries.put(entry.name, entry.file);
+        var accessor = getFileSystemAccessor();
+        accessor.putRemoteFileName(this, entry.file, buffer, entry.name, true);
+        if (getVersion() == SFTP_V3) {
+            accessor.putRemoteFileName(this, entry.file, buffer, getLongName(entry.file, entry.name, attributes), false);
+        }
+        writeAttrs(buffer, attributes);
+    }
+
+    /**
+     * Returns the queue of the volume the request operates on, judged by its first path or handle
+     */
+    private SftpScheduler.IoQueue queueOf(Buffer request) {
+        if (!(fileSystem instanceof VolumeFileSystem)) {
+            return scheduler.getQueue(null);
+        }
+        var position = request.rpos();
+        try {
+            request.getInt();
+            var type = request.getUByte();
+            request.getInt();
+            if (type == SSH_FXP_EXTENDED) {
+                request.getString();
+            }
+            var argument = request.getString();
+            var handle = handles.get(argument);
+            Path file;
+            if (handle != null) {
+                file = handle.getFile();
+            } else if (HANDLE_REQUESTS.contains(type)) {
+                // Not opened yet, the handle is still in the making
+                file = null;
+            } else {
+                file = resolveFile(argument);
+            }
+            return scheduler.getQueue(file != null ? VolumeFileSystem.getVolumeName(file) : null);
+        } catch (RuntimeException | IOException e) {
+            // Requests without a path such as init or limits@openssh.com
+            return scheduler.getQueue(null);
+        } finally {
+            request.rpos(position);
+        }
+    }
+
+    private void processRequest(Buffer request) {
+        if (exited.get()) {
+            return;
+        }
+        try {
+            var length = request.available();
+            sentBytes = 0;
+            process(request);
+            lane.charge(length + sentBytes);
+            lane.releaseWindow(length);
+        } catch (Throwable t) {
+            if (!closed.get()) {
+                error("processRequest({}) {} caught in SFTP subsystem: {}",
+                        getServerSession(), t.getClass().getSimpleName(), t.getMessage(), t);
+            }
+            exit(-1);
+        }
+    }
+
+    private void exit(int exitValue) {
+        if (!exited.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Handles the client did not close belong to transfers cut off before completion
+            releaseReservedSpace();
+            for (var handle : handles.values()) {
+                if (handle instanceof FileHandle) {
+                    var upload = atomicUpload(((FileHandle) handle).getFileChannel());
+                    if (upload != null) {
+                        upload.abort();
+                    }
+                }
+            }
+            closeAllHandles();
+            if (callback != null) {
+                callback.onExit(exitValue, exitValue != 0);
+            }
+        } finally {
+            lane.close();
+        }
+    }
+
+    private static final class DirEntry {
+        private final Path file;
+        private final String name;
+
+        DirEntry(Path file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+    }
+}
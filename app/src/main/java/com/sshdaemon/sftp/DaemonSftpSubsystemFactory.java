@@ -0,0 +1,43 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.util.GenericUtils;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+/**
+ * SFTP subsystem factory creating {@link DaemonSftpSubsystem}s that share one {@link SftpScheduler}
+ */
+public class DaemonSftpSubsystemFactory extends SftpSubsystemFactory {
+
+    private final SftpScheduler scheduler;
+    private ContentHashIndex contentHashIndex;
+
+    public DaemonSftpSubsystemFactory(SftpScheduler scheduler) {
+        this.scheduler = scheduler;
+        setExecutorServiceProvider(scheduler::getExecutorService);
+    }
+
+    public SftpScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public ContentHashIndex getContentHashIndex() {
+        return contentHashIndex;
+    }
+
+    /**
+     * @param contentHashIndex index answering check-file requests for unchanged files, {@code null}
+     *                         to always hash
+     */
+    public void setContentHashIndex(ContentHashIndex contentHashIndex) {
+        this.contentHashIndex = contentHashIndex;
+    }
+
+    @Override
+    public Command createSubsystem(ChannelSession channel) {
+        var subsystem = new DaemonSftpSubsystem(channel, this, scheduler, contentHashIndex);
+        GenericUtils.forEach(getRegisteredListeners(), subsystem::addSftpEventListener);
+        return subsystem;
+    }
+}
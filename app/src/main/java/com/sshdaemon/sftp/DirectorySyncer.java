@@ -0,0 +1,101 @@
+package com.sshdaemon.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Syncs directories whose entries changed, such as by the rename completing an atomic upload. Requests
+ * arriving within the delay are served together, a directory receiving many files is synced once.
+ */
+public class DirectorySyncer {
+    private static final Logger logger = LoggerFactory.getLogger(DirectorySyncer.class);
+
+    private final ScheduledExecutorService timer;
+    private final long delayMillis;
+    private final Set<Path> pending = new LinkedHashSet<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    private boolean scheduled;
+
+    /**
+     * @param timer       executor running the delayed syncs, {@code null} to sync each directory right away
+     * @param delayMillis longest time a directory waits to be synced
+     */
+    public DirectorySyncer(ScheduledExecutorService timer, long delayMillis) {
+        this.timer = timer;
+        this.delayMillis = delayMillis;
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Returns the number of directories requested to be synced so far
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of directory syncs performed so far
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * Syncs the given directory within the delay
+     */
+    public void sync(Path directory) {
+        requests.incrementAndGet();
+        if (timer == null) {
+            fsync(directory);
+            return;
+        }
+        synchronized (this) {
+            pending.add(directory);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        timer.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Syncs all directories waiting to be synced
+     */
+    public void flush() {
+        ArrayList<Path> directories;
+        synchronized (this) {
+            directories = new ArrayList<>(pending);
+            pending.clear();
+            scheduled = false;
+        }
+        for (var directory : directories) {
+            fsync(directory);
+        }
+    }
+
+    private void fsync(Path directory) {
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+            syncs.incrementAndGet();
+        } catch (IOException e) {
+            logger.debug("Failed to sync directory {}: {}", directory, e.getMessage());
+        }
+    }
+}
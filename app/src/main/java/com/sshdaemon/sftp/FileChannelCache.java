@@ -0,0 +1,324 @@
+package com.sshdaemon.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of idle read-only file channels keyed by the path of a file. Closing a channel
+ * handed out by {@link #open} parks the underlying channel here, the next open of the same file takes
+ * it over instead of opening the file again as long as the file's identity, size and modification
+ * time are unchanged. Idle channels are closed when the file is changed through the daemon, when they
+ * are evicted or once they are idle for longer than the time to live, checked on the timer if one is
+ * given and on every open and release otherwise.
+ */
+public class FileChannelCache {
+    private static final Logger logger = LoggerFactory.getLogger(FileChannelCache.class);
+
+    private final int maxEntries;
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private long generation;
+
+    public FileChannelCache(int maxEntries, long timeToLiveMillis) {
+        this(maxEntries, timeToLiveMillis, null);
+    }
+
+    /**
+     * @param timer executor closing channels idle for longer than the time to live, {@code null} to
+     *              only close them when the cache is used
+     */
+    public FileChannelCache(int maxEntries, long timeToLiveMillis, ScheduledExecutorService timer) {
+        if (maxEntries <= 0 || timeToLiveMillis <= 0) {
+            throw new IllegalArgumentException("Cache size and time to live must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        if (timer != null) {
+            // Idle descriptors keep removable volumes busy and space of deleted files allocated
+            timer.scheduleWithFixedDelay(this::expire, timeToLiveMillis, timeToLiveMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns a channel reading the given file, reusing an idle channel of the file if there is one
+     *
+     * @param opener opens the file when no idle channel can be reused
+     */
+    public SeekableByteChannel open(Path file, LinkOption[] options, Opener opener) throws IOException {
+        var key = keyOf(file);
+        var identity = Identity.of(Files.readAttributes(file, BasicFileAttributes.class, options));
+        Entry entry;
+        long openGeneration;
+        var expired = new ArrayList<FileChannel>();
+        synchronized (this) {
+            removeExpired(expired);
+            entry = entries.remove(key);
+            openGeneration = generation;
+        }
+        closeAll(expired);
+        if (entry != null && entry.identity.equals(identity)) {
+            hits.incrementAndGet();
+            entry.channel.position(0);
+            return new Lease(entry.channel, key, identity, openGeneration);
+        }
+        if (entry != null) {
+            close(entry.channel);
+        }
+        misses.incrementAndGet();
+        var channel = opener.open();
+        if (!(channel instanceof FileChannel) || identity == null) {
+            return channel;
+        }
+        return new Lease((FileChannel) channel, key, identity, openGeneration);
+    }
+
+    /**
+     * Closes the idle channel of the given file
+     */
+    public void invalidate(Path file) {
+        if (file != null) {
+            invalidate(keyOf(file), false);
+        }
+    }
+
+    /**
+     * Closes the idle channels of the given path and of everything below it
+     */
+    public void invalidateTree(Path file) {
+        if (file != null) {
+            invalidate(keyOf(file), true);
+        }
+    }
+
+    /**
+     * Closes the channels idle for longer than the time to live
+     */
+    public void expire() {
+        var expired = new ArrayList<FileChannel>();
+        synchronized (this) {
+            removeExpired(expired);
+        }
+        closeAll(expired);
+    }
+
+    /**
+     * Closes all idle channels, channels in use are closed when they are released
+     */
+    public void clear() {
+        List<FileChannel> channels;
+        synchronized (this) {
+            generation++;
+            channels = new ArrayList<>(entries.size());
+            for (var entry : entries.values()) {
+                channels.add(entry.channel);
+            }
+            entries.clear();
+        }
+        closeAll(channels);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    private void invalidate(String key, boolean tree) {
+        var channels = new ArrayList<FileChannel>();
+        synchronized (this) {
+            invalidations.incrementAndGet();
+            var prefix = key.endsWith(File.separator) ? key : key + File.separator;
+            for (var iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+                var entry = iterator.next();
+                if (entry.getKey().equals(key) || (tree && entry.getKey().startsWith(prefix))) {
+                    channels.add(entry.getValue().channel);
+                    iterator.remove();
+                }
+            }
+        }
+        closeAll(channels);
+    }
+
+    private void release(FileChannel channel, String key, Identity identity, long openGeneration) {
+        var closing = new ArrayList<FileChannel>();
+        synchronized (this) {
+            // Cleared while in use, a channel released after an invalidation is checked on the next open
+            if (openGeneration != generation || entries.containsKey(key)) {
+                closing.add(channel);
+            } else {
+                entries.put(key, new Entry(channel, identity));
+                removeExpired(closing);
+                for (Iterator<Entry> iterator = entries.values().iterator(); entries.size() > maxEntries; ) {
+                    closing.add(iterator.next().channel);
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        closeAll(closing);
+    }
+
+    private void removeExpired(List<FileChannel> expired) {
+        var now = System.nanoTime();
+        for (var iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            var entry = iterator.next();
+            if (now - entry.idleSince > timeToLiveNanos) {
+                expired.add(entry.channel);
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static void closeAll(List<FileChannel> channels) {
+        for (var channel : channels) {
+            close(channel);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close cached channel: {}", e.getMessage());
+        }
+    }
+
+    private static String keyOf(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Opens a file that has no reusable idle channel
+     */
+    public interface Opener {
+        SeekableByteChannel open() throws IOException;
+    }
+
+    private static final class Entry {
+        private final FileChannel channel;
+        private final Identity identity;
+        private final long idleSince = System.nanoTime();
+
+        Entry(FileChannel channel, Identity identity) {
+            this.channel = channel;
+            this.identity = identity;
+        }
+    }
+
+    /**
+     * What distinguishes a file from a replacement or a changed version under the same path
+     */
+    private static final class Identity {
+        private final Object fileKey;
+        private final long size;
+        private final long lastModified;
+
+        private Identity(Object fileKey, long size, long lastModified) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the identity of a regular file, {@code null} if the file system cannot tell files apart
+         */
+        static Identity of(BasicFileAttributes attributes) {
+            if (!attributes.isRegularFile() || attributes.fileKey() == null) {
+                return null;
+            }
+            return new Identity(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Identity)) {
+                return false;
+            }
+            var other = (Identity) o;
+            return fileKey.equals(other.fileKey) && size == other.size && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, size, lastModified);
+        }
+    }
+
+    /**
+     * Channel handed out for a file, returning the underlying channel to the cache when closed. Locks
+     * would outlive the handle on a reused channel, so a locked channel is closed for real.
+     */
+    private final class Lease extends ForwardingFileChannel {
+        private final String key;
+        private final Identity identity;
+        private final long openGeneration;
+
+        private volatile boolean locked;
+
+        Lease(FileChannel delegate, String key, Identity identity, long openGeneration) {
+            super(delegate);
+            this.key = key;
+            this.identity = identity;
+            this.openGeneration = openGeneration;
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            locked = true;
+            return super.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            locked = true;
+            return super.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            if (locked || !delegate.isOpen()) {
+                super.implCloseChannel();
+            } else {
+                release(delegate, key, identity, openGeneration);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.Handle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Closes idle cached channels of files written, moved or removed through the daemon's SFTP handlers
+ */
+public class FileChannelCacheInvalidator implements SftpEventListener {
+
+    private final FileChannelCache cache;
+
+    public FileChannelCacheInvalidator(FileChannelCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void open(ServerSession session, String remoteHandle, Handle localHandle) {
+        if (SftpAttributeCacheInvalidator.isWritable(localHandle)) {
+            cache.invalidate(localHandle.getFile());
+        }
+    }
+
+    @Override
+    public void closed(ServerSession session, String remoteHandle, Handle localHandle, Throwable thrown) {
+        if (SftpAttributeCacheInvalidator.isWritable(localHandle)) {
+            cache.invalidate(localHandle.getFile());
+        }
+    }
+
+    @Override
+    public void created(ServerSession session, Path path, Map<String, ?> attrs, Throwable thrown) {
+        cache.invalidate(path);
+    }
+
+    @Override
+    public void moved(ServerSession session, Path srcPath, Path dstPath, Collection<CopyOption> opts,
+                      Throwable thrown) {
+        cache.invalidateTree(srcPath);
+        cache.invalidateTree(dstPath);
+    }
+
+    @Override
+    public void removed(ServerSession session, Path path, boolean isDirectory, Throwable thrown) {
+        cache.invalidateTree(path);
+    }
+
+    @Override
+    public void linked(ServerSession session, Path source, Path target, boolean symLink, Throwable thrown) {
+        cache.invalidate(target);
+    }
+}
@@ -0,0 +1,114 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.digest.Digest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the digests of the check-file extension. Blocks are hashed in parallel on the scheduler's
+ * helper threads with positional reads on a shared channel, a single digest over the whole range is
+ * hashed while the following chunks are prefetched.
+ */
+public class FileHasher {
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final long MIN_SEGMENT_SIZE = 4L * 1024 * 1024;
+    private static final int READ_AHEAD_CHUNKS = 8;
+
+    private final SftpScheduler scheduler;
+
+    public FileHasher(SftpScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns the digest of the given range, read sequentially from the channel
+     */
+    public byte[] hash(FileChannel channel, NamedFactory<? extends Digest> factory, long offset, long length)
+            throws IOException {
+        try {
+            var digest = factory.create();
+            digest.init();
+            var readAhead = new ReadAheadFileChannel(channel, READ_AHEAD_CHUNKS, scheduler.getPrefetchExecutor());
+            try {
+                update(digest, readAhead, offset, length);
+            } finally {
+                readAhead.discard();
+            }
+            return digest.digest();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to hash " + length + " bytes: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns one digest per block of the given range in file order, the last block may be shorter
+     */
+    public List<byte[]> hashBlocks(FileChannel channel, NamedFactory<? extends Digest> factory, long offset,
+                                   long length, int blockSize) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        // Segments of whole blocks, large enough for sequential reads to dominate the scheduling overhead
+        var blocksPerSegment = Math.max(1, MIN_SEGMENT_SIZE / blockSize);
+        var segmentSize = blocksPerSegment * blockSize;
+        var segments = new ArrayList<Long>();
+        for (var start = offset; start < offset + length; start += segmentSize) {
+            segments.add(start);
+        }
+        var end = offset + length;
+        var results = scheduler.computeAll(segments, start -> {
+            var digests = new ArrayList<byte[]>();
+            var segmentEnd = Math.min(end, start + segmentSize);
+            for (long block = start; block < segmentEnd; block += blockSize) {
+                digests.add(hashBlock(channel, factory, block, Math.min(blockSize, segmentEnd - block)));
+            }
+            return digests;
+        });
+        var digests = new ArrayList<byte[]>();
+        for (var segment : results) {
+            digests.addAll(segment);
+        }
+        return digests;
+    }
+
+    private static byte[] hashBlock(FileChannel channel, NamedFactory<? extends Digest> factory, long offset,
+                                    long length) throws IOException {
+        try {
+            var digest = factory.create();
+            digest.init();
+            update(digest, channel, offset, length);
+            return digest.digest();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to hash block at " + offset + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void update(Digest digest, FileChannel channel, long offset, long length) throws Exception {
+        var data = new byte[(int) Math.min(READ_BUFFER_SIZE, length)];
+        var buffer = ByteBuffer.wrap(data);
+        var position = offset;
+        var end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(data.length, end - position));
+            var read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Premature EOF while still remaining " + (end - position) + " bytes");
+            }
+            digest.update(data, 0, read);
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.sshdaemon.sftp;
+
+import com.sshdaemon.util.BufferPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+
+/**
+ * Read-only file channel serving reads from a sliding memory-mapped window, so a read request is a
+ * single copy from the page cache into the outgoing packet buffer. Falls back to positional reads
+ * into pooled direct buffers when the underlying file system refuses to map the file, or when the
+ * file is truncated under a mapped window, which faults on access to the pages cut off.
+ */
+public class MappedFileChannel extends ForwardingFileChannel {
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileChannel.class);
+
+    static final BufferPool READ_BUFFERS = new BufferPool(64 * 1024, 32);
+
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private boolean mappingFailed;
+    private long position;
+
+    public MappedFileChannel(FileChannel delegate, int windowSize) throws IOException {
+        super(delegate);
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        }
+        this.windowSize = windowSize;
+        this.position = delegate.position();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        var read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (var i = offset; i < offset + length; i++) {
+            var read = read(dsts[i]);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        var size = delegate.size();
+        if (position >= size) {
+            return -1;
+        }
+        if (window != null && size < windowStart + window.limit()) {
+            // Truncated by another handle, the pages past the end are gone
+            window = null;
+        }
+        var region = mappingFailed ? null : region(position, size);
+        if (region == null) {
+            return pooledRead(dst, position);
+        }
+        var offset = (int) (position - windowStart);
+        var count = (int) Math.min(Math.min(dst.remaining(), region.limit() - offset), size - position);
+        var src = region.duplicate();
+        src.limit(offset + count);
+        src.position(offset);
+        var start = dst.position();
+        try {
+            dst.put(src);
+        } catch (InternalError e) {
+            // The file was truncated while copying, the fault is reported as an error
+            logger.debug("Mapped window of a truncated file faulted, reading without it: {}", e.getMessage());
+            window = null;
+            dst.position(start);
+            return pooledRead(dst, position);
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        synchronized (this) {
+            window = null;
+        }
+        super.implCloseChannel();
+    }
+
+    private ByteBuffer region(long position, long size) {
+        if (window != null && position >= windowStart && position < windowStart + window.limit()) {
+            return window;
+        }
+        var start = position - (position % windowSize);
+        var length = Math.min(windowSize, size - start);
+        try {
+            window = delegate.map(MapMode.READ_ONLY, start, length);
+            windowStart = start;
+            return window;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Mapping not supported, falling back to positional reads: {}", e.getMessage());
+            mappingFailed = true;
+            window = null;
+            return null;
+        }
+    }
+
+    private int pooledRead(ByteBuffer dst, long position) throws IOException {
+        if (dst.isDirect()) {
+            return delegate.read(dst, position);
+        }
+        var buffer = READ_BUFFERS.acquire();
+        try {
+            buffer.limit(Math.min(dst.remaining(), buffer.capacity()));
+            var read = delegate.read(buffer, position);
+            if (read > 0) {
+                buffer.flip();
+                dst.put(buffer);
+            }
+            return read;
+        } finally {
+            READ_BUFFERS.release(buffer);
+        }
+    }
+}
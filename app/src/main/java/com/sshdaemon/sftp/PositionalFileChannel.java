@@ -0,0 +1,95 @@
+package com.sshdaemon.sftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * View of a channel shared by several handles, with a position of its own. Reads and writes at the
+ * position are positional operations of the shared channel, which leaves the shared position alone
+ * and lets the handles read and write concurrently.
+ */
+public class PositionalFileChannel extends ForwardingFileChannel {
+
+    private final Releaser releaser;
+
+    private long position;
+
+    /**
+     * @param releaser called instead of closing the shared channel when this view is closed
+     */
+    public PositionalFileChannel(FileChannel delegate, Releaser releaser) {
+        super(delegate);
+        this.releaser = releaser;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        var count = delegate.write(src, position);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (var i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+            if (srcs[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        var count = delegate.read(dst, position);
+        if (count > 0) {
+            position += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (var i = offset; i < offset + length; i++) {
+            var count = read(dsts[i]);
+            if (count < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += count;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        releaser.release();
+    }
+
+    /**
+     * Gives up the handle's share of the shared channel
+     */
+    public interface Releaser {
+        void release() throws IOException;
+    }
+}
@@ -0,0 +1,278 @@
+package com.sshdaemon.sftp;
+
+import com.sshdaemon.util.BufferPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Read-only file channel detecting sequential access and prefetching the following chunks on a
+ * background thread, so the next read request of a client is served from memory. The prefetched
+ * chunks are dropped and their buffers returned to the pool as soon as a read is not sequential.
+ */
+public class ReadAheadFileChannel extends ForwardingFileChannel {
+    private static final Logger logger = LoggerFactory.getLogger(ReadAheadFileChannel.class);
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final BufferPool CHUNK_BUFFERS = new BufferPool(CHUNK_SIZE, 64);
+
+    private static final int SEQUENTIAL_READS_BEFORE_PREFETCH = 2;
+
+    private final int maxChunks;
+    private final Executor executor;
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+
+    private long position;
+    private long expectedOffset = -1;
+    private int sequentialReads;
+
+    public ReadAheadFileChannel(FileChannel delegate, int maxChunks, Executor executor) throws IOException {
+        super(delegate);
+        if (maxChunks <= 0) {
+            throw new IllegalArgumentException("Read-ahead chunk count must be positive: " + maxChunks);
+        }
+        this.maxChunks = maxChunks;
+        this.executor = executor;
+        this.position = delegate.position();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        var read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (var i = offset; i < offset + length; i++) {
+            var read = read(dsts[i]);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        if (position == expectedOffset) {
+            sequentialReads++;
+        } else {
+            sequentialReads = 0;
+            dropChunks();
+        }
+        var read = readPrefetched(dst, position);
+        if (read == 0 && dst.hasRemaining()) {
+            read = delegate.read(dst, position);
+        }
+        if (read > 0) {
+            expectedOffset = position + read;
+            if (sequentialReads >= SEQUENTIAL_READS_BEFORE_PREFETCH) {
+                prefetch(expectedOffset);
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * Drops the prefetched chunks without closing the underlying channel
+     */
+    synchronized void discard() {
+        dropChunks();
+    }
+
+    synchronized int getPrefetchedChunks() {
+        return chunks.size();
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        synchronized (this) {
+            dropChunks();
+        }
+        super.implCloseChannel();
+    }
+
+    private int readPrefetched(ByteBuffer dst, long position) throws IOException {
+        var read = 0;
+        while (dst.hasRemaining()) {
+            var chunk = chunks.peek();
+            // Chunks are contiguous, everything before the requested position has been consumed
+            while (chunk != null && chunk.offset + CHUNK_SIZE <= position + read) {
+                chunks.poll().drop();
+                chunk = chunks.peek();
+            }
+            if (chunk == null || chunk.offset > position + read) {
+                break;
+            }
+            var copied = chunk.copyTo(dst, position + read);
+            if (copied <= 0) {
+                break;
+            }
+            read += copied;
+        }
+        return read;
+    }
+
+    private void prefetch(long offset) throws IOException {
+        var size = delegate.size();
+        var next = chunks.isEmpty() ? offset : chunks.peekLast().offset + CHUNK_SIZE;
+        while (chunks.size() < maxChunks && next < size) {
+            var chunk = new Chunk(next);
+            chunks.add(chunk);
+            try {
+                executor.execute(chunk);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Prefetch rejected, reading chunk on demand");
+            }
+            next += CHUNK_SIZE;
+        }
+    }
+
+    private void dropChunks() {
+        Chunk chunk;
+        while ((chunk = chunks.poll()) != null) {
+            chunk.drop();
+        }
+    }
+
+    private final class Chunk implements Runnable {
+        private final long offset;
+        private ByteBuffer buffer;
+        private IOException failure;
+        private boolean started;
+        private boolean done;
+        private boolean dropped;
+
+        Chunk(long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer target;
+            synchronized (this) {
+                if (started || dropped) {
+                    return;
+                }
+                started = true;
+                buffer = CHUNK_BUFFERS.acquire();
+                target = buffer.duplicate();
+            }
+            IOException error = null;
+            try {
+                while (target.hasRemaining()) {
+                    var read = delegate.read(target, offset + target.position());
+                    if (read < 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                buffer.limit(target.position());
+                failure = error;
+                done = true;
+                if (dropped) {
+                    release();
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Copies the prefetched bytes at the given file position, reading the chunk in the calling
+         * thread when no background thread has picked it up yet
+         */
+        int copyTo(ByteBuffer dst, long position) throws IOException {
+            run();
+            synchronized (this) {
+                while (!done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                var start = (int) (position - offset);
+                if (start >= buffer.limit()) {
+                    return -1;
+                }
+                var count = Math.min(dst.remaining(), buffer.limit() - start);
+                var src = buffer.duplicate();
+                src.position(start);
+                src.limit(start + count);
+                dst.put(src);
+                return count;
+            }
+        }
+
+        synchronized void drop() {
+            dropped = true;
+            if (!started || done) {
+                release();
+            }
+        }
+
+        private void release() {
+            if (buffer != null) {
+                CHUNK_BUFFERS.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
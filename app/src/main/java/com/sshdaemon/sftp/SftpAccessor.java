@@ -0,0 +1,316 @@
+package com.sshdaemon.sftp;
+
+import static com.sshdaemon.sftp.SftpProperties.ATOMIC_UPLOADS;
+import static com.sshdaemon.sftp.SftpProperties.ATOMIC_UPLOAD_SYNC_DELAY;
+import static com.sshdaemon.sftp.SftpProperties.MAPPED_READS;
+import static com.sshdaemon.sftp.SftpProperties.MAPPED_READ_THRESHOLD;
+import static com.sshdaemon.sftp.SftpProperties.MAPPED_READ_WINDOW;
+import static com.sshdaemon.sftp.SftpProperties.PREALLOCATION;
+import static com.sshdaemon.sftp.SftpProperties.PREALLOCATION_STEP;
+import static com.sshdaemon.sftp.SftpProperties.READ_AHEAD;
+import static com.sshdaemon.sftp.SftpProperties.READ_AHEAD_CHUNKS;
+import static com.sshdaemon.sftp.SftpProperties.SHARED_WRITES;
+import static com.sshdaemon.sftp.SftpProperties.SYNC_BATCH_SIZE;
+import static com.sshdaemon.sftp.SftpProperties.SYNC_POLICY;
+import static com.sshdaemon.sftp.SftpProperties.WRITE_BEHIND;
+import static com.sshdaemon.sftp.SftpProperties.WRITE_BEHIND_BUFFER_SIZE;
+import static com.sshdaemon.sftp.SftpProperties.WRITE_BEHIND_MAX_DELAY;
+
+import com.sshdaemon.util.BufferPool;
+import com.sshdaemon.util.FileAllocator;
+
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpFileSystemAccessor;
+import org.apache.sshd.sftp.server.SftpSubsystemProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File system accessor used by the daemon's SFTP subsystem, hooks the I/O fast paths into the
+ * channels handed out to SFTP file handles
+ */
+public class SftpAccessor implements SftpFileSystemAccessor {
+    private static final Logger logger = LoggerFactory.getLogger(SftpAccessor.class);
+
+    private static final int MAX_POOLED_WRITE_BUFFERS = 16;
+    private static final int MAX_SWEPT_DIRECTORIES = 1024;
+    // Older temporary files belong to uploads the daemon was killed or crashed during
+    private static final long STALE_TEMP_FILE_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private final SftpAttributeCache attributeCache;
+    private final FileChannelCache channelCache;
+    private final SftpScheduler scheduler;
+    private final SharedWriteChannels sharedWrites = new SharedWriteChannels();
+    private final Set<Path> sweptDirectories = ConcurrentHashMap.newKeySet();
+
+    private volatile BufferPool writeBuffers;
+    private volatile DirectorySyncer directorySyncer;
+
+    public SftpAccessor() {
+        this(null, null, null);
+    }
+
+    /**
+     * @param attributeCache cache serving stat requests, {@code null} to always read from the file system
+     * @param channelCache   cache of channels reused by read-only opens, {@code null} to open every time
+     * @param scheduler      scheduler providing the background threads for read-ahead and delayed
+     *                       flushes, {@code null} to do without them
+     */
+    public SftpAccessor(SftpAttributeCache attributeCache, FileChannelCache channelCache, SftpScheduler scheduler) {
+        this.attributeCache = attributeCache;
+        this.channelCache = channelCache;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public SeekableByteChannel openFile(SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file,
+                                        String handle, Set<? extends OpenOption> options,
+                                        FileAttribute<?>... attrs) throws IOException {
+        if (isShared(subsystem, options)) {
+            var channel = sharedWrites.open(file, options,
+                    () -> openShared(subsystem, fileHandle, file, handle, options, attrs));
+            if (channel instanceof PositionalFileChannel && WRITE_BEHIND.getRequired(subsystem.getSession())) {
+                return openWriteBehind(subsystem, file, (FileChannel) channel);
+            }
+            return channel;
+        }
+        if (isAtomicUpload(subsystem, file, options)) {
+            var upload = openAtomicUpload(subsystem, fileHandle, file, handle, options, attrs);
+            return openForWriting(subsystem, writtenFile(file, upload), upload, false);
+        }
+        SeekableByteChannel channel;
+        if (channelCache != null && isReadOnly(options)) {
+            var linkOptions = noFollow(options) ? new LinkOption[]{LinkOption.NOFOLLOW_LINKS} : new LinkOption[0];
+            channel = channelCache.open(file, linkOptions,
+                    () -> SftpFileSystemAccessor.super.openFile(subsystem, fileHandle, file, handle, options, attrs));
+        } else {
+            channel = SftpFileSystemAccessor.super.openFile(subsystem, fileHandle, file, handle, options, attrs);
+        }
+        if (channel instanceof FileChannel && isReadOnly(options)) {
+            return openForReading(subsystem, file, (FileChannel) channel);
+        }
+        return openForWriting(subsystem, file, channel, options.contains(StandardOpenOption.APPEND));
+    }
+
+    /**
+     * Opens the channel shared by the handles writing a file, the handles buffer their writes on
+     * their own
+     */
+    private SeekableByteChannel openShared(SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file,
+                                           String handle, Set<? extends OpenOption> options,
+                                           FileAttribute<?>... attrs) throws IOException {
+        var channel = isAtomicUpload(subsystem, file, options)
+                ? openAtomicUpload(subsystem, fileHandle, file, handle, options, attrs)
+                : SftpFileSystemAccessor.super.openFile(subsystem, fileHandle, file, handle, options, attrs);
+        if (!(channel instanceof FileChannel)) {
+            return channel;
+        }
+        return openUpload(subsystem, writtenFile(file, channel), (FileChannel) channel, false);
+    }
+
+    /**
+     * Returns the file the channel writes, the temporary file of an atomic upload
+     */
+    private static Path writtenFile(Path file, SeekableByteChannel channel) {
+        return channel instanceof AtomicUploadFileChannel ? ((AtomicUploadFileChannel) channel).getTempFile() : file;
+    }
+
+    /**
+     * Opens a temporary file taking the place of the target on close, the rest of the write path
+     * operates on the temporary file
+     */
+    private SeekableByteChannel openAtomicUpload(SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file,
+                                                 String handle, Set<? extends OpenOption> options,
+                                                 FileAttribute<?>... attrs) throws IOException {
+        var exists = Files.exists(file, LinkOption.NOFOLLOW_LINKS);
+        if (exists && options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(file.toString());
+        }
+        if (!exists && !options.contains(StandardOpenOption.CREATE)
+                && !options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new NoSuchFileException(file.toString());
+        }
+        var tempOptions = new HashSet<OpenOption>(options);
+        tempOptions.remove(StandardOpenOption.CREATE);
+        tempOptions.remove(StandardOpenOption.TRUNCATE_EXISTING);
+        tempOptions.add(StandardOpenOption.CREATE_NEW);
+        var tempFile = AtomicUploadFileChannel.tempFileOf(file);
+        var channel = SftpFileSystemAccessor.super.openFile(subsystem, fileHandle, tempFile, handle, tempOptions, attrs);
+        if (!(channel instanceof FileChannel)) {
+            channel.close();
+            Files.deleteIfExists(tempFile);
+            return SftpFileSystemAccessor.super.openFile(subsystem, fileHandle, file, handle, options, attrs);
+        }
+        if (exists && attrs.length == 0) {
+            copyPermissions(file, tempFile);
+        }
+        logger.debug("Uploading {} through {}", file, tempFile);
+        removeStaleTempFiles(tempFile.toAbsolutePath().getParent());
+        return new AtomicUploadFileChannel((FileChannel) channel, file, tempFile, getDirectorySyncer(subsystem),
+                options.contains(StandardOpenOption.CREATE_NEW));
+    }
+
+    /**
+     * Removes the temporary files of uploads left behind in the directory, once for each directory
+     * uploaded to while the daemon runs
+     */
+    private void removeStaleTempFiles(Path directory) {
+        if (directory == null || !sweptDirectories.add(directory)) {
+            return;
+        }
+        if (sweptDirectories.size() > MAX_SWEPT_DIRECTORIES) {
+            sweptDirectories.clear();
+            sweptDirectories.add(directory);
+        }
+        Runnable sweep = () -> {
+            try {
+                AtomicUploadFileChannel.removeStaleTempFiles(directory, STALE_TEMP_FILE_AGE);
+            } catch (IOException e) {
+                logger.debug("Failed to look for stale temporary files in {}: {}", directory, e.getMessage());
+            }
+        };
+        if (scheduler == null) {
+            sweep.run();
+        } else {
+            scheduler.getTimer().execute(sweep);
+        }
+    }
+
+    private DirectorySyncer getDirectorySyncer(SftpSubsystemProxy subsystem) {
+        var delay = ATOMIC_UPLOAD_SYNC_DELAY.getRequired(subsystem.getSession()).toMillis();
+        var syncer = directorySyncer;
+        if (syncer == null || syncer.getDelayMillis() != delay) {
+            syncer = new DirectorySyncer(scheduler == null ? null : scheduler.getTimer(), delay);
+            directorySyncer = syncer;
+        }
+        return syncer;
+    }
+
+    private static void copyPermissions(Path file, Path tempFile) {
+        try {
+            Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Failed to keep the permissions of {}: {}", file, e.getMessage());
+        }
+    }
+
+    private SeekableByteChannel openForReading(SftpSubsystemProxy subsystem, Path file, FileChannel channel)
+            throws IOException {
+        var session = subsystem.getSession();
+        var size = channel.size();
+        if (MAPPED_READS.getRequired(session) && size >= MAPPED_READ_THRESHOLD.getRequired(session)) {
+            logger.debug("Using mapped reads for {}", file);
+            channel = new MappedFileChannel(channel, MAPPED_READ_WINDOW.getRequired(session));
+        }
+        if (scheduler != null && READ_AHEAD.getRequired(session) && size > ReadAheadFileChannel.CHUNK_SIZE) {
+            channel = new ReadAheadFileChannel(channel, READ_AHEAD_CHUNKS.getRequired(session),
+                    scheduler.getPrefetchExecutor());
+        }
+        return channel;
+    }
+
+    private SeekableByteChannel openForWriting(SftpSubsystemProxy subsystem, Path file, SeekableByteChannel channel,
+                                               boolean append) throws IOException {
+        if (!(channel instanceof FileChannel)) {
+            return channel;
+        }
+        var fileChannel = (FileChannel) channel;
+        if (!append && WRITE_BEHIND.getRequired(subsystem.getSession())) {
+            fileChannel = openWriteBehind(subsystem, file, fileChannel);
+        }
+        return openUpload(subsystem, file, fileChannel, append);
+    }
+
+    private FileChannel openUpload(SftpSubsystemProxy subsystem, Path file, FileChannel channel, boolean append)
+            throws IOException {
+        var session = subsystem.getSession();
+        var syncPolicy = SYNC_POLICY.getRequired(session);
+        // Appending writes land at the end of the file, which lies behind any reserved space
+        var preallocate = !append && PREALLOCATION.getRequired(session);
+        if (syncPolicy == SyncPolicy.NONE && !preallocate) {
+            return channel;
+        }
+        FileAllocator allocator = null;
+        if (preallocate) {
+            try {
+                allocator = FileAllocator.open(file.toFile());
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.debug("Preallocation not available for {}: {}", file, e.getMessage());
+            }
+        }
+        return new UploadFileChannel(channel, syncPolicy, SYNC_BATCH_SIZE.getRequired(session), allocator,
+                PREALLOCATION_STEP.getRequired(session));
+    }
+
+    private FileChannel openWriteBehind(SftpSubsystemProxy subsystem, Path file, FileChannel channel)
+            throws IOException {
+        var session = subsystem.getSession();
+        var bufferSize = WRITE_BEHIND_BUFFER_SIZE.getRequired(session);
+        var buffers = writeBuffers;
+        if (buffers == null || buffers.getBufferSize() != bufferSize) {
+            buffers = new BufferPool(bufferSize, MAX_POOLED_WRITE_BUFFERS);
+            writeBuffers = buffers;
+        }
+        logger.debug("Using write-behind buffering for {}", file);
+        return new WriteBehindFileChannel(channel, buffers, WRITE_BEHIND_MAX_DELAY.getRequired(session).toMillis(),
+                scheduler == null ? null : scheduler.getTimer());
+    }
+
+    @Override
+    public Map<String, ?> readFileAttributes(SftpSubsystemProxy subsystem, Path file, String view,
+                                             LinkOption... options) throws IOException {
+        if (attributeCache == null) {
+            return SftpFileSystemAccessor.super.readFileAttributes(subsystem, file, view, options);
+        }
+        var noFollow = Arrays.asList(options).contains(LinkOption.NOFOLLOW_LINKS);
+        return attributeCache.readAttributes(file, noFollow ? view + "!nofollow" : view,
+                () -> SftpFileSystemAccessor.super.readFileAttributes(subsystem, file, view, options));
+    }
+
+    /**
+     * Returns whether the open writes at positions of its own and can share the channel of the file
+     * with other handles writing it
+     */
+    private static boolean isShared(SftpSubsystemProxy subsystem, Set<? extends OpenOption> options) {
+        return SHARED_WRITES.getRequired(subsystem.getSession()) && options.contains(StandardOpenOption.WRITE)
+                && !options.contains(StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns whether the open replaces the content of a regular file or creates a new one and is to be
+     * written to a temporary file first
+     */
+    private static boolean isAtomicUpload(SftpSubsystemProxy subsystem, Path file, Set<? extends OpenOption> options) {
+        if (!ATOMIC_UPLOADS.getRequired(subsystem.getSession()) || !options.contains(StandardOpenOption.WRITE)
+                || options.contains(StandardOpenOption.APPEND) || file.getFileName() == null) {
+            return false;
+        }
+        if (options.contains(StandardOpenOption.TRUNCATE_EXISTING) || options.contains(StandardOpenOption.CREATE_NEW)) {
+            // Writing through a link or to a special file has to reach the existing file
+            return !Files.exists(file, LinkOption.NOFOLLOW_LINKS) || Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS);
+        }
+        return options.contains(StandardOpenOption.CREATE) && !Files.exists(file, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    static boolean isReadOnly(Set<? extends OpenOption> options) {
+        return !options.contains(StandardOpenOption.WRITE) && !options.contains(StandardOpenOption.APPEND);
+    }
+}
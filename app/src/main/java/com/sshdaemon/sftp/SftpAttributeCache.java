@@ -0,0 +1,300 @@
+package com.sshdaemon.sftp;
+
+import static android.os.FileObserver.ATTRIB;
+import static android.os.FileObserver.CLOSE_WRITE;
+import static android.os.FileObserver.CREATE;
+import static android.os.FileObserver.DELETE;
+import static android.os.FileObserver.DELETE_SELF;
+import static android.os.FileObserver.MODIFY;
+import static android.os.FileObserver.MOVED_FROM;
+import static android.os.FileObserver.MOVED_TO;
+import static android.os.FileObserver.MOVE_SELF;
+
+import android.os.FileObserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of file attributes keyed by the real path of a file. Entries are dropped when
+ * the daemon's own SFTP handlers change a file, when a {@link FileObserver} on the parent directory
+ * reports a change made outside SSH, or at the latest once they are older than the time to live.
+ */
+public class SftpAttributeCache {
+    private static final Logger logger = LoggerFactory.getLogger(SftpAttributeCache.class);
+
+    private static final int OBSERVED_EVENTS = MODIFY | ATTRIB | CLOSE_WRITE | MOVED_FROM | MOVED_TO | CREATE
+            | DELETE | DELETE_SELF | MOVE_SELF;
+
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private final LinkedHashMap<String, DirectoryObserver> observers;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    // Generation of the last change of each path invalidated while loads were running, so a load
+    // only has to be discarded if its own path or a directory above it changed meanwhile
+    private final HashMap<String, Long> invalidatedPaths = new HashMap<>();
+    private final HashMap<String, Long> invalidatedTrees = new HashMap<>();
+    // Number of loads running, by the generation they started in
+    private final TreeMap<Long, Integer> runningLoads = new TreeMap<>();
+
+    private long generation;
+    private long clearedGeneration;
+
+    public SftpAttributeCache(int maxEntries, int maxObservedDirectories, long timeToLiveMillis) {
+        if (maxEntries <= 0 || maxObservedDirectories < 0 || timeToLiveMillis <= 0) {
+            throw new IllegalArgumentException("Cache size and time to live must be positive");
+        }
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.observers = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DirectoryObserver> eldest) {
+                if (size() > maxObservedDirectories) {
+                    eldest.getValue().stopWatching();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached attributes of the given view or loads and caches them
+     */
+    public Map<String, ?> readAttributes(Path file, String view, Loader loader) throws IOException {
+        var key = keyOf(file);
+        long loadGeneration;
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null) {
+                if (System.nanoTime() - entry.created > timeToLiveNanos) {
+                    entries.remove(key);
+                } else {
+                    var attributes = entry.views.get(view);
+                    if (attributes != null) {
+                        hits.incrementAndGet();
+                        return attributes;
+                    }
+                }
+            }
+            loadGeneration = generation;
+            runningLoads.merge(loadGeneration, 1, Integer::sum);
+        }
+        misses.incrementAndGet();
+        Map<String, ?> attributes;
+        try {
+            attributes = loader.load();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                loadFinished(loadGeneration);
+            }
+            throw e;
+        }
+        var cached = attributes == null || attributes.isEmpty() ? attributes
+                : Collections.unmodifiableMap(new HashMap<>(attributes));
+        synchronized (this) {
+            // A change of the path while loading may not be in what was just read
+            if (cached != attributes && !changedSince(key, loadGeneration)) {
+                entries.computeIfAbsent(key, k -> new Entry()).views.put(view, cached);
+                observe(new File(key).getParentFile());
+            }
+            loadFinished(loadGeneration);
+        }
+        return cached;
+    }
+
+    private boolean changedSince(String key, long loadGeneration) {
+        if (clearedGeneration > loadGeneration) {
+            return true;
+        }
+        var changed = invalidatedPaths.get(key);
+        if (changed != null && changed > loadGeneration) {
+            return true;
+        }
+        for (var path = key; path != null; path = new File(path).getParent()) {
+            changed = invalidatedTrees.get(path);
+            if (changed != null && changed > loadGeneration) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void loadFinished(long loadGeneration) {
+        runningLoads.computeIfPresent(loadGeneration, (started, count) -> count > 1 ? count - 1 : null);
+        if (runningLoads.isEmpty()) {
+            invalidatedPaths.clear();
+            invalidatedTrees.clear();
+        } else if (invalidatedPaths.size() + invalidatedTrees.size() > entries.size()) {
+            // Changes before the oldest running load concern none of them
+            var oldest = runningLoads.firstKey();
+            invalidatedPaths.values().removeIf(changed -> changed <= oldest);
+            invalidatedTrees.values().removeIf(changed -> changed <= oldest);
+        }
+    }
+
+    /**
+     * Drops the entries of the given file and of its parent directory, whose size and times change with it
+     */
+    public void invalidate(Path file) {
+        if (file != null) {
+            invalidate(keyOf(file));
+        }
+    }
+
+    /**
+     * Drops the entries of the given path and of everything below it
+     */
+    public void invalidateTree(Path file) {
+        if (file != null) {
+            invalidateTree(keyOf(file));
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        clearedGeneration = generation;
+        entries.clear();
+        for (var observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized int getObservedDirectories() {
+        return observers.size();
+    }
+
+    void onDirectoryEvent(String directory, int event, String name) {
+        if ((event & (DELETE_SELF | MOVE_SELF)) != 0) {
+            invalidateTree(directory);
+            synchronized (this) {
+                var observer = observers.remove(directory);
+                if (observer != null) {
+                    observer.stopWatching();
+                }
+            }
+        } else if (name != null) {
+            invalidate(new File(directory, name).getPath());
+            if ((event & (MOVED_FROM | DELETE)) != 0) {
+                invalidateTree(new File(directory, name).getPath());
+            }
+        } else {
+            invalidate(directory);
+        }
+    }
+
+    private synchronized void invalidate(String key) {
+        generation++;
+        invalidations.incrementAndGet();
+        entries.remove(key);
+        var parent = new File(key).getParent();
+        if (parent != null) {
+            entries.remove(parent);
+        }
+        if (!runningLoads.isEmpty()) {
+            invalidatedPaths.put(key, generation);
+            if (parent != null) {
+                invalidatedPaths.put(parent, generation);
+            }
+        }
+    }
+
+    private synchronized void invalidateTree(String key) {
+        invalidate(key);
+        if (!runningLoads.isEmpty()) {
+            invalidatedTrees.put(key, generation);
+        }
+        var prefix = key.endsWith(File.separator) ? key : key + File.separator;
+        entries.keySet().removeIf(path -> path.startsWith(prefix));
+        for (var directory : new ArrayList<>(observers.keySet())) {
+            if (directory.startsWith(prefix)) {
+                observers.remove(directory).stopWatching();
+            }
+        }
+    }
+
+    private void observe(File directory) {
+        if (directory == null) {
+            return;
+        }
+        var path = directory.getPath();
+        if (observers.get(path) != null) {
+            return;
+        }
+        var observer = new DirectoryObserver(path);
+        observers.put(path, observer);
+        if (observers.containsKey(path)) {
+            observer.startWatching();
+            logger.debug("Observing {} for attribute changes", path);
+        }
+    }
+
+    private static String keyOf(Path file) {
+        return file.toAbsolutePath().normalize().toFile().getPath();
+    }
+
+    /**
+     * Reads the attributes of a single view from the file system
+     */
+    public interface Loader {
+        Map<String, ?> load() throws IOException;
+    }
+
+    private static final class Entry {
+        private final long created = System.nanoTime();
+        private final Map<String, Map<String, ?>> views = new HashMap<>(4);
+    }
+
+    private final class DirectoryObserver extends FileObserver {
+        private final String directory;
+
+        @SuppressWarnings("deprecation")
+        DirectoryObserver(String directory) {
+            // The File based constructor needs API 29
+            super(directory, OBSERVED_EVENTS);
+            this.directory = directory;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            onDirectoryEvent(directory, event, path);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.Handle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Drops cached attributes of files changed through the daemon's SFTP handlers
+ */
+public class SftpAttributeCacheInvalidator implements SftpEventListener {
+
+    private final SftpAttributeCache cache;
+
+    public SftpAttributeCacheInvalidator(SftpAttributeCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void open(ServerSession session, String remoteHandle, Handle localHandle) {
+        if (isWritable(localHandle)) {
+            cache.invalidate(localHandle.getFile());
+        }
+    }
+
+    @Override
+    public void written(ServerSession session, String remoteHandle, FileHandle localHandle, long offset,
+                        byte[] data, int dataOffset, int dataLen, Throwable thrown) {
+        cache.invalidate(localHandle.getFile());
+    }
+
+    @Override
+    public void closed(ServerSession session, String remoteHandle, Handle localHandle, Throwable thrown) {
+        if (isWritable(localHandle)) {
+            cache.invalidate(localHandle.getFile());
+        }
+    }
+
+    @Override
+    public void created(ServerSession session, Path path, Map<String, ?> attrs, Throwable thrown) {
+        cache.invalidate(path);
+    }
+
+    @Override
+    public void moved(ServerSession session, Path srcPath, Path dstPath, Collection<CopyOption> opts,
+                      Throwable thrown) {
+        cache.invalidateTree(srcPath);
+        cache.invalidateTree(dstPath);
+    }
+
+    @Override
+    public void removed(ServerSession session, Path path, boolean isDirectory, Throwable thrown) {
+        cache.invalidateTree(path);
+    }
+
+    @Override
+    public void linked(ServerSession session, Path source, Path target, boolean symLink, Throwable thrown) {
+        cache.invalidate(source);
+        cache.invalidate(target);
+    }
+
+    @Override
+    public void modifiedAttributes(ServerSession session, Path path, Map<String, ?> attrs, Throwable thrown) {
+        cache.invalidate(path);
+    }
+
+    static boolean isWritable(Handle handle) {
+        if (!(handle instanceof FileHandle)) {
+            return false;
+        }
+        var options = ((FileHandle) handle).getOpenOptions();
+        return options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+    }
+}
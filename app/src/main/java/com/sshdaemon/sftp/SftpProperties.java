@@ -0,0 +1,105 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.Property;
+
+import java.time.Duration;
+
+/**
+ * Daemon specific SFTP tuning properties, resolved per session from the server configuration
+ */
+public final class SftpProperties {
+
+    /**
+     * Serve reads of large read-only regular files from memory-mapped regions
+     */
+    public static final Property<Boolean> MAPPED_READS = Property.bool("sshdaemon-sftp-mapped-reads", true);
+
+    /**
+     * Minimum file size in bytes for which the mapped read path is used
+     */
+    public static final Property<Long> MAPPED_READ_THRESHOLD =
+            Property.long_("sshdaemon-sftp-mapped-read-threshold", 1024L * 1024L);
+
+    /**
+     * Size in bytes of a single mapped region
+     */
+    public static final Property<Integer> MAPPED_READ_WINDOW =
+            Property.integer("sshdaemon-sftp-mapped-read-window", 8 * 1024 * 1024);
+
+    /**
+     * Prefetch the following chunks of read-only files which are read sequentially
+     */
+    public static final Property<Boolean> READ_AHEAD = Property.bool("sshdaemon-sftp-read-ahead", true);
+
+    /**
+     * Number of 64 KB chunks prefetched ahead of a sequential reader
+     */
+    public static final Property<Integer> READ_AHEAD_CHUNKS = Property.integer("sshdaemon-sftp-read-ahead-chunks", 4);
+
+    /**
+     * Merge small adjacent writes of a file handle into large aligned writes
+     */
+    public static final Property<Boolean> WRITE_BEHIND = Property.bool("sshdaemon-sftp-write-behind", false);
+
+    /**
+     * Size in bytes of the per-handle write-behind buffer, pending data is written out at multiples of it
+     */
+    public static final Property<Integer> WRITE_BEHIND_BUFFER_SIZE =
+            Property.integer("sshdaemon-sftp-write-behind-buffer-size", 256 * 1024);
+
+    /**
+     * Longest time written data may stay in the write-behind buffer
+     */
+    public static final Property<Duration> WRITE_BEHIND_MAX_DELAY =
+            Property.duration("sshdaemon-sftp-write-behind-max-delay", Duration.ofMillis(500));
+
+    /**
+     * When data written to file handles is synced to the storage device
+     */
+    public static final Property<SyncPolicy> SYNC_POLICY =
+            Property.enum_("sshdaemon-sftp-sync-policy", SyncPolicy.class, SyncPolicy.NONE);
+
+    /**
+     * Number of bytes written between two syncs of the {@link SyncPolicy#BATCHED} policy
+     */
+    public static final Property<Long> SYNC_BATCH_SIZE =
+            Property.long_("sshdaemon-sftp-sync-batch-size", 8L * 1024L * 1024L);
+
+    /**
+     * Reserve disk space ahead of uploads in large steps instead of growing files write by write. The
+     * reserved space does not count towards the size of the file and is released when the handle is
+     * closed. Needs the app's native library, without it files grow write by write.
+     */
+    public static final Property<Boolean> PREALLOCATION = Property.bool("sshdaemon-sftp-preallocation", false);
+
+    /**
+     * Size in bytes of the steps disk space is reserved in
+     */
+    public static final Property<Long> PREALLOCATION_STEP =
+            Property.long_("sshdaemon-sftp-preallocation-step", 8L * 1024L * 1024L);
+
+    /**
+     * Write files opened for writing from scratch to a hidden temporary file next to them, which
+     * replaces the file when the handle is closed. Uploads cut off by a lost connection leave the
+     * previous version of the file in place.
+     */
+    public static final Property<Boolean> ATOMIC_UPLOADS = Property.bool("sshdaemon-sftp-atomic-uploads", false);
+
+    /**
+     * Longest time the directories of completed atomic uploads wait to be synced, the renames of all
+     * uploads completed in the meantime are synced together
+     */
+    public static final Property<Duration> ATOMIC_UPLOAD_SYNC_DELAY =
+            Property.duration("sshdaemon-sftp-atomic-upload-sync-delay", Duration.ofMillis(200));
+
+    /**
+     * Let handles opening a file for writing while other handles write it share their channel, each
+     * writing at its own position, as clients uploading one file over several streams expect. Handles
+     * truncating the file or opening it with another access mode open it on their own.
+     */
+    public static final Property<Boolean> SHARED_WRITES = Property.bool("sshdaemon-sftp-shared-writes", false);
+
+    private SftpProperties() {
+        throw new UnsupportedOperationException("No instance");
+    }
+}
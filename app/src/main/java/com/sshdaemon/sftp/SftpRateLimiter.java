@@ -0,0 +1,196 @@
+package com.sshdaemon.sftp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Token bucket limits on the bytes and requests per second of every SFTP session and of all sessions
+ * of a user together. Limits can be changed while the daemon runs and apply to open sessions right
+ * away, zero means unlimited. The measured rates are reported whether limits are set or not.
+ */
+public class SftpRateLimiter {
+
+    private final Map<String, UserBuckets> users = new HashMap<>();
+    private final Set<Limits> sessions = new LinkedHashSet<>();
+
+    private long sessionBytesPerSecond;
+    private long sessionOperationsPerSecond;
+    private long userBytesPerSecond;
+    private long userOperationsPerSecond;
+
+    public synchronized void setSessionLimits(long bytesPerSecond, long operationsPerSecond) {
+        checkLimits(bytesPerSecond, operationsPerSecond);
+        sessionBytesPerSecond = bytesPerSecond;
+        sessionOperationsPerSecond = operationsPerSecond;
+        for (var session : sessions) {
+            session.bytes.setRate(bytesPerSecond);
+            session.operations.setRate(operationsPerSecond);
+        }
+    }
+
+    public synchronized void setUserLimits(long bytesPerSecond, long operationsPerSecond) {
+        checkLimits(bytesPerSecond, operationsPerSecond);
+        userBytesPerSecond = bytesPerSecond;
+        userOperationsPerSecond = operationsPerSecond;
+        for (var user : users.values()) {
+            user.bytes.setRate(bytesPerSecond);
+            user.operations.setRate(operationsPerSecond);
+        }
+    }
+
+    public synchronized long getSessionBytesPerSecond() {
+        return sessionBytesPerSecond;
+    }
+
+    public synchronized long getSessionOperationsPerSecond() {
+        return sessionOperationsPerSecond;
+    }
+
+    public synchronized long getUserBytesPerSecond() {
+        return userBytesPerSecond;
+    }
+
+    public synchronized long getUserOperationsPerSecond() {
+        return userOperationsPerSecond;
+    }
+
+    /**
+     * Returns the current rates of every open session
+     */
+    public synchronized List<Rates> getSessionRates() {
+        var rates = new ArrayList<Rates>(sessions.size());
+        for (var session : sessions) {
+            rates.add(new Rates(session.name, session.bytes.getMeasuredRate(), session.operations.getMeasuredRate()));
+        }
+        return rates;
+    }
+
+    /**
+     * Returns the current rates of every user with open sessions, summed over their sessions
+     */
+    public synchronized List<Rates> getUserRates() {
+        var rates = new ArrayList<Rates>(users.size());
+        for (var entry : users.entrySet()) {
+            var user = entry.getValue();
+            rates.add(new Rates(entry.getKey(), user.bytes.getMeasuredRate(), user.operations.getMeasuredRate()));
+        }
+        return rates;
+    }
+
+    /**
+     * Creates the limits of a new session
+     *
+     * @param user user of the session, {@code null} for a session not counted against any user
+     */
+    synchronized Limits open(String name, String user) {
+        UserBuckets userBuckets = null;
+        if (user != null) {
+            userBuckets = users.computeIfAbsent(user, u -> new UserBuckets(userBytesPerSecond, userOperationsPerSecond));
+            userBuckets.sessions++;
+        }
+        var limits = new Limits(name, user, userBuckets, sessionBytesPerSecond, sessionOperationsPerSecond);
+        sessions.add(limits);
+        return limits;
+    }
+
+    synchronized void close(Limits limits) {
+        if (!sessions.remove(limits) || limits.user == null) {
+            return;
+        }
+        if (--limits.userBuckets.sessions == 0) {
+            users.remove(limits.user);
+        }
+    }
+
+    private static void checkLimits(long bytesPerSecond, long operationsPerSecond) {
+        if (bytesPerSecond < 0 || operationsPerSecond < 0) {
+            throw new IllegalArgumentException("Limits must not be negative: " + bytesPerSecond + "/" + operationsPerSecond);
+        }
+    }
+
+    /**
+     * Measured rates of a session or user
+     */
+    public static final class Rates {
+        private final String name;
+        private final double bytesPerSecond;
+        private final double operationsPerSecond;
+
+        Rates(String name, double bytesPerSecond, double operationsPerSecond) {
+            this.name = name;
+            this.bytesPerSecond = bytesPerSecond;
+            this.operationsPerSecond = operationsPerSecond;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public double getOperationsPerSecond() {
+            return operationsPerSecond;
+        }
+    }
+
+    private static final class UserBuckets {
+        private final TokenBucket bytes;
+        private final TokenBucket operations;
+        private int sessions;
+
+        UserBuckets(long bytesPerSecond, long operationsPerSecond) {
+            this.bytes = new TokenBucket(bytesPerSecond);
+            this.operations = new TokenBucket(operationsPerSecond);
+        }
+    }
+
+    /**
+     * Buckets a single session draws from, its own and the ones shared with the user's other sessions
+     */
+    static final class Limits {
+        private final String name;
+        private final String user;
+        private final UserBuckets userBuckets;
+        private final TokenBucket bytes;
+        private final TokenBucket operations;
+
+        Limits(String name, String user, UserBuckets userBuckets, long bytesPerSecond, long operationsPerSecond) {
+            this.name = name;
+            this.user = user;
+            this.userBuckets = userBuckets;
+            this.bytes = new TokenBucket(bytesPerSecond);
+            this.operations = new TokenBucket(operationsPerSecond);
+        }
+
+        void chargeOperation() {
+            operations.charge(1);
+            if (userBuckets != null) {
+                userBuckets.operations.charge(1);
+            }
+        }
+
+        void chargeBytes(long count) {
+            bytes.charge(count);
+            if (userBuckets != null) {
+                userBuckets.bytes.charge(count);
+            }
+        }
+
+        /**
+         * Returns how long the session has to wait before its next request may run
+         */
+        long delayNanos() {
+            var delay = Math.max(bytes.delayNanos(), operations.delayNanos());
+            if (userBuckets != null) {
+                delay = Math.max(delay, Math.max(userBuckets.bytes.delayNanos(), userBuckets.operations.delayNanos()));
+            }
+            return delay;
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.util.io.functors.IOFunction;
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.common.util.threads.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Daemon-wide scheduler running the requests of every SFTP channel on one bounded worker pool.
+ * Requests of a channel run strictly in order, sessions take turns so one busy client cannot starve
+ * the others. While more requests are queued than allowed, processed requests stop re-opening the
+ * SSH channel window, so clients stop sending until the backlog has been worked off. Sessions over
+ * their {@link SftpRateLimiter} limits sit out their turns until their token buckets are paid off.
+ * Requests can be directed to separate {@link IoQueue}s with their own workers, so requests to a slow
+ * storage volume only ever occupy the workers of that volume.
+ */
+public class SftpScheduler implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SftpScheduler.class);
+
+    private final IoQueue defaultQueue;
+    private final CloseableExecutorService helpers;
+    private final CloseableExecutorService prefetchers;
+    private final CloseableExecutorService scanners;
+    private final ScheduledExecutorService timer;
+    private final int helperCount;
+    private final int maxQueuedRequests;
+    private final Map<String, IoQueue> queues = new LinkedHashMap<>();
+    private final Map<Object, Group> groups = new HashMap<>();
+    private final Set<Lane> throttled = new LinkedHashSet<>();
+    private final SftpRateLimiter rateLimiter = new SftpRateLimiter();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong delayedTurns = new AtomicLong();
+
+    private int queuedRequests;
+    private boolean closed;
+
+    public SftpScheduler(int workerCount, int maxQueuedRequests) {
+        if (workerCount <= 0 || maxQueuedRequests <= 0) {
+            throw new IllegalArgumentException("Worker count and queue limit must be positive");
+        }
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.defaultQueue = new IoQueue(null, workerCount, ThreadUtils.newFixedThreadPool("SFTP-Worker", workerCount));
+        this.helperCount = Runtime.getRuntime().availableProcessors();
+        this.helpers = ThreadUtils.newFixedThreadPool("SFTP-Helper", helperCount);
+        this.prefetchers = ThreadUtils.newFixedThreadPool("SFTP-Prefetch", Math.max(2, workerCount / 2));
+        this.scanners = ThreadUtils.newFixedThreadPool("SFTP-TreeScan", Math.max(2, workerCount / 2));
+        this.timer = ThreadUtils.newSingleThreadScheduledExecutor("SFTP-Timer");
+    }
+
+    /**
+     * Executor handed to the SFTP subsystems, they must not be able to shut down the shared pool
+     */
+    public CloseableExecutorService getExecutorService() {
+        return ThreadUtils.noClose(defaultQueue.workers);
+    }
+
+    /**
+     * Adds a queue with its own workers, requests submitted to it never wait for the workers of other queues
+     */
+    public synchronized IoQueue addQueue(String name, int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("Worker count must be positive: " + workerCount);
+        }
+        if (queues.containsKey(name)) {
+            throw new IllegalArgumentException("Queue already exists: " + name);
+        }
+        var queue = new IoQueue(name, workerCount, ThreadUtils.newFixedThreadPool("SFTP-Worker-" + name, workerCount));
+        queues.put(name, queue);
+        return queue;
+    }
+
+    /**
+     * Returns the queue of the given name, or the default queue if there is none
+     */
+    public synchronized IoQueue getQueue(String name) {
+        var queue = name != null ? queues.get(name) : null;
+        return queue != null ? queue : defaultQueue;
+    }
+
+    /**
+     * Returns the default queue followed by the added queues
+     */
+    public synchronized List<IoQueue> getQueues() {
+        var all = new ArrayList<IoQueue>(queues.size() + 1);
+        all.add(defaultQueue);
+        all.addAll(queues.values());
+        return all;
+    }
+
+    /**
+     * Background I/O threads reading ahead of sequential readers
+     */
+    public Executor getPrefetchExecutor() {
+        return prefetchers;
+    }
+
+    /**
+     * Background I/O threads walking directory trees for tree scans, apart from the read-ahead threads
+     * so large scans cannot hold up reads
+     */
+    public Executor getTreeScanExecutor() {
+        return scanners;
+    }
+
+    /**
+     * Single thread for delayed housekeeping such as writing out buffered data
+     */
+    public ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    /**
+     * Bandwidth and request rate limits of the sessions, adjustable while running
+     */
+    public SftpRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Registers an SFTP channel, channels registered with the same session key share one turn
+     */
+    public Lane register(Object session, WindowReleaser releaser) {
+        return register(session, null, releaser);
+    }
+
+    /**
+     * Registers an SFTP channel whose session is also limited by the limits of the given user
+     */
+    public synchronized Lane register(Object session, String user, WindowReleaser releaser) {
+        var group = groups.computeIfAbsent(session, key -> new Group(key, rateLimiter.open(String.valueOf(key), user)));
+        group.lanes++;
+        return new Lane(group, releaser);
+    }
+
+    /**
+     * Applies the given function to all items in parallel and returns the results in item order. Items
+     * are split into one slice per helper thread, the calling worker takes part in the computation so
+     * this never waits on a saturated helper pool.
+     */
+    public <T, R> List<R> computeAll(List<T> items, IOFunction<? super T, ? extends R> function) throws IOException {
+        var results = new ArrayList<R>(items.size());
+        var slices = Math.min(helperCount, items.size());
+        if (slices <= 1) {
+            for (var item : items) {
+                results.add(function.apply(item));
+            }
+            return results;
+        }
+        var tasks = new ArrayList<FutureTask<List<R>>>(slices);
+        for (var i = 0; i < slices; i++) {
+            var slice = items.subList(i * items.size() / slices, (i + 1) * items.size() / slices);
+            var task = new FutureTask<List<R>>(() -> {
+                var sliceResults = new ArrayList<R>(slice.size());
+                for (var item : slice) {
+                    sliceResults.add(function.apply(item));
+                }
+                return sliceResults;
+            });
+            tasks.add(task);
+            if (i > 0) {
+                try {
+                    helpers.execute(task);
+                } catch (RejectedExecutionException e) {
+                    logger.debug("Helper pool rejected task, computing in caller");
+                }
+            }
+        }
+        for (var task : tasks) {
+            task.run();
+            try {
+                results.addAll(task.get());
+            } catch (ExecutionException e) {
+                for (var pending : tasks) {
+                    pending.cancel(false);
+                }
+                var cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for helper tasks", e);
+            }
+        }
+        return results;
+    }
+
+    public int getWorkerCount() {
+        return defaultQueue.workerCount;
+    }
+
+    public int getActiveWorkers() {
+        return activeWorkers.get();
+    }
+
+    public synchronized int getQueuedRequests() {
+        return queuedRequests;
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    public synchronized int getActiveSessions() {
+        return groups.size();
+    }
+
+    /**
+     * Number of turns sessions had to sit out because they exceeded their rate limits
+     */
+    public long getDelayedTurns() {
+        return delayedTurns.get();
+    }
+
+    @Override
+    public void close() {
+        var all = getQueues();
+        synchronized (this) {
+            closed = true;
+            for (var queue : all) {
+                queue.readyTurns.clear();
+                queue.depth = 0;
+            }
+            throttled.clear();
+            queuedRequests = 0;
+        }
+        for (var queue : all) {
+            queue.workers.shutdownNow();
+        }
+        helpers.shutdownNow();
+        prefetchers.shutdownNow();
+        scanners.shutdownNow();
+        timer.shutdown();
+    }
+
+    private synchronized boolean enqueue(Lane lane, IoQueue queue, Runnable task, boolean cancelPending) {
+        if (closed || lane.closed) {
+            rejectedRequests.incrementAndGet();
+            logger.debug("Rejected SFTP request, scheduler or channel closed");
+            return false;
+        }
+        if (cancelPending) {
+            dropTasks(lane);
+        }
+        lane.tasks.add(new Task(queue, task));
+        queuedRequests++;
+        queue.depth++;
+        queue.maxDepth = Math.max(queue.maxDepth, queue.depth);
+        if (!lane.running && !lane.ready) {
+            markReady(lane);
+        }
+        return true;
+    }
+
+    private void dropTasks(Lane lane) {
+        if (!closed) {
+            for (var task : lane.tasks) {
+                task.queue.depth--;
+            }
+        }
+        queuedRequests -= lane.tasks.size();
+        lane.tasks.clear();
+    }
+
+    private void markReady(Lane lane) {
+        lane.ready = true;
+        // The channel waits in the queue of its next request, so its requests keep their order
+        var queue = lane.tasks.element().queue;
+        var turn = lane.group.turn(queue);
+        turn.readyLanes.add(lane);
+        if (!turn.ready) {
+            turn.ready = true;
+            queue.readyTurns.add(turn);
+        }
+        queue.workers.execute(() -> runNext(queue));
+    }
+
+    private void runNext(IoQueue queue) {
+        Lane lane;
+        Task task;
+        synchronized (this) {
+            var turn = queue.readyTurns.poll();
+            // Sessions over their limits sit out until their buckets are paid off
+            while (turn != null && delay(turn)) {
+                turn = queue.readyTurns.poll();
+            }
+            if (turn == null) {
+                return;
+            }
+            lane = turn.readyLanes.poll();
+            if (turn.readyLanes.isEmpty()) {
+                turn.ready = false;
+            } else {
+                queue.readyTurns.add(turn);
+            }
+            if (lane == null) {
+                return;
+            }
+            lane.ready = false;
+            task = lane.tasks.poll();
+            if (task == null) {
+                return;
+            }
+            lane.running = true;
+            queuedRequests--;
+            turn.group.limits.chargeOperation();
+        }
+        activeWorkers.incrementAndGet();
+        queue.activeWorkers.incrementAndGet();
+        try {
+            task.runnable.run();
+        } catch (RuntimeException e) {
+            logger.error("SFTP request failed", e);
+        } finally {
+            queue.activeWorkers.decrementAndGet();
+            activeWorkers.decrementAndGet();
+            finished(lane, task);
+        }
+    }
+
+    private boolean delay(Turn turn) {
+        var delay = turn.group.limits.delayNanos();
+        if (delay <= 0 || closed) {
+            return false;
+        }
+        turn.parked = true;
+        delayedTurns.incrementAndGet();
+        try {
+            timer.schedule(() -> resume(turn), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            turn.parked = false;
+            return false;
+        }
+        return true;
+    }
+
+    private void resume(Turn turn) {
+        var queue = turn.queue;
+        int lanes;
+        synchronized (this) {
+            turn.parked = false;
+            if (closed || turn.readyLanes.isEmpty()) {
+                turn.ready = false;
+                return;
+            }
+            queue.readyTurns.add(turn);
+            lanes = turn.readyLanes.size();
+        }
+        // Workers that found the turn parked have gone, every channel waiting needs one again
+        for (var i = 0; i < lanes; i++) {
+            queue.workers.execute(() -> runNext(queue));
+        }
+    }
+
+    private void finished(Lane lane, Task task) {
+        var release = new ArrayList<Lane>();
+        synchronized (this) {
+            if (!closed) {
+                task.queue.depth--;
+            }
+            lane.running = false;
+            if (!closed && !lane.closed && !lane.tasks.isEmpty()) {
+                markReady(lane);
+            }
+            if (!throttled.isEmpty() && queuedRequests <= maxQueuedRequests / 2) {
+                release.addAll(throttled);
+                throttled.clear();
+            }
+        }
+        for (var throttledLane : release) {
+            throttledLane.releaseWithheld();
+        }
+    }
+
+    private void releaseWindow(Lane lane, long bytes) throws IOException {
+        synchronized (this) {
+            if (queuedRequests > maxQueuedRequests && !lane.closed) {
+                lane.withheldWindow += bytes;
+                throttled.add(lane);
+                return;
+            }
+        }
+        lane.releaser.release(bytes);
+    }
+
+    private synchronized void unregister(Lane lane) {
+        if (lane.closed) {
+            return;
+        }
+        lane.closed = true;
+        dropTasks(lane);
+        throttled.remove(lane);
+        if (--lane.group.lanes == 0) {
+            groups.remove(lane.group.key);
+            rateLimiter.close(lane.group.limits);
+        }
+    }
+
+    /**
+     * Re-opens the SSH channel window by the given number of bytes
+     */
+    public interface WindowReleaser {
+        void release(long bytes) throws IOException;
+    }
+
+    private static final class Group {
+        private final Object key;
+        private final SftpRateLimiter.Limits limits;
+        private final Map<IoQueue, Turn> turns = new HashMap<>();
+        private int lanes;
+
+        Group(Object key, SftpRateLimiter.Limits limits) {
+            this.key = key;
+            this.limits = limits;
+        }
+
+        Turn turn(IoQueue queue) {
+            return turns.computeIfAbsent(queue, q -> new Turn(this, q));
+        }
+    }
+
+    /**
+     * Place of a session in the rotation of one queue
+     */
+    private static final class Turn {
+        private final Group group;
+        private final IoQueue queue;
+        private final ArrayDeque<Lane> readyLanes = new ArrayDeque<>();
+        private boolean ready;
+        private boolean parked;
+
+        Turn(Group group, IoQueue queue) {
+            this.group = group;
+            this.queue = queue;
+        }
+    }
+
+    private static final class Task {
+        private final IoQueue queue;
+        private final Runnable runnable;
+
+        Task(IoQueue queue, Runnable runnable) {
+            this.queue = queue;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Workers and rotation of sessions serving the requests directed to one queue, for example the
+     * requests to one storage volume
+     */
+    public final class IoQueue {
+        private final String name;
+        private final int workerCount;
+        private final CloseableExecutorService workers;
+        private final ArrayDeque<Turn> readyTurns = new ArrayDeque<>();
+        private final AtomicInteger activeWorkers = new AtomicInteger();
+        private int depth;
+        private int maxDepth;
+
+        private IoQueue(String name, int workerCount, CloseableExecutorService workers) {
+            this.name = name;
+            this.workerCount = workerCount;
+            this.workers = workers;
+        }
+
+        /**
+         * Returns the name of the queue, {@code null} for the default queue
+         */
+        public String getName() {
+            return name;
+        }
+
+        public int getWorkerCount() {
+            return workerCount;
+        }
+
+        public int getActiveWorkers() {
+            return activeWorkers.get();
+        }
+
+        /**
+         * Number of requests waiting in or being processed by this queue
+         */
+        public int getDepth() {
+            synchronized (SftpScheduler.this) {
+                return depth;
+            }
+        }
+
+        /**
+         * Highest depth the queue has reached so far
+         */
+        public int getMaxDepth() {
+            synchronized (SftpScheduler.this) {
+                return maxDepth;
+            }
+        }
+    }
+
+    /**
+     * Ordered request queue of a single SFTP channel
+     */
+    public final class Lane {
+        private final Group group;
+        private final WindowReleaser releaser;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private boolean running;
+        private boolean ready;
+        private boolean closed;
+        private long withheldWindow;
+
+        private Lane(Group group, WindowReleaser releaser) {
+            this.group = group;
+            this.releaser = releaser;
+        }
+
+        public boolean submit(Runnable task) {
+            return enqueue(this, defaultQueue, task, false);
+        }
+
+        /**
+         * Queues a task to be run by the workers of the given queue, after the earlier tasks of this channel
+         */
+        public boolean submit(IoQueue queue, Runnable task) {
+            return enqueue(this, queue, task, false);
+        }
+
+        /**
+         * Drops the requests not yet started and queues the given task behind the running one
+         */
+        public boolean submitLast(Runnable task) {
+            return enqueue(this, defaultQueue, task, true);
+        }
+
+        /**
+         * Charges the bytes a request of this channel received and sent against the session's limits
+         */
+        public void charge(long bytes) {
+            group.limits.chargeBytes(bytes);
+        }
+
+        /**
+         * Called once a request of this channel has been processed with the request's length
+         */
+        public void releaseWindow(long bytes) throws IOException {
+            SftpScheduler.this.releaseWindow(this, bytes);
+        }
+
+        public void close() {
+            unregister(this);
+        }
+
+        private void releaseWithheld() {
+            long bytes;
+            synchronized (SftpScheduler.this) {
+                bytes = withheldWindow;
+                withheldWindow = 0;
+            }
+            if (bytes > 0) {
+                try {
+                    releaser.release(bytes);
+                } catch (IOException e) {
+                    logger.debug("Failed to release withheld window: {}", e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.sshdaemon.sftp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Channels of files open for writing, shared by all handles writing the same file. The first handle
+ * opens the file, handles opening it while it is open join the channel and write at their own
+ * positions, as clients uploading disjoint ranges of a file over several streams do. Handles opening
+ * the file to truncate it or with another access mode than the open channel get a channel of their
+ * own. The channel is closed with the last handle, a handle opening the file while it is being closed
+ * waits for the close to complete.
+ */
+public class SharedWriteChannels {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong separateOpens = new AtomicLong();
+
+    /**
+     * Returns a channel of the given file with a position of its own
+     *
+     * @param options options the file is opened with
+     * @param opener  opens the file if no handle has it open or the open cannot join the channel
+     */
+    public SeekableByteChannel open(Path file, Set<? extends OpenOption> options, Opener opener) throws IOException {
+        var key = file.toAbsolutePath().normalize().toString();
+        var readable = options.contains(StandardOpenOption.READ);
+        Entry entry;
+        boolean first;
+        synchronized (entries) {
+            while ((entry = entries.get(key)) != null && entry.closing) {
+                awaitChange();
+            }
+            first = entry == null;
+            if (first) {
+                entry = new Entry(key, readable);
+                entries.put(key, entry);
+            } else if (options.contains(StandardOpenOption.CREATE_NEW)) {
+                throw new FileAlreadyExistsException(file.toString());
+            } else if (entry.readable != readable || options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+                entry = null;
+            }
+            if (entry != null) {
+                entry.handles++;
+            }
+        }
+        if (entry == null) {
+            // Joining would drop the truncation or hand out a channel without the access asked for
+            separateOpens.incrementAndGet();
+            return opener.open();
+        }
+        if (first) {
+            SeekableByteChannel channel;
+            try {
+                channel = opener.open();
+            } catch (IOException | RuntimeException e) {
+                remove(entry);
+                throw e;
+            }
+            if (!(channel instanceof FileChannel)) {
+                remove(entry);
+                return channel;
+            }
+            synchronized (entries) {
+                entry.channel = (FileChannel) channel;
+                entries.notifyAll();
+            }
+        } else {
+            synchronized (entries) {
+                while (entry.channel == null && entries.get(key) == entry) {
+                    awaitChange();
+                }
+            }
+            if (entry.channel == null) {
+                // Failed to open or not shareable, open on its own
+                return open(file, options, opener);
+            }
+            joins.incrementAndGet();
+        }
+        var shared = entry;
+        return new PositionalFileChannel(shared.channel, () -> release(shared));
+    }
+
+    /**
+     * Returns the number of files open for writing
+     */
+    public int getOpenFiles() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns the number of handles that joined the channel of a file already open
+     */
+    public long getJoins() {
+        return joins.get();
+    }
+
+    /**
+     * Returns the number of handles that opened a file already open on their own, as their options
+     * did not allow joining its channel
+     */
+    public long getSeparateOpens() {
+        return separateOpens.get();
+    }
+
+    private void release(Entry entry) throws IOException {
+        synchronized (entries) {
+            if (--entry.handles > 0) {
+                return;
+            }
+            entry.closing = true;
+        }
+        try {
+            entry.channel.close();
+        } finally {
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        synchronized (entries) {
+            entries.remove(entry.key, entry);
+            entries.notifyAll();
+        }
+    }
+
+    private void awaitChange() throws InterruptedIOException {
+        try {
+            entries.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared channel");
+        }
+    }
+
+    /**
+     * Opens a file no handle has open yet
+     */
+    public interface Opener {
+        SeekableByteChannel open() throws IOException;
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final boolean readable;
+        private int handles;
+        private boolean closing;
+        private FileChannel channel;
+
+        Entry(String key, boolean readable) {
+            this.key = key;
+            this.readable = readable;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.sshdaemon.sftp;
+
+/**
+ * When data written to SFTP file handles is synced to the storage device, trading durability for
+ * throughput
+ */
+public enum SyncPolicy {
+    /**
+     * Leave it to the kernel, written data survives a crash of the daemon but not of the device
+     */
+    NONE,
+    /**
+     * Sync once when the handle is closed, a completed upload is durable
+     */
+    ON_CLOSE,
+    /**
+     * Sync whenever the configured batch of data has been written and on close
+     */
+    BATCHED,
+    /**
+     * Sync after every write request, slowest but nothing acknowledged is ever lost
+     */
+    PER_WRITE
+}
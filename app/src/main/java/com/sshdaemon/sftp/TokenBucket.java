@@ -0,0 +1,111 @@
+package com.sshdaemon.sftp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket refilled at a fixed rate and holding at most one second worth of tokens. Consumers
+ * charge what they used after the fact, the bucket may go into debt and then reports how long to
+ * wait until it is paid off. A rate of zero disables the limit, the consumption rate is still measured.
+ */
+public class TokenBucket {
+
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private long rate;
+    private double tokens;
+    private long refilled;
+
+    private long windowStart;
+    private long windowAmount;
+    private double measuredRate;
+
+    public TokenBucket(long rate) {
+        this(rate, System.nanoTime());
+    }
+
+    TokenBucket(long rate, long now) {
+        this.refilled = now;
+        this.windowStart = now;
+        setRate(rate, now);
+        this.tokens = rate;
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Changes the rate, a bucket in debt keeps its debt
+     */
+    public void setRate(long rate) {
+        setRate(rate, System.nanoTime());
+    }
+
+    public void charge(long amount) {
+        charge(amount, System.nanoTime());
+    }
+
+    /**
+     * Returns how long to wait in nanoseconds until the bucket is out of debt
+     */
+    public long delayNanos() {
+        return delayNanos(System.nanoTime());
+    }
+
+    /**
+     * Returns the amount consumed per second, measured over the last second
+     */
+    public double getMeasuredRate() {
+        return getMeasuredRate(System.nanoTime());
+    }
+
+    synchronized void setRate(long rate, long now) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate must not be negative: " + rate);
+        }
+        refill(now);
+        this.rate = rate;
+        tokens = Math.min(tokens, rate);
+    }
+
+    synchronized void charge(long amount, long now) {
+        refill(now);
+        measure(now);
+        windowAmount += amount;
+        if (rate > 0) {
+            tokens -= amount;
+        }
+    }
+
+    synchronized long delayNanos(long now) {
+        if (rate == 0) {
+            return 0;
+        }
+        refill(now);
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens * SECOND_NANOS / rate);
+    }
+
+    synchronized double getMeasuredRate(long now) {
+        measure(now);
+        return measuredRate;
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (double) (now - refilled) * rate / SECOND_NANOS);
+        }
+        refilled = now;
+    }
+
+    private void measure(long now) {
+        var elapsed = now - windowStart;
+        if (elapsed >= SECOND_NANOS) {
+            measuredRate = (double) windowAmount * SECOND_NANOS / elapsed;
+            windowStart = now;
+            windowAmount = 0;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.sftp.server.Handle;
+import org.apache.sshd.sftp.server.SftpSubsystem;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Handle of a recursive listing served by the {@value #TREE_SCAN} extension. The request carries the
+ * path of a directory and is answered with a handle, each {@value #TREE_SCAN_READ} request on the
+ * handle is answered with an extended reply holding the next entries of the tree in no particular
+ * order, or with an end of file status once all entries have been sent. The handle is closed with a
+ * regular close request.
+ * <p>
+ * A reply consists of the number of entries followed by the entries, each encoded as
+ * <pre>
+ * uint32 number of leading path bytes shared with the previous entry of the reply
+ * string remaining path bytes, UTF-8
+ * uint64 size
+ * uint64 modification time in milliseconds since the epoch
+ * uint32 file type and permission bits as in st_mode
+ * </pre>
+ * Paths are relative to the scanned directory with names separated by {@code /}.
+ */
+public class TreeScanHandle extends Handle {
+
+    public static final String TREE_SCAN = "tree-scan@sshdaemon.com";
+    public static final String TREE_SCAN_READ = "tree-scan-read@sshdaemon.com";
+
+    private static final int ENTRIES_PER_TAKE = 256;
+
+    private final TreeScanner scanner;
+
+    public TreeScanHandle(SftpSubsystem subsystem, Path file, String handle, TreeScanner scanner) throws IOException {
+        super(subsystem, file, handle);
+        this.scanner = scanner;
+        signalHandleOpening();
+    }
+
+    /**
+     * Starts walking the tree, to be called once the handle is registered
+     */
+    public void start() throws IOException {
+        scanner.start();
+        signalHandleOpen();
+    }
+
+    public TreeScanner getScanner() {
+        return scanner;
+    }
+
+    /**
+     * Appends the entry count and the next entries to the buffer, growing it by at most the given
+     * number of bytes. Returns the number of entries, 0 once the whole tree has been sent.
+     */
+    public int writeEntries(Buffer buffer, int maxBytes) throws IOException {
+        var countPosition = buffer.wpos();
+        buffer.putInt(0);
+        var limit = countPosition + maxBytes;
+        var count = 0;
+        var previous = new byte[0];
+        while (true) {
+            var entries = scanner.take(ENTRIES_PER_TAKE);
+            if (entries.isEmpty()) {
+                break;
+            }
+            for (var i = 0; i < entries.size(); i++) {
+                var entry = entries.get(i);
+                var entryPosition = buffer.wpos();
+                var path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+                var shared = sharedPrefix(previous, path);
+                buffer.putInt(shared);
+                buffer.putBytes(path, shared, path.length - shared);
+                buffer.putLong(entry.getSize());
+                buffer.putLong(entry.getLastModified());
+                buffer.putInt(entry.getMode());
+                if (buffer.wpos() > limit && count > 0) {
+                    buffer.wpos(entryPosition);
+                    scanner.putBack(entries.subList(i, entries.size()));
+                    return finish(buffer, countPosition, count);
+                }
+                previous = path;
+                count++;
+            }
+            if (!scanner.hasBuffered()) {
+                // Send what there is rather than waiting for the walk to catch up
+                break;
+            }
+        }
+        return finish(buffer, countPosition, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        scanner.close();
+        super.close();
+    }
+
+    private static int finish(Buffer buffer, int countPosition, int count) {
+        var end = buffer.wpos();
+        buffer.wpos(countPosition);
+        buffer.putInt(count);
+        buffer.wpos(end);
+        return count;
+    }
+
+    private static int sharedPrefix(byte[] previous, byte[] path) {
+        var length = Math.min(previous.length, path.length);
+        var shared = 0;
+        while (shared < length && previous[shared] == path[shared]) {
+            shared++;
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,274 @@
+package com.sshdaemon.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Walks a directory tree with several threads and buffers its entries for a consumer taking them in
+ * batches. Every directory is listed by one task, directories are spread over the threads. Walking
+ * pauses while the consumer lags behind by more than the buffer limit.
+ */
+public class TreeScanner implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TreeScanner.class);
+
+    private static final int S_IFDIR = 0040000;
+    private static final int S_IFREG = 0100000;
+    private static final int S_IFLNK = 0120000;
+    private static final PosixFilePermission[] PERMISSIONS = PosixFilePermission.values();
+
+    private final Path root;
+    private final Executor executor;
+    private final int parallelism;
+    private final int maxBuffered;
+    private final ArrayDeque<Path> directories = new ArrayDeque<>();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    private int running;
+    private int outstanding;
+    private long scannedDirectories;
+    private long failedDirectories;
+    private boolean closed;
+
+    /**
+     * @param root        directory whose descendants are reported, not the directory itself
+     * @param executor    executor running the walking threads
+     * @param parallelism number of directories listed at the same time
+     * @param maxBuffered number of entries buffered before walking pauses
+     */
+    public TreeScanner(Path root, Executor executor, int parallelism, int maxBuffered) {
+        if (parallelism <= 0 || maxBuffered <= 0) {
+            throw new IllegalArgumentException("Parallelism and buffer limit must be positive");
+        }
+        this.root = root;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.maxBuffered = maxBuffered;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public synchronized long getScannedDirectories() {
+        return scannedDirectories;
+    }
+
+    /**
+     * Returns the number of directories that could not be listed and are missing from the scan
+     */
+    public synchronized long getFailedDirectories() {
+        return failedDirectories;
+    }
+
+    public synchronized void start() {
+        if (outstanding == 0 && scannedDirectories == 0) {
+            directories.add(root);
+            outstanding = 1;
+            spawn();
+        }
+    }
+
+    /**
+     * Takes up to the given number of entries, waiting until there are some. Returns an empty list
+     * once the whole tree has been taken.
+     */
+    public synchronized List<Entry> take(int maxEntries) throws IOException {
+        spawn();
+        while (entries.isEmpty() && outstanding > 0 && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while scanning " + root);
+            }
+        }
+        if (closed) {
+            throw new IOException("Scan of " + root + " closed");
+        }
+        var count = Math.min(maxEntries, entries.size());
+        var taken = new ArrayList<Entry>(count);
+        for (var i = 0; i < count; i++) {
+            taken.add(entries.poll());
+        }
+        spawn();
+        return taken;
+    }
+
+    /**
+     * Returns whether entries can be taken without waiting
+     */
+    public synchronized boolean hasBuffered() {
+        return !entries.isEmpty();
+    }
+
+    /**
+     * Returns entries taken but not consumed, they are the next ones taken
+     */
+    public synchronized void putBack(List<Entry> unused) {
+        for (var i = unused.size() - 1; i >= 0; i--) {
+            entries.addFirst(unused.get(i));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        directories.clear();
+        entries.clear();
+        notifyAll();
+    }
+
+    private synchronized void spawn() {
+        while (running < parallelism && !directories.isEmpty() && entries.size() < maxBuffered && !closed) {
+            running++;
+            try {
+                executor.execute(this::work);
+            } catch (RejectedExecutionException e) {
+                running--;
+                if (running == 0) {
+                    logger.warn("No threads left to scan {}", root);
+                    close();
+                }
+                return;
+            }
+        }
+    }
+
+    private void work() {
+        Path directory;
+        synchronized (this) {
+            if (closed || directories.isEmpty() || entries.size() >= maxBuffered) {
+                running--;
+                return;
+            }
+            directory = directories.pollFirst();
+        }
+        var found = new ArrayList<Entry>();
+        var subdirectories = new ArrayList<Path>();
+        var failed = false;
+        try {
+            list(directory, found, subdirectories);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Failed to scan {}: {}", directory, e.getMessage());
+            failed = true;
+        }
+        synchronized (this) {
+            // Depth first keeps the number of pending directories low
+            for (var i = subdirectories.size() - 1; i >= 0; i--) {
+                directories.addFirst(subdirectories.get(i));
+            }
+            entries.addAll(found);
+            outstanding += subdirectories.size() - 1;
+            scannedDirectories++;
+            if (failed) {
+                failedDirectories++;
+            }
+            running--;
+            notifyAll();
+        }
+        // A task lists a single directory, so scans sharing the executor take turns
+        spawn();
+    }
+
+    private void list(Path directory, List<Entry> found, List<Path> subdirectories) throws IOException {
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (var child : children) {
+                var entry = entryOf(child);
+                if (entry == null) {
+                    continue;
+                }
+                found.add(entry);
+                if (entry.isDirectory()) {
+                    subdirectories.add(child);
+                }
+            }
+        }
+    }
+
+    private Entry entryOf(Path file) {
+        var path = root.relativize(file).toString();
+        try {
+            BasicFileAttributes attributes;
+            var permissions = 0;
+            try {
+                var posix = Files.readAttributes(file, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                for (var permission : posix.permissions()) {
+                    permissions |= 1 << (PERMISSIONS.length - 1 - permission.ordinal());
+                }
+                attributes = posix;
+            } catch (UnsupportedOperationException e) {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            }
+            var type = attributes.isSymbolicLink() ? S_IFLNK
+                    : attributes.isDirectory() ? S_IFDIR
+                    : attributes.isRegularFile() ? S_IFREG : 0;
+            return new Entry(path, attributes.size(), attributes.lastModifiedTime().toMillis(), type | permissions);
+        } catch (IOException e) {
+            // Gone since it was listed
+            logger.debug("Failed to read attributes of {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Entry of the scanned tree
+     */
+    public static final class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final int mode;
+
+        public Entry(String path, long size, long lastModified, int mode) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mode = mode;
+        }
+
+        /**
+         * Returns the path relative to the scanned directory, names separated by {@code /}
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the modification time in milliseconds since the epoch
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the file type and permission bits as in {@code st_mode}
+         */
+        public int getMode() {
+            return mode;
+        }
+
+        public boolean isDirectory() {
+            return (mode & 0170000) == S_IFDIR;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.sshdaemon.sftp;
+
+import com.sshdaemon.util.FileAllocator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * File channel of a file handle open for writing, syncing written data according to a
+ * {@link SyncPolicy} and optionally reserving disk space ahead of the writes in large steps. The
+ * reservation leaves the size of the file alone, space reserved beyond the data is released again
+ * when the handle is closed. Positional writes of handles sharing the channel run concurrently, only
+ * the bookkeeping around them is serialized.
+ */
+public class UploadFileChannel extends ForwardingFileChannel {
+    private static final Logger logger = LoggerFactory.getLogger(UploadFileChannel.class);
+
+    private final SyncPolicy syncPolicy;
+    private final long syncBatchSize;
+    private final long preallocationStep;
+    // Held shared by writes in progress, exclusively while releasing the reserved space
+    private final ReadWriteLock releaseLock = new ReentrantReadWriteLock();
+
+    private FileAllocator allocator;
+    private boolean preallocationFailed;
+    private long allocated;
+    private long unsynced;
+
+    /**
+     * @param allocator allocator reserving space for the file, {@code null} to grow the file write
+     *                  by write
+     */
+    public UploadFileChannel(FileChannel delegate, SyncPolicy syncPolicy, long syncBatchSize,
+                             FileAllocator allocator, long preallocationStep) throws IOException {
+        super(delegate);
+        if (syncBatchSize <= 0 || preallocationStep <= 0) {
+            throw new IllegalArgumentException("Batch size and preallocation step must be positive: "
+                    + syncBatchSize + "/" + preallocationStep);
+        }
+        this.syncPolicy = syncPolicy;
+        this.syncBatchSize = syncBatchSize;
+        this.allocator = allocator;
+        this.preallocationStep = preallocationStep;
+        this.allocated = delegate.size();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        var offset = delegate.position();
+        var count = write(src, offset);
+        delegate.position(offset + count);
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (var i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        int count;
+        boolean sync;
+        releaseLock.readLock().lock();
+        try {
+            synchronized (this) {
+                reserve(position + src.remaining());
+            }
+            count = delegate.write(src, position);
+            synchronized (this) {
+                sync = written(position + count, count);
+            }
+        } finally {
+            releaseLock.readLock().unlock();
+        }
+        if (sync) {
+            delegate.force(false);
+        }
+        return count;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        synchronized (this) {
+            unsynced = 0;
+        }
+        delegate.force(metaData);
+    }
+
+    /**
+     * Releases the space reserved beyond the data, later writes reserve space again
+     */
+    public void release() throws IOException {
+        releaseLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                trim();
+            }
+        } finally {
+            releaseLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            release();
+            if (syncPolicy != SyncPolicy.NONE) {
+                delegate.force(false);
+            }
+        } finally {
+            closeAllocator();
+            super.implCloseChannel();
+        }
+    }
+
+    private void reserve(long end) throws IOException {
+        if (allocator == null || preallocationFailed || end <= allocated) {
+            return;
+        }
+        var target = Math.max(end, allocated + preallocationStep);
+        try {
+            allocator.allocate(allocated, target - allocated);
+            allocated = target;
+        } catch (IOException e) {
+            // Space reserved so far is still released on close
+            logger.debug("Preallocation not available, growing file write by write: {}", e.getMessage());
+            preallocationFailed = true;
+        }
+    }
+
+    /**
+     * Records a completed write, returns whether the data is to be synced now
+     */
+    private boolean written(long end, int count) {
+        allocated = Math.max(allocated, end);
+        unsynced += count;
+        if (syncPolicy == SyncPolicy.PER_WRITE
+                || (syncPolicy == SyncPolicy.BATCHED && unsynced >= syncBatchSize)) {
+            unsynced = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private void trim() throws IOException {
+        if (allocator == null) {
+            return;
+        }
+        var size = delegate.size();
+        if (allocated > size) {
+            allocator.release();
+        }
+        allocated = size;
+    }
+
+    private void closeAllocator() {
+        if (allocator != null) {
+            allocator.close();
+            allocator = null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.file.root.RootedFileSystem;
+import org.apache.sshd.common.file.root.RootedPath;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File system presenting several storage volumes as top level directories of one namespace, for
+ * example {@code /internal} and {@code /sdcard1}. The root itself is backed by a directory holding
+ * an empty directory for every volume, so listing it shows the volumes.
+ */
+public class VolumeFileSystem extends RootedFileSystem {
+
+    private final Map<String, Path> volumes;
+
+    VolumeFileSystem(VolumeFileSystemProvider provider, Path mountRoot, Map<String, Path> volumes) {
+        super(provider, mountRoot, Collections.emptyMap());
+        this.volumes = volumes;
+    }
+
+    /**
+     * Returns the local roots of the volumes by their names
+     */
+    public Map<String, Path> getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * Returns the name of the volume the given path lies on, {@code null} for the root
+     */
+    public static String getVolumeName(Path path) {
+        var absolute = path.toAbsolutePath().normalize();
+        return absolute.getNameCount() > 0 ? absolute.getName(0).toString() : null;
+    }
+
+    @Override
+    public VolumeFileSystemProvider provider() {
+        return (VolumeFileSystemProvider) super.provider();
+    }
+
+    @Override
+    protected RootedPath create(String root, List<String> names) {
+        return new VolumePath(this, root, names);
+    }
+
+    /**
+     * Path whose file is the one on the volume rather than below the root directory
+     */
+    private static final class VolumePath extends RootedPath {
+
+        VolumePath(VolumeFileSystem fileSystem, String root, List<String> names) {
+            super(fileSystem, root, names);
+        }
+
+        @Override
+        public File toFile() {
+            return ((VolumeFileSystem) getFileSystem()).provider().toLocalPath(this).toFile();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.file.FileSystemFactory;
+import org.apache.sshd.common.session.SessionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Creates a {@link VolumeFileSystem} mounting every storage volume under its name for each session
+ */
+public class VolumeFileSystemFactory implements FileSystemFactory {
+    private static final Logger logger = LoggerFactory.getLogger(VolumeFileSystemFactory.class);
+
+    private final Path mountRoot;
+    private final Map<String, Path> volumes;
+
+    /**
+     * @param mountRoot directory backing the root of the namespace, managed by this factory
+     * @param volumes   local roots of the volumes by the names they are mounted under
+     */
+    public VolumeFileSystemFactory(Path mountRoot, Map<String, Path> volumes) {
+        if (volumes.isEmpty()) {
+            throw new IllegalArgumentException("No volumes to mount");
+        }
+        for (var name : volumes.keySet()) {
+            if (name.isEmpty() || name.contains("/") || ".".equals(name) || "..".equals(name)) {
+                throw new IllegalArgumentException("Invalid volume name: " + name);
+            }
+        }
+        this.mountRoot = mountRoot;
+        this.volumes = Collections.unmodifiableMap(new LinkedHashMap<>(volumes));
+    }
+
+    public Map<String, Path> getVolumes() {
+        return volumes;
+    }
+
+    @Override
+    public Path getUserHomeDir(SessionContext session) {
+        return mountRoot;
+    }
+
+    @Override
+    public FileSystem createFileSystem(SessionContext session) throws IOException {
+        prepareMountRoot();
+        return new VolumeFileSystemProvider(volumes).newFileSystem(mountRoot, Collections.emptyMap());
+    }
+
+    /**
+     * Keeps one empty directory per volume in the mount root, so listing the root shows the volumes
+     */
+    private synchronized void prepareMountRoot() throws IOException {
+        Files.createDirectories(mountRoot);
+        try (var entries = Files.newDirectoryStream(mountRoot)) {
+            for (var entry : entries) {
+                if (!volumes.containsKey(entry.getFileName().toString())) {
+                    logger.info("Removing mount point of unavailable volume {}", entry.getFileName());
+                    try {
+                        Files.deleteIfExists(entry);
+                    } catch (DirectoryNotEmptyException e) {
+                        logger.warn("Mount point {} is not empty, leaving it in place", entry);
+                    }
+                }
+            }
+        }
+        for (var name : volumes.keySet()) {
+            Files.createDirectories(mountRoot.resolve(name));
+        }
+    }
+}
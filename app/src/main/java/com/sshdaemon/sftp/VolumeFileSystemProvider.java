@@ -0,0 +1,198 @@
+package com.sshdaemon.sftp;
+
+import org.apache.sshd.common.file.root.RootedFileSystem;
+import org.apache.sshd.common.file.root.RootedFileSystemProvider;
+import org.apache.sshd.common.file.root.RootedPath;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Provider of {@link VolumeFileSystem}s. The first name of a path selects the volume, the rest is
+ * resolved below the volume's local root and may not leave it. The root and the volume directories
+ * themselves cannot be created, removed or replaced through the file system.
+ */
+public class VolumeFileSystemProvider extends RootedFileSystemProvider {
+
+    private static final Set<StandardOpenOption> WRITE_OPTIONS = EnumSet.of(StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND, StandardOpenOption.CREATE, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+
+    private final Map<String, Path> volumes;
+
+    /**
+     * @param volumes absolute local roots of the volumes by their names
+     */
+    public VolumeFileSystemProvider(Map<String, Path> volumes) {
+        var normalized = new LinkedHashMap<String, Path>();
+        volumes.forEach((name, root) -> normalized.put(name, root.toAbsolutePath().normalize()));
+        this.volumes = Collections.unmodifiableMap(normalized);
+    }
+
+    @Override
+    public FileSystem newFileSystem(Path mountRoot, Map<String, ?> env) throws IOException {
+        if (!Files.isDirectory(mountRoot)) {
+            throw new IOException("Mount root is not a directory: " + mountRoot);
+        }
+        return new VolumeFileSystem(this, mountRoot.toRealPath(), volumes);
+    }
+
+    Path toLocalPath(RootedPath path) {
+        return unroot(path);
+    }
+
+    @Override
+    protected Path resolveLocalPath(RootedPath path) {
+        var absolute = path.toAbsolutePath().normalize();
+        var root = path.getFileSystem().getRoot();
+        if (absolute.getNameCount() == 0) {
+            return root;
+        }
+        var name = absolute.getName(0).toString();
+        var volume = volumes.get(name);
+        if (volume == null) {
+            // Unknown names resolve below the root directory where nothing but the volumes exist
+            return root.resolve(name);
+        }
+        var resolved = volume;
+        for (var i = 1; i < absolute.getNameCount(); i++) {
+            resolved = resolved.resolve(absolute.getName(i).toString());
+        }
+        if (!resolved.normalize().startsWith(volume)) {
+            throw new InvalidPathException(path.toString(), "Not on volume " + name);
+        }
+        return resolved;
+    }
+
+    @Override
+    protected Path root(RootedFileSystem fileSystem, Path local) {
+        if (local.isAbsolute()) {
+            String name = null;
+            Path volume = null;
+            for (var entry : volumes.entrySet()) {
+                var candidate = entry.getValue();
+                if (local.startsWith(candidate) && (volume == null || candidate.getNameCount() > volume.getNameCount())) {
+                    name = entry.getKey();
+                    volume = candidate;
+                }
+            }
+            if (volume != null) {
+                var relative = volume.relativize(local).toString();
+                return relative.isEmpty()
+                        ? fileSystem.getPath("/" + name) : fileSystem.getPath("/" + name, relative);
+            }
+        }
+        return super.root(fileSystem, local);
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        // Every volume has its own store, the root directory's store says nothing about free space
+        return Files.getFileStore(unroot(path));
+    }
+
+    @Override
+    public OutputStream newOutputStream(Path path, OpenOption... options) throws IOException {
+        checkWritable(path);
+        return super.newOutputStream(path, options);
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+                                              FileAttribute<?>... attrs) throws IOException {
+        checkWritable(path, options);
+        return super.newByteChannel(path, options, attrs);
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+            throws IOException {
+        checkWritable(path, options);
+        return super.newFileChannel(path, options, attrs);
+    }
+
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(Path path, Set<? extends OpenOption> options,
+                                                              ExecutorService executor, FileAttribute<?>... attrs)
+            throws IOException {
+        checkWritable(path, options);
+        return super.newAsynchronousFileChannel(path, options, executor, attrs);
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        checkWritable(dir);
+        super.createDirectory(dir, attrs);
+    }
+
+    @Override
+    public void createSymbolicLink(Path link, Path target, FileAttribute<?>... attrs) throws IOException {
+        checkWritable(link);
+        super.createSymbolicLink(link, target, attrs);
+    }
+
+    @Override
+    public void createLink(Path link, Path existing) throws IOException {
+        checkWritable(link);
+        super.createLink(link, existing);
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        checkWritable(path);
+        super.delete(path);
+    }
+
+    @Override
+    public boolean deleteIfExists(Path path) throws IOException {
+        checkWritable(path);
+        return super.deleteIfExists(path);
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        checkWritable(target);
+        super.copy(source, target, options);
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        checkWritable(source);
+        checkWritable(target);
+        super.move(source, target, options);
+    }
+
+    private static void checkWritable(Path path, Set<? extends OpenOption> options) throws AccessDeniedException {
+        for (var option : WRITE_OPTIONS) {
+            if (options.contains(option)) {
+                checkWritable(path);
+                return;
+            }
+        }
+    }
+
+    private static void checkWritable(Path path) throws AccessDeniedException {
+        if (path.toAbsolutePath().normalize().getNameCount() <= 1) {
+            throw new AccessDeniedException(path.toString(), null, "Volumes cannot be modified");
+        }
+    }
+}
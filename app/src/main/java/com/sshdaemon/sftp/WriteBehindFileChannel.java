@@ -0,0 +1,288 @@
+package com.sshdaemon.sftp;
+
+import com.sshdaemon.util.BufferPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File channel merging adjacent small writes into large writes aligned to the buffer size. Pending
+ * data is written out when the buffer fills up, when a write is not contiguous, when the channel is
+ * read, forced, truncated or closed, and at the latest after the maximum delay. A failed deferred
+ * write is reported by every following operation including close.
+ */
+public class WriteBehindFileChannel extends ForwardingFileChannel {
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindFileChannel.class);
+
+    private final BufferPool buffers;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService timer;
+
+    private ByteBuffer pending;
+    private long pendingStart;
+    private long pendingSince;
+    private ScheduledFuture<?> scheduledFlush;
+    private IOException failure;
+    private long position;
+
+    /**
+     * @param timer executor flushing data still pending after the maximum delay, {@code null} to
+     *              check the delay on the next write only
+     */
+    public WriteBehindFileChannel(FileChannel delegate, BufferPool buffers, long maxDelayMillis,
+                                  ScheduledExecutorService timer) throws IOException {
+        super(delegate);
+        if (maxDelayMillis <= 0) {
+            throw new IllegalArgumentException("Maximum delay must be positive: " + maxDelayMillis);
+        }
+        this.buffers = buffers;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.timer = timer;
+        this.position = delegate.position();
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        checkFailure();
+        var count = src.remaining();
+        if (pending != null && (position != pendingEnd() || System.nanoTime() - pendingSince > maxDelayNanos)) {
+            flush();
+        }
+        if (pending == null && count >= buffers.getBufferSize()) {
+            writeFully(src, position);
+        } else {
+            var offset = position;
+            while (src.hasRemaining()) {
+                offset += append(src, offset);
+            }
+        }
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (var i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        flush();
+        return delegate.write(src, position);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        flush();
+        var read = delegate.read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (var i = offset; i < offset + length; i++) {
+            var read = read(dsts[i]);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        flush();
+        return delegate.read(dst, position);
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        var size = delegate.size();
+        return pending == null ? size : Math.max(size, pendingEnd());
+    }
+
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException {
+        flush();
+        delegate.truncate(size);
+        position = Math.min(position, size);
+        return this;
+    }
+
+    @Override
+    public synchronized void force(boolean metaData) throws IOException {
+        flush();
+        delegate.force(metaData);
+    }
+
+    @Override
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        flush();
+        return delegate.transferTo(position, count, target);
+    }
+
+    @Override
+    public synchronized long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        flush();
+        return delegate.transferFrom(src, position, count);
+    }
+
+    @Override
+    public synchronized MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        flush();
+        return delegate.map(mode, position, size);
+    }
+
+    @Override
+    public synchronized FileLock lock(long position, long size, boolean shared) throws IOException {
+        flush();
+        return delegate.lock(position, size, shared);
+    }
+
+    @Override
+    public synchronized FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        flush();
+        return delegate.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            synchronized (this) {
+                flush();
+            }
+        } finally {
+            synchronized (this) {
+                releasePending();
+            }
+            super.implCloseChannel();
+        }
+    }
+
+    /**
+     * Writes out pending data, throws the failure of an earlier deferred write if there was one
+     */
+    public synchronized void flush() throws IOException {
+        checkFailure();
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.flip();
+            writeFully(pending, pendingStart);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            releasePending();
+        }
+    }
+
+    private int append(ByteBuffer src, long offset) throws IOException {
+        if (pending == null) {
+            pending = buffers.acquire();
+            pendingStart = offset;
+            pendingSince = System.nanoTime();
+            scheduleFlush();
+        }
+        // Flush at multiples of the buffer size so the file system sees aligned writes
+        var capacity = buffers.getBufferSize();
+        var alignedEnd = (pendingStart / capacity + 1) * capacity;
+        var count = (int) Math.min(src.remaining(), alignedEnd - pendingEnd());
+        var slice = src.duplicate();
+        slice.limit(slice.position() + count);
+        pending.put(slice);
+        src.position(src.position() + count);
+        if (pendingEnd() == alignedEnd) {
+            flush();
+        }
+        return count;
+    }
+
+    private long pendingEnd() {
+        return pendingStart + pending.position();
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += delegate.write(src, position);
+        }
+    }
+
+    private void releasePending() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pending != null) {
+            buffers.release(pending);
+            pending = null;
+        }
+    }
+
+    private void scheduleFlush() {
+        if (timer == null) {
+            return;
+        }
+        try {
+            scheduledFlush = timer.schedule(this::deferredFlush, maxDelayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Flush timer not available, flushing on the next operation");
+        }
+    }
+
+    private synchronized void deferredFlush() {
+        if (!isOpen() || failure != null) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.warn("Deferred write failed, reporting it on the next request: {}", e.getMessage());
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Deferred write failed: " + failure.getMessage(), failure);
+        }
+    }
+}
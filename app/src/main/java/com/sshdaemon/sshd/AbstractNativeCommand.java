@@ -1,6 +1,6 @@
 package com.sshdaemon.sshd;
 
-import static com.sshdaemon.util.ShellFinder.findAvailableShell;
+import com.sshdaemon.util.ShellFinder;
 
 import org.apache.sshd.server.Environment;
 import org.apache.sshd.server.ExitCallback;
@@ -9,10 +9,15 @@ import org.apache.sshd.server.command.Command;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
 
 /**
  * Abstract base class for native Android command implementations
@@ -21,7 +26,11 @@ import java.util.Map;
 public abstract class AbstractNativeCommand implements Command, Runnable {
     private static final Logger logger = LoggerFactory.getLogger(AbstractNativeCommand.class);
 
+    private static final Map<String, Map<String, String>> baseEnvironments = new ConcurrentHashMap<>();
+
     protected final String workingDirectory;
+    protected final ProcessSupervisor supervisor;
+    protected final WarmShellPool shellPool;
 
     protected InputStream in;
     protected OutputStream out;
@@ -30,9 +39,28 @@ public abstract class AbstractNativeCommand implements Command, Runnable {
     protected Environment environment;
     protected Thread commandThread;
     protected Process process;
+    protected volatile ProcessSupervisor.Supervision supervision;
+    protected volatile boolean destroyed;
 
     public AbstractNativeCommand(String workingDirectory) {
+        this(workingDirectory, null);
+    }
+
+    /**
+     * @param supervisor supervisor taking over the started process, {@code null} to run the command
+     *                   on a thread of its own, which then has to pump the process streams itself
+     */
+    public AbstractNativeCommand(String workingDirectory, ProcessSupervisor supervisor) {
+        this(workingDirectory, supervisor, null);
+    }
+
+    /**
+     * @param shellPool pool of warm shells to run the command on, {@code null} to always start a shell
+     */
+    public AbstractNativeCommand(String workingDirectory, ProcessSupervisor supervisor, WarmShellPool shellPool) {
         this.workingDirectory = workingDirectory != null ? workingDirectory : "/";
+        this.supervisor = supervisor;
+        this.shellPool = shellPool;
     }
 
     @Override
@@ -58,13 +86,21 @@ public abstract class AbstractNativeCommand implements Command, Runnable {
     @Override
     public void start(ChannelSession channel, Environment env) throws IOException {
         this.environment = env;
+        if (supervisor != null) {
+            supervisor.launch(this);
+            return;
+        }
         this.commandThread = new Thread(this, getThreadName(channel));
         this.commandThread.start();
     }
 
     @Override
     public void destroy(ChannelSession channel) {
-        if (process != null) {
+        destroyed = true;
+        var supervised = supervision;
+        if (supervised != null) {
+            supervised.destroy();
+        } else if (process != null) {
             process.destroy();
         }
         if (commandThread != null) {
@@ -74,14 +110,14 @@ public abstract class AbstractNativeCommand implements Command, Runnable {
 
     /**
      * Sets up common environment variables for Android shell processes
+     *
+     * @param processEnv environment of the process, starting out as the daemon's
+     * @param sessionEnv environment variables sent by the SSH client
      */
-    protected void setupEnvironment(ProcessBuilder pb, String shellPath) {
-        Map<String, String> processEnv = pb.environment();
-
+    static void setupEnvironment(Map<String, String> processEnv, Map<String, String> sessionEnv,
+                                 String workingDirectory, String shellPath) {
         // Copy SSH environment variables
-        if (environment != null) {
-            processEnv.putAll(environment.getEnv());
-        }
+        processEnv.putAll(sessionEnv);
 
         // Set common shell environment variables
         processEnv.put("HOME", workingDirectory);
@@ -106,11 +142,69 @@ public abstract class AbstractNativeCommand implements Command, Runnable {
         processEnv.put("EXTERNAL_STORAGE", "/sdcard");
     }
 
+    /**
+     * Returns the environment of processes of sessions sending no variables, computed once per
+     * working directory and shell
+     */
+    static Map<String, String> baseEnvironment(String workingDirectory, String shellPath) {
+        return baseEnvironments.computeIfAbsent(workingDirectory + '\0' + shellPath, key -> {
+            var processEnv = new HashMap<>(System.getenv());
+            setupEnvironment(processEnv, Map.of(), workingDirectory, shellPath);
+            return Collections.unmodifiableMap(processEnv);
+        });
+    }
+
+    /**
+     * Returns the environment of the session's process
+     */
+    protected Map<String, String> processEnvironment(String shellPath) {
+        var sessionEnv = environment != null ? environment.getEnv() : Map.<String, String>of();
+        if (sessionEnv.isEmpty()) {
+            return baseEnvironment(workingDirectory, shellPath);
+        }
+        var processEnv = new HashMap<>(System.getenv());
+        setupEnvironment(processEnv, sessionEnv, workingDirectory, shellPath);
+        return processEnv;
+    }
+
+    /**
+     * Starts the shell running the command, taking a warm shell from the pool when one is idle. If the
+     * shell fails to start, shells are probed again and the command is started with the shell found.
+     *
+     * @param command command to run, {@code null} for the shell reading commands from its input, with
+     *                stderr merged into stdout
+     */
+    protected Process startShell(String shellPath, String command) throws IOException {
+        var processEnv = processEnvironment(shellPath);
+        if (shellPool != null) {
+            var warm = shellPool.take(shellPath, processEnv, command);
+            if (warm != null) {
+                return warm;
+            }
+        }
+        ProcessBuilder pb = command != null ? new ProcessBuilder(shellPath, "-c", command) : new ProcessBuilder(shellPath);
+        pb.directory(new File(workingDirectory));
+        // Keep stderr separate for commands, for protocols such as rsync's
+        pb.redirectErrorStream(command == null);
+        pb.environment().clear();
+        pb.environment().putAll(processEnv);
+        try {
+            return pb.start();
+        } catch (IOException e) {
+            var shell = ShellFinder.revalidate(shellPath);
+            if (shell == null || shell.equals(shellPath)) {
+                throw e;
+            }
+            logger.warn("Starting {} failed, using {} instead", shellPath, shell);
+            return startShell(shell, command);
+        }
+    }
+
     /**
      * Finds available shell or handles error if none found
      */
     protected String findShellOrExit() {
-        String shellPath = findAvailableShell();
+        String shellPath = ShellFinder.getShell();
         if (shellPath == null) {
             logger.error("No working shell found for command execution");
             try {
@@ -130,89 +224,18 @@ public abstract class AbstractNativeCommand implements Command, Runnable {
     }
 
     /**
-     * Creates standard I/O threads for simple command execution (non-interactive)
-     */
-    protected void createSimpleIOThreads(int bufferSize) {
-        Thread inputThread = new Thread(() -> {
-            try {
-                byte[] buffer = new byte[bufferSize];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    if (process != null && process.isAlive()) {
-                        process.getOutputStream().write(buffer, 0, bytesRead);
-                        process.getOutputStream().flush();
-                    } else {
-                        break;
-                    }
-                }
-            } catch (IOException e) {
-                logger.debug("Input stream closed: {}", e.getMessage());
-            } finally {
-                try {
-                    if (process != null && process.isAlive()) {
-                        process.getOutputStream().close();
-                    }
-                } catch (IOException e) {
-                    logger.debug("Error closing process input stream: {}", e.getMessage());
-                }
-            }
-        }, "Input");
-
-        Thread outputThread = new Thread(() -> {
-            try {
-                byte[] buffer = new byte[bufferSize];
-                int bytesRead;
-                while ((bytesRead = process.getInputStream().read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                    out.flush();
-                }
-            } catch (IOException e) {
-                logger.debug("Output stream closed: {}", e.getMessage());
-            }
-        }, "Output");
-
-        Thread errorThread = new Thread(() -> {
-            try {
-                byte[] buffer = new byte[bufferSize];
-                int bytesRead;
-                while ((bytesRead = process.getErrorStream().read(buffer)) != -1) {
-                    err.write(buffer, 0, bytesRead);
-                    err.flush();
-                }
-            } catch (IOException e) {
-                logger.debug("Error stream closed: {}", e.getMessage());
-            }
-        }, "Error");
-
-        // Start I/O threads
-        inputThread.setDaemon(true);
-        outputThread.setDaemon(true);
-        errorThread.setDaemon(true);
-
-        inputThread.start();
-        outputThread.start();
-        errorThread.start();
-    }
-
-    /**
-     * Waits for process completion and I/O threads to finish
+     * Hands the started process to the supervisor, which pumps its streams for simple command
+     * execution (non-interactive) with stdout and stderr kept separate, and reports its exit code.
+     * Only for commands constructed with a supervisor.
      */
-    protected int waitForCompletion(int ioTimeout) throws InterruptedException {
-        int exitCode = process.waitFor();
-
-        // Wait for I/O threads to finish
-        Thread[] threads = Thread.getAllStackTraces().keySet().toArray(new Thread[0]);
-        for (Thread thread : threads) {
-            if (thread.getName().equals("Input") || thread.getName().equals("Output") || thread.getName().equals("Error")) {
-                try {
-                    thread.join(ioTimeout);
-                } catch (InterruptedException e) {
-                    logger.debug("Interrupted while waiting for I/O thread: {}", thread.getName());
-                }
-            }
+    protected void superviseProcess(IntConsumer onExit) {
+        // A terminal means a user watching the output, pass it on without coalescing
+        var interactive = environment != null && !environment.getPtyModes().isEmpty();
+        supervision = supervisor.supervise(process, in, out, err, interactive, onExit);
+        if (destroyed) {
+            // Channel destroyed while the process was starting
+            supervision.destroy();
         }
-
-        return exitCode;
     }
 
     protected void writeError(String message) throws IOException {
@@ -0,0 +1,397 @@
+package com.sshdaemon.sshd;
+
+import com.sshdaemon.util.BufferPool;
+
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.common.util.threads.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Daemon-wide pump moving data between native processes and their SSH channels. Instead of a thread
+ * blocked in a read for every stream, streams are polled for available data on a few shared threads,
+ * idle streams are polled again after a delay growing up to {@value #MAX_IDLE_DELAY_MILLIS} ms. Data
+ * is moved on a pool of {@value #TRANSFERS_PER_THREAD} threads per pumping thread, as writes block while
+ * the client or the process does not take it, so a stalled stream only holds a transfer thread. Output
+ * streams end with the end of the pipe rather than with the process, as children left running in
+ * the background may still write to it. Standard output and standard error of a
+ * process are pumped separately, so protocols such as rsync's keep them apart. Output of
+ * non-interactive commands is coalesced and flushed once {@value #FLUSH_THRESHOLD} bytes have piled up
+ * or the oldest byte has waited a few milliseconds, whether the process keeps writing or has gone
+ * quiet, so chatty commands do not turn into floods of tiny packets.
+ */
+public class CommandIoPump implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CommandIoPump.class);
+
+    static final long MAX_IDLE_DELAY_MILLIS = 16;
+    // Reads of one stream before it yields to the other streams
+    private static final int MAX_READS_PER_TURN = 16;
+    // Threads moving data, and waiting for the end of the output of exited processes, per pumping thread
+    static final int TRANSFERS_PER_THREAD = 4;
+    // Coalesced output is flushed once it fills a channel packet or has waited this long
+    static final int FLUSH_THRESHOLD = 32768;
+    static final long MAX_FLUSH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+    private static final long IDLE_FLUSH_CHECK_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    private final CloseableExecutorService workers;
+    private final CloseableExecutorService transfers;
+    private final ScheduledExecutorService timer;
+    private final BufferPool buffers;
+    private final int threadCount;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicLong pumpedBytes = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    /**
+     * @param threadCount      number of threads pumping the streams of all processes
+     * @param bufferSize       size of the buffers data is moved through
+     * @param maxPooledBuffers number of buffers kept for reuse
+     */
+    public CommandIoPump(int threadCount, int bufferSize, int maxPooledBuffers) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+        }
+        this.threadCount = threadCount;
+        this.buffers = new BufferPool(bufferSize, maxPooledBuffers, false);
+        this.workers = ThreadUtils.newFixedThreadPool("Command-IO", threadCount);
+        this.transfers = ThreadUtils.newFixedThreadPool("Command-Transfer", threadCount * TRANSFERS_PER_THREAD);
+        this.timer = ThreadUtils.newSingleThreadScheduledExecutor("Command-IO-Timer");
+    }
+
+    /**
+     * Starts moving the input of the channel to the process and its output and errors to the channel
+     */
+    public Pumping start(Process process, InputStream in, OutputStream out, OutputStream err) {
+        return start(process, in, out, err, false, null);
+    }
+
+    /**
+     * Starts moving the input of the channel to the process and its output and errors to the channel
+     *
+     * @param interactive  whether to pass on every read at once, for a user waiting on the output,
+     *                     instead of coalescing the output into fewer and larger packets
+     * @param onOutputDone called once the output and errors have been passed on, or pumping has been
+     *                     cancelled, {@code null} for none
+     */
+    public Pumping start(Process process, InputStream in, OutputStream out, OutputStream err,
+                         boolean interactive, Runnable onOutputDone) {
+        var remaining = new AtomicInteger(2);
+        Runnable outputFinished = () -> {
+            if (remaining.decrementAndGet() == 0 && onOutputDone != null) {
+                onOutputDone.run();
+            }
+        };
+        var pumping = new Pumping(new Stream(process, in, process.getOutputStream(), true, false, null),
+                new Stream(process, process.getInputStream(), out, false, !interactive, outputFinished),
+                new Stream(process, process.getErrorStream(), err, false, !interactive, outputFinished));
+        pumping.input.submit();
+        pumping.output.submit();
+        pumping.error.submit();
+        return pumping;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Returns the number of streams being pumped, three for every running command
+     */
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    public long getPumpedBytes() {
+        return pumpedBytes.get();
+    }
+
+    /**
+     * Returns the number of flushes, each sending the data written since the previous one in as few
+     * packets as the channel allows
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public int getPooledBuffers() {
+        return buffers.getPooledCount();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+        transfers.shutdownNow();
+    }
+
+    /**
+     * Streams of one process being pumped
+     */
+    public final class Pumping {
+        private final Stream input;
+        private final Stream output;
+        private final Stream error;
+
+        private Pumping(Stream input, Stream output, Stream error) {
+            this.input = input;
+            this.output = output;
+            this.error = error;
+        }
+
+        /**
+         * Waits until the output and errors of the process have been passed on completely, returns
+         * whether they have
+         */
+        public boolean awaitOutput(long timeoutMillis) throws InterruptedException {
+            var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            return output.done.await(timeoutMillis, TimeUnit.MILLISECONDS)
+                    && error.done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Stops pumping, data not passed on yet is dropped
+         */
+        public void cancel() {
+            input.cancelled = true;
+            output.cancelled = true;
+            error.cancelled = true;
+        }
+    }
+
+    private final class Stream implements Runnable {
+        private final Process process;
+        private final InputStream source;
+        private final OutputStream target;
+        private final boolean toProcess;
+        private final Runnable onFinish;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private final boolean coalescing;
+
+        private volatile boolean cancelled;
+        private long idleDelay;
+        private boolean discarding;
+        private int unflushed;
+        private long firstUnflushed;
+
+        /**
+         * @param toProcess  whether the stream feeds the process, which ends it with the end of the
+         *                   source instead of with the process
+         * @param coalescing whether to flush coalesced data instead of every read
+         * @param onFinish   called once the stream has ended, {@code null} for nothing
+         */
+        Stream(Process process, InputStream source, OutputStream target, boolean toProcess, boolean coalescing,
+               Runnable onFinish) {
+            this.process = process;
+            this.source = source;
+            this.target = target;
+            this.toProcess = toProcess;
+            this.coalescing = coalescing;
+            this.onFinish = onFinish;
+            activeStreams.incrementAndGet();
+        }
+
+        /**
+         * Polls the source on a shared worker, anything that may block runs as a transfer
+         */
+        @Override
+        public void run() {
+            try {
+                if (cancelled) {
+                    finish();
+                    return;
+                }
+                var available = source.available();
+                if (available < 0 || (available == 0 && toProcess && !process.isAlive())) {
+                    finish();
+                    return;
+                }
+                if (available == 0 && process.isAlive() && !isFlushDue()) {
+                    poll();
+                    return;
+                }
+                // Data to move, a flush due, or the end of the output of an exited process to read
+                transfers.execute(this::transfer);
+            } catch (IOException e) {
+                logger.debug("Stream closed: {}", e.getMessage());
+                finish();
+            } catch (RejectedExecutionException e) {
+                finish();
+            }
+        }
+
+        /**
+         * Moves the available data, then hands the stream back to the workers
+         */
+        private void transfer() {
+            ByteBuffer buffer = null;
+            try {
+                for (var reads = 0; reads < MAX_READS_PER_TURN; reads++) {
+                    if (cancelled) {
+                        finish();
+                        return;
+                    }
+                    var alive = process.isAlive();
+                    var available = source.available();
+                    if (available < 0 || (available == 0 && toProcess && !alive)) {
+                        finish();
+                        return;
+                    }
+                    if (available == 0 && alive) {
+                        idle();
+                        return;
+                    }
+                    if (buffer == null) {
+                        buffer = buffers.acquire();
+                    }
+                    if (available == 0) {
+                        // The process is gone, only a read tells the end of the pipe from a background
+                        // child still holding it, which this thread may wait for
+                        flushQuietly();
+                        available = buffer.capacity();
+                    }
+                    var count = source.read(buffer.array(), 0, Math.min(available, buffer.capacity()));
+                    if (count < 0) {
+                        finish();
+                        return;
+                    }
+                    deliver(buffer.array(), count);
+                    pumpedBytes.addAndGet(count);
+                    idleDelay = 0;
+                }
+                submit();
+            } catch (IOException e) {
+                logger.debug("Stream closed: {}", e.getMessage());
+                finish();
+            } catch (RejectedExecutionException e) {
+                finish();
+            } finally {
+                buffers.release(buffer);
+            }
+        }
+
+        /**
+         * Passes data on, coalesced data is flushed once enough has piled up or it has waited long
+         * enough
+         */
+        private void deliver(byte[] data, int count) throws IOException {
+            if (discarding) {
+                return;
+            }
+            try {
+                target.write(data, 0, count);
+                if (!coalescing) {
+                    flush();
+                    return;
+                }
+                if (unflushed == 0) {
+                    firstUnflushed = System.nanoTime();
+                }
+                unflushed += count;
+                if (unflushed >= FLUSH_THRESHOLD || System.nanoTime() - firstUnflushed >= MAX_FLUSH_DELAY_NANOS) {
+                    flush();
+                }
+            } catch (IOException e) {
+                if (toProcess) {
+                    throw e;
+                }
+                // Keep draining the pipe, so the process does not block writing and its exit is noticed
+                logger.debug("Channel closed, discarding output: {}", e.getMessage());
+                discarding = true;
+            }
+        }
+
+        /**
+         * Polls the source again later, coalesced data is flushed once the source has stayed idle
+         * until its deadline
+         */
+        private void idle() {
+            if (isFlushDue()) {
+                flushQuietly();
+            }
+            poll();
+        }
+
+        private boolean isFlushDue() {
+            return unflushed > 0 && System.nanoTime() - firstUnflushed >= MAX_FLUSH_DELAY_NANOS;
+        }
+
+        /**
+         * Polls the source again after the idle delay, or by the deadline of the coalesced data
+         */
+        private void poll() {
+            if (unflushed > 0) {
+                var wait = MAX_FLUSH_DELAY_NANOS - (System.nanoTime() - firstUnflushed);
+                timer.schedule(this::submit, Math.max(wait, IDLE_FLUSH_CHECK_NANOS), TimeUnit.NANOSECONDS);
+                return;
+            }
+            idleDelay = Math.min(Math.max(1, idleDelay * 2), MAX_IDLE_DELAY_MILLIS);
+            timer.schedule(this::submit, idleDelay, TimeUnit.MILLISECONDS);
+        }
+
+        private void flush() throws IOException {
+            target.flush();
+            unflushed = 0;
+            flushes.incrementAndGet();
+        }
+
+        private void flushQuietly() {
+            if (unflushed == 0 || discarding) {
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                logger.debug("Channel closed, discarding output: {}", e.getMessage());
+                discarding = true;
+            }
+        }
+
+        void submit() {
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            if (!cancelled) {
+                flushQuietly();
+            }
+            if (toProcess) {
+                try {
+                    target.close();
+                } catch (IOException e) {
+                    logger.debug("Error closing process input stream: {}", e.getMessage());
+                }
+            }
+            activeStreams.decrementAndGet();
+            done.countDown();
+            if (onFinish != null) {
+                try {
+                    onFinish.run();
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to handle end of stream", e);
+                }
+            }
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package com.sshdaemon.sshd;
 
+import com.sshdaemon.sshd.builtin.BuiltinCommands;
+
 import org.apache.sshd.server.channel.ChannelSession;
 import org.apache.sshd.server.command.Command;
 import org.apache.sshd.server.command.CommandFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Objects;
+
 /**
  * Command factory that creates commands for execution via SSH
  * This enables rsync and other command-line tools to work over SSH
@@ -15,14 +19,37 @@ public class NativeCommandFactory implements CommandFactory {
     private static final Logger logger = LoggerFactory.getLogger(NativeCommandFactory.class);
 
     private final String workingDirectory;
+    private final ProcessSupervisor supervisor;
+    private final WarmShellPool shellPool;
+    private final BuiltinCommands builtins;
+
+    /**
+     * @param supervisor supervisor of the commands' processes, required
+     */
+    public NativeCommandFactory(String workingDirectory, ProcessSupervisor supervisor) {
+        this(workingDirectory, supervisor, null, null);
+    }
 
-    public NativeCommandFactory(String workingDirectory) {
+    /**
+     * @param supervisor supervisor of the commands' processes, required
+     * @param shellPool  pool of warm shells to run the commands on, {@code null} for none
+     * @param builtins   commands run without forking, {@code null} to run every command in a shell
+     */
+    public NativeCommandFactory(String workingDirectory, ProcessSupervisor supervisor, WarmShellPool shellPool,
+                                BuiltinCommands builtins) {
         this.workingDirectory = workingDirectory;
+        this.supervisor = Objects.requireNonNull(supervisor, "Supervisor must not be null");
+        this.shellPool = shellPool;
+        this.builtins = builtins;
     }
 
     @Override
     public Command createCommand(ChannelSession channelSession, String command) {
         logger.info("Creating command: {}", command);
-        return new NativeExecuteCommand(command, workingDirectory);
+        var builtin = builtins != null ? builtins.create(command) : null;
+        if (builtin != null) {
+            return builtin;
+        }
+        return new NativeExecuteCommand(command, workingDirectory, supervisor, shellPool);
     }
 }
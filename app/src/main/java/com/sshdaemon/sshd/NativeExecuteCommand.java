@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Objects;
 
 /**
  * Command implementation that executes native system commands
@@ -15,8 +16,16 @@ public class NativeExecuteCommand extends AbstractNativeCommand {
 
     private final String command;
 
-    public NativeExecuteCommand(String command, String workingDirectory) {
-        super(workingDirectory);
+    public NativeExecuteCommand(String command, String workingDirectory, ProcessSupervisor supervisor) {
+        this(command, workingDirectory, supervisor, null);
+    }
+
+    /**
+     * @param supervisor supervisor running the process and pumping its streams, required
+     */
+    public NativeExecuteCommand(String command, String workingDirectory, ProcessSupervisor supervisor,
+                                WarmShellPool shellPool) {
+        super(workingDirectory, Objects.requireNonNull(supervisor, "Supervisor must not be null"), shellPool);
         this.command = command;
     }
 
@@ -36,26 +45,15 @@ public class NativeExecuteCommand extends AbstractNativeCommand {
                 return; // Error already handled by base class
             }
 
-            // Create process builder to execute the command via shell
-            ProcessBuilder pb = new ProcessBuilder(shellPath, "-c", command);
-            pb.directory(new java.io.File(workingDirectory));
-            pb.redirectErrorStream(false); // Keep stderr separate for proper rsync protocol
-
-            // Set up environment using shared functionality
-            setupEnvironment(pb, shellPath);
-
-            // Start the process
-            process = pb.start();
+            // Execute the command via shell, a warm one if the pool has one idle
+            process = startShell(shellPath, command);
             logger.info("Command process started: {}", command);
 
-            // Create I/O threads using shared functionality (8KB buffer for rsync)
-            createSimpleIOThreads(8192);
-
-            // Wait for completion using shared functionality
-            int exitCode = waitForCompletion(2000);
-
-            logger.info("Command completed with exit code: {} - {}", exitCode, command);
-            callback.onExit(exitCode);
+            // The supervisor pumps I/O on shared threads and reports the exit once the output is passed on
+            superviseProcess(exitCode -> {
+                logger.info("Command completed with exit code: {} - {}", exitCode, command);
+                callback.onExit(exitCode);
+            });
 
         } catch (Exception e) {
             logger.error("Error executing command: " + command, e);
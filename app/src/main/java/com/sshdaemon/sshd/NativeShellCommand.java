@@ -1,5 +1,7 @@
 package com.sshdaemon.sshd;
 
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.Signal;
 import org.apache.sshd.server.channel.ChannelSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,15 +11,37 @@ import java.util.Map;
 import java.util.Objects;
 
 /**
- * Native shell command that provides access to the Android system shell
+ * Native shell command that provides access to the Android system shell. Sessions with a terminal
+ * run the shell on a pseudo terminal when the native library providing them is there, otherwise
+ * the shell reads commands from pipes and the terminal is emulated.
  */
 public class NativeShellCommand extends AbstractNativeCommand {
     private static final Logger logger = LoggerFactory.getLogger(NativeShellCommand.class);
 
+    // Signals of the client passed on to the shell
+    private static final Signal[] FORWARDED_SIGNALS = {Signal.WINCH, Signal.INT, Signal.QUIT, Signal.TERM,
+            Signal.HUP, Signal.KILL};
+
+    // Not the base class's supervisor, the shell runs on a thread of its own
+    private final ProcessSupervisor reaper;
     private TerminalEmulator terminal;
+    private volatile Pty pty;
 
     public NativeShellCommand(String workingDirectory) {
-        super(workingDirectory);
+        this(workingDirectory, null, null);
+    }
+
+    public NativeShellCommand(String workingDirectory, WarmShellPool shellPool) {
+        this(workingDirectory, null, shellPool);
+    }
+
+    /**
+     * @param reaper supervisor killing a shell on a terminal that ignores the hang-up of its
+     *               destroyed channel, {@code null} to only hang up
+     */
+    public NativeShellCommand(String workingDirectory, ProcessSupervisor reaper, WarmShellPool shellPool) {
+        super(workingDirectory, null, shellPool);
+        this.reaper = reaper;
     }
 
     @Override
@@ -35,15 +59,12 @@ public class NativeShellCommand extends AbstractNativeCommand {
                 return; // Error already handled by base class
             }
 
-            logger.info("Starting native shell: {}", shellPath);
-
-            // Create process builder - use non-interactive shell to avoid TTY issues on Android
-            ProcessBuilder pb = new ProcessBuilder(shellPath);
-            pb.directory(new java.io.File(workingDirectory));
-            pb.redirectErrorStream(true); // Merge stderr with stdout for simplicity
+            if (Pty.isAvailable() && environment != null && !environment.getPtyModes().isEmpty()) {
+                runOnTerminal(shellPath);
+                return;
+            }
 
-            // Set up environment using shared functionality
-            setupEnvironment(pb, shellPath);
+            logger.info("Starting native shell: {}", shellPath);
 
             // Initialize terminal emulator
             terminal = new TerminalEmulator(out);
@@ -60,7 +81,8 @@ public class NativeShellCommand extends AbstractNativeCommand {
                 }
             }
 
-            process = pb.start();
+            // Use non-interactive shell to avoid TTY issues on Android, stderr merged with stdout
+            process = startShell(shellPath, null);
 
             terminal.write("Current directory: " + workingDirectory + "\r\n");
             String prompt = terminal.createPrompt("android", workingDirectory, "/");
@@ -253,5 +275,99 @@ public class NativeShellCommand extends AbstractNativeCommand {
         }
     }
 
+    /**
+     * Runs the shell on a pseudo terminal, passing bytes through unchanged in both directions
+     */
+    private void runOnTerminal(String shellPath) throws IOException {
+        logger.info("Starting native shell on a terminal: {}", shellPath);
+        var env = environment.getEnv();
+        pty = Pty.start(shellPath, new String[]{shellPath}, processEnvironment(shellPath), workingDirectory,
+                environment.getPtyModes(), terminalSize(env, Environment.ENV_COLUMNS, 80),
+                terminalSize(env, Environment.ENV_LINES, 24));
+        if (destroyed) {
+            hangUp(pty);
+        }
+        // The window size is updated in the environment before the signal
+        environment.addSignalListener((channel, signal) -> {
+            try {
+                if (signal == Signal.WINCH) {
+                    pty.resize(terminalSize(env, Environment.ENV_COLUMNS, 80),
+                            terminalSize(env, Environment.ENV_LINES, 24));
+                } else {
+                    pty.signal(signal.getNumeric());
+                }
+            } catch (IOException e) {
+                logger.debug("Resizing terminal failed: {}", e.getMessage());
+            }
+        }, FORWARDED_SIGNALS);
+
+        Thread inputThread = new Thread(() -> {
+            var buffer = new byte[8192];
+            try (var terminalInput = pty.getOutputStream()) {
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    terminalInput.write(buffer, 0, bytesRead);
+                }
+            } catch (IOException e) {
+                logger.debug("Terminal input closed: {}", e.getMessage());
+            }
+        }, "ShellInput");
+        Thread outputThread = new Thread(() -> {
+            var buffer = new byte[8192];
+            try {
+                var terminalOutput = pty.getInputStream();
+                int bytesRead;
+                while ((bytesRead = terminalOutput.read(buffer)) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                logger.debug("Terminal output closed: {}", e.getMessage());
+            }
+        }, "ShellOutput");
+        inputThread.setDaemon(true);
+        outputThread.setDaemon(true);
+        inputThread.start();
+        outputThread.start();
+
+        int exitCode = pty.waitFor();
+        try {
+            // Background jobs may keep the terminal open
+            outputThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Ends a read still in progress, the descriptor is released once it has returned
+        pty.close();
+        logger.info("Shell on terminal exited with code: {}", exitCode);
+        callback.onExit(exitCode);
+    }
+
+    private static int terminalSize(Map<String, String> env, String variable, int defaultSize) {
+        try {
+            var size = Integer.parseInt(env.getOrDefault(variable, String.valueOf(defaultSize)));
+            return size > 0 ? size : defaultSize;
+        } catch (NumberFormatException e) {
+            return defaultSize;
+        }
+    }
+
+    @Override
+    public void destroy(ChannelSession channel) {
+        super.destroy(channel);
+        var terminal = pty;
+        if (terminal != null) {
+            hangUp(terminal);
+        }
+    }
 
+    /**
+     * Hangs up the shell, killing it if it is still running after the grace period
+     */
+    private void hangUp(Pty terminal) {
+        terminal.signal(Signal.HUP.getNumeric());
+        if (reaper != null) {
+            reaper.killAfterGrace(terminal::isAlive, () -> terminal.signal(Signal.KILL.getNumeric()));
+        }
+    }
 }
@@ -13,14 +13,30 @@ public class NativeShellFactory implements ShellFactory {
     private static final Logger logger = LoggerFactory.getLogger(NativeShellFactory.class);
 
     private final String workingDirectory;
+    private final ProcessSupervisor supervisor;
+    private final WarmShellPool shellPool;
 
     public NativeShellFactory(String workingDirectory) {
+        this(workingDirectory, null, null);
+    }
+
+    public NativeShellFactory(String workingDirectory, WarmShellPool shellPool) {
+        this(workingDirectory, null, shellPool);
+    }
+
+    /**
+     * @param supervisor supervisor killing shells that outlive their channel, {@code null} for none
+     * @param shellPool  pool of warm shells to start the sessions on, {@code null} for none
+     */
+    public NativeShellFactory(String workingDirectory, ProcessSupervisor supervisor, WarmShellPool shellPool) {
         this.workingDirectory = workingDirectory;
+        this.supervisor = supervisor;
+        this.shellPool = shellPool;
     }
 
     @Override
     public Command createShell(ChannelSession channelSession) {
         logger.debug("Creating native shell session for channel: {}", channelSession);
-        return new NativeShellCommand(workingDirectory);
+        return new NativeShellCommand(workingDirectory, supervisor, shellPool);
     }
 }
@@ -0,0 +1,201 @@
+package com.sshdaemon.sshd;
+
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.common.util.threads.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * Daemon-wide supervisor of the processes of exec commands. Each process is owned by a
+ * {@link Supervision}, which pumps its streams and reports its exit code as soon as the process has
+ * exited and its output and errors have been passed on. Processes of destroyed channels are
+ * terminated, and killed if they outlive a grace period.
+ */
+public class ProcessSupervisor implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessSupervisor.class);
+
+    private static final long MAX_EXIT_POLL_MILLIS = 16;
+
+    private final CommandIoPump ioPump;
+    private final long killGraceMillis;
+    private final CloseableExecutorService launchers;
+    private final ScheduledExecutorService timer;
+    private final Set<Supervision> live = ConcurrentHashMap.newKeySet();
+    private final AtomicLong startedProcesses = new AtomicLong();
+    private final AtomicLong reapedProcesses = new AtomicLong();
+
+    /**
+     * @param ioPump          pump moving the data of the process streams
+     * @param killGraceMillis time terminated processes get to exit before they are killed
+     */
+    public ProcessSupervisor(CommandIoPump ioPump, long killGraceMillis) {
+        if (killGraceMillis < 0) {
+            throw new IllegalArgumentException("Negative grace period: " + killGraceMillis);
+        }
+        this.ioPump = ioPump;
+        this.killGraceMillis = killGraceMillis;
+        this.launchers = ThreadUtils.newCachedThreadPool("Command-Launcher");
+        this.timer = ThreadUtils.newSingleThreadScheduledExecutor("Command-Supervisor");
+    }
+
+    public CommandIoPump getIoPump() {
+        return ioPump;
+    }
+
+    /**
+     * Runs the start of a command, threads are reused from command to command
+     */
+    public void launch(Runnable command) {
+        launchers.execute(command);
+    }
+
+    /**
+     * Takes over the process, pumping its streams until it exits
+     *
+     * @param interactive whether a user waits on the output, which is then passed on without delay
+     * @param onExit      called with the exit code once the process has exited and its output has
+     *                    been passed on, not called for destroyed processes
+     */
+    public Supervision supervise(Process process, InputStream in, OutputStream out, OutputStream err,
+                                 boolean interactive, IntConsumer onExit) {
+        var supervision = new Supervision(process, onExit);
+        live.add(supervision);
+        startedProcesses.incrementAndGet();
+        supervision.pumping = ioPump.start(process, in, out, err, interactive, supervision::awaitExit);
+        return supervision;
+    }
+
+    /**
+     * Returns the number of supervised processes that have not exited yet
+     */
+    public int getLiveProcesses() {
+        return live.size();
+    }
+
+    public long getStartedProcesses() {
+        return startedProcesses.get();
+    }
+
+    /**
+     * Returns the number of processes that had to be killed after their channel was destroyed
+     */
+    public long getReapedProcesses() {
+        return reapedProcesses.get();
+    }
+
+    /**
+     * Kills a terminated process still alive after the grace period, as the processes of destroyed
+     * channels are. For processes started elsewhere, such as shells on a terminal.
+     *
+     * @param alive tells whether the process is still running
+     * @param kill  kills the process
+     */
+    public void killAfterGrace(BooleanSupplier alive, Runnable kill) {
+        Runnable reap = () -> {
+            if (alive.getAsBoolean()) {
+                logger.debug("Killing process that outlived its channel");
+                kill.run();
+                reapedProcesses.incrementAndGet();
+            }
+        };
+        try {
+            timer.schedule(reap, killGraceMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            reap.run();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (var supervision : live) {
+            if (supervision.pumping != null) {
+                supervision.pumping.cancel();
+            }
+            supervision.process.destroyForcibly();
+        }
+        live.clear();
+        timer.shutdownNow();
+        launchers.shutdownNow();
+        ioPump.close();
+    }
+
+    /**
+     * Process of one command
+     */
+    public final class Supervision {
+        private final Process process;
+        private final IntConsumer onExit;
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        private volatile CommandIoPump.Pumping pumping;
+        private volatile boolean destroyed;
+        private long pollDelay;
+
+        private Supervision(Process process, IntConsumer onExit) {
+            this.process = process;
+            this.onExit = onExit;
+        }
+
+        public Process getProcess() {
+            return process;
+        }
+
+        /**
+         * Terminates the process and stops pumping, the process is killed if it is still alive after
+         * the grace period
+         */
+        public void destroy() {
+            destroyed = true;
+            pumping.cancel();
+            process.destroy();
+            killAfterGrace(process::isAlive, process::destroyForcibly);
+        }
+
+        /**
+         * Waits for the process to exit without blocking a thread, the output may end before the
+         * process does
+         */
+        private void awaitExit() {
+            if (!process.isAlive()) {
+                end();
+                return;
+            }
+            synchronized (this) {
+                pollDelay = Math.min(Math.max(1, pollDelay * 2), MAX_EXIT_POLL_MILLIS);
+            }
+            try {
+                timer.schedule(this::awaitExit, pollDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                end();
+            }
+        }
+
+        private void end() {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            live.remove(this);
+            if (destroyed || process.isAlive()) {
+                return;
+            }
+            try {
+                onExit.accept(process.exitValue());
+            } catch (RuntimeException e) {
+                logger.warn("Failed to report exit of process", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.sshdaemon.sshd;
+
+import org.apache.sshd.common.channel.PtyMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Process running on a pseudo terminal of its own, started through the app's native library. Bytes
+ * pass unchanged between the streams and the terminal, whose driver does the echo, line editing
+ * and signal characters as the terminal modes of the client configure it.
+ */
+final class Pty implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(Pty.class);
+
+    private static final String LIBRARY = "sshdaemon-pty";
+    private static final boolean AVAILABLE = load();
+    /**
+     * Longest a read or write waits on the terminal before checking whether it was closed meanwhile
+     */
+    private static final int POLL_MILLIS = 100;
+
+    private final int fd;
+    private final int pid;
+    private final Object lock = new Object();
+    private int users;
+    private volatile boolean closed;
+    private volatile boolean exited;
+
+    private Pty(int fd, int pid) {
+        this.fd = fd;
+        this.pid = pid;
+    }
+
+    private static boolean load() {
+        try {
+            System.loadLibrary(LIBRARY);
+            return true;
+        } catch (UnsatisfiedLinkError | SecurityException e) {
+            logger.info("No native terminal support, shells run on pipes: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the native library is there to start processes on terminals
+     */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Starts the program on a new terminal as the leader of a session of its own
+     *
+     * @param argv    arguments of the program, starting with its name
+     * @param modes   terminal modes of the pty-req, modes the terminal does not know are ignored
+     * @param columns width of the terminal in characters
+     * @param rows    height of the terminal in lines
+     */
+    static Pty start(String path, String[] argv, Map<String, String> environment, String directory,
+                     Map<PtyMode, Integer> modes, int columns, int rows) throws IOException {
+        var envp = new String[environment.size()];
+        var i = 0;
+        for (var variable : environment.entrySet()) {
+            envp[i++] = variable.getKey() + "=" + variable.getValue();
+        }
+        var encodedModes = new int[modes.size() * 2];
+        i = 0;
+        for (var mode : modes.entrySet()) {
+            encodedModes[i++] = mode.getKey().toInt();
+            encodedModes[i++] = mode.getValue();
+        }
+        var started = spawn(path, argv, envp, directory, encodedModes, columns, rows);
+        return new Pty(started[0], started[1]);
+    }
+
+    /**
+     * Returns the output of the processes on the terminal, which ends when all of them have closed it
+     */
+    InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                var b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (acquire()) {
+                    try {
+                        var count = Pty.read(fd, b, off, len, POLL_MILLIS);
+                        if (count != 0) {
+                            return count;
+                        }
+                    } finally {
+                        release();
+                    }
+                }
+                return -1;
+            }
+        };
+    }
+
+    /**
+     * Returns the input of the terminal, as typed by the user
+     */
+    OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (!acquire()) {
+                        throw new IOException("Terminal closed");
+                    }
+                    try {
+                        var count = Pty.write(fd, b, off, len, POLL_MILLIS);
+                        off += count;
+                        len -= count;
+                    } finally {
+                        release();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Changes the size of the terminal, the processes on it are sent SIGWINCH
+     */
+    void resize(int columns, int rows) throws IOException {
+        if (acquire()) {
+            try {
+                resize(fd, columns, rows);
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the process has not been reaped yet
+     */
+    boolean isAlive() {
+        return !exited;
+    }
+
+    /**
+     * Sends the signal to the processes of the terminal's session leader
+     */
+    void signal(int signal) {
+        // Once reaped, the process id may belong to another process
+        if (!exited) {
+            signal(pid, signal);
+        }
+    }
+
+    /**
+     * Waits for the process to exit, returns its exit code, or 128 plus the signal that ended it
+     */
+    int waitFor() {
+        var exitCode = waitFor(pid);
+        exited = true;
+        return exitCode;
+    }
+
+    /**
+     * Closes the master side. Reads and writes in progress end within the poll interval, the
+     * descriptor is closed once the last of them has returned, so none of them can reach a file
+     * opened meanwhile under the same number.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (users == 0) {
+                close(fd);
+            }
+        }
+    }
+
+    /**
+     * Registers a use of the descriptor, returns false if the terminal is closed
+     */
+    private boolean acquire() {
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+    }
+
+    private void release() {
+        synchronized (lock) {
+            if (--users == 0 && closed) {
+                close(fd);
+            }
+        }
+    }
+
+    private static native int[] spawn(String path, String[] argv, String[] envp, String directory, int[] modes,
+                                      int columns, int rows) throws IOException;
+
+    private static native int read(int fd, byte[] buffer, int offset, int length, int timeout) throws IOException;
+
+    private static native int write(int fd, byte[] buffer, int offset, int length, int timeout) throws IOException;
+
+    private static native void resize(int fd, int columns, int rows) throws IOException;
+
+    private static native int waitFor(int pid);
+
+    private static native void signal(int pid, int signal);
+
+    private static native void close(int fd);
+}
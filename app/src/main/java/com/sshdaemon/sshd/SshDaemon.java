@@ -6,6 +6,7 @@ import static com.sshdaemon.sshd.SshFingerprint.fingerprintSHA256;
 import static com.sshdaemon.util.AndroidLogger.getLogger;
 import static com.sshdaemon.util.ExternalStorage.createDirIfNotExists;
 import static com.sshdaemon.util.ExternalStorage.getRootPath;
+import static com.sshdaemon.util.ExternalStorage.getStorageVolumes;
 import static org.apache.sshd.common.cipher.BuiltinCiphers.aes128ctr;
 import static org.apache.sshd.common.cipher.BuiltinCiphers.aes128gcm;
 import static org.apache.sshd.common.cipher.BuiltinCiphers.aes192ctr;
@@ -20,33 +21,54 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
 import android.os.IBinder;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
 
 import com.sshdaemon.MainActivity;
 import com.sshdaemon.R;
+import com.sshdaemon.sftp.ContentHashIndex;
+import com.sshdaemon.sftp.FileChannelCache;
+import com.sshdaemon.sftp.FileChannelCacheInvalidator;
+import com.sshdaemon.sftp.DaemonSftpSubsystemFactory;
+import com.sshdaemon.sftp.FileHasher;
+import com.sshdaemon.sftp.SftpAccessor;
+import com.sshdaemon.sftp.SftpAttributeCache;
+import com.sshdaemon.sftp.SftpAttributeCacheInvalidator;
+import com.sshdaemon.sftp.SftpProperties;
+import com.sshdaemon.sftp.SftpScheduler;
+import com.sshdaemon.sftp.SyncPolicy;
+import com.sshdaemon.sftp.VolumeFileSystemFactory;
+import com.sshdaemon.sshd.builtin.BuiltinCommands;
+import com.sshdaemon.util.ShellFinder;
 
 import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
 import org.apache.sshd.common.util.security.SecurityUtils;
-import org.apache.sshd.common.util.threads.ThreadUtils;
+import org.apache.sshd.core.CoreModuleProperties;
 import org.apache.sshd.contrib.server.subsystem.sftp.SimpleAccessControlSftpEventListener;
 import org.apache.sshd.server.ServerBuilder;
 import org.apache.sshd.server.SshServer;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
-import org.apache.sshd.sftp.server.SftpSubsystemFactory;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.slf4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Security;
 import java.security.interfaces.ECPublicKey;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -63,9 +85,32 @@ public class SshDaemon extends Service {
     public static final String SFTP_ROOT_PATH = "sftpRootPath";
     public static final String PASSWORD_AUTH_ENABLED = "passwordAuthenticationEnabled";
     public static final String READ_ONLY = "readOnly";
+    public static final String WRITE_BEHIND = "writeBehind";
+    public static final String SESSION_BYTES_PER_SECOND = "sessionBytesPerSecond";
+    public static final String SESSION_OPERATIONS_PER_SECOND = "sessionOperationsPerSecond";
+    public static final String USER_BYTES_PER_SECOND = "userBytesPerSecond";
+    public static final String USER_OPERATIONS_PER_SECOND = "userOperationsPerSecond";
+    public static final String ALL_VOLUMES = "allVolumes";
+    public static final String SYNC_POLICY = "syncPolicy";
+    public static final String PREALLOCATION = "preallocation";
+    public static final String ATOMIC_UPLOADS = "atomicUploads";
+    public static final String WARM_SHELLS = "warmShells";
+    public static final String BUILTIN_COMMANDS = "builtinCommands";
     private static final Logger logger = getLogger();
     private static final int THREAD_POOL_SIZE = 10;
+    private static final int VOLUME_THREAD_POOL_SIZE = 4;
+    private static final int MAX_QUEUED_SFTP_REQUESTS = 1024;
+    private static final int ATTRIBUTE_CACHE_SIZE = 8192;
+    private static final int ATTRIBUTE_CACHE_OBSERVED_DIRECTORIES = 256;
+    private static final long ATTRIBUTE_CACHE_TTL_MILLIS = 5000;
+    private static final int FILE_CHANNEL_CACHE_SIZE = 64;
+    private static final long FILE_CHANNEL_CACHE_TTL_MILLIS = 10000;
+    private static final int CONTENT_HASH_INDEX_SIZE = 16384;
+    private static final long CONTENT_HASH_REFRESH_INTERVAL_MILLIS = 15 * 60 * 1000;
     private static final int DEFAULT_PORT = 8022;
+    private static final int COMMAND_IO_BUFFER_SIZE = 8192;
+    private static final int COMMAND_IO_POOLED_BUFFERS = 32;
+    private static final long COMMAND_KILL_GRACE_MILLIS = 2000;
 
     private static volatile boolean isServiceRunning = false;
 
@@ -84,6 +129,14 @@ public class SshDaemon extends Service {
     }
 
     private SshServer sshd;
+    private SftpScheduler sftpScheduler;
+    private ProcessSupervisor processSupervisor;
+    private WarmShellPool warmShellPool;
+    private BuiltinCommands builtinCommands;
+    private SftpAttributeCache attributeCache;
+    private FileChannelCache fileChannelCache;
+    private ContentHashIndex contentHashIndex;
+    private BroadcastReceiver powerReceiver;
 
     public SshDaemon() {
         // Default constructor required for Service
@@ -128,6 +181,37 @@ public class SshDaemon extends Service {
         return result;
     }
 
+    public SftpScheduler getSftpScheduler() {
+        return sftpScheduler;
+    }
+
+    public ProcessSupervisor getProcessSupervisor() {
+        return processSupervisor;
+    }
+
+    /**
+     * Returns the pool of warm shells, which stays empty unless given a size
+     */
+    public WarmShellPool getWarmShellPool() {
+        return warmShellPool;
+    }
+
+    public BuiltinCommands getBuiltinCommands() {
+        return builtinCommands;
+    }
+
+    public SftpAttributeCache getAttributeCache() {
+        return attributeCache;
+    }
+
+    public FileChannelCache getFileChannelCache() {
+        return fileChannelCache;
+    }
+
+    public ContentHashIndex getContentHashIndex() {
+        return contentHashIndex;
+    }
+
     private void init(String selectedInterface, int port, String user, String password, String sftpRootPath,
                       boolean passwordAuthEnabled, boolean readOnly) {
 
@@ -154,6 +238,9 @@ public class SshDaemon extends Service {
         }
 
         sshd.setPort(port);
+        // Small messages such as channel confirmations and exit statuses would otherwise wait for the
+        // delayed ACK of the previous one
+        CoreModuleProperties.TCP_NODELAY.set(sshd, true);
 
         var authorizedKeyPath = rootPath + AUTHORIZED_KEY_PATH;
         var authorizedKeyFile = new File(authorizedKeyPath);
@@ -192,17 +279,37 @@ public class SshDaemon extends Service {
 
         // Always use native shell - this is the only supported shell
         logger.info("Using native system shell");
-        sshd.setShellFactory(new NativeShellFactory(sftpRootPath));
+        this.warmShellPool = new WarmShellPool(sftpRootPath, 0);
 
         // Add command factory to support rsync and other command execution
-        sshd.setCommandFactory(new NativeCommandFactory(sftpRootPath));
+        var commandIoPump = new CommandIoPump(max(2, Runtime.getRuntime().availableProcessors()),
+                COMMAND_IO_BUFFER_SIZE, COMMAND_IO_POOLED_BUFFERS);
+        this.processSupervisor = new ProcessSupervisor(commandIoPump, COMMAND_KILL_GRACE_MILLIS);
+        // Probe for the shell once, in the background, instead of on every session
+        processSupervisor.launch(ShellFinder::getShell);
+        sshd.setShellFactory(new NativeShellFactory(sftpRootPath, processSupervisor, warmShellPool));
 
         int threadPools = max(THREAD_POOL_SIZE, Runtime.getRuntime().availableProcessors() * 2);
         logger.info("Thread pool size: {}", threadPools);
-        SftpSubsystemFactory factory = new SftpSubsystemFactory.Builder()
-                .withExecutorServiceProvider(() ->
-                        ThreadUtils.newFixedThreadPool("SFTP-Subsystem", threadPools))
-                .build();
+        this.sftpScheduler = new SftpScheduler(threadPools, MAX_QUEUED_SFTP_REQUESTS);
+        var factory = new DaemonSftpSubsystemFactory(sftpScheduler);
+        this.attributeCache = new SftpAttributeCache(ATTRIBUTE_CACHE_SIZE, ATTRIBUTE_CACHE_OBSERVED_DIRECTORIES,
+                ATTRIBUTE_CACHE_TTL_MILLIS);
+        this.fileChannelCache = new FileChannelCache(FILE_CHANNEL_CACHE_SIZE, FILE_CHANNEL_CACHE_TTL_MILLIS,
+                sftpScheduler.getTimer());
+        factory.setFileSystemAccessor(new SftpAccessor(attributeCache, fileChannelCache, sftpScheduler));
+        factory.addSftpEventListener(new SftpAttributeCacheInvalidator(attributeCache));
+        factory.addSftpEventListener(new FileChannelCacheInvalidator(fileChannelCache));
+        var fileHasher = new FileHasher(sftpScheduler);
+        this.contentHashIndex = new ContentHashIndex(Paths.get(path + "/content_hashes"), CONTENT_HASH_INDEX_SIZE,
+                fileHasher);
+        factory.setContentHashIndex(contentHashIndex);
+        // Common file utilities run in process, everything else in a shell
+        this.builtinCommands = new BuiltinCommands(Paths.get(sftpRootPath), processSupervisor, contentHashIndex,
+                fileHasher);
+        builtinCommands.setReadOnly(readOnly);
+        sshd.setCommandFactory(new NativeCommandFactory(sftpRootPath, processSupervisor, warmShellPool,
+                builtinCommands));
         if (readOnly) {
             factory.addSftpEventListener(SimpleAccessControlSftpEventListener.READ_ONLY_ACCESSOR);
         }
@@ -210,6 +317,24 @@ public class SshDaemon extends Service {
         sshd.setFileSystemFactory(new VirtualFileSystemFactory(Paths.get(sftpRootPath)));
     }
 
+    /**
+     * Serves all given storage locations under their names in one SFTP namespace instead of the SFTP
+     * root path alone, requests to each volume are processed by workers of their own
+     *
+     * @param volumes local paths of the storage locations by the names to mount them under
+     */
+    public void mountVolumes(Map<String, String> volumes) {
+        var roots = new LinkedHashMap<String, Path>();
+        for (var volume : volumes.entrySet()) {
+            roots.put(volume.getKey(), Paths.get(volume.getValue()));
+            sftpScheduler.addQueue(volume.getKey(), VOLUME_THREAD_POOL_SIZE);
+        }
+        // App-private, so the mount points never show up inside one of the volumes served
+        var mountRoot = Paths.get(getFilesDir().getPath(), "volumes");
+        sshd.setFileSystemFactory(new VolumeFileSystemFactory(mountRoot, roots));
+        logger.info("Mounted volumes {}", volumes);
+    }
+
     private Notification createNotification(String contentText, PendingIntent pendingIntent) {
         return new NotificationCompat.Builder(getApplicationContext(), CHANNEL_ID)
                 .setContentTitle(SSH_DAEMON)
@@ -249,7 +374,25 @@ public class SshDaemon extends Service {
             var passwordAuthEnabled = intent.getBooleanExtra(PASSWORD_AUTH_ENABLED, true);
             var readOnly = intent.getBooleanExtra(READ_ONLY, false);
             init(interfaceName, port, user, password, sftpRootPath, passwordAuthEnabled, readOnly);
+            SftpProperties.WRITE_BEHIND.set(sshd, intent.getBooleanExtra(WRITE_BEHIND, false));
+            var syncPolicy = intent.getStringExtra(SYNC_POLICY);
+            if (syncPolicy != null) {
+                SftpProperties.SYNC_POLICY.set(sshd, SyncPolicy.valueOf(syncPolicy));
+            }
+            SftpProperties.PREALLOCATION.set(sshd, intent.getBooleanExtra(PREALLOCATION, false));
+            SftpProperties.ATOMIC_UPLOADS.set(sshd, intent.getBooleanExtra(ATOMIC_UPLOADS, false));
+            warmShellPool.setMaxSize(intent.getIntExtra(WARM_SHELLS, 0));
+            builtinCommands.setEnabled(intent.getBooleanExtra(BUILTIN_COMMANDS, false));
+            if (intent.getBooleanExtra(ALL_VOLUMES, false)) {
+                mountVolumes(getStorageVolumes(this));
+            }
+            var rateLimiter = sftpScheduler.getRateLimiter();
+            rateLimiter.setSessionLimits(intent.getLongExtra(SESSION_BYTES_PER_SECOND, 0),
+                    intent.getLongExtra(SESSION_OPERATIONS_PER_SECOND, 0));
+            rateLimiter.setUserLimits(intent.getLongExtra(USER_BYTES_PER_SECOND, 0),
+                    intent.getLongExtra(USER_OPERATIONS_PER_SECOND, 0));
             sshd.start();
+            watchCharging();
             isServiceRunning = true;
             logger.info("SSH daemon started on port {}", port);
             updateNotification("SSH Server Running on port " + port, pendingIntent);
@@ -265,6 +408,43 @@ public class SshDaemon extends Service {
         return START_STICKY;
     }
 
+    /**
+     * Refreshes stale content hashes in the background while the device is connected to power
+     */
+    private void watchCharging() {
+        // The service is started again with every change of the settings
+        if (powerReceiver != null) {
+            unregisterReceiver(powerReceiver);
+        }
+        var filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        powerReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                setCharging(Intent.ACTION_POWER_CONNECTED.equals(intent.getAction()));
+            }
+        };
+        ContextCompat.registerReceiver(this, powerReceiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+        var batteryManager = getSystemService(BatteryManager.class);
+        setCharging(batteryManager != null && batteryManager.isCharging());
+    }
+
+    private void setCharging(boolean charging) {
+        if (charging) {
+            contentHashIndex.startRefreshing(CONTENT_HASH_REFRESH_INTERVAL_MILLIS);
+        } else {
+            contentHashIndex.stopRefreshing();
+        }
+    }
+
+    private void closeContentHashIndex() {
+        try {
+            contentHashIndex.close();
+        } catch (IOException e) {
+            logger.warn("Failed to save content hash index", e);
+        }
+    }
+
     private void updateNotification(String status, PendingIntent pendingIntent) {
         Notification notification = createNotification(status, pendingIntent);
         NotificationManager manager = getSystemService(NotificationManager.class);
@@ -275,19 +455,57 @@ public class SshDaemon extends Service {
     public void onDestroy() {
         super.onDestroy();
         isServiceRunning = false;
+        var wasStarted = sshd != null && sshd.isStarted();
         try {
-            if (sshd != null && sshd.isStarted()) {
+            if (wasStarted) {
                 sshd.stop();
                 logger.info("SSH daemon stopped");
-                var notificationIntent = new Intent(getApplicationContext(), MainActivity.class);
-                var pendingIntent = PendingIntent.getActivity(getApplicationContext(),
-                        0, notificationIntent, FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
-                updateNotification("SSH Server Stopped", pendingIntent);
-                stopForeground(STOP_FOREGROUND_REMOVE);
             }
         } catch (IOException e) {
             logger.error("Failed to stop SSH daemon", e);
         }
+        // The components are set up before the server starts, they are closed even if it never did
+        if (powerReceiver != null) {
+            unregisterReceiver(powerReceiver);
+            powerReceiver = null;
+        }
+        if (sftpScheduler != null) {
+            sftpScheduler.close();
+        }
+        if (processSupervisor != null) {
+            processSupervisor.close();
+        }
+        if (warmShellPool != null) {
+            warmShellPool.close();
+        }
+        if (attributeCache != null) {
+            attributeCache.clear();
+        }
+        if (fileChannelCache != null) {
+            fileChannelCache.clear();
+        }
+        if (contentHashIndex != null) {
+            closeContentHashIndex();
+        }
+        if (wasStarted) {
+            var notificationIntent = new Intent(getApplicationContext(), MainActivity.class);
+            var pendingIntent = PendingIntent.getActivity(getApplicationContext(),
+                    0, notificationIntent, FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+            updateNotification("SSH Server Stopped", pendingIntent);
+            stopForeground(STOP_FOREGROUND_REMOVE);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Idle channels hold file descriptors and kernel buffers, give them up once memory gets low while
+        // running, the levels above report the UI going away or the process being cached
+        var runningLow = level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+        if (runningLow && fileChannelCache != null) {
+            fileChannelCache.clear();
+        }
     }
 
     @Override
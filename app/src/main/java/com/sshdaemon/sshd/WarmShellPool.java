@@ -0,0 +1,276 @@
+package com.sshdaemon.sshd;
+
+import com.sshdaemon.util.ShellFinder;
+
+import org.apache.sshd.common.util.threads.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Pool of shells started ahead of demand, so commands and sessions do not wait for a shell to be
+ * forked and loaded. A warm shell runs a small bootstrap reading a script from its input, a
+ * line count followed by the lines, with the shell's {@code read}, which reads pipes byte by byte
+ * and leaves the input that follows to the command. The script exports the environment of the
+ * session where it differs from the environment the shell was started with, then runs the command.
+ * The pool follows the recent rate of commands, up to its maximum size, and empties itself once
+ * commands stop coming.
+ */
+public class WarmShellPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WarmShellPool.class);
+
+    static final String BOOTSTRAP = "IFS= read -r __sshd_n || exit 127\n"
+            + "__sshd_s=\n"
+            + "while [ \"$__sshd_n\" -gt 0 ]; do\n"
+            + "  IFS= read -r __sshd_l || exit 127\n"
+            + "  __sshd_s=\"$__sshd_s$__sshd_l\n\"\n"
+            + "  __sshd_n=$((__sshd_n - 1))\n"
+            + "done\n"
+            + "unset __sshd_n __sshd_l\n"
+            + "eval \"$__sshd_s\"\n";
+
+    // Commands are counted with a weight decaying by e over this window, the count divided by the
+    // window is the rate the pool follows
+    private static final double DEMAND_WINDOW_SECONDS = 10;
+    // Below this decayed count no command has come for a while and the pool empties
+    private static final double MIN_DEMAND = 0.5;
+    private static final long ADJUST_INTERVAL_MILLIS = 1000;
+    private static final Pattern VARIABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final String workingDirectory;
+    private final ScheduledExecutorService executor;
+    private final Deque<Process> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean adjustQueued = new AtomicBoolean();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+
+    private volatile int maxSize;
+    private volatile String shellPath;
+    private volatile Map<String, String> baseEnvironment;
+    private double demand;
+    private long demandUpdated = System.nanoTime();
+
+    /**
+     * @param workingDirectory directory the shells are started in
+     * @param maxSize          maximum number of idle shells, 0 for none
+     */
+    public WarmShellPool(String workingDirectory, int maxSize) {
+        this.workingDirectory = workingDirectory;
+        setMaxSize(maxSize);
+        this.executor = ThreadUtils.newSingleThreadScheduledExecutor("Warm-Shells");
+        executor.scheduleWithFixedDelay(this::adjust, ADJUST_INTERVAL_MILLIS, ADJUST_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Negative pool size: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Hands an idle shell the command, or returns {@code null} if there is none and the command has
+     * to start a shell of its own
+     *
+     * @param shellPath   shell to run the command with
+     * @param environment environment the command is to run with
+     * @param command     command to run, {@code null} for the shell reading commands from its input,
+     *                    with errors merged into the output
+     */
+    public Process take(String shellPath, Map<String, String> environment, String command) throws IOException {
+        if (maxSize == 0) {
+            return null;
+        }
+        recordDemand();
+        if (!shellPath.equals(this.shellPath)) {
+            switchShell(shellPath);
+        }
+        Process process;
+        while ((process = idle.pollFirst()) != null) {
+            if (process.isAlive()) {
+                break;
+            }
+            logger.debug("Dropping warm shell that has exited");
+        }
+        requestAdjust();
+        if (process == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            var stdin = process.getOutputStream();
+            stdin.write(handOff(baseEnvironment, environment, shellPath, command).getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+        } catch (IOException e) {
+            // Died since the check, the command is started as if the pool were empty
+            logger.debug("Warm shell did not take the command: {}", e.getMessage());
+            process.destroyForcibly();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return process;
+    }
+
+    /**
+     * Returns the number of commands handed to a warm shell
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of commands that found no idle shell
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStartedShells() {
+        return started.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        Process process;
+        while ((process = idle.pollFirst()) != null) {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Script making the shell started with {@code base} run the command with {@code target}
+     */
+    static String handOff(Map<String, String> base, Map<String, String> target, String shellPath,
+                          String command) {
+        var script = new StringBuilder();
+        for (var variable : target.entrySet()) {
+            if (VARIABLE_NAME.matcher(variable.getKey()).matches()
+                    && !Objects.equals(base.get(variable.getKey()), variable.getValue())) {
+                script.append("export ").append(variable.getKey()).append('=').append(quote(variable.getValue()))
+                        .append('\n');
+            }
+        }
+        for (var name : base.keySet()) {
+            if (!target.containsKey(name) && VARIABLE_NAME.matcher(name).matches()) {
+                script.append("unset ").append(name).append('\n');
+            }
+        }
+        if (command != null) {
+            script.append(command).append('\n');
+        } else {
+            script.append("exec 2>&1\n").append("exec ").append(quote(shellPath)).append('\n');
+        }
+        var lines = script.chars().filter(c -> c == '\n').count();
+        return lines + "\n" + script;
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private synchronized void recordDemand() {
+        decayDemand();
+        demand += 1;
+    }
+
+    /**
+     * Returns the number of idle shells the recent rate of commands calls for
+     */
+    private synchronized int targetSize() {
+        decayDemand();
+        if (demand < MIN_DEMAND) {
+            return 0;
+        }
+        return (int) Math.min(maxSize, Math.max(1, Math.ceil(demand / DEMAND_WINDOW_SECONDS)));
+    }
+
+    private void decayDemand() {
+        var now = System.nanoTime();
+        demand *= Math.exp(-(now - demandUpdated) / (DEMAND_WINDOW_SECONDS * 1e9));
+        demandUpdated = now;
+    }
+
+    private synchronized void switchShell(String shellPath) {
+        if (shellPath.equals(this.shellPath)) {
+            return;
+        }
+        this.baseEnvironment = AbstractNativeCommand.baseEnvironment(workingDirectory, shellPath);
+        this.shellPath = shellPath;
+        Process process;
+        while ((process = idle.pollFirst()) != null) {
+            process.destroyForcibly();
+        }
+    }
+
+    private void requestAdjust() {
+        if (adjustQueued.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::adjust);
+            } catch (RejectedExecutionException e) {
+                adjustQueued.set(false);
+            }
+        }
+    }
+
+    /**
+     * Starts or stops idle shells to meet the recent rate of commands
+     */
+    private void adjust() {
+        adjustQueued.set(false);
+        var target = targetSize();
+        while (idle.size() > target) {
+            var process = idle.pollFirst();
+            if (process != null) {
+                process.destroyForcibly();
+            }
+        }
+        var shell = shellPath;
+        var environment = baseEnvironment;
+        while (shell != null && idle.size() < target && !Thread.currentThread().isInterrupted()) {
+            try {
+                var builder = new ProcessBuilder(shell, "-c", BOOTSTRAP);
+                builder.directory(new File(workingDirectory));
+                builder.environment().clear();
+                builder.environment().putAll(environment);
+                var process = builder.start();
+                started.incrementAndGet();
+                if (!shell.equals(shellPath)) {
+                    process.destroyForcibly();
+                    return;
+                }
+                idle.addLast(process);
+            } catch (IOException e) {
+                logger.warn("Failed to start warm shell {}: {}", shell, e.getMessage());
+                // Commands pick up the shell found instead, which the pool switches to
+                ShellFinder.revalidate(shell);
+                return;
+            }
+        }
+    }
+}
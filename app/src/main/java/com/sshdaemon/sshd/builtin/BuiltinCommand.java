@@ -0,0 +1,196 @@
+package com.sshdaemon.sshd.builtin;
+
+import com.sshdaemon.sshd.ProcessSupervisor;
+
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+
+/**
+ * Command run in the daemon's process instead of a forked shell. The output is buffered and sent
+ * once the buffer fills or the command ends, messages go to the error stream prefixed with the
+ * command's name like those of the native tools.
+ */
+public abstract class BuiltinCommand implements Command, Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(BuiltinCommand.class);
+
+    static final int OUTPUT_BUFFER_SIZE = 32 * 1024;
+
+    protected final String name;
+    protected final Sandbox sandbox;
+
+    private ProcessSupervisor launcher;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+    private ExitCallback callback;
+    private volatile boolean destroyed;
+
+    protected BuiltinCommand(String name, Sandbox sandbox) {
+        this.name = name;
+        this.sandbox = sandbox;
+    }
+
+    /**
+     * @param launcher supervisor whose threads run the command, {@code null} for a thread of its own
+     */
+    void setLauncher(ProcessSupervisor launcher) {
+        this.launcher = launcher;
+    }
+
+    @Override
+    public void setInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public void setOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void setErrorStream(OutputStream err) {
+        this.err = err;
+    }
+
+    @Override
+    public void setExitCallback(ExitCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void start(ChannelSession channel, Environment env) {
+        launch(this);
+    }
+
+    /**
+     * Runs the task on a thread of the supervisor, or on a thread of its own without one
+     */
+    protected void launch(Runnable task) {
+        if (launcher != null) {
+            launcher.launch(task);
+        } else {
+            new Thread(task, "Builtin-" + name).start();
+        }
+    }
+
+    @Override
+    public void destroy(ChannelSession channel) {
+        destroyed = true;
+    }
+
+    @Override
+    public void run() {
+        var exitCode = 1;
+        try {
+            var output = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+            exitCode = execute(in, output);
+            output.flush();
+        } catch (IOException e) {
+            if (!destroyed) {
+                logger.debug("{} failed: {}", name, e.getMessage());
+                error(e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error executing builtin " + name, e);
+            error(String.valueOf(e.getMessage()));
+        }
+        if (!destroyed) {
+            callback.onExit(exitCode);
+        }
+    }
+
+    /**
+     * Runs the command, returns its exit code
+     */
+    protected abstract int execute(InputStream in, OutputStream out) throws IOException;
+
+    /**
+     * Returns whether the channel has gone, long running commands stop then
+     */
+    protected boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * Writes a message to the error stream as {@code name: message}
+     */
+    protected void error(String message) {
+        printError(name + ": " + message);
+    }
+
+    /**
+     * Writes a line to the error stream as it is
+     */
+    protected synchronized void printError(String line) {
+        try {
+            err.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            err.flush();
+        } catch (IOException e) {
+            logger.debug("Failed to write error message: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a message about a failed operation on the operand, worded like the native tools
+     */
+    protected void error(String operand, IOException e) {
+        error(operand + ": " + describe(e));
+    }
+
+    protected static String describe(IOException e) {
+        if (e instanceof NoSuchFileException) {
+            return "No such file or directory";
+        }
+        if (e instanceof AccessDeniedException) {
+            return "Permission denied";
+        }
+        if (e instanceof NotDirectoryException) {
+            return "Not a directory";
+        }
+        if (e instanceof FileSystemException && ((FileSystemException) e).getReason() != null) {
+            return ((FileSystemException) e).getReason();
+        }
+        return String.valueOf(e.getMessage());
+    }
+
+    /**
+     * Formats a size as {@code -h} options do, such as {@code 512}, {@code 1.5K} or {@code 23M},
+     * rounding up
+     */
+    protected static String humanReadable(long bytes) {
+        if (bytes < 1024) {
+            return String.valueOf(bytes);
+        }
+        var units = "KMGTPE";
+        var value = bytes / 1024.0;
+        var unit = 0;
+        while (Math.ceil(value) >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        if (value < 10 && Math.ceil(value * 10) < 100) {
+            var tenths = (long) Math.ceil(value * 10);
+            return tenths / 10 + "." + tenths % 10 + units.charAt(unit);
+        }
+        return (long) Math.ceil(value) + String.valueOf(units.charAt(unit));
+    }
+
+    protected static void print(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+}
@@ -0,0 +1,235 @@
+package com.sshdaemon.sshd.builtin;
+
+import com.sshdaemon.sftp.ContentHashIndex;
+import com.sshdaemon.sftp.FileHasher;
+import com.sshdaemon.sshd.ProcessSupervisor;
+
+import org.apache.sshd.server.command.Command;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognizes exec commands that can run in the daemon's process instead of a forked shell: plain
+ * invocations of {@code cat}, {@code stat}, {@code ls}, {@code sha256sum}, {@code du}, {@code df},
+ * {@code find} and {@code tar} with options the builtins implement, and the {@code rsync --server}
+ * and {@code scp -t|-f} the rsync and scp clients start, on operands inside the sandbox. Commands using anything a shell would
+ * interpret, such as variables, globs, redirections or pipes, are left to the shell, as are options
+ * and operands the builtins do not handle.
+ */
+public class BuiltinCommands {
+
+    // Characters that make the shell do more than split words, outside of quotes
+    private static final String SHELL_SYNTAX = "|&;<>()$`\\*?[]{}~!\n\r";
+
+    private final Sandbox sandbox;
+    private final ProcessSupervisor launcher;
+    private final Executor fileExecutor;
+    private final ContentHashIndex hashIndex;
+    private final FileHasher hasher;
+    private final AtomicLong executed = new AtomicLong();
+
+    private volatile boolean enabled = true;
+    private volatile boolean readOnly;
+
+    /**
+     * @param root      directory operands are confined to and relative to
+     * @param launcher  supervisor whose threads run the commands and their file I/O, {@code null}
+     *                  for threads of their own doing the I/O themselves
+     * @param hashIndex index of file digests {@code sha256sum} reuses, {@code null} for none
+     * @param hasher    hasher computing digests for the index, {@code null} without an index
+     */
+    public BuiltinCommands(Path root, ProcessSupervisor launcher, ContentHashIndex hashIndex, FileHasher hasher) {
+        this.sandbox = new Sandbox(root);
+        this.launcher = launcher;
+        this.fileExecutor = launcher != null ? launcher::launch : Runnable::run;
+        this.hashIndex = hashIndex;
+        this.hasher = hasher;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Makes {@code scp -t} and the receiving side of rsync refuse uploads and {@code tar x} refuse to
+     * extract, as the SFTP subsystem does in read-only mode
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Returns the number of commands run as builtins
+     */
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    /**
+     * Returns the builtin running the command, or {@code null} if the command is left to the shell
+     */
+    public Command create(String command) {
+        if (!enabled) {
+            return null;
+        }
+        var words = split(command);
+        if (words == null || words.isEmpty()) {
+            return null;
+        }
+        var args = words.subList(1, words.size());
+        BuiltinCommand builtin;
+        switch (words.get(0)) {
+            case "cat":
+                builtin = CatCommand.parse(sandbox, args);
+                break;
+            case "stat":
+                builtin = StatCommand.parse(sandbox, args);
+                break;
+            case "ls":
+                builtin = LsCommand.parse(sandbox, args);
+                break;
+            case "sha256sum":
+                builtin = Sha256sumCommand.parse(sandbox, args, hashIndex, hasher);
+                break;
+            case "du":
+                builtin = DuCommand.parse(sandbox, args);
+                break;
+            case "df":
+                builtin = DfCommand.parse(sandbox, args);
+                break;
+            case "find":
+                builtin = FindCommand.parse(sandbox, args);
+                break;
+            case "tar":
+                builtin = TarCommand.parse(sandbox, args, fileExecutor, readOnly);
+                break;
+            case "rsync":
+                builtin = RsyncCommand.parse(sandbox, args, readOnly);
+                break;
+            case "scp":
+                builtin = ScpCommand.parse(sandbox, args, readOnly);
+                break;
+            default:
+                return null;
+        }
+        if (builtin == null) {
+            return null;
+        }
+        builtin.setLauncher(launcher);
+        executed.incrementAndGet();
+        return builtin;
+    }
+
+    /**
+     * Splits the command into words as the shell would, returns {@code null} if the shell would do
+     * more than remove quotes
+     */
+    static List<String> split(String command) {
+        var words = new ArrayList<String>();
+        var word = new StringBuilder();
+        var inWord = false;
+        for (var i = 0; i < command.length(); i++) {
+            var c = command.charAt(i);
+            if (c == '\'') {
+                var end = command.indexOf('\'', i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                word.append(command, i + 1, end);
+                i = end;
+                inWord = true;
+            } else if (c == '"') {
+                var end = i + 1;
+                while (end < command.length() && command.charAt(end) != '"') {
+                    if ("$`\\!".indexOf(command.charAt(end)) >= 0) {
+                        return null;
+                    }
+                    end++;
+                }
+                if (end == command.length()) {
+                    return null;
+                }
+                word.append(command, i + 1, end);
+                i = end;
+                inWord = true;
+            } else if (c == ' ' || c == '\t') {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else if (SHELL_SYNTAX.indexOf(c) >= 0 || (c == '#' && !inWord)
+                    || (c == '=' && words.isEmpty())) {
+                // Also comments and variable assignments before the command
+                return null;
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Parsed single letter flags and operands of a command line
+     */
+    static final class Invocation {
+        final Set<Character> flags;
+        final List<String> operands;
+
+        private Invocation(Set<Character> flags, List<String> operands) {
+            this.flags = flags;
+            this.operands = operands;
+        }
+
+        boolean has(char flag) {
+            return flags.contains(flag);
+        }
+    }
+
+    /**
+     * Parses flags, given alone or grouped as in {@code -la}, up to the first operand or {@code --},
+     * returns {@code null} for flags not among the allowed ones
+     */
+    static Invocation parseFlags(List<String> args, String allowed) {
+        var flags = new LinkedHashSet<Character>();
+        var index = 0;
+        for (; index < args.size(); index++) {
+            var arg = args.get(index);
+            if (arg.equals("--")) {
+                index++;
+                break;
+            }
+            if (!arg.startsWith("-") || arg.equals("-")) {
+                break;
+            }
+            for (var i = 1; i < arg.length(); i++) {
+                if (allowed.indexOf(arg.charAt(i)) < 0) {
+                    return null;
+                }
+                flags.add(arg.charAt(i));
+            }
+        }
+        var operands = args.subList(index, args.size());
+        for (var operand : operands) {
+            // Options after operands are taken as options by the GNU tools, as file names by others
+            if (operand.startsWith("-")) {
+                return null;
+            }
+        }
+        return new Invocation(flags, operands);
+    }
+}
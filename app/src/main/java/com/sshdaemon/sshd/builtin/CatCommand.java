@@ -0,0 +1,60 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * {@code cat FILE...}, copying the files to the output one after the other
+ */
+final class CatCommand extends BuiltinCommand {
+
+    private final List<String> operands;
+    private final List<Path> files;
+
+    private CatCommand(Sandbox sandbox, List<String> operands, List<Path> files) {
+        super("cat", sandbox);
+        this.operands = operands;
+        this.files = files;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it takes options or reads its input
+     */
+    static CatCommand parse(Sandbox sandbox, List<String> args) {
+        var invocation = BuiltinCommands.parseFlags(args, "");
+        if (invocation == null || invocation.operands.isEmpty()) {
+            return null;
+        }
+        var files = sandbox.resolveAll(invocation.operands);
+        return files != null ? new CatCommand(sandbox, invocation.operands, files) : null;
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var exitCode = 0;
+        var buffer = new byte[OUTPUT_BUFFER_SIZE];
+        for (var i = 0; i < files.size() && !isDestroyed(); i++) {
+            var file = files.get(i);
+            if (Files.isDirectory(file)) {
+                error(operands.get(i) + ": Is a directory");
+                exitCode = 1;
+                continue;
+            }
+            try (var input = Files.newInputStream(file)) {
+                int count;
+                while ((count = input.read(buffer)) >= 0 && !isDestroyed()) {
+                    out.write(buffer, 0, count);
+                }
+            } catch (IOException e) {
+                out.flush();
+                error(operands.get(i), e);
+                exitCode = 1;
+            }
+        }
+        return exitCode;
+    }
+}
@@ -0,0 +1,101 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@code df [-hk] FILE...}, reporting the file systems of the given files. Without operands df
+ * lists every mount, which is left to the shell.
+ */
+final class DfCommand extends BuiltinCommand {
+
+    private final boolean human;
+    private final List<String> operands;
+    private final List<Path> files;
+
+    private DfCommand(Sandbox sandbox, boolean human, List<String> operands, List<Path> files) {
+        super("df", sandbox);
+        this.human = human;
+        this.operands = operands;
+        this.files = files;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it has no operands or options other than {@code -h}
+     * and {@code -k}
+     */
+    static DfCommand parse(Sandbox sandbox, List<String> args) {
+        var invocation = BuiltinCommands.parseFlags(args, "hk");
+        if (invocation == null || invocation.operands.isEmpty()) {
+            return null;
+        }
+        var files = sandbox.resolveAll(invocation.operands);
+        return files != null ? new DfCommand(sandbox, invocation.has('h'), invocation.operands, files) : null;
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var exitCode = 0;
+        var rows = new ArrayList<String[]>();
+        rows.add(human
+                ? new String[]{"Filesystem", "Size", "Used", "Avail", "Use%", "Mounted on"}
+                : new String[]{"Filesystem", "1K-blocks", "Used", "Available", "Use%", "Mounted on"});
+        for (var i = 0; i < files.size(); i++) {
+            var file = files.get(i);
+            try {
+                var store = Files.getFileStore(file);
+                var total = store.getTotalSpace();
+                var used = total - store.getUnallocatedSpace();
+                var available = store.getUsableSpace();
+                var percent = used + available == 0 ? 0 : (used * 100 + used + available - 1) / (used + available);
+                rows.add(new String[]{store.name(), size(total), size(used), size(available), percent + "%",
+                        mountPoint(file.toRealPath(), store).toString()});
+            } catch (IOException e) {
+                error(operands.get(i), e);
+                exitCode = 1;
+            }
+        }
+        var widths = new int[6];
+        for (var row : rows) {
+            for (var column = 0; column < row.length; column++) {
+                widths[column] = Math.max(widths[column], row[column].length());
+            }
+        }
+        for (var row : rows) {
+            var line = new StringBuilder(String.format("%-" + widths[0] + "s", row[0]));
+            for (var column = 1; column < 5; column++) {
+                line.append(String.format(" %" + widths[column] + "s", row[column]));
+            }
+            print(out, line.append(' ').append(row[5]).toString());
+        }
+        return exitCode;
+    }
+
+    private String size(long bytes) {
+        return human ? humanReadable(bytes) : String.valueOf((bytes + 1023) / 1024);
+    }
+
+    /**
+     * Returns the topmost directory above the file that is still on its file system
+     */
+    private static Path mountPoint(Path file, FileStore store) {
+        var mountPoint = Files.isDirectory(file) ? file : file.getParent();
+        while (mountPoint.getParent() != null) {
+            try {
+                if (!Files.getFileStore(mountPoint.getParent()).equals(store)) {
+                    break;
+                }
+            } catch (IOException e) {
+                break;
+            }
+            mountPoint = mountPoint.getParent();
+        }
+        return mountPoint;
+    }
+}
@@ -0,0 +1,157 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@code du [-sabkh] [FILE...]}, without following links and counting hard linked files once. The
+ * allocation is estimated from the sizes in file system blocks of 4 KiB, as st_blocks cannot be
+ * read from Java, {@code -b} reports the exact apparent sizes.
+ */
+final class DuCommand extends BuiltinCommand {
+
+    private final boolean summarize;
+    private final boolean allFiles;
+    private final boolean apparent;
+    private final boolean human;
+    private final List<String> operands;
+    private final List<Path> files;
+
+    private DuCommand(Sandbox sandbox, BuiltinCommands.Invocation invocation, List<String> operands,
+                      List<Path> files) {
+        super("du", sandbox);
+        this.summarize = invocation.has('s');
+        this.allFiles = invocation.has('a');
+        this.apparent = invocation.has('b');
+        this.human = invocation.has('h');
+        this.operands = operands;
+        this.files = files;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it has options other than {@code -s}, {@code -a},
+     * {@code -b}, {@code -k} and {@code -h}
+     */
+    static DuCommand parse(Sandbox sandbox, List<String> args) {
+        var invocation = BuiltinCommands.parseFlags(args, "sabkh");
+        if (invocation == null || (invocation.has('s') && invocation.has('a'))) {
+            return null;
+        }
+        var operands = invocation.operands.isEmpty() ? List.of(".") : invocation.operands;
+        var files = sandbox.resolveAll(operands);
+        return files != null ? new DuCommand(sandbox, invocation, operands, files) : null;
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var exitCode = 0;
+        var counted = new HashSet<>();
+        for (var i = 0; i < files.size() && !isDestroyed(); i++) {
+            var walk = new Walk(out, files.get(i), operands.get(i), counted);
+            Files.walkFileTree(files.get(i), walk);
+            if (walk.failed) {
+                exitCode = 1;
+            }
+        }
+        return exitCode;
+    }
+
+    private String format(long size) {
+        if (human) {
+            return humanReadable(apparent ? size : size * 512);
+        }
+        return String.valueOf(apparent ? size : (size + 1) / 2);
+    }
+
+    /**
+     * Walk of one operand, summing up the sizes of directories as they are left
+     */
+    private final class Walk extends SimpleFileVisitor<Path> {
+        private final OutputStream out;
+        private final Path start;
+        private final String operand;
+        private final Set<Object> counted;
+        private final Deque<long[]> sizes = new ArrayDeque<>();
+        private boolean failed;
+
+        Walk(OutputStream out, Path start, String operand, Set<Object> counted) {
+            this.out = out;
+            this.start = start;
+            this.operand = operand;
+            this.counted = counted;
+        }
+
+        private long size(BasicFileAttributes attributes) {
+            if (attributes.isRegularFile() && attributes.fileKey() != null && !counted.add(attributes.fileKey())) {
+                // Another link to a file already counted
+                return 0;
+            }
+            if (apparent) {
+                return attributes.size();
+            }
+            return attributes.isRegularFile() || attributes.isDirectory() ? FileStatus.blocks(attributes.size()) : 0;
+        }
+
+        private String display(Path path) {
+            if (path.equals(start)) {
+                return operand;
+            }
+            return operand + (operand.endsWith("/") ? "" : "/") + start.relativize(path);
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+            if (isDestroyed()) {
+                return FileVisitResult.TERMINATE;
+            }
+            sizes.push(new long[]{size(attributes)});
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+            var size = size(attributes);
+            if (sizes.isEmpty() || allFiles) {
+                print(out, format(size) + "\t" + display(file));
+            }
+            if (!sizes.isEmpty()) {
+                sizes.peek()[0] += size;
+            }
+            return isDestroyed() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+            error(display(file), e);
+            failed = true;
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+            if (e != null) {
+                error(display(dir), e);
+                failed = true;
+            }
+            var size = sizes.pop()[0];
+            if (!sizes.isEmpty()) {
+                sizes.peek()[0] += size;
+            }
+            if (sizes.isEmpty() || !summarize) {
+                print(out, format(size) + "\t" + display(dir));
+            }
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Status of a file as {@code lstat} reports it, read through the {@code unix} attribute view where
+ * the platform offers it and through the {@code posix} view otherwise
+ */
+final class FileStatus {
+
+    static final boolean UNIX_VIEW = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    static final boolean POSIX_VIEW = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+    private static final int S_IFLNK = 0120000;
+    private static final int S_IFREG = 0100000;
+    private static final int S_IFBLK = 0060000;
+    private static final int S_IFDIR = 0040000;
+    private static final int S_IFCHR = 0020000;
+    private static final int S_IFIFO = 0010000;
+    private static final String UNIX_ATTRIBUTES =
+            "unix:mode,size,nlink,uid,gid,ino,lastAccessTime,lastModifiedTime,ctime,fileKey";
+    private static final Map<Integer, String> OWNER_NAMES = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> GROUP_NAMES = new ConcurrentHashMap<>();
+    // Allocation is estimated in blocks of the usual file systems, 512 byte units as st_blocks
+    private static final long BLOCK_SIZE = 4096;
+
+    final int mode;
+    final long size;
+    final int links;
+    final int uid;
+    final int gid;
+    final String owner;
+    final String group;
+    final long inode;
+    final FileTime accessed;
+    final FileTime modified;
+    final FileTime changed;
+    final Object fileKey;
+
+    private FileStatus(int mode, long size, int links, int uid, int gid, String owner, String group, long inode,
+                       FileTime accessed, FileTime modified, FileTime changed, Object fileKey) {
+        this.mode = mode;
+        this.size = size;
+        this.links = links;
+        this.uid = uid;
+        this.gid = gid;
+        this.owner = owner;
+        this.group = group;
+        this.inode = inode;
+        this.accessed = accessed;
+        this.modified = modified;
+        this.changed = changed;
+        this.fileKey = fileKey;
+    }
+
+    static FileStatus read(Path path) throws IOException {
+        if (UNIX_VIEW) {
+            Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+            var uid = (Integer) attributes.get("uid");
+            var gid = (Integer) attributes.get("gid");
+            return new FileStatus((Integer) attributes.get("mode"), (Long) attributes.get("size"),
+                    (Integer) attributes.get("nlink"), uid, gid, ownerName(path, uid), groupName(path, gid),
+                    (Long) attributes.get("ino"), (FileTime) attributes.get("lastAccessTime"),
+                    (FileTime) attributes.get("lastModifiedTime"), (FileTime) attributes.get("ctime"),
+                    attributes.get("fileKey"));
+        }
+        BasicFileAttributes attributes;
+        var owner = "";
+        var group = "";
+        var mode = 0;
+        if (POSIX_VIEW) {
+            var posix = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            owner = posix.owner().getName();
+            group = posix.group().getName();
+            mode = permissionBits(posix.permissions());
+            attributes = posix;
+        } else {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        if (attributes.isDirectory()) {
+            mode |= S_IFDIR;
+        } else if (attributes.isSymbolicLink()) {
+            mode |= S_IFLNK;
+        } else if (attributes.isRegularFile()) {
+            mode |= S_IFREG;
+        }
+        return new FileStatus(mode, attributes.size(), 1, -1, -1, owner, group, 0, attributes.lastAccessTime(),
+                attributes.lastModifiedTime(), attributes.lastModifiedTime(), attributes.fileKey());
+    }
+
+    // Resolving names reads the user and group databases, which takes longer than the status itself
+    private static String ownerName(Path path, int uid) throws IOException {
+        var name = OWNER_NAMES.get(uid);
+        if (name == null) {
+            name = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
+            OWNER_NAMES.put(uid, name);
+        }
+        return name;
+    }
+
+    private static String groupName(Path path, int gid) throws IOException {
+        var name = GROUP_NAMES.get(gid);
+        if (name == null) {
+            name = ((GroupPrincipal) Files.getAttribute(path, "posix:group", LinkOption.NOFOLLOW_LINKS)).getName();
+            GROUP_NAMES.put(gid, name);
+        }
+        return name;
+    }
+
+    private static int permissionBits(Set<PosixFilePermission> permissions) {
+        var bits = 0;
+        for (var permission : permissions) {
+            bits |= 0400 >> permission.ordinal();
+        }
+        return bits;
+    }
+
+    boolean isDirectory() {
+        return (mode & S_IFMT) == S_IFDIR;
+    }
+
+    boolean isSymbolicLink() {
+        return (mode & S_IFMT) == S_IFLNK;
+    }
+
+    boolean isRegularFile() {
+        return (mode & S_IFMT) == S_IFREG;
+    }
+
+    /**
+     * Returns the allocated size in 512 byte units, estimated from the size for files and directories
+     */
+    long blocks() {
+        return isRegularFile() || isDirectory() ? blocks(size) : 0;
+    }
+
+    /**
+     * Returns the estimated allocation of a file or directory of the given size in 512 byte units
+     */
+    static long blocks(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * (BLOCK_SIZE / 512);
+    }
+
+    /**
+     * Returns the permission bits including the set-id and sticky bits
+     */
+    int permissions() {
+        return mode & 07777;
+    }
+
+    /**
+     * Returns the mode as {@code ls -l} shows it, such as {@code drwxr-xr-x}
+     */
+    String symbolicMode() {
+        var text = new StringBuilder(10);
+        switch (mode & S_IFMT) {
+            case S_IFDIR:
+                text.append('d');
+                break;
+            case S_IFLNK:
+                text.append('l');
+                break;
+            case S_IFCHR:
+                text.append('c');
+                break;
+            case S_IFBLK:
+                text.append('b');
+                break;
+            case S_IFIFO:
+                text.append('p');
+                break;
+            case S_IFSOCK:
+                text.append('s');
+                break;
+            default:
+                text.append('-');
+        }
+        var special = new char[]{'s', 's', 't'};
+        for (var i = 0; i < 3; i++) {
+            var bits = (mode >> (6 - 3 * i)) & 7;
+            text.append((bits & 4) != 0 ? 'r' : '-');
+            text.append((bits & 2) != 0 ? 'w' : '-');
+            var execute = (bits & 1) != 0;
+            if ((mode & (04000 >> i)) != 0) {
+                text.append(execute ? special[i] : Character.toUpperCase(special[i]));
+            } else {
+                text.append(execute ? 'x' : '-');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the type as {@code stat %F} names it
+     */
+    String typeName() {
+        switch (mode & S_IFMT) {
+            case S_IFDIR:
+                return "directory";
+            case S_IFLNK:
+                return "symbolic link";
+            case S_IFCHR:
+                return "character special file";
+            case S_IFBLK:
+                return "block special file";
+            case S_IFIFO:
+                return "fifo";
+            case S_IFSOCK:
+                return "socket";
+            case S_IFREG:
+                return size == 0 ? "regular empty file" : "regular file";
+            default:
+                return "weird file";
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@code find [PATH...] [-name|-iname PATTERN] [-type f|d|l] [-maxdepth N] [-mindepth N] [-print]},
+ * listing in directory order without following links like find does by default
+ */
+final class FindCommand extends BuiltinCommand {
+
+    private final List<String> operands;
+    private final List<Path> starts;
+    private final PathMatcher nameMatcher;
+    private final boolean ignoreCase;
+    private final char type;
+    private final int minDepth;
+    private final int maxDepth;
+
+    private FindCommand(Sandbox sandbox, List<String> operands, List<Path> starts, String pattern,
+                        boolean ignoreCase, char type, int minDepth, int maxDepth) {
+        super("find", sandbox);
+        this.operands = operands;
+        this.starts = starts;
+        this.ignoreCase = ignoreCase;
+        this.nameMatcher = pattern == null ? null : FileSystems.getDefault()
+                .getPathMatcher("glob:" + (ignoreCase ? pattern.toLowerCase(Locale.ROOT) : pattern));
+        this.type = type;
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Returns the command, or {@code null} if its expression uses anything but the supported tests,
+     * or a pattern whose meaning differs between fnmatch and Java's globs
+     */
+    static FindCommand parse(Sandbox sandbox, List<String> args) {
+        var index = 0;
+        while (index < args.size() && !args.get(index).startsWith("-")) {
+            index++;
+        }
+        var operands = index == 0 ? List.of(".") : args.subList(0, index);
+        String pattern = null;
+        var ignoreCase = false;
+        var type = '\0';
+        var minDepth = 0;
+        var maxDepth = Integer.MAX_VALUE;
+        for (; index < args.size(); index++) {
+            var arg = args.get(index);
+            var value = index + 1 < args.size() ? args.get(index + 1) : null;
+            switch (arg) {
+                case "-name":
+                case "-iname":
+                    if (value == null || pattern != null) {
+                        return null;
+                    }
+                    pattern = value;
+                    ignoreCase = arg.equals("-iname");
+                    index++;
+                    break;
+                case "-type":
+                    if (value == null || type != '\0' || value.length() != 1 || "fdl".indexOf(value.charAt(0)) < 0) {
+                        return null;
+                    }
+                    type = value.charAt(0);
+                    index++;
+                    break;
+                case "-mindepth":
+                case "-maxdepth":
+                    var depth = depth(value);
+                    if (depth < 0) {
+                        return null;
+                    }
+                    if (arg.equals("-mindepth")) {
+                        minDepth = depth;
+                    } else {
+                        maxDepth = depth;
+                    }
+                    index++;
+                    break;
+                case "-print":
+                    if (index != args.size() - 1) {
+                        return null;
+                    }
+                    break;
+                default:
+                    return null;
+            }
+        }
+        if (pattern != null && (pattern.contains("{") || pattern.contains("\\") || pattern.contains("/"))) {
+            return null;
+        }
+        var starts = sandbox.resolveAll(operands);
+        return starts != null
+                ? new FindCommand(sandbox, operands, starts, pattern, ignoreCase, type, minDepth, maxDepth)
+                : null;
+    }
+
+    private static int depth(String value) {
+        if (value == null || value.isEmpty() || value.length() > 9 || !value.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Integer.parseInt(value);
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var exitCode = 0;
+        for (var i = 0; i < starts.size() && !isDestroyed(); i++) {
+            var walk = new Walk(out, starts.get(i), operands.get(i));
+            Files.walkFileTree(starts.get(i), EnumSet.noneOf(FileVisitOption.class), maxDepth, walk);
+            if (walk.failed) {
+                exitCode = 1;
+            }
+        }
+        return exitCode;
+    }
+
+    /**
+     * Walk of one starting point
+     */
+    private final class Walk extends SimpleFileVisitor<Path> {
+        private final OutputStream out;
+        private final Path start;
+        private final String operand;
+        private boolean failed;
+
+        Walk(OutputStream out, Path start, String operand) {
+            this.out = out;
+            this.start = start;
+            this.operand = operand;
+        }
+
+        private String display(Path path) {
+            if (path.equals(start)) {
+                return operand;
+            }
+            return operand + (operand.endsWith("/") ? "" : "/") + start.relativize(path);
+        }
+
+        private FileVisitResult visit(Path path, BasicFileAttributes attributes) throws IOException {
+            if (isDestroyed()) {
+                return FileVisitResult.TERMINATE;
+            }
+            var depth = path.equals(start) ? 0 : start.relativize(path).getNameCount();
+            if (depth >= minDepth && matches(display(path), attributes)) {
+                print(out, display(path));
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        private boolean matches(String display, BasicFileAttributes attributes) {
+            if ((type == 'f' && !attributes.isRegularFile()) || (type == 'd' && !attributes.isDirectory())
+                    || (type == 'l' && !attributes.isSymbolicLink())) {
+                return false;
+            }
+            if (nameMatcher == null) {
+                return true;
+            }
+            // Name as given for the starting point, without trailing slashes
+            var name = display.replaceAll("/+$", "");
+            name = name.isEmpty() ? "/" : name.substring(name.lastIndexOf('/') + 1);
+            return nameMatcher.matches(Paths.get(ignoreCase ? name.toLowerCase(Locale.ROOT) : name));
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+            return visit(dir, attributes);
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+            return visit(file, attributes);
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+            error(display(file), e);
+            failed = true;
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+            if (e != null) {
+                error(display(dir), e);
+                failed = true;
+            }
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@code ls [-laA1] [FILE...]}, one name per line as ls writes to a pipe. Long listings show the
+ * time as toybox does on Android, {@code yyyy-MM-dd HH:mm}, names are sorted by code point.
+ */
+final class LsCommand extends BuiltinCommand {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    private final boolean longFormat;
+    private final boolean all;
+    private final boolean almostAll;
+    private final List<String> operands;
+    private final List<Path> files;
+
+    private LsCommand(Sandbox sandbox, BuiltinCommands.Invocation invocation, List<String> operands,
+                      List<Path> files) {
+        super("ls", sandbox);
+        this.longFormat = invocation.has('l');
+        this.all = invocation.has('a');
+        this.almostAll = invocation.has('A');
+        this.operands = operands;
+        this.files = files;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it has options other than {@code -l}, {@code -a},
+     * {@code -A} and {@code -1}
+     */
+    static LsCommand parse(Sandbox sandbox, List<String> args) {
+        var invocation = BuiltinCommands.parseFlags(args, "laA1");
+        if (invocation == null) {
+            return null;
+        }
+        var operands = invocation.operands.isEmpty() ? List.of(".") : invocation.operands;
+        var files = sandbox.resolveAll(operands);
+        return files != null ? new LsCommand(sandbox, invocation, operands, files) : null;
+    }
+
+    /**
+     * Listed file with the name shown for it
+     */
+    private static final class Entry {
+        final String name;
+        final Path path;
+        final FileStatus status;
+
+        Entry(String name, Path path, FileStatus status) {
+            this.name = name;
+            this.path = path;
+            this.status = status;
+        }
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var exitCode = 0;
+        var plainFiles = new ArrayList<Entry>();
+        var directories = new ArrayList<Entry>();
+        for (var i = 0; i < files.size(); i++) {
+            var file = files.get(i);
+            FileStatus status;
+            try {
+                status = FileStatus.read(file);
+            } catch (IOException e) {
+                error(operands.get(i), e);
+                exitCode = 1;
+                continue;
+            }
+            // Short listings follow links to directories given as operands, long ones show the link
+            var directory = status.isDirectory()
+                    || (!longFormat && status.isSymbolicLink() && Files.isDirectory(file));
+            (directory ? directories : plainFiles).add(new Entry(operands.get(i), file, status));
+        }
+        plainFiles.sort(Comparator.comparing(entry -> entry.name));
+        directories.sort(Comparator.comparing(entry -> entry.name));
+
+        list(out, plainFiles, false);
+        var headers = plainFiles.size() + directories.size() > 1;
+        var first = plainFiles.isEmpty();
+        for (var directory : directories) {
+            if (isDestroyed()) {
+                break;
+            }
+            if (!first) {
+                out.write('\n');
+            }
+            first = false;
+            if (headers) {
+                print(out, directory.name + ":");
+            }
+            try {
+                list(out, entries(directory.path), true);
+            } catch (IOException e) {
+                error(directory.name, e);
+                exitCode = 1;
+            }
+        }
+        return exitCode;
+    }
+
+    private List<Entry> entries(Path directory) throws IOException {
+        var entries = new ArrayList<Entry>();
+        if (all) {
+            entries.add(new Entry(".", directory, FileStatus.read(directory)));
+            var parent = directory.getParent() != null ? directory.getParent() : directory;
+            entries.add(new Entry("..", parent, FileStatus.read(parent)));
+        }
+        try (var stream = Files.newDirectoryStream(directory)) {
+            for (var child : stream) {
+                var name = child.getFileName().toString();
+                if (name.startsWith(".") && !all && !almostAll) {
+                    continue;
+                }
+                try {
+                    entries.add(new Entry(name, child, FileStatus.read(child)));
+                } catch (IOException e) {
+                    // Removed while listing
+                }
+            }
+        }
+        entries.sort(Comparator.comparing(entry -> entry.name));
+        return entries;
+    }
+
+    private void list(OutputStream out, List<Entry> entries, boolean total) throws IOException {
+        if (!longFormat) {
+            for (var entry : entries) {
+                print(out, entry.name);
+            }
+            return;
+        }
+        var linksWidth = 1;
+        var ownerWidth = 1;
+        var groupWidth = 1;
+        var sizeWidth = 1;
+        var blocks = 0L;
+        for (var entry : entries) {
+            linksWidth = Math.max(linksWidth, String.valueOf(entry.status.links).length());
+            ownerWidth = Math.max(ownerWidth, entry.status.owner.length());
+            groupWidth = Math.max(groupWidth, entry.status.group.length());
+            sizeWidth = Math.max(sizeWidth, String.valueOf(entry.status.size).length());
+            blocks += entry.status.blocks();
+        }
+        if (total) {
+            print(out, "total " + (blocks + 1) / 2);
+        }
+        var format = "%s %" + linksWidth + "d %-" + ownerWidth + "s %-" + groupWidth + "s %" + sizeWidth + "d %s %s";
+        for (var entry : entries) {
+            var status = entry.status;
+            var line = String.format(Locale.ROOT, format, status.symbolicMode(), status.links, status.owner,
+                    status.group, status.size, TIME_FORMAT.format(status.modified.toInstant()), entry.name);
+            if (status.isSymbolicLink()) {
+                try {
+                    line += " -> " + Files.readSymbolicLink(entry.path);
+                } catch (IOException e) {
+                    // Shown without target
+                }
+            }
+            print(out, line);
+        }
+    }
+}
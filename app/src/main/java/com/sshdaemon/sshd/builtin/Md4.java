@@ -0,0 +1,116 @@
+package com.sshdaemon.sshd.builtin;
+
+/**
+ * MD4 message digest (RFC 1320), the strong checksum of the rsync protocol versions before 30.
+ * The platform's security providers do not offer it.
+ */
+final class Md4 {
+
+    static final int DIGEST_LENGTH = 16;
+
+    private static final int BLOCK_LENGTH = 64;
+
+    private final int[] state = new int[4];
+    private final int[] words = new int[16];
+    private final byte[] buffer = new byte[BLOCK_LENGTH];
+    private long count;
+
+    Md4() {
+        reset();
+    }
+
+    void reset() {
+        state[0] = 0x67452301;
+        state[1] = 0xefcdab89;
+        state[2] = 0x98badcfe;
+        state[3] = 0x10325476;
+        count = 0;
+    }
+
+    void update(byte[] data, int offset, int length) {
+        var buffered = (int) (count % BLOCK_LENGTH);
+        count += length;
+        if (buffered > 0) {
+            var fill = Math.min(length, BLOCK_LENGTH - buffered);
+            System.arraycopy(data, offset, buffer, buffered, fill);
+            offset += fill;
+            length -= fill;
+            if (buffered + fill < BLOCK_LENGTH) {
+                return;
+            }
+            transform(buffer, 0);
+        }
+        for (; length >= BLOCK_LENGTH; offset += BLOCK_LENGTH, length -= BLOCK_LENGTH) {
+            transform(data, offset);
+        }
+        System.arraycopy(data, offset, buffer, 0, length);
+    }
+
+    /**
+     * Updates the digest with the value in little-endian byte order
+     */
+    void update(int value) {
+        update(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)}, 0, 4);
+    }
+
+    /**
+     * Completes the digest into the first 16 bytes of the array and resets it
+     */
+    void digest(byte[] digest) {
+        var bits = count * 8;
+        // A one bit and zeros up to the length in the last eight bytes of a block
+        var buffered = (int) (count % BLOCK_LENGTH);
+        var padding = new byte[buffered < BLOCK_LENGTH - 8 ? BLOCK_LENGTH - buffered : 2 * BLOCK_LENGTH - buffered];
+        padding[0] = (byte) 0x80;
+        for (var i = 0; i < 8; i++) {
+            padding[padding.length - 8 + i] = (byte) (bits >>> (8 * i));
+        }
+        update(padding, 0, padding.length);
+        for (var i = 0; i < 4; i++) {
+            for (var j = 0; j < 4; j++) {
+                digest[4 * i + j] = (byte) (state[i] >>> (8 * j));
+            }
+        }
+        reset();
+    }
+
+    byte[] digest() {
+        var digest = new byte[DIGEST_LENGTH];
+        digest(digest);
+        return digest;
+    }
+
+    private void transform(byte[] block, int offset) {
+        for (var i = 0; i < 16; i++) {
+            var at = offset + 4 * i;
+            words[i] = (block[at] & 0xff) | (block[at + 1] & 0xff) << 8 | (block[at + 2] & 0xff) << 16
+                    | (block[at + 3] & 0xff) << 24;
+        }
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        var x = words;
+
+        for (var i = 0; i < 16; i += 4) {
+            a = Integer.rotateLeft(a + ((b & c) | (~b & d)) + x[i], 3);
+            d = Integer.rotateLeft(d + ((a & b) | (~a & c)) + x[i + 1], 7);
+            c = Integer.rotateLeft(c + ((d & a) | (~d & b)) + x[i + 2], 11);
+            b = Integer.rotateLeft(b + ((c & d) | (~c & a)) + x[i + 3], 19);
+        }
+        for (var i = 0; i < 4; i++) {
+            a = Integer.rotateLeft(a + ((b & c) | (b & d) | (c & d)) + x[i] + 0x5a827999, 3);
+            d = Integer.rotateLeft(d + ((a & b) | (a & c) | (b & c)) + x[i + 4] + 0x5a827999, 5);
+            c = Integer.rotateLeft(c + ((d & a) | (d & b) | (a & b)) + x[i + 8] + 0x5a827999, 9);
+            b = Integer.rotateLeft(b + ((c & d) | (c & a) | (d & a)) + x[i + 12] + 0x5a827999, 13);
+        }
+        for (var i : new int[]{0, 2, 1, 3}) {
+            a = Integer.rotateLeft(a + (b ^ c ^ d) + x[i] + 0x6ed9eba1, 3);
+            d = Integer.rotateLeft(d + (a ^ b ^ c) + x[i + 8] + 0x6ed9eba1, 9);
+            c = Integer.rotateLeft(c + (d ^ a ^ b) + x[i + 4] + 0x6ed9eba1, 11);
+            b = Integer.rotateLeft(b + (c ^ d ^ a) + x[i + 12] + 0x6ed9eba1, 15);
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+    }
+}
@@ -0,0 +1,198 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Checksums of the rsync protocol: the rolling checksum that finds candidate blocks at every
+ * offset, and the MD4 digest salted with the session's seed that confirms them and checks whole
+ * files. Also the block sums of a basis file, the list the receiving side sends for the sender to
+ * find blocks it already has.
+ */
+final class RsyncChecksum {
+
+    static final int SUM_LENGTH = Md4.DIGEST_LENGTH;
+    // Block sums are cut to this length at least, the whole file digest catches false matches
+    static final int SHORT_SUM_LENGTH = 2;
+    static final int BLOCK_SIZE = 700;
+    // The largest block length of protocol 29
+    static final int MAX_BLOCK_SIZE = 8192;
+
+    private static final int BLOCKSUM_BIAS = 10;
+
+    private RsyncChecksum() {
+    }
+
+    /**
+     * Returns the rolling checksum of the bytes, taken as signed as the C implementation does
+     */
+    static int rolling(byte[] data, int offset, int length) {
+        int s1 = 0, s2 = 0;
+        for (var i = offset; i < offset + length; i++) {
+            s1 += data[i];
+            s2 += s1;
+        }
+        return (s1 & 0xffff) | s2 << 16;
+    }
+
+    /**
+     * Computes the strong checksum of the bytes into the first 16 bytes of the sum
+     */
+    static void strong(Md4 md4, byte[] data, int offset, int length, int seed, byte[] sum) {
+        md4.update(data, offset, length);
+        if (seed != 0) {
+            md4.update(seed);
+        }
+        md4.digest(sum);
+    }
+
+    /**
+     * Returns a digest for the checksum of a whole file, which starts with the seed
+     */
+    static Md4 fileSum(int seed) {
+        var md4 = new Md4();
+        md4.update(seed);
+        return md4;
+    }
+
+    /**
+     * Returns the block length for a file of the given size, the square root of the size rounded
+     * to a multiple of 8 within the limits of the protocol
+     */
+    static int blockLength(long size) {
+        if (size <= (long) BLOCK_SIZE * BLOCK_SIZE) {
+            return BLOCK_SIZE;
+        }
+        var length = (int) Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt((double) size)) & ~7;
+        return Math.max(length, BLOCK_SIZE);
+    }
+
+    /**
+     * Returns the length of the strong checksums of the blocks, longer the more blocks there are to
+     * tell apart
+     */
+    static int strongLength(long size, int blockLength) {
+        var bits = BLOCKSUM_BIAS;
+        for (var length = size; (length >>= 1) != 0; ) {
+            bits += 2;
+        }
+        for (var length = blockLength; (length >>= 1) != 0 && bits > 0; ) {
+            bits--;
+        }
+        return Math.min(SUM_LENGTH, Math.max(SHORT_SUM_LENGTH, (bits + 1 - 32 + 7) / 8));
+    }
+
+    /**
+     * Block sums of a basis file, the list of pairs of rolling and strong checksum
+     */
+    static final class Sums {
+        final int count;
+        final int blockLength;
+        final int strongLength;
+        final int remainder;
+        final int[] rolling;
+        final byte[] strong;
+
+        Sums(int count, int blockLength, int strongLength, int remainder) {
+            this(count, blockLength, strongLength, remainder, new int[count], new byte[count * strongLength]);
+        }
+
+        private Sums(int count, int blockLength, int strongLength, int remainder, int[] rolling, byte[] strong) {
+            this.count = count;
+            this.blockLength = blockLength;
+            this.strongLength = strongLength;
+            this.remainder = remainder;
+            this.rolling = rolling;
+            this.strong = strong;
+        }
+
+        /**
+         * Returns the length of the block, the last one may be shorter
+         */
+        int length(int block) {
+            return block == count - 1 && remainder != 0 ? remainder : blockLength;
+        }
+
+        /**
+         * Reads the header and the sums
+         */
+        static Sums read(RsyncInput in) throws IOException {
+            var header = readHeader(in);
+            var sums = new Sums(header.count, header.blockLength, header.strongLength, header.remainder);
+            for (var i = 0; i < sums.count; i++) {
+                sums.rolling[i] = in.readInt();
+                in.readFully(sums.strong, i * sums.strongLength, sums.strongLength);
+            }
+            return sums;
+        }
+
+        /**
+         * Reads the header alone, as the sender repeats it before the data of the file
+         */
+        static Sums readHeader(RsyncInput in) throws IOException {
+            var count = in.readInt();
+            var blockLength = in.readInt();
+            var strongLength = in.readInt();
+            var remainder = in.readInt();
+            if (count < 0 || count > Integer.MAX_VALUE / SUM_LENGTH || blockLength < 0
+                    || blockLength > MAX_BLOCK_SIZE * 16 || (count > 0 && blockLength == 0)
+                    || strongLength < 0 || strongLength > SUM_LENGTH || remainder < 0
+                    || (remainder > 0 && remainder >= blockLength)) {
+                throw new IOException("Invalid checksum header");
+            }
+            return new Sums(count, blockLength, strongLength, remainder, new int[0], new byte[0]);
+        }
+
+        void writeHeader(RsyncOutput out) throws IOException {
+            writeHeader(out, count, blockLength, strongLength, remainder);
+        }
+
+        static void writeHeader(RsyncOutput out, int count, int blockLength, int strongLength, int remainder)
+                throws IOException {
+            out.writeInt(count);
+            out.writeInt(blockLength);
+            out.writeInt(strongLength);
+            out.writeInt(remainder);
+        }
+    }
+
+    /**
+     * Returns the sums of consecutive blocks of the file as they are sent, rolling checksum and
+     * strong checksum cut to its length for each block. Parts of the file are summed in parallel
+     * this way, reading with their own positions.
+     */
+    static byte[] blockSums(FileChannel channel, long size, int blockLength, int strongLength, int seed,
+                            long firstBlock, int blocks) throws IOException {
+        var sums = ByteBuffer.allocate(blocks * (4 + strongLength));
+        var data = new byte[blockLength];
+        var sum = new byte[SUM_LENGTH];
+        var md4 = new Md4();
+        var position = firstBlock * blockLength;
+        for (var i = 0; i < blocks; i++, position += blockLength) {
+            var length = (int) Math.min(blockLength, size - position);
+            read(channel, data, 0, length, position);
+            var rolling = rolling(data, 0, length);
+            sums.put((byte) rolling).put((byte) (rolling >> 8)).put((byte) (rolling >> 16))
+                    .put((byte) (rolling >> 24));
+            strong(md4, data, 0, length, seed, sum);
+            sums.put(sum, 0, strongLength);
+        }
+        return sums.array();
+    }
+
+    /**
+     * Reads the bytes at the position of the file, those past its end as zeros. A file shrinking
+     * meanwhile will fail the checksums of what is read.
+     */
+    static void read(FileChannel channel, byte[] data, int offset, int length, long position) throws IOException {
+        var buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - offset) < 0) {
+                Arrays.fill(data, buffer.position(), offset + length, (byte) 0);
+                break;
+            }
+        }
+    }
+}
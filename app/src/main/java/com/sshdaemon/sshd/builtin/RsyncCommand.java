@@ -0,0 +1,112 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@code rsync --server [--sender] OPTIONS . PATH...}, the remote side the rsync client starts
+ * over ssh. Speaks protocol 29 of the wire protocol, which every client since 2.6.4 falls back to:
+ * the side receiving sends the block checksums of the files it has, the sending side answers with
+ * literal data and references to the blocks that match, and the whole file digest confirms the
+ * result. Checksums of large files are computed on several threads.
+ */
+final class RsyncCommand extends BuiltinCommand {
+
+    static final int PROTOCOL_VERSION = 29;
+    // Index ending a phase of the transfer
+    static final int NDX_DONE = -1;
+    // Largest run of literal data in one token
+    static final int CHUNK_SIZE = 32 * 1024;
+
+    static final int ITEM_BASIS_TYPE_FOLLOWS = 1 << 11;
+    static final int ITEM_XNAME_FOLLOWS = 1 << 12;
+    static final int ITEM_IS_NEW = 1 << 13;
+    static final int ITEM_TRANSFER = 1 << 15;
+
+    static final int EXIT_SYNTAX = 1;
+    static final int EXIT_PROTOCOL = 2;
+    static final int EXIT_FILE_SELECT = 3;
+    static final int EXIT_STREAM_IO = 12;
+    static final int EXIT_PARTIAL = 23;
+
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final RsyncOptions options;
+    private final List<Path> paths;
+    private final boolean readOnly;
+
+    private RsyncCommand(Sandbox sandbox, RsyncOptions options, List<Path> paths, boolean readOnly) {
+        super("rsync", sandbox);
+        this.options = options;
+        this.paths = paths;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it is not a server invocation, uses options that are
+     * not implemented or names paths outside the sandbox
+     *
+     * @param readOnly whether receiving files is refused
+     */
+    static RsyncCommand parse(Sandbox sandbox, List<String> args, boolean readOnly) {
+        var options = RsyncOptions.parse(args);
+        if (options == null) {
+            return null;
+        }
+        var paths = sandbox.resolveAll(options.paths.isEmpty() ? List.of(".") : options.paths);
+        if (paths == null) {
+            return null;
+        }
+        return new RsyncCommand(sandbox, options, paths, readOnly);
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var input = new RsyncInput(new BufferedInputStream(in, INPUT_BUFFER_SIZE));
+        var output = new RsyncOutput(out);
+        output.writeInt(PROTOCOL_VERSION);
+        output.flush();
+        var remoteVersion = input.readInt();
+        if (remoteVersion < PROTOCOL_VERSION) {
+            error("protocol version " + remoteVersion + " is too old (minimum " + PROTOCOL_VERSION + ")");
+            return EXIT_PROTOCOL;
+        }
+        var seed = 0;
+        while (seed == 0) {
+            seed = ThreadLocalRandom.current().nextInt();
+        }
+        output.writeInt(seed);
+        output.multiplex();
+        if (!options.sender && readOnly) {
+            // As an rsync daemon refuses uploads to a read-only module
+            output.message(RsyncOutput.MSG_ERROR, "ERROR: module is read only\n"
+                    + "rsync error: syntax or usage error (code " + EXIT_SYNTAX + ")\n");
+            return EXIT_SYNTAX;
+        }
+        try {
+            if (options.sender) {
+                return new RsyncSender(options, paths, input, output, seed, this::launch).run();
+            }
+            return new RsyncReceiver(options, sandbox, paths.get(0), input, output, seed, this::launch).run();
+        } catch (IOException e) {
+            if (isDestroyed()) {
+                throw e;
+            }
+            var exitCode = e instanceof EOFException ? EXIT_STREAM_IO : EXIT_PROTOCOL;
+            try {
+                output.message(RsyncOutput.MSG_ERROR, "rsync: " + e.getMessage() + "\n"
+                        + "rsync error: " + (exitCode == EXIT_STREAM_IO ? "error in rsync protocol data stream"
+                        : "protocol incompatibility") + " (code " + exitCode + ")\n");
+            } catch (IOException closed) {
+                // The client is gone
+            }
+            return exitCode;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * File list of the rsync protocol, sent by the sender before any data. Each entry repeats as
+ * little of the previous one as its flags allow. Both sides sort the list the same way and refer
+ * to files by their index in it.
+ */
+final class RsyncFileList {
+
+    private static final int XMIT_TOP_DIR = 1;
+    private static final int XMIT_SAME_MODE = 1 << 1;
+    private static final int XMIT_EXTENDED_FLAGS = 1 << 2;
+    private static final int XMIT_SAME_UID = 1 << 3;
+    private static final int XMIT_SAME_GID = 1 << 4;
+    private static final int XMIT_SAME_NAME = 1 << 5;
+    private static final int XMIT_LONG_NAME = 1 << 6;
+    private static final int XMIT_SAME_TIME = 1 << 7;
+    private static final int XMIT_SAME_RDEV_MAJOR = 1 << 8;
+    private static final int XMIT_RDEV_MINOR_8 = 1 << 11;
+
+    static final int S_IFMT = 0170000;
+    static final int S_IFLNK = 0120000;
+    static final int S_IFREG = 0100000;
+    static final int S_IFDIR = 0040000;
+    private static final int S_IFBLK = 0060000;
+    private static final int S_IFCHR = 0020000;
+    private static final int S_IFIFO = 0010000;
+    private static final int S_IFSOCK = 0140000;
+
+    private static final int MAX_NAME_LENGTH = 4096;
+
+    /**
+     * File in the list, named relative to the top of the transfer
+     */
+    static final class Entry {
+        final String name;
+        final int mode;
+        final long size;
+        final long mtime;
+        final int uid;
+        final int gid;
+        // Target of a symbolic link
+        final String link;
+        final boolean top;
+        // The file read on the sending side
+        final Path path;
+        private final byte[] key;
+
+        Entry(String name, int mode, long size, long mtime, int uid, int gid, String link, boolean top, Path path) {
+            this.name = name;
+            this.mode = mode;
+            this.size = size;
+            this.mtime = mtime;
+            this.uid = uid;
+            this.gid = gid;
+            this.link = link;
+            this.top = top;
+            this.path = path;
+            this.key = sortKey(name, isDirectory());
+        }
+
+        boolean isDirectory() {
+            return (mode & S_IFMT) == S_IFDIR;
+        }
+
+        boolean isRegularFile() {
+            return (mode & S_IFMT) == S_IFREG;
+        }
+
+        boolean isSymbolicLink() {
+            return (mode & S_IFMT) == S_IFLNK;
+        }
+    }
+
+    /**
+     * Order of the list: within a directory files come before subdirectories, each sorted by the
+     * bytes of their names, directories before their content
+     */
+    private static final Comparator<Entry> ORDER = (a, b) -> {
+        var x = a.key;
+        var y = b.key;
+        for (var i = 0; i < Math.min(x.length, y.length); i++) {
+            if (x[i] != y[i]) {
+                return (x[i] & 0xff) - (y[i] & 0xff);
+            }
+        }
+        return x.length - y.length;
+    };
+
+    final List<Entry> entries;
+    int ioError;
+
+    RsyncFileList(List<Entry> entries) {
+        entries.sort(ORDER);
+        // Names given twice are sent once
+        for (var i = entries.size() - 1; i > 0; i--) {
+            if (ORDER.compare(entries.get(i - 1), entries.get(i)) == 0) {
+                entries.remove(i);
+            }
+        }
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the key the order compares: for each component of the name a byte telling whether it
+     * is a directory, sorting after files, then the component, with a slash after directories,
+     * and a zero. A directory ends with an empty file component, sorting before its content.
+     */
+    private static byte[] sortKey(String name, boolean directory) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (name.equals(".")) {
+            return new byte[]{0, 0};
+        }
+        var key = new byte[bytes.length + 2 * (count(bytes) + 1) + (directory ? 3 : 0)];
+        var length = 0;
+        var start = 0;
+        while (true) {
+            var end = start;
+            while (end < bytes.length && bytes[end] != '/') {
+                end++;
+            }
+            var last = end == bytes.length;
+            var path = !last || directory;
+            key[length++] = (byte) (path ? 1 : 0);
+            System.arraycopy(bytes, start, key, length, end - start);
+            length += end - start;
+            if (path) {
+                key[length++] = '/';
+            }
+            key[length++] = 0;
+            if (last) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (directory) {
+            key[length++] = 0;
+            key[length++] = 0;
+        }
+        return Arrays.copyOf(key, length);
+    }
+
+    private static int count(byte[] bytes) {
+        var slashes = 0;
+        for (var b : bytes) {
+            if (b == '/') {
+                slashes++;
+            }
+        }
+        return slashes;
+    }
+
+    /**
+     * Writes the list, followed by the empty lists of user and group names, which make the
+     * receiver keep the numeric ids, and the error flag
+     */
+    void write(RsyncOutput out, RsyncOptions options) throws IOException {
+        var lastName = new byte[0];
+        var lastMode = 0;
+        var lastTime = 0L;
+        var lastUid = 0;
+        var lastGid = 0;
+        for (var entry : entries) {
+            var name = entry.name.getBytes(StandardCharsets.UTF_8);
+            var flags = 0;
+            if (entry.isDirectory() && entry.top) {
+                flags |= XMIT_TOP_DIR;
+            }
+            if (entry.mode == lastMode) {
+                flags |= XMIT_SAME_MODE;
+            }
+            if (entry.mtime == lastTime) {
+                flags |= XMIT_SAME_TIME;
+            }
+            if (!options.owner || (entry.uid == lastUid && lastName.length > 0)) {
+                flags |= XMIT_SAME_UID;
+            }
+            if (!options.group || (entry.gid == lastGid && lastName.length > 0)) {
+                flags |= XMIT_SAME_GID;
+            }
+            var same = 0;
+            while (same < Math.min(255, Math.min(name.length, lastName.length)) && name[same] == lastName[same]) {
+                same++;
+            }
+            if (same > 0) {
+                flags |= XMIT_SAME_NAME;
+            }
+            if (name.length - same > 255) {
+                flags |= XMIT_LONG_NAME;
+            }
+            if (flags == 0 && !entry.isDirectory()) {
+                // Flags of zero end the list
+                flags = XMIT_TOP_DIR;
+            }
+            if (flags == 0 || (flags & 0xff00) != 0) {
+                out.writeShort(flags | XMIT_EXTENDED_FLAGS);
+            } else {
+                out.writeByte(flags);
+            }
+            if (same > 0) {
+                out.writeByte(same);
+            }
+            if ((flags & XMIT_LONG_NAME) != 0) {
+                out.writeInt(name.length - same);
+            } else {
+                out.writeByte(name.length - same);
+            }
+            out.write(name, same, name.length - same);
+            out.writeLong(entry.size);
+            if ((flags & XMIT_SAME_TIME) == 0) {
+                out.writeInt((int) entry.mtime);
+            }
+            if ((flags & XMIT_SAME_MODE) == 0) {
+                out.writeInt(entry.mode);
+            }
+            if ((flags & XMIT_SAME_UID) == 0) {
+                out.writeInt(entry.uid);
+            }
+            if ((flags & XMIT_SAME_GID) == 0) {
+                out.writeInt(entry.gid);
+            }
+            if (options.links && entry.isSymbolicLink()) {
+                var link = entry.link.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(link.length);
+                out.write(link, 0, link.length);
+            }
+            lastName = name;
+            lastMode = entry.mode;
+            lastTime = entry.mtime;
+            lastUid = entry.uid;
+            lastGid = entry.gid;
+        }
+        out.writeByte(0);
+        if (options.owner && !options.numericIds) {
+            out.writeInt(0);
+        }
+        if (options.group && !options.numericIds) {
+            out.writeInt(0);
+        }
+        out.writeInt(ioError);
+    }
+
+    /**
+     * Reads the list the client sends, refusing names that would leave the destination
+     */
+    static RsyncFileList read(RsyncInput in, RsyncOptions options) throws IOException {
+        var entries = new ArrayList<Entry>();
+        var lastName = new byte[0];
+        var mode = 0;
+        var mtime = 0L;
+        var uid = 0;
+        var gid = 0;
+        for (var flags = in.readByte(); flags != 0; flags = in.readByte()) {
+            if ((flags & XMIT_EXTENDED_FLAGS) != 0) {
+                flags |= in.readByte() << 8;
+            }
+            var same = (flags & XMIT_SAME_NAME) != 0 ? in.readByte() : 0;
+            var length = (flags & XMIT_LONG_NAME) != 0 ? in.readInt() : in.readByte();
+            if (same > lastName.length || length < 0 || same + length > MAX_NAME_LENGTH) {
+                throw new IOException("Invalid file list entry");
+            }
+            var name = Arrays.copyOf(lastName, same + length);
+            in.readFully(name, same, length);
+            lastName = name;
+            var size = in.readLong();
+            if ((flags & XMIT_SAME_TIME) == 0) {
+                mtime = in.readInt();
+            }
+            if ((flags & XMIT_SAME_MODE) == 0) {
+                mode = in.readInt();
+            }
+            if (options.owner && (flags & XMIT_SAME_UID) == 0) {
+                uid = in.readInt();
+            }
+            if (options.group && (flags & XMIT_SAME_GID) == 0) {
+                gid = in.readInt();
+            }
+            var type = mode & S_IFMT;
+            var device = type == S_IFBLK || type == S_IFCHR;
+            var special = type == S_IFIFO || type == S_IFSOCK;
+            if ((options.devices && device) || (options.specials && special)) {
+                // Device numbers, of no use without the privilege to create devices
+                if ((flags & XMIT_SAME_RDEV_MAJOR) == 0) {
+                    in.readInt();
+                }
+                if ((flags & XMIT_RDEV_MINOR_8) != 0) {
+                    in.readByte();
+                } else {
+                    in.readInt();
+                }
+            }
+            String link = null;
+            if (options.links && type == S_IFLNK) {
+                var linkLength = in.readInt();
+                if (linkLength < 0 || linkLength > MAX_NAME_LENGTH) {
+                    throw new IOException("Invalid file list entry");
+                }
+                link = new String(in.read(linkLength), StandardCharsets.UTF_8);
+            }
+            var text = new String(name, StandardCharsets.UTF_8);
+            if (!isSafe(text)) {
+                throw new IOException("Invalid path from sender: " + text);
+            }
+            entries.add(new Entry(text, mode, size, mtime, uid, gid, link,
+                    (flags & XMIT_TOP_DIR) != 0 && type == S_IFDIR, null));
+        }
+        if (options.owner && !options.numericIds) {
+            skipNames(in);
+        }
+        if (options.group && !options.numericIds) {
+            skipNames(in);
+        }
+        var list = new RsyncFileList(entries);
+        list.ioError = in.readInt();
+        return list;
+    }
+
+    /**
+     * Skips a list of ids and their names, the files are given the numeric ids if at all
+     */
+    private static void skipNames(RsyncInput in) throws IOException {
+        while (in.readInt() != 0) {
+            in.read(in.readByte());
+        }
+    }
+
+    /**
+     * Returns whether the name stays below the top of the transfer
+     */
+    private static boolean isSafe(String name) {
+        if (name.equals(".")) {
+            return true;
+        }
+        if (name.isEmpty() || name.startsWith("/")) {
+            return false;
+        }
+        for (var component : name.split("/", -1)) {
+            if (component.isEmpty() || component.equals(".") || component.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,188 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude rules the client sends, such as {@code - *.tmp} or {@code + /photos/}.
+ * Sender side rules decide what goes into the file list, receiver side rules protect files from
+ * deletion. The first rule matching a name decides. Merge files and modifiers other than those of
+ * the side are not supported.
+ */
+final class RsyncFilter {
+
+    // Rules beyond this length are not sent by the client
+    private static final int MAX_RULE_LENGTH = 4096;
+
+    private static final class Rule {
+        final boolean include;
+        final boolean sender;
+        final boolean receiver;
+        final boolean directoryOnly;
+        final Pattern pattern;
+        // Patterns without a slash match the last component of the name only
+        final boolean baseName;
+
+        Rule(boolean include, boolean sender, boolean receiver, boolean directoryOnly, Pattern pattern,
+             boolean baseName) {
+            this.include = include;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.directoryOnly = directoryOnly;
+            this.pattern = pattern;
+            this.baseName = baseName;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * Reads the rules, each preceded by its length, up to a length of zero
+     */
+    static RsyncFilter read(RsyncInput in) throws IOException {
+        var filter = new RsyncFilter();
+        for (var length = in.readInt(); length != 0; length = in.readInt()) {
+            if (length < 0 || length > MAX_RULE_LENGTH) {
+                throw new IOException("Invalid filter rule length");
+            }
+            filter.add(new String(in.read(length), StandardCharsets.UTF_8));
+        }
+        return filter;
+    }
+
+    void add(String text) throws IOException {
+        var space = text.indexOf(' ');
+        var prefix = space < 0 ? text : text.substring(0, space);
+        if (prefix.equals("!")) {
+            rules.clear();
+            return;
+        }
+        if (space < 1) {
+            throw new IOException("Unsupported filter rule: " + text);
+        }
+        var include = false;
+        var sender = true;
+        var receiver = true;
+        switch (prefix.charAt(0)) {
+            case '+':
+                include = true;
+                break;
+            case '-':
+                break;
+            case 'S':
+                include = true;
+                // Fall through
+            case 'H':
+                receiver = false;
+                break;
+            case 'R':
+                include = true;
+                // Fall through
+            case 'P':
+                sender = false;
+                break;
+            default:
+                throw new IOException("Unsupported filter rule: " + text);
+        }
+        for (var i = 1; i < prefix.length(); i++) {
+            switch (prefix.charAt(i)) {
+                case 's':
+                    receiver = false;
+                    break;
+                case 'r':
+                    sender = false;
+                    break;
+                default:
+                    throw new IOException("Unsupported filter rule: " + text);
+            }
+        }
+        var glob = text.substring(space + 1);
+        var directoryOnly = glob.endsWith("/") && glob.length() > 1;
+        if (directoryOnly) {
+            glob = glob.substring(0, glob.length() - 1);
+        }
+        var anchored = glob.startsWith("/");
+        if (anchored) {
+            glob = glob.substring(1);
+        }
+        var baseName = !anchored && !glob.contains("/") && !glob.contains("**");
+        // Unanchored patterns with a slash match at any directory boundary
+        var regex = (anchored || baseName ? "" : "(?:.*/)?") + regex(glob);
+        rules.add(new Rule(include, sender, receiver, directoryOnly, Pattern.compile(regex), baseName));
+    }
+
+    /**
+     * Returns whether the sender leaves the name out of the file list
+     */
+    boolean excludes(String name, boolean directory) {
+        return matches(name, directory, true);
+    }
+
+    /**
+     * Returns whether the receiver keeps the name from being deleted
+     */
+    boolean protects(String name, boolean directory) {
+        return matches(name, directory, false);
+    }
+
+    private boolean matches(String name, boolean directory, boolean sender) {
+        for (var rule : rules) {
+            if ((sender ? !rule.sender : !rule.receiver) || (rule.directoryOnly && !directory)) {
+                continue;
+            }
+            var subject = rule.baseName ? name.substring(name.lastIndexOf('/') + 1) : name;
+            if (rule.pattern.matcher(subject).matches()) {
+                return !rule.include;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Translates the wildcards: {@code *} for anything but a slash, {@code **} for anything,
+     * {@code ?} for a character but a slash and character classes
+     */
+    private static String regex(String glob) {
+        var regex = new StringBuilder();
+        for (var i = 0; i < glob.length(); i++) {
+            var c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    var end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+                    var members = glob.substring(i + 1, end);
+                    if (members.startsWith("!")) {
+                        members = "^" + members.substring(1);
+                    }
+                    regex.append('[').append(members.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
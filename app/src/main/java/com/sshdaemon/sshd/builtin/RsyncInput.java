@@ -0,0 +1,93 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the values of the rsync protocol, integers in little-endian byte order, from the stream
+ * of the client, which is not multiplexed in the protocol versions spoken.
+ */
+final class RsyncInput {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8];
+    private long read;
+
+    /**
+     * @param in buffered stream
+     */
+    RsyncInput(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the number of bytes read
+     */
+    long getRead() {
+        return read;
+    }
+
+    /**
+     * Returns whether reading would not block
+     */
+    boolean hasInput() throws IOException {
+        return in.available() > 0;
+    }
+
+    int readByte() throws IOException {
+        readFully(buffer, 0, 1);
+        return buffer[0] & 0xff;
+    }
+
+    int readShort() throws IOException {
+        readFully(buffer, 0, 2);
+        return (buffer[0] & 0xff) | (buffer[1] & 0xff) << 8;
+    }
+
+    int readInt() throws IOException {
+        readFully(buffer, 0, 4);
+        return (buffer[0] & 0xff) | (buffer[1] & 0xff) << 8 | (buffer[2] & 0xff) << 16 | (buffer[3] & 0xff) << 24;
+    }
+
+    /**
+     * Reads a 64 bit value, sent as an integer unless it does not fit
+     */
+    long readLong() throws IOException {
+        var value = readInt();
+        if (value != -1) {
+            return value;
+        }
+        var low = readInt() & 0xffffffffL;
+        return (long) readInt() << 32 | low;
+    }
+
+    /**
+     * Reads a string preceded by its length in one or two bytes
+     */
+    byte[] readVstring() throws IOException {
+        var length = readByte();
+        if ((length & 0x80) != 0) {
+            length = (length & 0x7f) << 8 | readByte();
+        }
+        return read(length);
+    }
+
+    byte[] read(int length) throws IOException {
+        var data = new byte[length];
+        readFully(data, 0, length);
+        return data;
+    }
+
+    void readFully(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            var count = in.read(data, offset, length);
+            if (count < 0) {
+                throw new EOFException("connection unexpectedly closed");
+            }
+            offset += count;
+            length -= count;
+            read += count;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.util.Arrays;
+
+/**
+ * Finds the blocks of the receiver's basis file in the sender's file, rolling the checksum over
+ * every offset. Blocks are looked up by a 16 bit tag of their rolling checksum, candidates are
+ * confirmed by their strong checksum. Ranges of a large file are scanned in parallel, each with a
+ * matcher of its own over the shared sums.
+ */
+final class RsyncMatcher {
+
+    private static final int TAGS = 1 << 16;
+
+    private final RsyncChecksum.Sums sums;
+    private final int seed;
+    // Blocks grouped by tag, those of tag t are at positions tagStart[t] to tagStart[t + 1]
+    private final int[] tagStart;
+    private final int[] tagBlocks;
+    private final Md4 md4 = new Md4();
+    private final byte[] strong = new byte[RsyncChecksum.SUM_LENGTH];
+
+    private RsyncMatcher(RsyncChecksum.Sums sums, int seed, int[] tagStart, int[] tagBlocks) {
+        this.sums = sums;
+        this.seed = seed;
+        this.tagStart = tagStart;
+        this.tagBlocks = tagBlocks;
+    }
+
+    RsyncMatcher(RsyncChecksum.Sums sums, int seed) {
+        this.sums = sums;
+        this.seed = seed;
+        this.tagStart = new int[TAGS + 1];
+        this.tagBlocks = new int[sums.count];
+        for (var block = 0; block < sums.count; block++) {
+            tagStart[tag(sums.rolling[block]) + 1]++;
+        }
+        for (var tag = 0; tag < TAGS; tag++) {
+            tagStart[tag + 1] += tagStart[tag];
+        }
+        var next = tagStart.clone();
+        for (var block = 0; block < sums.count; block++) {
+            tagBlocks[next[tag(sums.rolling[block])]++] = block;
+        }
+    }
+
+    /**
+     * Returns a matcher sharing the lookup table, for another thread
+     */
+    RsyncMatcher copy() {
+        return new RsyncMatcher(sums, seed, tagStart, tagBlocks);
+    }
+
+    private static int tag(int sum) {
+        return (sum ^ sum >>> 16) & 0xffff;
+    }
+
+    /**
+     * Blocks found, by the file offset they were found at, in increasing order
+     */
+    static final class Matches {
+        long[] offsets = new long[16];
+        int[] blocks = new int[16];
+        int size;
+
+        void add(long offset, int block) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                blocks = Arrays.copyOf(blocks, size * 2);
+            }
+            offsets[size] = offset;
+            blocks[size++] = block;
+        }
+    }
+
+    /**
+     * Scans the data for blocks starting at an index from {@code from} up to {@code to}, the data
+     * up to {@code limit} may belong to them
+     *
+     * @param offset file offset of the first byte of the data
+     */
+    Matches scan(byte[] data, int from, int to, int limit, long offset) {
+        var matches = new Matches();
+        if (sums.count == 0) {
+            return matches;
+        }
+        var shortest = Math.min(sums.blockLength, sums.length(sums.count - 1));
+        var position = from;
+        var length = Math.min(sums.blockLength, limit - position);
+        var want = 0;
+        int s1 = 0, s2 = 0;
+        var fresh = true;
+        while (position < to && length >= shortest) {
+            if (fresh) {
+                s1 = 0;
+                s2 = 0;
+                for (var i = position; i < position + length; i++) {
+                    s1 += data[i];
+                    s2 += s1;
+                }
+                fresh = false;
+            }
+            var block = find((s1 & 0xffff) | s2 << 16, data, position, length, want);
+            if (block >= 0) {
+                matches.add(offset + position, block);
+                want = block + 1;
+                position += length;
+                length = Math.min(sums.blockLength, limit - position);
+                fresh = true;
+                continue;
+            }
+            // Roll the window one byte on, it shrinks at the end of the data
+            var first = data[position];
+            s1 -= first;
+            s2 -= length * first;
+            if (position + length < limit) {
+                s1 += data[position + length];
+                s2 += s1;
+            } else {
+                length--;
+            }
+            position++;
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the block with the checksum and the data of the window, preferring the one following
+     * the last match, or -1
+     */
+    private int find(int sum, byte[] data, int position, int length, int want) {
+        var computed = false;
+        if (want < sums.count && sums.rolling[want] == sum && sums.length(want) == length) {
+            computed = true;
+            RsyncChecksum.strong(md4, data, position, length, seed, strong);
+            if (strongEquals(want)) {
+                return want;
+            }
+        }
+        var tag = tag(sum);
+        for (var i = tagStart[tag]; i < tagStart[tag + 1]; i++) {
+            var block = tagBlocks[i];
+            if (sums.rolling[block] != sum || sums.length(block) != length || block == want) {
+                continue;
+            }
+            if (!computed) {
+                computed = true;
+                RsyncChecksum.strong(md4, data, position, length, seed, strong);
+            }
+            if (strongEquals(block)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private boolean strongEquals(int block) {
+        var at = block * sums.strongLength;
+        for (var i = 0; i < sums.strongLength; i++) {
+            if (sums.strong[at + i] != strong[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
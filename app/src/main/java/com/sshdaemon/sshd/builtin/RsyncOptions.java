@@ -0,0 +1,193 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.util.List;
+
+/**
+ * Options of an {@code rsync --server} invocation, as the rsync client passes them on to the
+ * remote side
+ */
+final class RsyncOptions {
+
+    boolean sender;
+    boolean recursive;
+    boolean dirs;
+    boolean links;
+    boolean perms;
+    boolean times;
+    boolean omitDirTimes;
+    boolean owner;
+    boolean group;
+    boolean devices;
+    boolean specials;
+    boolean wholeFile;
+    boolean ignoreTimes;
+    boolean sizeOnly;
+    boolean update;
+    boolean existing;
+    boolean ignoreExisting;
+    boolean delete;
+    boolean deleteExcluded;
+    boolean numericIds;
+    boolean ignoreErrors;
+    boolean dryRun;
+    int verbose;
+    int blockSize;
+    // Sources of the sender, or the destination of the receiver
+    List<String> paths;
+
+    /**
+     * Parses the arguments following {@code rsync}, returns {@code null} if they are not those of
+     * a server or use options that are not implemented, such as compression, checksums, hard
+     * links, relative paths, backups or arguments sent over the connection
+     */
+    static RsyncOptions parse(List<String> args) {
+        if (args.isEmpty() || !args.get(0).equals("--server")) {
+            return null;
+        }
+        var options = new RsyncOptions();
+        var index = 1;
+        for (; index < args.size(); index++) {
+            var arg = args.get(index);
+            if (!arg.startsWith("-")) {
+                break;
+            }
+            if (arg.startsWith("--") ? !options.parseLong(arg) : !options.parseShort(arg)) {
+                return null;
+            }
+        }
+        // The client passes a dot where the old protocols had the working directory
+        if (index == args.size() || !args.get(index).equals(".")) {
+            return null;
+        }
+        options.paths = args.subList(index + 1, args.size());
+        if (options.sender ? options.paths.isEmpty() : options.paths.size() > 1) {
+            return null;
+        }
+        return options;
+    }
+
+    private boolean parseShort(String arg) {
+        for (var i = 1; i < arg.length(); i++) {
+            switch (arg.charAt(i)) {
+                case 'e':
+                    // The letters after it tell the protocol features the client supports, of
+                    // versions beyond the one spoken
+                    return true;
+                case 'v':
+                    verbose++;
+                    break;
+                case 'r':
+                    recursive = true;
+                    break;
+                case 'd':
+                    dirs = true;
+                    break;
+                case 'l':
+                    links = true;
+                    break;
+                case 'p':
+                    perms = true;
+                    break;
+                case 't':
+                    times = true;
+                    break;
+                case 'O':
+                    omitDirTimes = true;
+                    break;
+                case 'o':
+                    owner = true;
+                    break;
+                case 'g':
+                    group = true;
+                    break;
+                case 'D':
+                    devices = true;
+                    specials = true;
+                    break;
+                case 'W':
+                    wholeFile = true;
+                    break;
+                case 'I':
+                    ignoreTimes = true;
+                    break;
+                case 'u':
+                    update = true;
+                    break;
+                case 'n':
+                    dryRun = true;
+                    break;
+                case 'q':
+                case 'i':
+                case 'x':
+                case 'S':
+                case 'J':
+                    // Output, file system boundaries, sparse files and times of links, which make
+                    // no difference here
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseLong(String arg) {
+        var equals = arg.indexOf('=');
+        var name = equals < 0 ? arg : arg.substring(0, equals);
+        switch (name) {
+            case "--sender":
+                sender = true;
+                return true;
+            case "--delete":
+            case "--delete-before":
+            case "--delete-during":
+            case "--delete-delay":
+            case "--delete-after":
+                delete = true;
+                return true;
+            case "--delete-excluded":
+                delete = true;
+                deleteExcluded = true;
+                return true;
+            case "--numeric-ids":
+                numericIds = true;
+                return true;
+            case "--size-only":
+                sizeOnly = true;
+                return true;
+            case "--existing":
+                existing = true;
+                return true;
+            case "--ignore-existing":
+                ignoreExisting = true;
+                return true;
+            case "--devices":
+                devices = true;
+                return true;
+            case "--specials":
+                specials = true;
+                return true;
+            case "--block-size":
+                try {
+                    blockSize = Integer.parseInt(arg.substring(equals + 1));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                return equals > 0 && blockSize > 0 && blockSize <= RsyncChecksum.MAX_BLOCK_SIZE;
+            case "--ignore-errors":
+                ignoreErrors = true;
+                return true;
+            case "--force":
+            case "--partial":
+            case "--inplace":
+            case "--no-inc-recursive":
+            case "--timeout":
+            case "--log-format":
+            case "--out-format":
+                // Files are always replaced once complete, times out and output are the client's
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the values of the rsync protocol to the client. Once multiplexed, data goes out in frames
+ * with a four byte header of tag and length, among which messages for the client to print are
+ * interleaved. The receiving side writes from two threads, so writes are synchronized.
+ */
+final class RsyncOutput {
+
+    static final int MSG_DATA = 0;
+    static final int MSG_INFO = 2;
+    static final int MSG_ERROR = 3;
+    static final int MSG_DELETED = 101;
+
+    private static final int MPLEX_BASE = 7;
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int length;
+    private boolean multiplexed;
+    private long written;
+
+    RsyncOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Returns the number of bytes of data written
+     */
+    synchronized long getWritten() {
+        return written + length;
+    }
+
+    /**
+     * Sends what is written from now on in frames
+     */
+    synchronized void multiplex() throws IOException {
+        flush();
+        multiplexed = true;
+    }
+
+    synchronized void writeByte(int value) throws IOException {
+        if (length == BUFFER_SIZE) {
+            drain();
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    synchronized void writeShort(int value) throws IOException {
+        writeByte(value);
+        writeByte(value >> 8);
+    }
+
+    synchronized void writeInt(int value) throws IOException {
+        if (BUFFER_SIZE - length < 4) {
+            drain();
+        }
+        buffer[length] = (byte) value;
+        buffer[length + 1] = (byte) (value >> 8);
+        buffer[length + 2] = (byte) (value >> 16);
+        buffer[length + 3] = (byte) (value >> 24);
+        length += 4;
+    }
+
+    /**
+     * Writes a 64 bit value, as an integer if it fits
+     */
+    synchronized void writeLong(long value) throws IOException {
+        if (value >= 0 && value <= Integer.MAX_VALUE) {
+            writeInt((int) value);
+        } else {
+            writeInt(-1);
+            writeInt((int) value);
+            writeInt((int) (value >>> 32));
+        }
+    }
+
+    /**
+     * Writes a string preceded by its length in one or two bytes
+     */
+    synchronized void writeVstring(byte[] data) throws IOException {
+        if (data.length > 0x7f) {
+            writeByte(data.length / 0x100 + 0x80);
+        }
+        writeByte(data.length);
+        write(data, 0, data.length);
+    }
+
+    synchronized void write(byte[] data, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (length == BUFFER_SIZE) {
+                drain();
+            }
+            var chunk = Math.min(count, BUFFER_SIZE - length);
+            System.arraycopy(data, offset, buffer, length, chunk);
+            length += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    /**
+     * Sends a message for the client to show, a line of text or, for {@link #MSG_DELETED}, a name
+     */
+    synchronized void message(int tag, String text) throws IOException {
+        drain();
+        var data = text.getBytes(StandardCharsets.UTF_8);
+        if (multiplexed) {
+            header(tag, data.length);
+        }
+        out.write(data);
+        out.flush();
+    }
+
+    synchronized void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    private void drain() throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (multiplexed) {
+            header(MSG_DATA, length);
+        }
+        out.write(buffer, 0, length);
+        written += length;
+        length = 0;
+    }
+
+    private void header(int tag, int size) throws IOException {
+        var value = (MPLEX_BASE + tag) << 24 | size;
+        out.write(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+    }
+}
@@ -0,0 +1,594 @@
+package com.sshdaemon.sshd.builtin;
+
+import static com.sshdaemon.sshd.builtin.RsyncCommand.CHUNK_SIZE;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.ITEM_BASIS_TYPE_FOLLOWS;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.ITEM_IS_NEW;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.ITEM_TRANSFER;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.ITEM_XNAME_FOLLOWS;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.NDX_DONE;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Receiving side of a transfer to the daemon. The generator, on the connection's thread, sends the
+ * block checksums of the files it has for those the client sends, the receiver, on a thread of its
+ * own, rebuilds each file from the client's delta into a temporary file next to it and replaces
+ * the file once its digest matches. Checksums of large files are computed in segments on the
+ * executor.
+ */
+final class RsyncReceiver {
+
+    // Files with more than a segment of blocks are summed on the executor, a segment at a time
+    static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int WINDOW_SEGMENTS = Runtime.getRuntime().availableProcessors();
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_PHASE = 2;
+    // Permissions of new files without -p, as the default umask leaves them
+    private static final int DEFAULT_UMASK = 022;
+
+    private final RsyncOptions options;
+    private final Sandbox sandbox;
+    private final Path destination;
+    private final RsyncInput in;
+    private final RsyncOutput out;
+    private final int seed;
+    private final Executor executor;
+    // Files to retry with full length checksums, ended by NDX_DONE once the first pass is received
+    private final BlockingQueue<Integer> redo = new LinkedBlockingQueue<>();
+    private RsyncFileList list;
+    // Paths of the files requested, set by the generator before it requests them
+    private AtomicReferenceArray<Path> targets;
+    private Path base;
+    private Path single;
+    private Path lastParent;
+    private volatile boolean failed;
+
+    RsyncReceiver(RsyncOptions options, Sandbox sandbox, Path destination, RsyncInput in, RsyncOutput out, int seed,
+                  Executor executor) {
+        this.options = options;
+        this.sandbox = sandbox;
+        this.destination = destination;
+        this.in = in;
+        this.out = out;
+        this.seed = seed;
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the transfer, returns the exit code
+     */
+    int run() throws IOException {
+        var filter = options.delete ? RsyncFilter.read(in) : new RsyncFilter();
+        list = RsyncFileList.read(in, options);
+        targets = new AtomicReferenceArray<>(list.entries.size());
+        if (!locate()) {
+            return RsyncCommand.EXIT_FILE_SELECT;
+        }
+        var received = new CompletableFuture<Void>();
+        executor.execute(() -> {
+            try {
+                receive();
+                received.complete(null);
+            } catch (IOException | RuntimeException e) {
+                received.completeExceptionally(e);
+            } finally {
+                redo.add(NDX_DONE);
+            }
+        });
+        if (options.delete && options.recursive && !options.dryRun) {
+            delete(filter);
+        }
+        for (var index = 0; index < list.entries.size(); index++) {
+            generate(index);
+        }
+        out.writeInt(NDX_DONE);
+        out.flush();
+        // Files which failed their digest are requested once more, with sums of full length
+        for (var index = take(); index != NDX_DONE; index = take()) {
+            var target = targets.get(index);
+            request(index, target, status(target), true);
+        }
+        out.writeInt(NDX_DONE);
+        out.writeInt(NDX_DONE);
+        out.flush();
+        join(received);
+        // Directories get their times once their content is written, deepest first
+        for (var index = list.entries.size() - 1; index >= 0; index--) {
+            var entry = list.entries.get(index);
+            var target = targets.get(index);
+            if (entry.isDirectory() && target != null) {
+                restore(target, entry, options.perms ? entry.mode : -1, options.times && !options.omitDirTimes);
+            }
+        }
+        out.writeInt(NDX_DONE);
+        out.flush();
+        return failed ? RsyncCommand.EXIT_PARTIAL : 0;
+    }
+
+    /**
+     * Decides where the files go: into the destination if it is a directory or there are several,
+     * onto it if a single file is sent
+     */
+    private boolean locate() throws IOException {
+        var operand = options.paths.isEmpty() ? "." : options.paths.get(0);
+        var status = status(destination);
+        var singleFile = list.entries.size() == 1 && !list.entries.get(0).isDirectory();
+        if (status != null && status.isDirectory()) {
+            base = destination;
+        } else if (status != null || (singleFile && !operand.endsWith("/"))) {
+            if (!singleFile) {
+                out.message(RsyncOutput.MSG_ERROR,
+                        "ERROR: destination must be a directory when copying more than 1 file\n");
+                return false;
+            }
+            single = destination;
+        } else {
+            if (!options.dryRun) {
+                Files.createDirectories(destination);
+            }
+            base = destination;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the path of the entry, or {@code null} if the directory it is in leads out of the
+     * sandbox
+     */
+    private Path target(RsyncFileList.Entry entry) {
+        if (single != null) {
+            return single;
+        }
+        if (entry.name.equals(".")) {
+            return base;
+        }
+        var path = base.resolve(entry.name);
+        var parent = path.getParent();
+        if (!parent.equals(lastParent)) {
+            var relative = sandbox.getRoot().relativize(parent).toString();
+            if (!relative.isEmpty() && sandbox.resolve(relative) == null) {
+                return null;
+            }
+            lastParent = parent;
+        }
+        return path;
+    }
+
+    private static FileStatus status(Path path) throws IOException {
+        try {
+            return FileStatus.read(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Brings the entry up to date, requesting the data of files that differ
+     */
+    private void generate(int index) throws IOException {
+        var entry = list.entries.get(index);
+        var target = target(entry);
+        if (target == null) {
+            report("rsync: refusing to write outside of the destination: \"" + entry.name + "\"");
+            return;
+        }
+        try {
+            var status = status(target);
+            if (options.existing && status == null) {
+                return;
+            }
+            if (entry.isDirectory()) {
+                if (!options.dryRun) {
+                    if (status != null && !status.isDirectory()) {
+                        Files.delete(target);
+                        status = null;
+                    }
+                    if (status == null) {
+                        Files.createDirectories(target);
+                    }
+                    targets.set(index, target);
+                }
+            } else if (entry.isSymbolicLink()) {
+                if (options.dryRun || (status != null && status.isSymbolicLink()
+                        && Files.readSymbolicLink(target).toString().equals(entry.link))) {
+                    return;
+                }
+                if (status != null) {
+                    Files.delete(target);
+                }
+                Files.createSymbolicLink(target, Paths.get(entry.link));
+            } else if (entry.isRegularFile()) {
+                if (status != null && status.isDirectory()) {
+                    // Fails unless empty like rsync without --force
+                    Files.delete(target);
+                    status = null;
+                }
+                if (isUpToDate(entry, status)) {
+                    if (!options.dryRun) {
+                        restore(target, entry, options.perms ? entry.mode : -1, options.times);
+                    }
+                } else if (!options.dryRun) {
+                    targets.set(index, target);
+                    request(index, target, status, false);
+                }
+            }
+            // Devices, pipes and sockets are not created without the privileges to
+        } catch (IOException e) {
+            report("rsync: " + entry.name + ": " + BuiltinCommand.describe(e));
+        }
+    }
+
+    private boolean isUpToDate(RsyncFileList.Entry entry, FileStatus status) {
+        if (status == null) {
+            return false;
+        }
+        if (options.ignoreExisting) {
+            return true;
+        }
+        var modified = status.modified.to(TimeUnit.SECONDS);
+        if (options.update && modified > entry.mtime) {
+            return true;
+        }
+        return status.isRegularFile() && status.size == entry.size
+                && (options.sizeOnly || (!options.ignoreTimes && modified == entry.mtime));
+    }
+
+    /**
+     * Requests the file, sending the block checksums of the existing one, if any, for the sender
+     * to find in its own
+     */
+    private void request(int index, Path target, FileStatus status, boolean redo) throws IOException {
+        var channel = openBasis(target, status);
+        out.writeInt(index);
+        out.writeShort(ITEM_TRANSFER | (status == null ? ITEM_IS_NEW : 0));
+        if (channel == null) {
+            RsyncChecksum.Sums.writeHeader(out, 0, 0, 0, 0);
+            return;
+        }
+        try (channel) {
+            var size = status.size;
+            var blockLength = options.blockSize > 0 ? options.blockSize : RsyncChecksum.blockLength(size);
+            var count = (int) ((size + blockLength - 1) / blockLength);
+            var strongLength = redo ? RsyncChecksum.SUM_LENGTH : RsyncChecksum.strongLength(size, blockLength);
+            RsyncChecksum.Sums.writeHeader(out, count, blockLength, strongLength, (int) (size % blockLength));
+            var segment = Math.max(1, SEGMENT_SIZE / blockLength);
+            if (count <= segment) {
+                var sums = RsyncChecksum.blockSums(channel, size, blockLength, strongLength, seed, 0, count);
+                out.write(sums, 0, sums.length);
+                return;
+            }
+            // The sender gets going on the files requested so far meanwhile
+            out.flush();
+            var window = new ArrayDeque<CompletableFuture<byte[]>>();
+            var next = 0L;
+            while (next < count || !window.isEmpty()) {
+                while (next < count && window.size() < WINDOW_SEGMENTS) {
+                    var first = next;
+                    var blocks = (int) Math.min(segment, count - next);
+                    window.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return RsyncChecksum.blockSums(channel, size, blockLength, strongLength, seed, first,
+                                    blocks);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, executor));
+                    next += blocks;
+                }
+                var sums = join(window.poll());
+                out.write(sums, 0, sums.length);
+            }
+        }
+    }
+
+    /**
+     * Opens the existing file to send the sums of, returns {@code null} to have the file sent whole
+     */
+    private FileChannel openBasis(Path target, FileStatus status) {
+        if (status == null || !status.isRegularFile() || status.size == 0 || options.wholeFile) {
+            return null;
+        }
+        try {
+            return FileChannel.open(target, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Receives the files the sender sends until it ends the last phase
+     */
+    private void receive() throws IOException {
+        var phase = 0;
+        var buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        var sum = new byte[RsyncChecksum.SUM_LENGTH];
+        while (true) {
+            var index = in.readInt();
+            if (index == NDX_DONE) {
+                if (++phase == 1) {
+                    redo.add(NDX_DONE);
+                }
+                if (phase > MAX_PHASE) {
+                    break;
+                }
+                continue;
+            }
+            if (index < 0 || index >= list.entries.size()) {
+                throw new IOException("Invalid file index " + index);
+            }
+            var flags = in.readShort();
+            if ((flags & ITEM_BASIS_TYPE_FOLLOWS) != 0) {
+                in.readByte();
+            }
+            if ((flags & ITEM_XNAME_FOLLOWS) != 0) {
+                in.readVstring();
+            }
+            if ((flags & ITEM_TRANSFER) == 0) {
+                continue;
+            }
+            var target = targets.get(index);
+            if (target == null) {
+                throw new IOException("File not requested: " + list.entries.get(index).name);
+            }
+            var sums = RsyncChecksum.Sums.readHeader(in);
+            receive(index, target, sums, phase, buffer, sum);
+        }
+    }
+
+    private void receive(int index, Path target, RsyncChecksum.Sums sums, int phase, ByteBuffer buffer, byte[] sum)
+            throws IOException {
+        var entry = list.entries.get(index);
+        var md4 = RsyncChecksum.fileSum(seed);
+        IOException failure = null;
+        FileChannel basis = null;
+        FileChannel file = null;
+        Path temporary = null;
+        try {
+            if (sums.count > 0) {
+                basis = FileChannel.open(target, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+            }
+            temporary = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", "");
+            file = FileChannel.open(temporary, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            failure = e;
+        }
+        var data = buffer.array();
+        buffer.clear();
+        for (var token = in.readInt(); token != 0; token = in.readInt()) {
+            int length;
+            if (token > 0) {
+                if (token > CHUNK_SIZE) {
+                    throw new IOException("Invalid literal length " + token);
+                }
+                length = token;
+            } else {
+                var block = -(token + 1);
+                if (block >= sums.count) {
+                    throw new IOException("Invalid block " + block);
+                }
+                length = sums.length(block);
+            }
+            if (buffer.remaining() < length) {
+                failure = write(file, buffer, failure);
+            }
+            if (token > 0) {
+                in.readFully(data, buffer.position(), length);
+            } else if (failure == null) {
+                try {
+                    RsyncChecksum.read(basis, data, buffer.position(), length,
+                            (long) -(token + 1) * sums.blockLength);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            md4.update(data, buffer.position(), length);
+            buffer.position(buffer.position() + length);
+        }
+        failure = write(file, buffer, failure);
+        in.readFully(sum, 0, sum.length);
+        var digest = md4.digest();
+        for (var channel : new FileChannel[]{basis, file}) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        if (failure == null && Arrays.equals(digest, sum)) {
+            try {
+                var existing = status(target);
+                var mode = options.perms ? entry.mode
+                        : existing != null ? existing.permissions() : entry.mode & 0777 & ~DEFAULT_UMASK;
+                restore(temporary, entry, mode, options.times);
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (temporary != null) {
+            Files.deleteIfExists(temporary);
+        }
+        if (failure != null) {
+            report("rsync: failed to receive \"" + entry.name + "\": " + BuiltinCommand.describe(failure));
+        } else if (phase == 0) {
+            out.message(RsyncOutput.MSG_INFO,
+                    "WARNING: " + entry.name + " failed verification -- update discarded (will try again).\n");
+            redo.add(index);
+        } else {
+            report("ERROR: " + entry.name + " failed verification -- update discarded.");
+        }
+    }
+
+    /**
+     * Writes the buffered data to the file unless writing failed before, returns the failure
+     */
+    private static IOException write(FileChannel file, ByteBuffer buffer, IOException failure) {
+        buffer.flip();
+        try {
+            while (failure == null && buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        buffer.clear();
+        return failure;
+    }
+
+    /**
+     * Sets the permissions, unless {@code mode} is -1, and the modification time of the entry,
+     * where the file system keeps them
+     */
+    private static void restore(Path path, RsyncFileList.Entry entry, int mode, boolean times) throws IOException {
+        if (mode != -1 && FileStatus.POSIX_VIEW && !entry.isSymbolicLink()) {
+            var permissions = EnumSet.noneOf(PosixFilePermission.class);
+            for (var permission : PosixFilePermission.values()) {
+                if ((mode & (0400 >> permission.ordinal())) != 0) {
+                    permissions.add(permission);
+                }
+            }
+            try {
+                Files.setPosixFilePermissions(path, permissions);
+            } catch (UnsupportedOperationException | IOException e) {
+                // Such as on emulated external storage
+            }
+        }
+        if (times && !entry.isSymbolicLink()) {
+            Files.setLastModifiedTime(path, FileTime.from(entry.mtime, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Deletes what the directories of the list hold beyond the list, except what the filter
+     * protects, unless the sender could not read all of its files
+     */
+    private void delete(RsyncFilter filter) throws IOException {
+        if (list.ioError != 0 && !options.ignoreErrors) {
+            out.message(RsyncOutput.MSG_INFO, "IO error encountered -- skipping file deletion\n");
+            return;
+        }
+        var names = new HashSet<String>();
+        for (var entry : list.entries) {
+            names.add(entry.name);
+        }
+        for (var entry : list.entries) {
+            var directory = entry.isDirectory() ? target(entry) : null;
+            if (directory == null || !Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+                continue;
+            }
+            try (var children = Files.newDirectoryStream(directory)) {
+                for (var child : children) {
+                    var name = entry.name.equals(".") ? child.getFileName().toString()
+                            : entry.name + "/" + child.getFileName();
+                    if (names.contains(name) || (!options.deleteExcluded
+                            && filter.protects(name, Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)))) {
+                        continue;
+                    }
+                    delete(child, name);
+                }
+            } catch (IOException e) {
+                report("rsync: opendir \"" + entry.name + "\" failed: " + BuiltinCommand.describe(e));
+            }
+        }
+    }
+
+    /**
+     * Deletes the file or tree, without following links
+     */
+    private void delete(Path path, String name) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                remove(file, false);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                report("rsync: delete_file: " + relative(file) + ": " + BuiltinCommand.describe(e));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                remove(directory, true);
+                return FileVisitResult.CONTINUE;
+            }
+
+            private void remove(Path file, boolean directory) throws IOException {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    report("rsync: delete_file: " + relative(file) + ": " + BuiltinCommand.describe(e));
+                    return;
+                }
+                if (options.verbose > 0) {
+                    // Names of directories end with a null character
+                    out.message(RsyncOutput.MSG_DELETED, relative(file) + (directory ? "\0" : ""));
+                }
+            }
+
+            private String relative(Path file) {
+                return file.equals(path) ? name : name + "/" + path.relativize(file);
+            }
+        });
+    }
+
+    /**
+     * Reports a file that could not be updated, the transfer goes on without it
+     */
+    private void report(String message) throws IOException {
+        failed = true;
+        out.message(RsyncOutput.MSG_ERROR, message + "\n");
+    }
+
+    private int take() throws IOException {
+        try {
+            return redo.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.sshdaemon.sshd.builtin;
+
+import static com.sshdaemon.sshd.builtin.RsyncCommand.CHUNK_SIZE;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.ITEM_BASIS_TYPE_FOLLOWS;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.ITEM_TRANSFER;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.ITEM_XNAME_FOLLOWS;
+import static com.sshdaemon.sshd.builtin.RsyncCommand.NDX_DONE;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending side of a transfer from the daemon: sends the file list, then for each file the client
+ * asks for, the delta against the block checksums of the client's copy. Files that fit in memory
+ * are scanned at once, larger ones in regions scanned in parallel while the whole file digest is
+ * computed alongside.
+ */
+final class RsyncSender {
+
+    // Files up to this size are read into memory and scanned on the connection's thread
+    static final int MEMORY_FILE_SIZE = 8 * 1024 * 1024;
+    // Larger files are scanned in regions of this size on the executor
+    static final int REGION_SIZE = 4 * 1024 * 1024;
+
+    private static final int WINDOW_REGIONS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_PHASE = 2;
+
+    private final RsyncOptions options;
+    private final List<Path> paths;
+    private final RsyncInput in;
+    private final RsyncOutput out;
+    private final int seed;
+    private final Executor executor;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private RsyncFilter filter;
+    private int ioError;
+
+    RsyncSender(RsyncOptions options, List<Path> paths, RsyncInput in, RsyncOutput out, int seed, Executor executor) {
+        this.options = options;
+        this.paths = paths;
+        this.in = in;
+        this.out = out;
+        this.seed = seed;
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the transfer, returns the exit code
+     */
+    int run() throws IOException {
+        filter = RsyncFilter.read(in);
+        var list = new RsyncFileList(build());
+        list.ioError = options.ignoreErrors ? 0 : ioError;
+        list.write(out, options);
+        sendFiles(list);
+        var totalSize = 0L;
+        for (var entry : list.entries) {
+            totalSize += entry.isDirectory() ? 0 : entry.size;
+        }
+        out.writeLong(in.getRead());
+        out.writeLong(out.getWritten());
+        out.writeLong(totalSize);
+        // Times taken to build and send the list, which the client only shows
+        out.writeLong(0);
+        out.writeLong(0);
+        out.flush();
+        if (in.readInt() != NDX_DONE) {
+            throw new IOException("Invalid final message");
+        }
+        return ioError != 0 ? RsyncCommand.EXIT_PARTIAL : 0;
+    }
+
+    /**
+     * Lists the sources: a directory named with a trailing slash stands for its content, others
+     * for themselves
+     */
+    private List<RsyncFileList.Entry> build() throws IOException {
+        var entries = new ArrayList<RsyncFileList.Entry>();
+        for (var i = 0; i < paths.size(); i++) {
+            var operand = options.paths.get(i);
+            var path = paths.get(i);
+            FileStatus status;
+            try {
+                status = FileStatus.read(path);
+            } catch (IOException e) {
+                failed("link_stat \"" + operand + "\" failed", e);
+                continue;
+            }
+            var content = operand.endsWith("/") || operand.equals(".") || operand.endsWith("/.");
+            if (status.isDirectory() && content) {
+                if (!options.recursive && !options.dirs) {
+                    out.message(RsyncOutput.MSG_INFO, "skipping directory .\n");
+                    continue;
+                }
+                entries.add(entry(".", path, status, true));
+                addContent(entries, ".", path);
+            } else {
+                add(entries, path.getFileName().toString(), path, status, true);
+            }
+        }
+        return entries;
+    }
+
+    private void add(List<RsyncFileList.Entry> entries, String name, Path path, FileStatus status, boolean top)
+            throws IOException {
+        if (filter.excludes(name, status.isDirectory())) {
+            return;
+        }
+        if (status.isDirectory()) {
+            if (!options.recursive && !options.dirs) {
+                out.message(RsyncOutput.MSG_INFO, "skipping directory " + name + "\n");
+                return;
+            }
+            entries.add(entry(name, path, status, top));
+            if (options.recursive) {
+                addContent(entries, name, path);
+            }
+        } else if (status.isSymbolicLink()) {
+            if (!options.links) {
+                out.message(RsyncOutput.MSG_INFO, "skipping non-regular file \"" + name + "\"\n");
+                return;
+            }
+            entries.add(entry(name, path, status, top));
+        } else if (status.isRegularFile()) {
+            entries.add(entry(name, path, status, top));
+        }
+        // Devices, pipes and sockets cannot be created on the other side by an unprivileged user
+    }
+
+    private void addContent(List<RsyncFileList.Entry> entries, String name, Path directory) throws IOException {
+        var children = new ArrayList<Path>();
+        try (var stream = Files.newDirectoryStream(directory)) {
+            for (var child : stream) {
+                children.add(child);
+            }
+        } catch (IOException e) {
+            failed("opendir \"" + name + "\" failed", e);
+            return;
+        }
+        for (var child : children) {
+            var childName = name.equals(".") ? child.getFileName().toString() : name + "/" + child.getFileName();
+            try {
+                add(entries, childName, child, FileStatus.read(child), false);
+            } catch (IOException e) {
+                failed("readlink_stat \"" + childName + "\" failed", e);
+            }
+        }
+    }
+
+    private static RsyncFileList.Entry entry(String name, Path path, FileStatus status, boolean top)
+            throws IOException {
+        var link = status.isSymbolicLink() ? Files.readSymbolicLink(path).toString() : null;
+        return new RsyncFileList.Entry(name, status.mode, status.size, status.modified.to(TimeUnit.SECONDS),
+                Math.max(status.uid, 0), Math.max(status.gid, 0), link, top, path);
+    }
+
+    /**
+     * Answers the requests of the client's generator until it ends the last phase
+     */
+    private void sendFiles(RsyncFileList list) throws IOException {
+        var phase = 0;
+        while (true) {
+            // What is written waits in the buffer only while more requests are coming
+            if (!in.hasInput()) {
+                out.flush();
+            }
+            var index = in.readInt();
+            if (index == NDX_DONE) {
+                if (++phase > MAX_PHASE) {
+                    break;
+                }
+                out.writeInt(NDX_DONE);
+                continue;
+            }
+            if (index < 0 || index >= list.entries.size()) {
+                throw new IOException("Invalid file index " + index);
+            }
+            var flags = in.readShort();
+            var basisType = (flags & ITEM_BASIS_TYPE_FOLLOWS) != 0 ? in.readByte() : 0;
+            var alternateName = (flags & ITEM_XNAME_FOLLOWS) != 0 ? in.readVstring() : null;
+            if ((flags & ITEM_TRANSFER) == 0) {
+                writeRequest(index, flags, basisType, alternateName);
+                continue;
+            }
+            var sums = RsyncChecksum.Sums.read(in);
+            var entry = list.entries.get(index);
+            if (!entry.isRegularFile()) {
+                throw new IOException("Attempt to transfer a non-regular file: " + entry.name);
+            }
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(entry.path, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                failed("send_files failed to open \"" + entry.name + "\"", e);
+                continue;
+            }
+            try (channel) {
+                writeRequest(index, flags, basisType, alternateName);
+                sums.writeHeader(out);
+                send(channel, sums);
+            }
+        }
+        out.writeInt(NDX_DONE);
+    }
+
+    private void writeRequest(int index, int flags, int basisType, byte[] alternateName) throws IOException {
+        out.writeInt(index);
+        out.writeShort(flags);
+        if ((flags & ITEM_BASIS_TYPE_FOLLOWS) != 0) {
+            out.writeByte(basisType);
+        }
+        if (alternateName != null) {
+            out.writeVstring(alternateName);
+        }
+    }
+
+    /**
+     * Sends the file as tokens of literal data and matched blocks, then its digest
+     */
+    private void send(FileChannel channel, RsyncChecksum.Sums sums) throws IOException {
+        var size = channel.size();
+        byte[] digest;
+        if (sums.count == 0) {
+            var md4 = RsyncChecksum.fileSum(seed);
+            for (var position = 0L; position < size; position += CHUNK_SIZE) {
+                var length = (int) Math.min(CHUNK_SIZE, size - position);
+                RsyncChecksum.read(channel, chunk, 0, length, position);
+                md4.update(chunk, 0, length);
+                out.writeInt(length);
+                out.write(chunk, 0, length);
+            }
+            digest = md4.digest();
+        } else if (size <= MEMORY_FILE_SIZE) {
+            var data = new byte[(int) size];
+            RsyncChecksum.read(channel, data, 0, data.length, 0);
+            var matches = new RsyncMatcher(sums, seed).scan(data, 0, data.length, data.length, 0);
+            var end = 0;
+            for (var i = 0; i < matches.size; i++) {
+                var offset = (int) matches.offsets[i];
+                writeLiteral(data, end, offset - end);
+                out.writeInt(-(matches.blocks[i] + 1));
+                end = offset + sums.length(matches.blocks[i]);
+            }
+            writeLiteral(data, end, data.length - end);
+            var md4 = RsyncChecksum.fileSum(seed);
+            md4.update(data, 0, data.length);
+            digest = md4.digest();
+        } else {
+            digest = sendRegions(channel, size, sums);
+        }
+        out.writeInt(0);
+        out.write(digest, 0, digest.length);
+    }
+
+    private void writeLiteral(byte[] data, int offset, int length) throws IOException {
+        for (var end = offset + length; offset < end; offset += CHUNK_SIZE) {
+            var count = Math.min(CHUNK_SIZE, end - offset);
+            out.writeInt(count);
+            out.write(data, offset, count);
+        }
+    }
+
+    /**
+     * Scans the regions of a large file in parallel and sends their matches in order, a match
+     * overlapping one already sent is dropped and its range sent as literal data
+     */
+    private byte[] sendRegions(FileChannel channel, long size, RsyncChecksum.Sums sums) throws IOException {
+        var digest = CompletableFuture.supplyAsync(() -> digest(channel, size), executor);
+        var matcher = new RsyncMatcher(sums, seed);
+        var window = new ArrayDeque<CompletableFuture<RsyncMatcher.Matches>>();
+        var next = 0L;
+        var end = 0L;
+        while (next < size || !window.isEmpty()) {
+            while (next < size && window.size() < WINDOW_REGIONS) {
+                var start = next;
+                var regionMatcher = matcher.copy();
+                window.add(CompletableFuture.supplyAsync(() -> scan(channel, size, sums, regionMatcher, start),
+                        executor));
+                next += REGION_SIZE;
+            }
+            var matches = join(window.poll());
+            for (var i = 0; i < matches.size; i++) {
+                var offset = matches.offsets[i];
+                if (offset < end) {
+                    continue;
+                }
+                writeLiteral(channel, end, offset - end);
+                out.writeInt(-(matches.blocks[i] + 1));
+                end = offset + sums.length(matches.blocks[i]);
+            }
+        }
+        writeLiteral(channel, end, size - end);
+        return join(digest);
+    }
+
+    private static RsyncMatcher.Matches scan(FileChannel channel, long size, RsyncChecksum.Sums sums,
+                                             RsyncMatcher matcher, long start) {
+        var to = (int) Math.min(REGION_SIZE, size - start);
+        // Blocks starting near the end of the region reach into the next one
+        var data = new byte[(int) Math.min((long) to + sums.blockLength, size - start)];
+        try {
+            RsyncChecksum.read(channel, data, 0, data.length, start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return matcher.scan(data, 0, to, data.length, start);
+    }
+
+    private byte[] digest(FileChannel channel, long size) {
+        var md4 = RsyncChecksum.fileSum(seed);
+        var buffer = new byte[REGION_SIZE / 16];
+        try {
+            for (var position = 0L; position < size; position += buffer.length) {
+                var length = (int) Math.min(buffer.length, size - position);
+                RsyncChecksum.read(channel, buffer, 0, length, position);
+                md4.update(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return md4.digest();
+    }
+
+    private void writeLiteral(FileChannel channel, long offset, long length) throws IOException {
+        for (var end = offset + length; offset < end; offset += CHUNK_SIZE) {
+            var count = (int) Math.min(CHUNK_SIZE, end - offset);
+            RsyncChecksum.read(channel, chunk, 0, count, offset);
+            out.writeInt(count);
+            out.write(chunk, 0, count);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reports a file that cannot be sent, the transfer goes on without it
+     */
+    private void failed(String message, IOException e) throws IOException {
+        ioError = 1;
+        out.message(RsyncOutput.MSG_ERROR, "rsync: " + message + ": " + BuiltinCommand.describe(e) + "\n");
+    }
+}
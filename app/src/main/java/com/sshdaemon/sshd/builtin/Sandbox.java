@@ -0,0 +1,82 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Directory tree builtin commands are confined to. Relative operands are resolved against its root,
+ * which is also the working directory of the shells of exec channels. Operands leaving the tree,
+ * through {@code ..} or through a symbolic link, are not resolved, so the command is left to the
+ * shell.
+ */
+public final class Sandbox {
+
+    private final Path root;
+    private final Path realRoot;
+
+    public Sandbox(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        Path realRoot;
+        try {
+            realRoot = this.root.toRealPath();
+        } catch (IOException e) {
+            realRoot = this.root;
+        }
+        this.realRoot = realRoot;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the path the operand names, or {@code null} if it might lead out of the tree
+     */
+    Path resolve(String operand) {
+        if (operand.isEmpty()) {
+            return null;
+        }
+        for (var segment : operand.split("/")) {
+            if (segment.equals("..")) {
+                return null;
+            }
+        }
+        var path = root.resolve(operand).normalize();
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        // Paths yet to be created are checked through their closest existing parent
+        var existing = path;
+        while (!Files.exists(existing, LinkOption.NOFOLLOW_LINKS) && !existing.equals(root)) {
+            existing = existing.getParent();
+        }
+        try {
+            if (!existing.toRealPath().startsWith(realRoot)) {
+                return null;
+            }
+        } catch (IOException e) {
+            // Dangling or unreadable link
+            return existing.equals(root) ? path : null;
+        }
+        return path;
+    }
+
+    /**
+     * Returns the paths the operands name, or {@code null} if any of them might lead out of the tree
+     */
+    List<Path> resolveAll(List<String> operands) {
+        var paths = new ArrayList<Path>(operands.size());
+        for (var operand : operands) {
+            var path = resolve(operand);
+            if (path == null) {
+                return null;
+            }
+            paths.add(path);
+        }
+        return paths;
+    }
+}
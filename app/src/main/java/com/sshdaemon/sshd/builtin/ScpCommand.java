@@ -0,0 +1,545 @@
+package com.sshdaemon.sshd.builtin;
+
+import com.sshdaemon.util.BufferPool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code scp -f|-t [-r] [-p] [-d] [-v] PATH...}, the remote side of the legacy scp protocol the
+ * scp client starts over ssh: {@code -f} sends the files to the client, {@code -t} receives them
+ * into the target. File data moves between the file's channel and the channel's streams through
+ * pooled buffers, bypassing the output buffer of the builtin. Uploads are refused while the tree
+ * is read-only.
+ */
+final class ScpCommand extends BuiltinCommand {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final BufferPool BUFFERS = new BufferPool(BUFFER_SIZE, 16, false);
+    // Control records longer than a name could be are not sent by the client
+    private static final int MAX_LINE_LENGTH = 8192;
+    // Permissions of new files without -p, as the default umask leaves them
+    private static final int DEFAULT_UMASK = 022;
+    private static final int FILE_MODE_MASK = 07777;
+
+    private final boolean sink;
+    private final boolean recursive;
+    private final boolean preserve;
+    private final boolean targetDirectory;
+    private final boolean readOnly;
+    private final List<String> operands;
+    private final List<Path> paths;
+    private boolean failed;
+    private boolean stopped;
+
+    private ScpCommand(Sandbox sandbox, BuiltinCommands.Invocation invocation, boolean readOnly, List<String> operands,
+                       List<Path> paths) {
+        super("scp", sandbox);
+        this.sink = invocation.has('t');
+        this.recursive = invocation.has('r');
+        this.preserve = invocation.has('p');
+        this.targetDirectory = invocation.has('d');
+        this.readOnly = readOnly;
+        this.operands = operands;
+        this.paths = paths;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it is not the remote side of a copy or names paths
+     * outside the sandbox
+     *
+     * @param readOnly whether uploads are refused
+     */
+    static ScpCommand parse(Sandbox sandbox, List<String> args, boolean readOnly) {
+        var invocation = BuiltinCommands.parseFlags(args, "tfrpdv");
+        if (invocation == null || invocation.has('t') == invocation.has('f') || invocation.operands.isEmpty()
+                || (invocation.has('t') && invocation.operands.size() > 1)) {
+            return null;
+        }
+        var operands = new ArrayList<String>();
+        for (var operand : invocation.operands) {
+            // The client asks for its home directory with an empty path
+            operands.add(operand.isEmpty() ? "." : operand);
+        }
+        var paths = sandbox.resolveAll(operands);
+        if (paths == null) {
+            return null;
+        }
+        return new ScpCommand(sandbox, invocation, readOnly, operands, paths);
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var input = new BufferedInputStream(in);
+        if (sink) {
+            receive(input, out);
+        } else if (response(input, out)) {
+            for (var i = 0; i < paths.size() && !stopped; i++) {
+                var path = paths.get(i);
+                var name = path.getFileName() != null ? path.getFileName().toString() : ".";
+                send(input, out, path, operands.get(i), name);
+            }
+        }
+        return failed ? 1 : 0;
+    }
+
+    /**
+     * Sends a file or, with {@code -r}, a directory tree
+     *
+     * @param operand path of the file as messages show it
+     * @param name    name of the file as the receiving side gets it
+     */
+    private void send(InputStream in, OutputStream out, Path path, String operand, String name) throws IOException {
+        if (isDestroyed()) {
+            stopped = true;
+            return;
+        }
+        FileStatus status;
+        try {
+            status = FileStatus.read(path);
+            if (status.isSymbolicLink()) {
+                // Links are followed, as long as they stay in the tree
+                if (!isInside(path)) {
+                    reject(out, operand + ": Permission denied");
+                    return;
+                }
+                status = FileStatus.read(path.toRealPath());
+            }
+        } catch (IOException e) {
+            reject(out, operand + ": " + describe(e));
+            return;
+        }
+        if (name.indexOf('\n') >= 0) {
+            reject(out, operand + ": name contains a newline");
+        } else if (status.isDirectory()) {
+            if (!recursive) {
+                reject(out, operand + ": not a regular file");
+                return;
+            }
+            sendDirectory(in, out, path, operand, name, status);
+        } else if (status.isRegularFile()) {
+            sendFile(in, out, path, operand, name, status);
+        } else {
+            reject(out, operand + ": not a regular file");
+        }
+    }
+
+    private void sendDirectory(InputStream in, OutputStream out, Path directory, String operand, String name,
+                               FileStatus status) throws IOException {
+        var children = new ArrayList<Path>();
+        try (var stream = Files.newDirectoryStream(directory)) {
+            for (var child : stream) {
+                children.add(child);
+            }
+        } catch (IOException e) {
+            reject(out, operand + ": " + describe(e));
+            return;
+        }
+        if (preserve && !sendTimes(in, out, status)) {
+            return;
+        }
+        if (!header(in, out, String.format("D%04o 0 %s\n", status.mode & FILE_MODE_MASK, name))) {
+            return;
+        }
+        children.sort(null);
+        for (var child : children) {
+            if (stopped) {
+                return;
+            }
+            var childName = child.getFileName().toString();
+            send(in, out, child, operand + "/" + childName, childName);
+        }
+        header(in, out, "E\n");
+    }
+
+    private void sendFile(InputStream in, OutputStream out, Path path, String operand, String name,
+                          FileStatus status) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            reject(out, operand + ": " + describe(e));
+            return;
+        }
+        try (channel) {
+            if (preserve && !sendTimes(in, out, status)) {
+                return;
+            }
+            var size = status.size;
+            if (!header(in, out, String.format("C%04o %d %s\n", status.mode & FILE_MODE_MASK, size, name))) {
+                return;
+            }
+            IOException failure = null;
+            var buffer = BUFFERS.acquire();
+            try {
+                var data = buffer.array();
+                for (var position = 0L; position < size; ) {
+                    var length = (int) Math.min(data.length, size - position);
+                    buffer.clear().limit(length);
+                    if (failure == null) {
+                        try {
+                            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+                                // Until the chunk is full or the file ends
+                            }
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                    // The size is announced, a file shrinking meanwhile is padded and reported
+                    if (buffer.hasRemaining()) {
+                        if (failure == null) {
+                            failure = new IOException("file has shrunk");
+                        }
+                        Arrays.fill(data, buffer.position(), length, (byte) 0);
+                    }
+                    out.write(data, 0, length);
+                    position += length;
+                }
+            } finally {
+                BUFFERS.release(buffer);
+            }
+            if (failure != null) {
+                reject(out, operand + ": " + describe(failure));
+            } else {
+                out.write(0);
+                out.flush();
+            }
+            response(in, out);
+        }
+    }
+
+    private boolean sendTimes(InputStream in, OutputStream out, FileStatus status) throws IOException {
+        return header(in, out, "T" + status.modified.to(TimeUnit.SECONDS) + " 0 "
+                + status.accessed.to(TimeUnit.SECONDS) + " 0\n");
+    }
+
+    /**
+     * Writes a control record and reads the answer, returns whether the other side accepted it
+     */
+    private boolean header(InputStream in, OutputStream out, String record) throws IOException {
+        out.write(record.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return response(in, out);
+    }
+
+    /**
+     * Reads the answer of the other side: a zero byte, or a message with a one for an error and a
+     * two for a fatal error
+     */
+    private boolean response(InputStream in, OutputStream out) throws IOException {
+        var code = in.read();
+        if (code == 0) {
+            return true;
+        }
+        if (code < 0) {
+            throw new EOFException("lost connection");
+        }
+        var message = readLine(in, out);
+        if (code != 1 && code != 2) {
+            printError(name + ": protocol error: " + (char) code + message);
+            stopped = true;
+        } else if (code == 2 && message != null) {
+            printError(message);
+            stopped = true;
+        }
+        failed = true;
+        return false;
+    }
+
+    /**
+     * Receives files into the target until the client is done
+     */
+    private void receive(InputStream in, OutputStream out) throws IOException {
+        var target = paths.get(0);
+        if (readOnly) {
+            fatal(out, "Read-only file system");
+            return;
+        }
+        if (targetDirectory && !Files.isDirectory(target)) {
+            fatal(out, operands.get(0) + ": Not a directory");
+            return;
+        }
+        acknowledge(out);
+        receive(in, out, target, operands.get(0));
+    }
+
+    /**
+     * Receives files into the directory, or onto the file, up to the end of the directory
+     */
+    private void receive(InputStream in, OutputStream out, Path target, String operand) throws IOException {
+        var directory = Files.isDirectory(target);
+        FileTime modified = null;
+        while (!stopped) {
+            var line = readLine(in, out);
+            if (line == null) {
+                return;
+            }
+            if (line.isEmpty()) {
+                fatal(out, "protocol error: expected control record");
+                return;
+            }
+            switch (line.charAt(0)) {
+                case '\1':
+                case '\2':
+                    // The client could not send a file, or gives up
+                    failed = true;
+                    stopped = line.charAt(0) == '\2';
+                    continue;
+                case 'E':
+                    acknowledge(out);
+                    return;
+                case 'T':
+                    modified = parseTime(line);
+                    if (modified == null) {
+                        fatal(out, "protocol error: mtime.sec not delimited");
+                        return;
+                    }
+                    acknowledge(out);
+                    continue;
+                case 'C':
+                case 'D':
+                    break;
+                default:
+                    fatal(out, "protocol error: expected control record");
+                    return;
+            }
+            var fields = line.substring(1).split(" ", 3);
+            int mode;
+            long size;
+            try {
+                mode = Integer.parseInt(fields[0], 8) & FILE_MODE_MASK;
+                size = Long.parseLong(fields[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                fatal(out, "protocol error: bad mode or size");
+                return;
+            }
+            var fileName = fields.length == 3 ? fields[2] : "";
+            if (fields[0].length() != 4 || size < 0 || fileName.isEmpty() || fileName.contains("/")
+                    || fileName.equals(".") || fileName.equals("..")) {
+                fatal(out, "error: unexpected filename: " + fileName);
+                return;
+            }
+            var path = directory ? target.resolve(fileName) : target;
+            var display = directory ? operand + "/" + fileName : operand;
+            if (line.charAt(0) == 'D') {
+                if (!recursive) {
+                    fatal(out, "received directory without -r");
+                    return;
+                }
+                receiveDirectory(in, out, path, display, mode, modified);
+            } else {
+                receiveFile(in, out, path, display, mode, size, modified);
+            }
+            modified = null;
+        }
+    }
+
+    private void receiveDirectory(InputStream in, OutputStream out, Path path, String display, int mode,
+                                  FileTime modified) throws IOException {
+        var created = false;
+        try {
+            if (!isInside(path)) {
+                throw new IOException("Permission denied");
+            }
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createDirectory(path);
+                created = true;
+            } else if (!Files.isDirectory(path)) {
+                throw new IOException("Not a directory");
+            }
+        } catch (IOException e) {
+            // The client skips the directory's contents
+            reject(out, display + ": " + describe(e));
+            return;
+        }
+        acknowledge(out);
+        receive(in, out, path, display);
+        if (preserve || created) {
+            setPermissions(path, mode);
+        }
+        if (modified != null && preserve) {
+            try {
+                Files.setLastModifiedTime(path, modified);
+            } catch (IOException e) {
+                reject(out, display + ": " + describe(e));
+            }
+        }
+    }
+
+    private void receiveFile(InputStream in, OutputStream out, Path path, String display, int mode, long size,
+                             FileTime modified) throws IOException {
+        FileChannel channel;
+        boolean existed;
+        try {
+            if (!isInside(path)) {
+                throw new IOException("Permission denied");
+            }
+            existed = Files.exists(path);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            // Rejected before any data is sent
+            reject(out, display + ": " + describe(e));
+            return;
+        }
+        IOException failure = null;
+        try (channel) {
+            acknowledge(out);
+            var buffer = BUFFERS.acquire();
+            try {
+                var data = buffer.array();
+                for (var position = 0L; position < size; ) {
+                    var count = in.read(data, 0, (int) Math.min(data.length, size - position));
+                    if (count < 0) {
+                        throw new EOFException("lost connection");
+                    }
+                    if (failure == null) {
+                        try {
+                            var chunk = ByteBuffer.wrap(data, 0, count);
+                            while (chunk.hasRemaining()) {
+                                channel.write(chunk, position + chunk.position());
+                            }
+                        } catch (IOException e) {
+                            // The data is read on to keep in step with the client
+                            failure = e;
+                        }
+                    }
+                    position += count;
+                }
+            } finally {
+                BUFFERS.release(buffer);
+            }
+            if (failure == null) {
+                try {
+                    channel.truncate(size);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        // The client tells whether it could read the whole file
+        response(in, out);
+        if (failure == null) {
+            try {
+                if (preserve || !existed) {
+                    setPermissions(path, preserve ? mode : mode & ~DEFAULT_UMASK);
+                }
+                if (modified != null && preserve) {
+                    Files.setLastModifiedTime(path, modified);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            reject(out, display + ": " + describe(failure));
+        } else {
+            acknowledge(out);
+        }
+    }
+
+    private static FileTime parseTime(String line) {
+        var fields = line.substring(1).split(" ");
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            return FileTime.from(Long.parseLong(fields[0]), TimeUnit.SECONDS);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the path stays in the tree, following links in it
+     */
+    private boolean isInside(Path path) {
+        var relative = sandbox.getRoot().relativize(path).toString();
+        return relative.isEmpty() || sandbox.resolve(relative) != null;
+    }
+
+    /**
+     * Sets the permissions where the file system keeps them
+     */
+    private static void setPermissions(Path path, int mode) {
+        if (!FileStatus.POSIX_VIEW) {
+            return;
+        }
+        var permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (var permission : PosixFilePermission.values()) {
+            if ((mode & (0400 >> permission.ordinal())) != 0) {
+                permissions.add(permission);
+            }
+        }
+        try {
+            Files.setPosixFilePermissions(path, permissions);
+        } catch (UnsupportedOperationException | IOException e) {
+            // Such as on emulated external storage
+        }
+    }
+
+    /**
+     * Reads a line up to the newline, which is dropped, or {@code null} at the end of the input
+     */
+    private String readLine(InputStream in, OutputStream out) throws IOException {
+        var line = new ByteArrayOutputStream();
+        for (var c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("lost connection");
+            }
+            if (line.size() == MAX_LINE_LENGTH) {
+                fatal(out, "protocol error: control record too long");
+                return null;
+            }
+            line.write(c);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void acknowledge(OutputStream out) throws IOException {
+        out.write(0);
+        out.flush();
+    }
+
+    /**
+     * Tells the other side a file failed, the transfer goes on
+     */
+    private void reject(OutputStream out, String message) throws IOException {
+        failed = true;
+        out.write(1);
+        out.write(("scp: " + message + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Tells the other side the transfer cannot go on
+     */
+    private void fatal(OutputStream out, String message) throws IOException {
+        failed = true;
+        stopped = true;
+        out.write(2);
+        out.write(("scp: " + message + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -0,0 +1,98 @@
+package com.sshdaemon.sshd.builtin;
+
+import com.sshdaemon.sftp.ContentHashIndex;
+import com.sshdaemon.sftp.FileHasher;
+
+import org.apache.sshd.common.digest.BuiltinDigests;
+import org.apache.sshd.common.util.buffer.BufferUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * {@code sha256sum FILE...}, taking digests of unchanged files from the content hash index the
+ * SFTP check-file extension fills as well
+ */
+final class Sha256sumCommand extends BuiltinCommand {
+
+    private final List<String> operands;
+    private final List<Path> files;
+    private final ContentHashIndex hashIndex;
+    private final FileHasher hasher;
+
+    private Sha256sumCommand(Sandbox sandbox, List<String> operands, List<Path> files, ContentHashIndex hashIndex,
+                             FileHasher hasher) {
+        super("sha256sum", sandbox);
+        this.operands = operands;
+        this.files = files;
+        this.hashIndex = hashIndex;
+        this.hasher = hasher;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it takes options or reads its input
+     */
+    static Sha256sumCommand parse(Sandbox sandbox, List<String> args, ContentHashIndex hashIndex,
+                                  FileHasher hasher) {
+        var invocation = BuiltinCommands.parseFlags(args, "");
+        if (invocation == null || invocation.operands.isEmpty()) {
+            return null;
+        }
+        var files = sandbox.resolveAll(invocation.operands);
+        return files != null ? new Sha256sumCommand(sandbox, invocation.operands, files, hashIndex, hasher) : null;
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var exitCode = 0;
+        for (var i = 0; i < files.size() && !isDestroyed(); i++) {
+            var file = files.get(i);
+            if (Files.isDirectory(file)) {
+                error(operands.get(i) + ": Is a directory");
+                exitCode = 1;
+                continue;
+            }
+            byte[] digest;
+            try {
+                digest = digest(file);
+            } catch (IOException e) {
+                error(operands.get(i), e);
+                exitCode = 1;
+                continue;
+            }
+            print(out, BufferUtils.toHex(BufferUtils.EMPTY_HEX_SEPARATOR, digest) + "  " + operands.get(i));
+        }
+        return exitCode;
+    }
+
+    private byte[] digest(Path file) throws IOException {
+        if (hashIndex != null && hasher != null && Files.isRegularFile(file)) {
+            return hashIndex.digest(file, BuiltinDigests.sha256.getName(), () -> {
+                try (var channel = FileChannel.open(file)) {
+                    return hasher.hash(channel, BuiltinDigests.sha256, 0, channel.size());
+                }
+            });
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        var buffer = new byte[OUTPUT_BUFFER_SIZE];
+        try (var input = Files.newInputStream(file)) {
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return digest.digest();
+    }
+}
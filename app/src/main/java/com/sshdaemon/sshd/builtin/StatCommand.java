@@ -0,0 +1,150 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code stat -c FORMAT FILE...}, printing the format for every file without following links. The
+ * default output differs between the stat of GNU, toybox and busybox, so only custom formats are
+ * run as builtin.
+ */
+final class StatCommand extends BuiltinCommand {
+
+    // Directives needing the unix attribute view, the others are served by the posix view
+    private static final String UNIX_DIRECTIVES = "ughiZ";
+    private static final String DIRECTIVES = "naAFsUGXY%" + UNIX_DIRECTIVES;
+
+    private final String format;
+    private final List<String> operands;
+    private final List<Path> files;
+
+    private StatCommand(Sandbox sandbox, String format, List<String> operands, List<Path> files) {
+        super("stat", sandbox);
+        this.format = format;
+        this.operands = operands;
+        this.files = files;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it has no format or one with unsupported directives
+     */
+    static StatCommand parse(Sandbox sandbox, List<String> args) {
+        String format = null;
+        var index = 0;
+        if (args.size() >= 2 && (args.get(0).equals("-c") || args.get(0).equals("--format"))) {
+            format = args.get(1);
+            index = 2;
+        } else if (!args.isEmpty() && args.get(0).startsWith("--format=")) {
+            format = args.get(0).substring("--format=".length());
+            index = 1;
+        }
+        if (format == null || !supported(format)) {
+            return null;
+        }
+        var invocation = BuiltinCommands.parseFlags(args.subList(index, args.size()), "");
+        if (invocation == null || invocation.operands.isEmpty()) {
+            return null;
+        }
+        var files = sandbox.resolveAll(invocation.operands);
+        return files != null ? new StatCommand(sandbox, format, invocation.operands, files) : null;
+    }
+
+    private static boolean supported(String format) {
+        if (!FileStatus.POSIX_VIEW) {
+            return false;
+        }
+        for (var i = 0; i < format.length(); i++) {
+            if (format.charAt(i) != '%') {
+                continue;
+            }
+            if (++i == format.length()) {
+                return false;
+            }
+            var directive = format.charAt(i);
+            if (DIRECTIVES.indexOf(directive) < 0
+                    || (UNIX_DIRECTIVES.indexOf(directive) >= 0 && !FileStatus.UNIX_VIEW)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        var exitCode = 0;
+        for (var i = 0; i < files.size() && !isDestroyed(); i++) {
+            FileStatus status;
+            try {
+                status = FileStatus.read(files.get(i));
+            } catch (IOException e) {
+                error("cannot stat '" + operands.get(i) + "': " + describe(e));
+                exitCode = 1;
+                continue;
+            }
+            print(out, format(status, operands.get(i)));
+        }
+        return exitCode;
+    }
+
+    private String format(FileStatus status, String operand) {
+        var text = new StringBuilder();
+        for (var i = 0; i < format.length(); i++) {
+            var c = format.charAt(i);
+            if (c != '%') {
+                text.append(c);
+                continue;
+            }
+            switch (format.charAt(++i)) {
+                case 'n':
+                    text.append(operand);
+                    break;
+                case 'a':
+                    text.append(Integer.toOctalString(status.permissions()));
+                    break;
+                case 'A':
+                    text.append(status.symbolicMode());
+                    break;
+                case 'F':
+                    text.append(status.typeName());
+                    break;
+                case 's':
+                    text.append(status.size);
+                    break;
+                case 'u':
+                    text.append(status.uid);
+                    break;
+                case 'U':
+                    text.append(status.owner);
+                    break;
+                case 'g':
+                    text.append(status.gid);
+                    break;
+                case 'G':
+                    text.append(status.group);
+                    break;
+                case 'h':
+                    text.append(status.links);
+                    break;
+                case 'i':
+                    text.append(status.inode);
+                    break;
+                case 'X':
+                    text.append(status.accessed.to(TimeUnit.SECONDS));
+                    break;
+                case 'Y':
+                    text.append(status.modified.to(TimeUnit.SECONDS));
+                    break;
+                case 'Z':
+                    text.append(status.changed.to(TimeUnit.SECONDS));
+                    break;
+                default:
+                    text.append('%');
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,715 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * {@code tar c|x [-v] [-f -] [-C DIR] [FILE...]}, streaming an archive to the channel or extracting
+ * one read from it. Small files are read, or written when extracting, in batches on the executor,
+ * which also writes the archive in the order of the walk while the walk goes on. A bounded window
+ * of batches limits the memory taken, larger files are copied in their turn. Archives are written
+ * in the POSIX ustar format with pax headers for long names, hard links to files already archived
+ * are kept as links.
+ */
+final class TarCommand extends BuiltinCommand {
+
+    // Files up to this size are read or written as a whole on the executor
+    static final int SMALL_FILE_SIZE = 1024 * 1024;
+    // Handing single small files to the executor would cost more than reading them
+    static final int BATCH_FILES = 64;
+    static final long BATCH_BYTES = 1024 * 1024;
+    // Batches read ahead of the archive, or waiting to be written, at most
+    static final int WINDOW_BATCHES = 8;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final boolean create;
+    private final boolean readOnly;
+    private final boolean verbose;
+    private final String directory;
+    private final List<String> operands;
+    private final List<Path> files;
+    private final Executor executor;
+    private final ArrayDeque<Batch> window = new ArrayDeque<>();
+    private final Set<Path> pending = new HashSet<>();
+    private Batch batch = new Batch();
+    private CompletableFuture<Void> archived = CompletableFuture.completedFuture(null);
+    private Path lastParent;
+    private long written;
+    private volatile int exitCode;
+
+    private TarCommand(Sandbox sandbox, boolean create, boolean readOnly, boolean verbose, String directory,
+                       List<String> operands, List<Path> files, Executor executor) {
+        super("tar", sandbox);
+        this.create = create;
+        this.readOnly = readOnly;
+        this.verbose = verbose;
+        this.directory = directory;
+        this.operands = operands;
+        this.files = files;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the command, or {@code null} if it reads or writes an archive file instead of the
+     * channel, selects members to extract, or has options other than {@code c}, {@code x},
+     * {@code v}, {@code p}, {@code f -} and {@code C DIR}, given in the old style as in
+     * {@code tar cf - DIR} or with dashes
+     *
+     * @param executor executor of the reads and writes of small files
+     * @param readOnly whether extracting is refused
+     */
+    static TarCommand parse(Sandbox sandbox, List<String> args, Executor executor, boolean readOnly) {
+        var mode = '\0';
+        var verbose = false;
+        String archive = null;
+        String directory = null;
+        var index = 0;
+        for (; index < args.size(); index++) {
+            var arg = args.get(index);
+            // The first argument holds the letters of the options without a dash in the old style
+            var oldStyle = index == 0 && !arg.startsWith("-");
+            if (arg.equals("--")) {
+                index++;
+                break;
+            }
+            if (!oldStyle && (!arg.startsWith("-") || arg.equals("-"))) {
+                break;
+            }
+            if (arg.startsWith("--")) {
+                return null;
+            }
+            var letters = oldStyle ? arg : arg.substring(1);
+            for (var i = 0; i < letters.length(); i++) {
+                var letter = letters.charAt(i);
+                switch (letter) {
+                    case 'c':
+                    case 'x':
+                        if (mode != '\0' && mode != letter) {
+                            return null;
+                        }
+                        mode = letter;
+                        break;
+                    case 'v':
+                        verbose = true;
+                        break;
+                    case 'p':
+                        // Permissions are always restored
+                        break;
+                    case 'f':
+                    case 'C':
+                        String value;
+                        if (!oldStyle && i + 1 < letters.length()) {
+                            value = letters.substring(i + 1);
+                            i = letters.length();
+                        } else if (index + 1 < args.size()) {
+                            value = args.get(++index);
+                        } else {
+                            return null;
+                        }
+                        if (letter == 'f' && archive == null) {
+                            archive = value;
+                        } else if (letter == 'C' && directory == null) {
+                            directory = value;
+                        } else {
+                            return null;
+                        }
+                        break;
+                    default:
+                        return null;
+                }
+            }
+        }
+        var operands = args.subList(index, args.size());
+        for (var operand : operands) {
+            if (operand.startsWith("-")) {
+                return null;
+            }
+        }
+        if (mode == '\0' || (archive != null && !archive.equals("-"))
+                || (mode == 'c' ? operands.isEmpty() : !operands.isEmpty())) {
+            return null;
+        }
+        var base = directory == null ? "" : directory.replaceAll("/+$", "") + "/";
+        if (directory != null) {
+            var resolved = sandbox.resolve(directory);
+            if (resolved == null || !Files.isDirectory(resolved)) {
+                return null;
+            }
+        }
+        var paths = new ArrayList<String>(operands.size());
+        for (var operand : operands) {
+            paths.add(operand.startsWith("/") ? operand : base + operand);
+        }
+        var files = sandbox.resolveAll(paths);
+        if (files == null) {
+            return null;
+        }
+        return new TarCommand(sandbox, mode == 'c', readOnly, verbose, base, operands, files, executor);
+    }
+
+    @Override
+    protected int execute(InputStream in, OutputStream out) throws IOException {
+        if (create) {
+            return archive(out);
+        }
+        if (readOnly) {
+            // As GNU tar fails on a read-only file system
+            error((directory.isEmpty() ? "." : directory) + ": Cannot open: Read-only file system");
+            error("Error is not recoverable: exiting now");
+            return 2;
+        }
+        return extract(new BufferedInputStream(in, COPY_BUFFER_SIZE), out);
+    }
+
+    /**
+     * Member of the archive, with the data of a small file
+     */
+    private static final class Member {
+        final TarHeader header;
+        final Path path;
+        byte[] data;
+        IOException failure;
+
+        Member(TarHeader header, Path path) {
+            this.header = header;
+            this.path = path;
+        }
+
+        boolean isSmall() {
+            return header.isRegularFile() && header.size <= SMALL_FILE_SIZE;
+        }
+    }
+
+    /**
+     * Consecutive members whose small files are read, or written, by one task
+     */
+    private static final class Batch {
+        final List<Member> members = new ArrayList<>();
+        long bytes;
+        CompletableFuture<Void> done;
+    }
+
+    /**
+     * Adds the member to the batch, which is handed to the executor once it is full
+     */
+    private void add(Member member, OutputStream out) throws IOException {
+        batch.members.add(member);
+        if (member.isSmall()) {
+            batch.bytes += member.header.size;
+        }
+        if (batch.members.size() >= BATCH_FILES || batch.bytes >= BATCH_BYTES) {
+            submit(out);
+            // Take in what is done, and wait for the oldest batch when the window is full
+            while (!window.isEmpty() && (window.size() > WINDOW_BATCHES || window.peek().done.isDone())) {
+                complete(window.poll());
+            }
+        }
+    }
+
+    private void submit(OutputStream out) {
+        if (batch.members.isEmpty()) {
+            return;
+        }
+        var submitted = batch;
+        submitted.done = CompletableFuture.runAsync(() -> transfer(submitted.members), executor);
+        if (create) {
+            // Batches are archived in order on the executor too, the walk goes on meanwhile
+            submitted.done = CompletableFuture.allOf(archived, submitted.done).thenRunAsync(() -> {
+                try {
+                    for (var member : submitted.members) {
+                        if (!isDestroyed()) {
+                            archive(member, out);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+            archived = submitted.done;
+        }
+        window.add(submitted);
+        batch = new Batch();
+    }
+
+    /**
+     * Reads, or writes, the small files of the members, keeping failures with the members
+     */
+    private void transfer(List<Member> members) {
+        for (var member : members) {
+            if (member.isSmall()) {
+                try {
+                    if (create) {
+                        member.data = Files.readAllBytes(member.path);
+                    } else {
+                        write(member.path, member.data, member.header);
+                    }
+                } catch (IOException e) {
+                    member.failure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits the batch and waits for all batches
+     */
+    private void completeAll(OutputStream out) throws IOException {
+        submit(out);
+        while (!window.isEmpty()) {
+            complete(window.poll());
+        }
+    }
+
+    /**
+     * Waits for the batch, reporting the files that could not be extracted
+     */
+    private void complete(Batch batch) throws IOException {
+        try {
+            batch.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                // The archive could not be written
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+        if (!create) {
+            for (var member : batch.members) {
+                pending.remove(member.path);
+                if (member.failure != null) {
+                    failed(member.header.name, member.failure);
+                }
+            }
+        }
+    }
+
+    private int archive(OutputStream out) throws IOException {
+        var links = new HashMap<Object, String>();
+        var leadingSlash = false;
+        for (var i = 0; i < files.size() && !isDestroyed(); i++) {
+            var name = operands.get(i);
+            if (name.startsWith("/")) {
+                leadingSlash = true;
+                name = name.replaceAll("^/+", "");
+                name = name.isEmpty() ? "." : name;
+            }
+            addTree(out, files.get(i), name, links);
+        }
+        if (leadingSlash) {
+            error("Removing leading `/' from member names");
+        }
+        completeAll(out);
+        if (isDestroyed()) {
+            return exitCode;
+        }
+        // End of archive, padded to a whole record
+        var end = new byte[2 * TarHeader.BLOCK_SIZE];
+        out.write(end);
+        written += end.length;
+        out.write(new byte[(int) ((TarHeader.RECORD_SIZE - written % TarHeader.RECORD_SIZE)
+                % TarHeader.RECORD_SIZE)]);
+        return exitCode;
+    }
+
+    /**
+     * Adds the file and, for a directory, everything below it to the archive
+     */
+    private void addTree(OutputStream out, Path path, String name, Map<Object, String> links) throws IOException {
+        if (isDestroyed()) {
+            return;
+        }
+        FileStatus status;
+        try {
+            status = FileStatus.read(path);
+        } catch (IOException e) {
+            failed(name, e);
+            return;
+        }
+        var header = new TarHeader();
+        header.name = status.isDirectory() && !name.endsWith("/") ? name + "/" : name;
+        header.mode = status.permissions();
+        header.uid = status.uid < 0 ? 0 : status.uid;
+        header.gid = status.gid < 0 ? 0 : status.gid;
+        header.mtime = status.modified.toMillis() / 1000;
+        header.owner = status.owner;
+        header.group = status.group;
+        if (status.isDirectory()) {
+            header.type = TarHeader.DIRECTORY;
+        } else if (status.isSymbolicLink()) {
+            header.type = TarHeader.SYMBOLIC_LINK;
+            try {
+                header.linkName = Files.readSymbolicLink(path).toString();
+            } catch (IOException e) {
+                failed(name, e);
+                return;
+            }
+        } else if (!status.isRegularFile()) {
+            error(name + ": " + status.typeName() + " ignored");
+            return;
+        } else if (status.links > 1 && status.fileKey != null && links.containsKey(status.fileKey)) {
+            header.type = TarHeader.HARD_LINK;
+            header.linkName = links.get(status.fileKey);
+        } else {
+            if (status.links > 1 && status.fileKey != null) {
+                links.put(status.fileKey, header.name);
+            }
+            header.size = status.size;
+        }
+        add(new Member(header, path), out);
+        if (status.isDirectory()) {
+            List<Path> children;
+            try (var stream = Files.newDirectoryStream(path)) {
+                children = new ArrayList<>();
+                stream.forEach(children::add);
+            } catch (IOException e) {
+                failed(name, e);
+                return;
+            }
+            var prefix = name.endsWith("/") ? name : name + "/";
+            for (var child : children) {
+                addTree(out, child, prefix + child.getFileName(), links);
+            }
+        }
+    }
+
+    /**
+     * Writes the member to the archive
+     */
+    private void archive(Member member, OutputStream out) throws IOException {
+        var header = member.header;
+        if (member.isSmall()) {
+            if (member.failure != null) {
+                failed(header.name, member.failure);
+                return;
+            }
+            var data = member.data;
+            member.data = null;
+            // The size read, in case the file changed since its status was read
+            header.size = data.length;
+            written += header.write(out);
+            out.write(data);
+            out.write(new byte[TarHeader.padding(data.length)]);
+            written += data.length + TarHeader.padding(data.length);
+        } else if (header.size > 0) {
+            try (var channel = FileChannel.open(member.path)) {
+                written += header.write(out);
+                copy(channel, out, header);
+            } catch (IOException e) {
+                failed(header.name, e);
+                return;
+            }
+        } else {
+            written += header.write(out);
+        }
+        if (verbose) {
+            printError(header.name);
+        }
+    }
+
+    /**
+     * Copies the data of a large file, padding it with zeros if it has shrunk since its status was
+     * read. Once the header is written, the archive can only be completed this way.
+     */
+    private void copy(FileChannel channel, OutputStream out, TarHeader header) throws IOException {
+        var buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        var remaining = header.size;
+        try {
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                var count = channel.read(buffer);
+                if (count < 0 || isDestroyed()) {
+                    break;
+                }
+                out.write(buffer.array(), 0, count);
+                remaining -= count;
+            }
+        } catch (IOException e) {
+            failed(header.name, e);
+        }
+        if (remaining > 0 && !isDestroyed()) {
+            error(header.name + ": File shrank by " + remaining + " bytes; padding with zeros");
+            exitCode = 1;
+        }
+        var zeros = new byte[COPY_BUFFER_SIZE];
+        for (var left = remaining + TarHeader.padding(header.size); left > 0; left -= zeros.length) {
+            out.write(zeros, 0, (int) Math.min(zeros.length, left));
+        }
+        written += header.size + TarHeader.padding(header.size);
+    }
+
+    private int extract(InputStream in, OutputStream out) throws IOException {
+        var block = new byte[TarHeader.BLOCK_SIZE];
+        var zeroBlocks = 0;
+        var directories = new ArrayList<Member>();
+        Map<String, String> extended = null;
+        String longName = null;
+        String longLink = null;
+        try {
+            while (!isDestroyed()) {
+                if (!readBlock(in, block)) {
+                    break;
+                }
+                var header = TarHeader.read(block);
+                if (header == null) {
+                    // Two blocks of zeros end the archive
+                    if (++zeroBlocks == 2) {
+                        break;
+                    }
+                    continue;
+                }
+                zeroBlocks = 0;
+                if (header.type == TarHeader.PAX || header.type == TarHeader.PAX_GLOBAL
+                        || header.type == TarHeader.GNU_LONG_NAME || header.type == TarHeader.GNU_LONG_LINK) {
+                    if (header.size > SMALL_FILE_SIZE) {
+                        throw new IOException("Invalid extended header size");
+                    }
+                    var data = readData(in, (int) header.size);
+                    if (header.type == TarHeader.PAX) {
+                        extended = TarHeader.parsePax(data);
+                    } else if (header.type == TarHeader.GNU_LONG_NAME) {
+                        longName = TarHeader.text(data);
+                    } else if (header.type == TarHeader.GNU_LONG_LINK) {
+                        longLink = TarHeader.text(data);
+                    }
+                    continue;
+                }
+                if (longName != null) {
+                    header.name = longName;
+                }
+                if (longLink != null) {
+                    header.linkName = longLink;
+                }
+                if (extended != null) {
+                    header.apply(extended);
+                }
+                extended = null;
+                longName = null;
+                longLink = null;
+                extractMember(in, out, header, directories);
+            }
+        } catch (EOFException e) {
+            error("Unexpected EOF in archive");
+            exitCode = 1;
+        } finally {
+            completeAll(out);
+        }
+        // Directories get their permissions and times once nothing is written to them anymore
+        for (var i = directories.size() - 1; i >= 0; i--) {
+            var directory = directories.get(i);
+            try {
+                restore(directory.path, directory.header);
+            } catch (IOException e) {
+                failed(directory.header.name, e);
+            }
+        }
+        return exitCode;
+    }
+
+    private void extractMember(InputStream in, OutputStream out, TarHeader header, List<Member> directories)
+            throws IOException {
+        var name = header.name.replaceAll("^/+", "");
+        var path = name.isEmpty() ? null : sandbox.resolve(directory + name);
+        var data = header.isRegularFile() ? header.size : 0;
+        if (path == null) {
+            error(header.name + ": Member name outside of the target directory, skipped");
+            exitCode = 1;
+            skip(in, data + TarHeader.padding(data));
+            return;
+        }
+        if (verbose) {
+            print(out, header.name);
+        }
+        if (pending.contains(path) || (!header.isRegularFile() && header.type != TarHeader.DIRECTORY)) {
+            // Files are written before they are replaced or linked to, and before links could
+            // redirect their paths
+            completeAll(out);
+        }
+        try {
+            switch (header.type) {
+                case TarHeader.DIRECTORY:
+                    if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        replace(path);
+                        Files.createDirectories(path);
+                    }
+                    directories.add(new Member(header, path));
+                    break;
+                case TarHeader.SYMBOLIC_LINK:
+                    replace(path);
+                    Files.createSymbolicLink(path, Paths.get(header.linkName));
+                    break;
+                case TarHeader.HARD_LINK:
+                    var target = sandbox.resolve(directory + header.linkName.replaceAll("^/+", ""));
+                    if (target == null) {
+                        throw new IOException("Link target outside of the target directory");
+                    }
+                    replace(path);
+                    Files.createLink(path, target);
+                    break;
+                default:
+                    if (!header.isRegularFile()) {
+                        error(header.name + ": Unsupported member type, skipped");
+                        exitCode = 1;
+                        skip(in, data + TarHeader.padding(data));
+                        return;
+                    }
+                    replace(path);
+                    if (header.size <= SMALL_FILE_SIZE) {
+                        var member = new Member(header, path);
+                        member.data = readData(in, (int) header.size);
+                        pending.add(path);
+                        add(member, out);
+                        return;
+                    }
+                    try (var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE)) {
+                        var buffer = new byte[COPY_BUFFER_SIZE];
+                        for (var remaining = header.size; remaining > 0; ) {
+                            var count = (int) Math.min(buffer.length, remaining);
+                            readFully(in, buffer, count);
+                            channel.write(ByteBuffer.wrap(buffer, 0, count));
+                            remaining -= count;
+                        }
+                    }
+                    skip(in, TarHeader.padding(header.size));
+                    restore(path, header);
+                    return;
+            }
+        } catch (EOFException e) {
+            throw e;
+        } catch (IOException e) {
+            failed(header.name, e);
+            if (header.isRegularFile()) {
+                skip(in, data + TarHeader.padding(data));
+            }
+        }
+    }
+
+    /**
+     * Removes what is in the way of a member, except directories which are merged into
+     */
+    private void replace(Path path) throws IOException {
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            Files.deleteIfExists(path);
+        } else {
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                // Not empty, left for the files in the archive below it
+            }
+        }
+        if (!path.getParent().equals(lastParent)) {
+            Files.createDirectories(path.getParent());
+            lastParent = path.getParent();
+        }
+    }
+
+    private static void write(Path path, byte[] content, TarHeader header) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            var buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        restore(path, header);
+    }
+
+    /**
+     * Restores the permissions and the modification time of the member, where the file system
+     * keeps them
+     */
+    private static void restore(Path path, TarHeader header) throws IOException {
+        if (FileStatus.POSIX_VIEW) {
+            var permissions = EnumSet.noneOf(PosixFilePermission.class);
+            for (var permission : PosixFilePermission.values()) {
+                if ((header.mode & (0400 >> permission.ordinal())) != 0) {
+                    permissions.add(permission);
+                }
+            }
+            try {
+                Files.setPosixFilePermissions(path, permissions);
+            } catch (UnsupportedOperationException | IOException e) {
+                // Such as on emulated external storage
+            }
+        }
+        Files.setLastModifiedTime(path, FileTime.fromMillis(header.mtime * 1000));
+    }
+
+    private void failed(String name, IOException e) {
+        error(name, e);
+        exitCode = 1;
+    }
+
+    private static byte[] readData(InputStream in, int size) throws IOException {
+        var data = new byte[size];
+        readFully(in, data, size);
+        skip(in, TarHeader.padding(size));
+        return data;
+    }
+
+    /**
+     * Reads a header block, returns {@code false} if the input ends right before it
+     */
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        var first = in.read(block, 0, block.length);
+        if (first < 0) {
+            return false;
+        }
+        if (first < block.length) {
+            readFully(in, block, first, block.length - first);
+        }
+        return true;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        readFully(in, buffer, 0, length);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            var count = in.read(buffer, offset, length);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private static void skip(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            var skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
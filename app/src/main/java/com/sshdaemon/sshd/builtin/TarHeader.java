@@ -0,0 +1,295 @@
+package com.sshdaemon.sshd.builtin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Header of a tar archive member in the POSIX ustar format. Names, link targets, sizes and ids
+ * that do not fit the ustar fields are written to a pax extended header before it, and read from
+ * pax as well as GNU long name headers.
+ */
+final class TarHeader {
+
+    static final int BLOCK_SIZE = 512;
+    // Archives are padded to records of 20 blocks as tar writes them
+    static final int RECORD_SIZE = 20 * BLOCK_SIZE;
+
+    static final byte REGULAR = '0';
+    static final byte OLD_REGULAR = 0;
+    static final byte HARD_LINK = '1';
+    static final byte SYMBOLIC_LINK = '2';
+    static final byte DIRECTORY = '5';
+    static final byte CONTIGUOUS = '7';
+    static final byte PAX = 'x';
+    static final byte PAX_GLOBAL = 'g';
+    static final byte GNU_LONG_NAME = 'L';
+    static final byte GNU_LONG_LINK = 'K';
+
+    private static final int NAME_LENGTH = 100;
+    private static final long MAX_SIZE = 077777777777L;
+    private static final long MAX_ID = 07777777;
+
+    String name;
+    String linkName = "";
+    byte type = REGULAR;
+    int mode;
+    long uid;
+    long gid;
+    long size;
+    long mtime;
+    String owner = "";
+    String group = "";
+
+    boolean isRegularFile() {
+        return type == REGULAR || type == OLD_REGULAR || type == CONTIGUOUS;
+    }
+
+    /**
+     * Returns the number of bytes padding data of the given size to whole blocks
+     */
+    static int padding(long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    /**
+     * Writes the header, preceded by a pax header for values ustar cannot hold, returns the number
+     * of bytes written
+     */
+    int write(OutputStream out) throws IOException {
+        var extended = new LinkedHashMap<String, String>();
+        if (utf8(name).length > NAME_LENGTH) {
+            extended.put("path", name);
+        }
+        if (utf8(linkName).length > NAME_LENGTH) {
+            extended.put("linkpath", linkName);
+        }
+        if (size > MAX_SIZE) {
+            extended.put("size", String.valueOf(size));
+        }
+        if (uid > MAX_ID || uid < 0) {
+            extended.put("uid", String.valueOf(uid));
+        }
+        if (gid > MAX_ID || gid < 0) {
+            extended.put("gid", String.valueOf(gid));
+        }
+        var written = 0;
+        if (!extended.isEmpty()) {
+            var records = paxRecords(extended);
+            var pax = new TarHeader();
+            var baseName = name.replaceAll("/+$", "");
+            pax.name = "PaxHeaders/" + baseName.substring(baseName.lastIndexOf('/') + 1);
+            pax.type = PAX;
+            pax.mode = 0644;
+            pax.size = records.length;
+            pax.mtime = mtime;
+            out.write(pax.encode());
+            out.write(records);
+            out.write(new byte[padding(records.length)]);
+            written += BLOCK_SIZE + records.length + padding(records.length);
+        }
+        out.write(encode());
+        return written + BLOCK_SIZE;
+    }
+
+    private byte[] encode() {
+        var block = new byte[BLOCK_SIZE];
+        text(block, 0, NAME_LENGTH, name);
+        octal(block, 100, 8, mode & 07777);
+        octal(block, 108, 8, uid > MAX_ID || uid < 0 ? 0 : uid);
+        octal(block, 116, 8, gid > MAX_ID || gid < 0 ? 0 : gid);
+        octal(block, 124, 12, size > MAX_SIZE ? 0 : size);
+        octal(block, 136, 12, Math.max(0, mtime));
+        Arrays.fill(block, 148, 156, (byte) ' ');
+        block[156] = type;
+        text(block, 157, NAME_LENGTH, linkName);
+        text(block, 257, 6, "ustar");
+        text(block, 263, 2, "00");
+        text(block, 265, 32, owner);
+        text(block, 297, 32, group);
+        octal(block, 329, 8, 0);
+        octal(block, 337, 8, 0);
+        var checksum = 0;
+        for (var b : block) {
+            checksum += b & 0xff;
+        }
+        octal(block, 148, 7, checksum);
+        return block;
+    }
+
+    /**
+     * Parses a header block, returns {@code null} for a block of zeros marking the end of the
+     * archive
+     */
+    static TarHeader read(byte[] block) throws IOException {
+        var checksum = 0L;
+        var zeros = true;
+        for (var i = 0; i < BLOCK_SIZE; i++) {
+            zeros &= block[i] == 0;
+            checksum += i >= 148 && i < 156 ? ' ' : block[i] & 0xff;
+        }
+        if (zeros) {
+            return null;
+        }
+        if (checksum != number(block, 148, 8)) {
+            throw new IOException("Invalid tar header checksum");
+        }
+        var header = new TarHeader();
+        header.name = text(block, 0, NAME_LENGTH);
+        header.mode = (int) number(block, 100, 8);
+        header.uid = number(block, 108, 8);
+        header.gid = number(block, 116, 8);
+        header.size = number(block, 124, 12);
+        header.mtime = number(block, 136, 12);
+        header.type = block[156];
+        header.linkName = text(block, 157, NAME_LENGTH);
+        if (text(block, 257, 5).equals("ustar")) {
+            header.owner = text(block, 265, 32);
+            header.group = text(block, 297, 32);
+            // The GNU format keeps times of access and change where ustar has the prefix
+            var prefix = block[263] == '0' ? text(block, 345, 155) : "";
+            if (!prefix.isEmpty()) {
+                header.name = prefix + "/" + header.name;
+            }
+        }
+        if (header.size < 0) {
+            throw new IOException("Invalid tar member size");
+        }
+        return header;
+    }
+
+    /**
+     * Applies the values of a pax extended header
+     */
+    void apply(Map<String, String> extended) throws IOException {
+        try {
+            if (extended.containsKey("path")) {
+                name = extended.get("path");
+            }
+            if (extended.containsKey("linkpath")) {
+                linkName = extended.get("linkpath");
+            }
+            if (extended.containsKey("size")) {
+                size = Long.parseLong(extended.get("size"));
+            }
+            if (extended.containsKey("mtime")) {
+                mtime = (long) Double.parseDouble(extended.get("mtime"));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid pax header: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses the {@code length key=value} records of a pax extended header
+     */
+    static Map<String, String> parsePax(byte[] data) throws IOException {
+        var records = new HashMap<String, String>();
+        var offset = 0;
+        while (offset < data.length && data[offset] != 0) {
+            var space = offset;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, offset, space - offset, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid pax header record");
+            }
+            if (length <= space - offset || offset + length > data.length || data[offset + length - 1] != '\n') {
+                throw new IOException("Invalid pax header record");
+            }
+            var record = new String(data, space + 1, offset + length - space - 2, StandardCharsets.UTF_8);
+            var equals = record.indexOf('=');
+            if (equals < 0) {
+                throw new IOException("Invalid pax header record");
+            }
+            records.put(record.substring(0, equals), record.substring(equals + 1));
+            offset += length;
+        }
+        return records;
+    }
+
+    private static byte[] paxRecords(Map<String, String> extended) {
+        var records = new StringBuilder();
+        for (var entry : extended.entrySet()) {
+            var record = " " + entry.getKey() + "=" + entry.getValue() + "\n";
+            var length = utf8(record).length;
+            // The length counts its own digits
+            var total = length + String.valueOf(length).length();
+            if (String.valueOf(total).length() > String.valueOf(length).length()) {
+                total++;
+            }
+            records.append(total).append(record);
+        }
+        return utf8(records.toString());
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the text of a GNU long name header, up to its terminating NUL
+     */
+    static String text(byte[] data) {
+        return text(data, 0, data.length);
+    }
+
+    private static void text(byte[] block, int offset, int length, String value) {
+        var bytes = utf8(value);
+        System.arraycopy(bytes, 0, block, offset, Math.min(bytes.length, length));
+    }
+
+    private static String text(byte[] block, int offset, int length) {
+        var end = offset;
+        while (end < offset + length && block[end] != 0) {
+            end++;
+        }
+        return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the value as octal digits filling the field but for a terminating NUL
+     */
+    private static void octal(byte[] block, int offset, int length, long value) {
+        var digits = Long.toOctalString(value);
+        var start = offset + length - 1 - digits.length();
+        Arrays.fill(block, offset, start, (byte) '0');
+        System.arraycopy(utf8(digits), 0, block, start, digits.length());
+        block[offset + length - 1] = 0;
+    }
+
+    /**
+     * Reads a numeric field, in octal or in the base-256 encoding of large values
+     */
+    private static long number(byte[] block, int offset, int length) throws IOException {
+        if ((block[offset] & 0x80) != 0) {
+            if ((block[offset] & 0x40) != 0) {
+                throw new IOException("Negative number in tar header");
+            }
+            var value = (long) (block[offset] & 0x3f);
+            for (var i = offset + 1; i < offset + length; i++) {
+                value = value << 8 | (block[i] & 0xff);
+            }
+            return value;
+        }
+        var value = 0L;
+        var i = offset;
+        while (i < offset + length && block[i] == ' ') {
+            i++;
+        }
+        for (; i < offset + length && block[i] != 0 && block[i] != ' '; i++) {
+            if (block[i] < '0' || block[i] > '7') {
+                throw new IOException("Invalid number in tar header");
+            }
+            value = value << 3 | (block[i] - '0');
+        }
+        return value;
+    }
+}
@@ -9,12 +9,17 @@ import android.os.Environment;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class ExternalStorage {
 
+    public static final String INTERNAL_VOLUME = "internal";
+    public static final String REMOVABLE_VOLUME = "sdcard";
+
     public static void createDirIfNotExists(String path) {
         var file = new File(path);
         if (!file.exists()) file.mkdirs();
@@ -52,4 +57,17 @@ public class ExternalStorage {
         }
         return new ArrayList<>(locations);
     }
+
+    /**
+     * Returns all storage locations by the names they are mounted under in the SFTP namespace, the
+     * internal storage first followed by the removable ones
+     */
+    public static Map<String, String> getStorageVolumes(Context context) {
+        var volumes = new LinkedHashMap<String, String>();
+        var locations = getAllStorageLocations(context);
+        for (var i = 0; i < locations.size(); i++) {
+            volumes.put(i == 0 ? INTERNAL_VOLUME : REMOVABLE_VOLUME + i, locations.get(i));
+        }
+        return volumes;
+    }
 }
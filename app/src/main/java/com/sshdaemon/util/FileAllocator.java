@@ -0,0 +1,88 @@
+package com.sshdaemon.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reserves disk space for a file ahead of writing it, so the file system can place it in large
+ * contiguous extents. Uses a descriptor of its own and the app's native library. The file keeps its
+ * size, reserved space past the end is invisible to readers until it is released again.
+ */
+public class FileAllocator implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FileAllocator.class);
+
+    private static final String LIBRARY = "sshdaemon-pty";
+    private static final boolean AVAILABLE = load();
+
+    private final int fd;
+    private boolean closed;
+
+    private FileAllocator(int fd) {
+        this.fd = fd;
+    }
+
+    private static boolean load() {
+        try {
+            System.loadLibrary(LIBRARY);
+            return true;
+        } catch (UnsatisfiedLinkError | SecurityException e) {
+            logger.info("No native file allocation, uploads grow write by write: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the native library is there to reserve space
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    public static FileAllocator open(File file) throws IOException {
+        if (!AVAILABLE) {
+            throw new IOException("No native file allocation");
+        }
+        return new FileAllocator(open(file.getPath()));
+    }
+
+    /**
+     * Reserves the given range without changing the size of the file, fails if the file system does
+     * not support reserving space
+     */
+    public synchronized void allocate(long offset, long length) throws IOException {
+        if (closed) {
+            throw new IOException("Allocator closed");
+        }
+        allocate(fd, offset, length);
+    }
+
+    /**
+     * Frees the space reserved past the current end of the file
+     */
+    public synchronized void release() throws IOException {
+        if (closed) {
+            throw new IOException("Allocator closed");
+        }
+        release(fd);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            close(fd);
+        }
+    }
+
+    private static native int open(String path) throws IOException;
+
+    private static native void allocate(int fd, long offset, long length) throws IOException;
+
+    private static native void release(int fd) throws IOException;
+
+    private static native void close(int fd);
+}
@@ -16,6 +16,39 @@ public class ShellFinder {
             "sh"
     };
 
+    private static volatile String resolvedShell;
+
+    /**
+     * Returns the shell found by the first call, later calls do not probe again until
+     * {@link #revalidate(String)} is called
+     */
+    public static String getShell() {
+        var shell = resolvedShell;
+        if (shell != null) {
+            return shell;
+        }
+        synchronized (ShellFinder.class) {
+            if (resolvedShell == null) {
+                resolvedShell = findAvailableShell();
+            }
+            return resolvedShell;
+        }
+    }
+
+    /**
+     * Probes for a shell again after the given one failed to start, returns the shell to use from now on
+     */
+    public static synchronized String revalidate(String failedShell) {
+        if (resolvedShell == null || resolvedShell.equals(failedShell)) {
+            logger.warn("Shell {} failed to start, looking for a working shell again", failedShell);
+            resolvedShell = findAvailableShell();
+        }
+        return resolvedShell;
+    }
+
+    /**
+     * Probes the shell paths by running a command in each, returns the first working shell
+     */
     public static String findAvailableShell() {
         for (String shellPath : SHELL_PATHS) {
             try {
@@ -0,0 +1,127 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class AtomicUploadFileChannelTest {
+
+    @TempDir
+    Path tempDir;
+
+    private AtomicUploadFileChannel open(Path file, DirectorySyncer syncer) throws IOException {
+        return open(file, syncer, false);
+    }
+
+    private AtomicUploadFileChannel open(Path file, DirectorySyncer syncer, boolean createNew) throws IOException {
+        var tempFile = AtomicUploadFileChannel.tempFileOf(file);
+        var channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new AtomicUploadFileChannel(channel, file, tempFile, syncer, createNew);
+    }
+
+    private static void write(FileChannel channel, String data) throws IOException {
+        channel.write(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testTargetIsReplacedOnClose() throws IOException {
+        var file = tempDir.resolve("photo.jpg");
+        Files.writeString(file, "old");
+        var syncer = new DirectorySyncer(null, 0);
+        var channel = open(file, syncer);
+        write(channel, "new content");
+        assertEquals("old", Files.readString(file));
+        assertTrue(channel.getTempFile().getFileName().toString().startsWith(".photo.jpg."));
+        channel.close();
+        assertEquals("new content", Files.readString(file));
+        assertFalse(Files.exists(channel.getTempFile()));
+        assertEquals(1, syncer.getSyncCount());
+    }
+
+    @Test
+    void testAbortedUploadKeepsTarget() throws IOException {
+        var file = tempDir.resolve("photo.jpg");
+        Files.writeString(file, "old");
+        var syncer = new DirectorySyncer(null, 0);
+        var channel = open(file, syncer);
+        write(channel, "half");
+        channel.abort();
+        channel.close();
+        assertEquals("old", Files.readString(file));
+        assertFalse(Files.exists(channel.getTempFile()));
+        assertEquals(0, syncer.getRequestCount());
+        try (var entries = Files.list(tempDir)) {
+            assertEquals(1, entries.count());
+        }
+    }
+
+    @Test
+    void testNewFileDoesNotReplaceFileCreatedMeanwhile() throws IOException {
+        var file = tempDir.resolve("photo.jpg");
+        var first = open(file, null, true);
+        var second = open(file, null, true);
+        write(first, "first");
+        write(second, "second");
+        second.close();
+        assertThrows(FileAlreadyExistsException.class, first::close);
+        assertEquals("second", Files.readString(file));
+        try (var entries = Files.list(tempDir)) {
+            assertEquals(1, entries.count());
+        }
+    }
+
+    @Test
+    void testStaleTempFilesAreRemoved() throws IOException {
+        var stale = AtomicUploadFileChannel.tempFileOf(tempDir.resolve("stale.jpg"));
+        var recent = AtomicUploadFileChannel.tempFileOf(tempDir.resolve("recent.jpg"));
+        var similar = tempDir.resolve(".notes.txt.upload");
+        for (var file : new Path[]{stale, recent, similar}) {
+            Files.writeString(file, "data");
+            if (file != recent) {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 100_000));
+            }
+        }
+        assertEquals(1, AtomicUploadFileChannel.removeStaleTempFiles(tempDir, 50_000));
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(recent));
+        assertTrue(Files.exists(similar));
+    }
+
+    @Test
+    void testDirectorySyncsAreBatched() throws Exception {
+        var timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            var syncer = new DirectorySyncer(timer, 60_000);
+            var data = new byte[1000];
+            for (var i = 0; i < 50; i++) {
+                try (var channel = open(tempDir.resolve(i + ".jpg"), syncer)) {
+                    channel.write(ByteBuffer.wrap(data));
+                }
+            }
+            assertEquals(50, syncer.getRequestCount());
+            assertEquals(0, syncer.getSyncCount());
+            timer.submit(syncer::flush).get(10, TimeUnit.SECONDS);
+            assertEquals(1, syncer.getSyncCount());
+            assertArrayEquals(data, Files.readAllBytes(tempDir.resolve("49.jpg")));
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+}
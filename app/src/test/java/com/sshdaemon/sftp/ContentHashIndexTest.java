@@ -0,0 +1,123 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.sshdaemon.sshd.SshDaemon;
+
+import org.apache.sshd.common.digest.BuiltinDigests;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ContentHashIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final SftpScheduler scheduler = new SftpScheduler(2, 16);
+    private final FileHasher hasher = new FileHasher(scheduler);
+
+    @BeforeAll
+    static void registerSecurityProvider() throws ClassNotFoundException {
+        // The daemon replaces the provider when loaded, restore it if other tests registered it before
+        Class.forName(SshDaemon.class.getName());
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.close();
+    }
+
+    private ContentHashIndex createIndex() {
+        return new ContentHashIndex(tempDir.resolve("content_hashes"), 100, hasher);
+    }
+
+    private byte[] digest(ContentHashIndex index, Path file, AtomicInteger computations) throws IOException {
+        return index.digest(file, "sha256", () -> {
+            computations.incrementAndGet();
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return hasher.hash(channel, BuiltinDigests.sha256, 0, channel.size());
+            }
+        });
+    }
+
+    private static byte[] sha256(Path file) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file));
+    }
+
+    @Test
+    void testUnchangedFileIsHashedOnce() throws Exception {
+        var file = Files.write(tempDir.resolve("a.txt"), "first".getBytes());
+        var computations = new AtomicInteger();
+        try (var index = createIndex()) {
+            assertArrayEquals(sha256(file), digest(index, file, computations));
+            assertArrayEquals(sha256(file), digest(index, file, computations));
+            assertEquals(1, computations.get());
+            assertEquals(1, index.getHits());
+
+            Files.write(file, "second".getBytes());
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+            assertArrayEquals(sha256(file), digest(index, file, computations));
+            assertEquals(2, computations.get());
+        }
+    }
+
+    @Test
+    void testIndexIsPersisted() throws Exception {
+        var file = Files.write(tempDir.resolve("a.txt"), "content".getBytes());
+        var computations = new AtomicInteger();
+        try (var index = createIndex()) {
+            digest(index, file, computations);
+        }
+        try (var index = createIndex()) {
+            assertEquals(1, index.getSize());
+            assertArrayEquals(sha256(file), digest(index, file, computations));
+            assertEquals(1, computations.get());
+        }
+    }
+
+    @Test
+    void testRefreshRehashesChangedAndDropsDeletedFiles() throws Exception {
+        var changed = Files.write(tempDir.resolve("changed.txt"), "old".getBytes());
+        var deleted = Files.write(tempDir.resolve("deleted.txt"), "gone".getBytes());
+        var computations = new AtomicInteger();
+        try (var index = createIndex()) {
+            digest(index, changed, computations);
+            digest(index, deleted, computations);
+            Files.write(changed, "new content".getBytes());
+            Files.setLastModifiedTime(changed, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+            Files.delete(deleted);
+
+            index.startRefreshing(60_000);
+            index.stopRefreshing();
+            // Refreshing stopped, nothing happens
+            assertEquals(0, index.refresh());
+            index.startRefreshing(60_000);
+            for (var i = 0; i < 100 && index.getSize() > 1; i++) {
+                Thread.sleep(10);
+            }
+            index.stopRefreshing();
+
+            assertEquals(1, index.getSize());
+            assertEquals(1, index.getRefreshed());
+            assertArrayEquals(sha256(changed), digest(index, changed, computations));
+            assertEquals(2, computations.get());
+        }
+    }
+}
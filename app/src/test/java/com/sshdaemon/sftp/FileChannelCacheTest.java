@@ -0,0 +1,136 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+class FileChannelCacheTest {
+
+    private static final LinkOption[] FOLLOW = new LinkOption[0];
+
+    @TempDir
+    Path tempDir;
+
+    private final List<FileChannel> opened = new ArrayList<>();
+
+    private SeekableByteChannel open(FileChannelCache cache, Path file) throws IOException {
+        return cache.open(file, FOLLOW, () -> {
+            var channel = FileChannel.open(file, StandardOpenOption.READ);
+            opened.add(channel);
+            return channel;
+        });
+    }
+
+    private static String read(SeekableByteChannel channel) throws IOException {
+        var buffer = ByteBuffer.allocate(64);
+        channel.read(buffer);
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testClosedChannelIsReused() throws IOException {
+        var cache = new FileChannelCache(4, 60_000);
+        var file = tempDir.resolve("a.txt");
+        Files.writeString(file, "content");
+        for (var i = 0; i < 3; i++) {
+            try (var channel = open(cache, file)) {
+                assertEquals("content", read(channel));
+            }
+        }
+        assertEquals(1, opened.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getSize());
+        assertTrue(opened.get(0).isOpen());
+    }
+
+    @Test
+    void testReplacedFileIsOpenedAgain() throws IOException {
+        var cache = new FileChannelCache(4, 60_000);
+        var file = tempDir.resolve("a.txt");
+        Files.writeString(file, "old");
+        open(cache, file).close();
+        var replacement = tempDir.resolve("b.txt");
+        Files.writeString(replacement, "new");
+        Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING);
+        try (var channel = open(cache, file)) {
+            assertEquals("new", read(channel));
+        }
+        assertEquals(2, opened.size());
+        assertFalse(opened.get(0).isOpen());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    void testInvalidationAndEvictionCloseIdleChannels() throws IOException {
+        var cache = new FileChannelCache(2, 60_000);
+        var files = new ArrayList<Path>();
+        for (var i = 0; i < 3; i++) {
+            var file = tempDir.resolve(i + ".txt");
+            Files.writeString(file, "file " + i);
+            files.add(file);
+            open(cache, file).close();
+        }
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertFalse(opened.get(0).isOpen());
+        cache.invalidateTree(tempDir);
+        assertEquals(0, cache.getSize());
+        assertFalse(opened.get(2).isOpen());
+    }
+
+    @Test
+    void testChannelsInUseAreClosedAfterClear() throws IOException {
+        var cache = new FileChannelCache(4, 60_000);
+        var file = tempDir.resolve("a.txt");
+        Files.writeString(file, "content");
+        var channel = open(cache, file);
+        cache.clear();
+        channel.close();
+        assertEquals(0, cache.getSize());
+        assertFalse(opened.get(0).isOpen());
+        try (var locked = (FileChannel) open(cache, file)) {
+            locked.tryLock(0, Long.MAX_VALUE, true);
+        }
+        assertEquals(0, cache.getSize());
+        assertFalse(opened.get(1).isOpen());
+    }
+
+    @Test
+    void testIdleChannelsExpireOnTimer() throws Exception {
+        var timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            var cache = new FileChannelCache(4, 50, timer);
+            var file = tempDir.resolve("a.txt");
+            Files.writeString(file, "content");
+            open(cache, file).close();
+            assertEquals(1, cache.getSize());
+            // Nothing is opened or released any more, the timer closes the channel
+            for (var i = 0; i < 500 && cache.getSize() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, cache.getSize());
+            assertFalse(opened.get(0).isOpen());
+            assertEquals(1, cache.getEvictions());
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.sshdaemon.sshd.SshDaemon;
+
+import org.apache.sshd.common.digest.BuiltinDigests;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.Random;
+
+class FileHasherTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final SftpScheduler scheduler = new SftpScheduler(2, 16);
+    private final FileHasher hasher = new FileHasher(scheduler);
+
+    @BeforeAll
+    static void registerSecurityProvider() throws ClassNotFoundException {
+        // The daemon replaces the provider when loaded, restore it if other tests registered it before
+        Class.forName(SshDaemon.class.getName());
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.close();
+    }
+
+    private Path createFile(int size) throws IOException {
+        var data = new byte[size];
+        new Random(42).nextBytes(data);
+        var file = tempDir.resolve("data.bin");
+        Files.write(file, data);
+        return file;
+    }
+
+    private static byte[] sha256(byte[] data, int offset, int length) throws Exception {
+        var digest = MessageDigest.getInstance("SHA-256");
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    @Test
+    void testWholeRangeDigest() throws Exception {
+        var file = createFile(1_000_000);
+        var data = Files.readAllBytes(file);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertArrayEquals(sha256(data, 0, data.length),
+                    hasher.hash(channel, BuiltinDigests.sha256, 0, data.length));
+            assertArrayEquals(sha256(data, 1000, 5000),
+                    hasher.hash(channel, BuiltinDigests.sha256, 1000, 5000));
+        }
+    }
+
+    @Test
+    void testBlockDigestsAreInFileOrder() throws Exception {
+        var file = createFile(9_500_000);
+        var data = Files.readAllBytes(file);
+        var blockSize = 1024 * 1024;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var digests = hasher.hashBlocks(channel, BuiltinDigests.sha256, 100, data.length - 100, blockSize);
+            assertEquals(10, digests.size());
+            for (var i = 0; i < digests.size(); i++) {
+                var offset = 100 + i * blockSize;
+                assertArrayEquals(sha256(data, offset, Math.min(blockSize, data.length - offset)), digests.get(i));
+            }
+        }
+    }
+
+    @Disabled("Benchmark, run manually")
+    @Test
+    void benchmarkBlockHashing() throws Exception {
+        var file = createFile(256 * 1024 * 1024);
+        for (var i = 0; i < 3; i++) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                var t0 = System.nanoTime();
+                hasher.hash(channel, BuiltinDigests.sha256, 0, channel.size());
+                var t1 = System.nanoTime();
+                hasher.hashBlocks(channel, BuiltinDigests.sha256, 0, channel.size(), 1024 * 1024);
+                var t2 = System.nanoTime();
+                System.out.println("Whole file: " + 256e9 / (t1 - t0) + " MB/s, blocks: " + 256e9 / (t2 - t1) + " MB/s");
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+class MappedFileChannelTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path createFile(int size) throws IOException {
+        var data = new byte[size];
+        new Random(42).nextBytes(data);
+        var file = tempDir.resolve("data.bin");
+        Files.write(file, data);
+        return file;
+    }
+
+    @Test
+    void testReadsMatchFileContentAcrossWindows() throws IOException {
+        var file = createFile(100_000);
+        var expected = Files.readAllBytes(file);
+        try (var channel = new MappedFileChannel(FileChannel.open(file, StandardOpenOption.READ), 4096)) {
+            var actual = new byte[expected.length];
+            var offset = 0;
+            while (offset < actual.length) {
+                var chunk = Math.min(7000, actual.length - offset);
+                channel.position(offset);
+                var read = channel.read(ByteBuffer.wrap(actual, offset, chunk));
+                offset += read;
+            }
+            assertArrayEquals(expected, actual);
+            assertEquals(expected.length, channel.position());
+        }
+    }
+
+    @Test
+    void testReadAtEndOfFileReturnsMinusOne() throws IOException {
+        var file = createFile(1000);
+        try (var channel = new MappedFileChannel(FileChannel.open(file, StandardOpenOption.READ), 4096)) {
+            channel.position(1000);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+        }
+    }
+
+    @Test
+    void testReadsStopAtEndOfFileTruncatedUnderWindow() throws IOException {
+        var file = createFile(100_000);
+        var expected = Files.readAllBytes(file);
+        try (var channel = new MappedFileChannel(FileChannel.open(file, StandardOpenOption.READ), 65536)) {
+            assertEquals(100, channel.read(ByteBuffer.allocate(100), 0));
+            try (var writer = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                writer.truncate(10_000);
+            }
+            var buffer = ByteBuffer.allocate(20_000);
+            assertEquals(5000, channel.read(buffer, 5000));
+            assertArrayEquals(Arrays.copyOfRange(expected, 5000, 10_000), Arrays.copyOf(buffer.array(), 5000));
+            assertEquals(-1, channel.read(ByteBuffer.allocate(100), 20_000));
+        }
+    }
+
+    @Test
+    void testWritesAreRejected() throws IOException {
+        var file = createFile(1000);
+        try (var channel = new MappedFileChannel(FileChannel.open(file, StandardOpenOption.READ), 4096)) {
+            assertThrows(NonWritableChannelException.class, () -> channel.write(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Disabled("Benchmark, run manually")
+    @Test
+    void benchmarkMappedAgainstPlainReads() throws IOException {
+        var file = createFile(256 * 1024 * 1024);
+        for (var i = 0; i < 3; i++) {
+            try (var plain = FileChannel.open(file, StandardOpenOption.READ)) {
+                System.out.println("Plain reads: " + readAll(plain) + " MB/s");
+            }
+            try (var mapped = new MappedFileChannel(FileChannel.open(file, StandardOpenOption.READ), 8 * 1024 * 1024)) {
+                System.out.println("Mapped reads: " + readAll(mapped) + " MB/s");
+            }
+        }
+    }
+
+    private static double readAll(SeekableByteChannel channel) throws IOException {
+        // Mirrors the SFTP file handle: position, then read into a wrapped packet array
+        var packet = new byte[32768 + 13];
+        long offset = 0;
+        var t0 = System.nanoTime();
+        int read;
+        do {
+            channel.position(offset);
+            read = channel.read(ByteBuffer.wrap(packet, 13, 32768));
+            offset += Math.max(read, 0);
+        } while (read > 0);
+        var seconds = (System.nanoTime() - t0) / 1e9;
+        return offset / (1024.0 * 1024.0) / seconds;
+    }
+}
@@ -0,0 +1,145 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class ReadAheadFileChannelTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Path createFile(int size) throws IOException {
+        var data = new byte[size];
+        new Random(42).nextBytes(data);
+        var file = tempDir.resolve("data.bin");
+        Files.write(file, data);
+        return file;
+    }
+
+    private static int readAt(FileChannel channel, long offset, byte[] target, int targetOffset, int length)
+            throws IOException {
+        // Mirrors the SFTP file handle: position, then read into a wrapped packet array
+        channel.position(offset);
+        return channel.read(ByteBuffer.wrap(target, targetOffset, length));
+    }
+
+    @Test
+    void testSequentialReadsMatchFileContent() throws IOException {
+        var file = createFile(1_000_000);
+        var expected = Files.readAllBytes(file);
+        try (var channel = new ReadAheadFileChannel(FileChannel.open(file, StandardOpenOption.READ), 4, executor)) {
+            var actual = new byte[expected.length];
+            var offset = 0;
+            while (offset < actual.length) {
+                var read = readAt(channel, offset, actual, offset, Math.min(32768, actual.length - offset));
+                offset += read;
+                assertTrue(channel.getPrefetchedChunks() <= 4);
+            }
+            assertArrayEquals(expected, actual);
+            assertEquals(-1, readAt(channel, offset, actual, 0, 10));
+        }
+    }
+
+    @Test
+    void testRandomReadDropsPrefetchedChunks() throws IOException {
+        var file = createFile(1_000_000);
+        var expected = Files.readAllBytes(file);
+        try (var channel = new ReadAheadFileChannel(FileChannel.open(file, StandardOpenOption.READ), 4, executor)) {
+            var actual = new byte[32768];
+            for (var offset = 0; offset < 4 * 32768; offset += 32768) {
+                readAt(channel, offset, actual, 0, actual.length);
+            }
+            assertTrue(channel.getPrefetchedChunks() > 0);
+
+            var read = readAt(channel, 700_000, actual, 0, 100);
+            assertEquals(100, read);
+            assertEquals(0, channel.getPrefetchedChunks());
+            for (var i = 0; i < 100; i++) {
+                assertEquals(expected[700_000 + i], actual[i]);
+            }
+        }
+    }
+
+    @Disabled("Benchmark, run manually")
+    @Test
+    void benchmarkSequentialReadsFromSlowStorage() throws IOException {
+        var file = createFile(32 * 1024 * 1024);
+        for (var i = 0; i < 3; i++) {
+            try (var plain = new SlowFileChannel(FileChannel.open(file, StandardOpenOption.READ))) {
+                System.out.println("Plain reads: " + readAll(plain) + " MB/s");
+            }
+            try (var readAhead = new ReadAheadFileChannel(
+                    new SlowFileChannel(FileChannel.open(file, StandardOpenOption.READ)), 8, executor)) {
+                System.out.println("Read-ahead: " + readAll(readAhead) + " MB/s");
+            }
+        }
+    }
+
+    private static double readAll(FileChannel channel) throws IOException {
+        var packet = new byte[32768];
+        long offset = 0;
+        var t0 = System.nanoTime();
+        int read;
+        do {
+            read = readAt(channel, offset, packet, 0, packet.length);
+            offset += Math.max(read, 0);
+            // Time the client needs to send the next request
+            sleep(1);
+        } while (read > 0);
+        var seconds = (System.nanoTime() - t0) / 1e9;
+        return offset / (1024.0 * 1024.0) / seconds;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Simulates external storage with a fixed latency per read
+     */
+    private static final class SlowFileChannel extends ForwardingFileChannel {
+
+        SlowFileChannel(FileChannel delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            sleep(1);
+            return super.read(dst);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            sleep(1);
+            return super.read(dst, position);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.sshdaemon.sftp;
+
+import static android.os.FileObserver.DELETE_SELF;
+import static android.os.FileObserver.MODIFY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SftpAttributeCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private Map<String, ?> read(SftpAttributeCache cache, Path file) throws IOException {
+        return cache.readAttributes(file, "basic", () -> {
+            loads.incrementAndGet();
+            return Files.readAttributes(file, "basic:*");
+        });
+    }
+
+    @Test
+    void testRepeatedReadsAreServedFromCache() throws IOException {
+        var file = Files.write(tempDir.resolve("a"), new byte[10]);
+        var cache = new SftpAttributeCache(16, 4, 60_000);
+        var first = read(cache, file);
+        assertSame(first, read(cache, file));
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void testInvalidateReloadsFileAndParent() throws IOException {
+        var file = Files.write(tempDir.resolve("a"), new byte[10]);
+        var cache = new SftpAttributeCache(16, 4, 60_000);
+        read(cache, tempDir);
+        read(cache, file);
+        Files.write(file, new byte[20]);
+        cache.invalidate(file);
+        assertEquals(20L, read(cache, file).get("size"));
+        read(cache, tempDir);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+        var files = new ArrayList<Path>();
+        for (var i = 0; i < 3; i++) {
+            files.add(Files.write(tempDir.resolve("f" + i), new byte[i]));
+        }
+        var cache = new SftpAttributeCache(2, 4, 60_000);
+        read(cache, files.get(0));
+        read(cache, files.get(1));
+        read(cache, files.get(0));
+        read(cache, files.get(2));
+        assertEquals(2, cache.getSize());
+        read(cache, files.get(0));
+        assertEquals(3, loads.get());
+        read(cache, files.get(1));
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    void testObserverEventsInvalidateEntries() throws IOException {
+        var directory = Files.createDirectory(tempDir.resolve("dir"));
+        var file = Files.write(directory.resolve("a"), new byte[10]);
+        var nested = Files.write(Files.createDirectory(directory.resolve("sub")).resolve("b"), new byte[1]);
+        var cache = new SftpAttributeCache(16, 4, 60_000);
+        read(cache, file);
+        read(cache, nested);
+        assertEquals(2, cache.getObservedDirectories());
+
+        cache.onDirectoryEvent(directory.toString(), MODIFY, "a");
+        assertEquals(1, cache.getSize());
+
+        cache.onDirectoryEvent(directory.toString(), DELETE_SELF, null);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getObservedDirectories());
+    }
+
+    @Test
+    void testOnlyChangesOfLoadedPathDiscardLoad() throws IOException {
+        var directory = Files.createDirectory(tempDir.resolve("dir"));
+        var file = Files.write(directory.resolve("a"), new byte[10]);
+        var other = Files.write(Files.createDirectory(tempDir.resolve("other")).resolve("b"), new byte[1]);
+        var cache = new SftpAttributeCache(16, 4, 60_000);
+
+        // An upload elsewhere does not keep the result from being cached
+        cache.readAttributes(file, "basic", () -> {
+            cache.invalidate(other);
+            return Files.readAttributes(file, "basic:*");
+        });
+        assertEquals(1, cache.getSize());
+
+        cache.invalidate(file);
+        cache.readAttributes(file, "basic", () -> {
+            cache.invalidate(file);
+            return Files.readAttributes(file, "basic:*");
+        });
+        assertEquals(0, cache.getSize());
+
+        cache.readAttributes(file, "basic", () -> {
+            cache.invalidateTree(directory);
+            return Files.readAttributes(file, "basic:*");
+        });
+        assertEquals(0, cache.getSize());
+        read(cache, file);
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    void testExpiredEntriesAreReloaded() throws IOException, InterruptedException {
+        var file = Files.write(tempDir.resolve("a"), new byte[10]);
+        var cache = new SftpAttributeCache(16, 4, 1);
+        read(cache, file);
+        Thread.sleep(5);
+        read(cache, file);
+        assertEquals(2, loads.get());
+    }
+
+    @Disabled("Benchmark, run manually")
+    @Test
+    void benchmarkCachedAgainstUncachedStat() throws IOException {
+        var files = new ArrayList<Path>();
+        for (var i = 0; i < 2000; i++) {
+            files.add(Files.write(tempDir.resolve("file" + i), new byte[i]));
+        }
+        var cache = new SftpAttributeCache(4096, 16, 60_000);
+        for (var round = 0; round < 3; round++) {
+            var t0 = System.nanoTime();
+            for (var file : files) {
+                Files.readAttributes(file, "posix:*");
+            }
+            var uncached = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            for (var file : files) {
+                cache.readAttributes(file, "posix", () -> Files.readAttributes(file, "posix:*"));
+            }
+            var cached = System.nanoTime() - t0;
+            System.out.printf("Uncached: %d ns/stat, cached: %d ns/stat, hits: %d, misses: %d%n",
+                    uncached / files.size(), cached / files.size(), cache.getHits(), cache.getMisses());
+        }
+    }
+}
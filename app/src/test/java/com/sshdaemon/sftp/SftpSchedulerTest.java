@@ -0,0 +1,273 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class SftpSchedulerTest {
+
+    private SftpScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    void testRequestsOfOneChannelRunInOrder() throws InterruptedException {
+        scheduler = new SftpScheduler(4, 100);
+        var lane = scheduler.register("session", bytes -> {
+        });
+        var order = Collections.synchronizedList(new ArrayList<Integer>());
+        var done = new CountDownLatch(50);
+        for (var i = 0; i < 50; i++) {
+            var index = i;
+            lane.submit(() -> {
+                order.add(index);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (var i = 0; i < 50; i++) {
+            assertEquals(i, order.get(i));
+        }
+    }
+
+    @Test
+    void testSessionsTakeTurns() throws InterruptedException {
+        scheduler = new SftpScheduler(1, 100);
+        var gate = new CountDownLatch(1);
+        var blocker = scheduler.register("blocker", bytes -> {
+        });
+        blocker.submit(() -> awaitQuietly(gate));
+
+        var order = Collections.synchronizedList(new ArrayList<String>());
+        var done = new CountDownLatch(6);
+        var busy = scheduler.register("busy", bytes -> {
+        });
+        var quiet = scheduler.register("quiet", bytes -> {
+        });
+        for (var i = 0; i < 4; i++) {
+            busy.submit(() -> {
+                order.add("busy");
+                done.countDown();
+            });
+        }
+        for (var i = 0; i < 2; i++) {
+            quiet.submit(() -> {
+                order.add("quiet");
+                done.countDown();
+            });
+        }
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("busy", "quiet", "busy", "quiet", "busy", "busy"), order);
+    }
+
+    @Test
+    void testWindowIsWithheldWhileQueueIsFull() throws InterruptedException {
+        scheduler = new SftpScheduler(1, 2);
+        var released = new AtomicLong();
+        var lane = scheduler.register("session", released::addAndGet);
+        var gate = new CountDownLatch(1);
+        var done = new CountDownLatch(5);
+        lane.submit(() -> {
+            awaitQuietly(gate);
+            releaseQuietly(lane);
+            done.countDown();
+        });
+        for (var i = 0; i < 4; i++) {
+            lane.submit(() -> {
+                releaseQuietly(lane);
+                done.countDown();
+            });
+        }
+        for (var i = 0; i < 100 && scheduler.getActiveWorkers() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, scheduler.getQueuedRequests());
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitForRelease(released, 50);
+        assertEquals(50, released.get());
+        assertEquals(0, scheduler.getQueuedRequests());
+    }
+
+    @Test
+    void testRequestsAreRejectedAfterClose() {
+        scheduler = new SftpScheduler(1, 10);
+        var lane = scheduler.register("session", bytes -> {
+        });
+        lane.close();
+        assertFalse(lane.submit(() -> {
+        }));
+        assertEquals(1, scheduler.getRejectedRequests());
+        assertEquals(0, scheduler.getActiveSessions());
+    }
+
+    @Test
+    void testLimitedSessionDoesNotHoldUpOthers() throws InterruptedException {
+        scheduler = new SftpScheduler(1, 100);
+        scheduler.getRateLimiter().setUserLimits(0, 10);
+        var limited = scheduler.register("backup", "alice", bytes -> {
+        });
+        var other = scheduler.register("shell", "bob", bytes -> {
+        });
+        var t0 = System.nanoTime();
+        var limitedDone = new CountDownLatch(20);
+        for (var i = 0; i < 20; i++) {
+            limited.submit(limitedDone::countDown);
+        }
+        // Within the burst of its own user
+        var otherDone = new CountDownLatch(10);
+        for (var i = 0; i < 10; i++) {
+            other.submit(otherDone::countDown);
+        }
+        assertTrue(otherDone.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(limitedDone.getCount() > 0);
+        assertTrue(limitedDone.await(5, TimeUnit.SECONDS));
+        // A full bucket of 10 requests, the other 10 at 10 per second
+        assertTrue(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(800));
+        assertTrue(scheduler.getDelayedTurns() > 0);
+    }
+
+    @Test
+    void testAllChannelsOfLimitedSessionResume() throws InterruptedException {
+        scheduler = new SftpScheduler(2, 100);
+        scheduler.getRateLimiter().setSessionLimits(0, 20);
+        var first = scheduler.register("session", bytes -> {
+        });
+        var second = scheduler.register("session", bytes -> {
+        });
+        // Beyond the burst, so the session's turn is parked while the second channel gets ready
+        var done = new CountDownLatch(31);
+        for (var i = 0; i < 30; i++) {
+            first.submit(done::countDown);
+        }
+        Thread.sleep(100);
+        second.submit(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS), done.getCount() + " requests never ran");
+        assertEquals(0, scheduler.getQueuedRequests());
+        assertTrue(scheduler.getDelayedTurns() > 0);
+    }
+
+    @Test
+    void testBytesAreChargedToSessionAndUser() throws InterruptedException {
+        scheduler = new SftpScheduler(1, 100);
+        var limiter = scheduler.getRateLimiter();
+        limiter.setUserLimits(1000, 0);
+        var first = scheduler.register("first", "alice", bytes -> {
+        });
+        var second = scheduler.register("second", "alice", bytes -> {
+        });
+        assertEquals(2, limiter.getSessionRates().size());
+        assertEquals(1, limiter.getUserRates().size());
+        assertEquals("alice", limiter.getUserRates().get(0).getName());
+
+        var done = new CountDownLatch(1);
+        first.submit(() -> {
+            first.charge(1000);
+            second.charge(1000);
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // Both sessions together used two seconds worth of the user's bandwidth
+        var delayed = new CountDownLatch(1);
+        var t0 = System.nanoTime();
+        second.submit(delayed::countDown);
+        assertTrue(delayed.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertTrue(limiter.getUserRates().get(0).getBytesPerSecond() > 0);
+
+        first.close();
+        second.close();
+        assertEquals(0, limiter.getSessionRates().size());
+        assertEquals(0, limiter.getUserRates().size());
+    }
+
+    @Test
+    void testSlowQueueDoesNotBlockOtherQueues() throws InterruptedException {
+        scheduler = new SftpScheduler(1, 100);
+        var sdcard = scheduler.addQueue("sdcard1", 1);
+        var gate = new CountDownLatch(1);
+        var slow = scheduler.register("slow", bytes -> {
+        });
+        for (var i = 0; i < 3; i++) {
+            slow.submit(sdcard, () -> awaitQuietly(gate));
+        }
+        var done = new CountDownLatch(1);
+        var fast = scheduler.register("fast", bytes -> {
+        });
+        fast.submit(scheduler.getQueue("internal"), done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, sdcard.getDepth());
+        assertEquals(List.of(scheduler.getQueue(null), sdcard), scheduler.getQueues());
+        gate.countDown();
+        for (var i = 0; i < 100 && sdcard.getDepth() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, sdcard.getDepth());
+        assertEquals(3, sdcard.getMaxDepth());
+    }
+
+    @Test
+    void testComputeAllKeepsItemOrder() throws IOException {
+        scheduler = new SftpScheduler(1, 10);
+        var items = new ArrayList<Integer>();
+        for (var i = 0; i < 100; i++) {
+            items.add(i);
+        }
+        var results = scheduler.computeAll(items, i -> i * 2);
+        for (var i = 0; i < 100; i++) {
+            assertEquals(i * 2, results.get(i));
+        }
+    }
+
+    @Test
+    void testComputeAllPropagatesFailure() {
+        scheduler = new SftpScheduler(1, 10);
+        assertThrows(IOException.class, () -> scheduler.computeAll(List.of(1, 2, 3), i -> {
+            if (i == 2) {
+                throw new IOException("failed");
+            }
+            return i;
+        }));
+    }
+
+    private static void releaseQuietly(SftpScheduler.Lane lane) {
+        try {
+            lane.releaseWindow(10);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitForRelease(AtomicLong released, long expected) throws InterruptedException {
+        for (var i = 0; i < 100 && released.get() < expected; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+class SharedWriteChannelsTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final SharedWriteChannels channels = new SharedWriteChannels();
+    private final List<FileChannel> opened = new ArrayList<>();
+
+    private SeekableByteChannel open(Path file) throws IOException {
+        return open(file, Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ));
+    }
+
+    private SeekableByteChannel open(Path file, Set<StandardOpenOption> options) throws IOException {
+        return channels.open(file, options, () -> {
+            var channel = FileChannel.open(file, options);
+            opened.add(channel);
+            return channel;
+        });
+    }
+
+    @Test
+    void testHandlesWriteRangesConcurrently() throws Exception {
+        var file = tempDir.resolve("upload.bin");
+        var streams = 4;
+        var rangeSize = 256 * 1024;
+        var chunkSize = 8 * 1024;
+        var expected = new byte[streams * rangeSize];
+        for (var i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i * 31 + i / rangeSize);
+        }
+        var executor = Executors.newFixedThreadPool(streams);
+        try {
+            var tasks = new ArrayList<Callable<Void>>();
+            for (var stream = 0; stream < streams; stream++) {
+                // Last range first, so the file is extended while earlier ranges are written
+                var start = (streams - 1 - stream) * rangeSize;
+                tasks.add(() -> {
+                    try (var channel = open(file)) {
+                        channel.position(start);
+                        for (var offset = start; offset < start + rangeSize; offset += chunkSize) {
+                            var chunk = ByteBuffer.wrap(expected, offset, chunkSize);
+                            while (chunk.hasRemaining()) {
+                                channel.write(chunk);
+                            }
+                            assertEquals(offset + chunkSize, channel.position());
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (var future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertArrayEquals(expected, Files.readAllBytes(file));
+        assertEquals(0, channels.getOpenFiles());
+        assertEquals(streams, opened.size() + channels.getJoins());
+    }
+
+    @Test
+    void testChannelIsClosedWithLastHandle() throws IOException {
+        var file = tempDir.resolve("a.txt");
+        var first = open(file);
+        var second = open(file);
+        assertEquals(1, opened.size());
+        assertEquals(1, channels.getOpenFiles());
+        assertEquals(1, channels.getJoins());
+
+        second.position(5);
+        second.write(ByteBuffer.wrap("world".getBytes()));
+        first.write(ByteBuffer.wrap("hello".getBytes()));
+        assertEquals(5, first.position());
+        first.close();
+        assertTrue(opened.get(0).isOpen());
+        second.close();
+        assertFalse(opened.get(0).isOpen());
+        assertEquals(0, channels.getOpenFiles());
+        assertEquals("helloworld", Files.readString(file));
+
+        try (var third = open(file)) {
+            assertEquals(10, third.size());
+        }
+        assertEquals(2, opened.size());
+    }
+
+    @Test
+    void testCreateNewFailsWhileFileIsOpen() throws IOException {
+        var file = tempDir.resolve("a.txt");
+        try (var ignored = open(file)) {
+            var options = Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            assertThrows(FileAlreadyExistsException.class, () -> channels.open(file, options, () -> {
+                throw new AssertionError("Opened again");
+            }));
+        }
+        assertEquals(0, channels.getOpenFiles());
+    }
+
+    @Test
+    void testIncompatibleOpensGetChannelOfTheirOwn() throws IOException {
+        var file = tempDir.resolve("a.txt");
+        Files.writeString(file, "old content");
+        try (var first = open(file)) {
+            // Saving a file truncates it, even while another handle writes it
+            try (var truncating = open(file, Set.of(StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                truncating.write(ByteBuffer.wrap("new".getBytes()));
+            }
+            assertEquals("new", Files.readString(file));
+            try (var writeOnly = open(file, Set.of(StandardOpenOption.WRITE))) {
+                writeOnly.write(ByteBuffer.wrap("N".getBytes()));
+            }
+            var buffer = ByteBuffer.allocate(10);
+            first.read(buffer);
+            assertEquals("New", new String(buffer.array(), 0, buffer.position()));
+        }
+        assertEquals(3, opened.size());
+        assertEquals(0, channels.getJoins());
+        assertEquals(2, channels.getSeparateOpens());
+        assertEquals(0, channels.getOpenFiles());
+    }
+
+    @Test
+    void testFailedOpenIsNotShared() {
+        var file = tempDir.resolve("missing/a.txt");
+        assertThrows(IOException.class, () -> open(file));
+        assertEquals(0, channels.getOpenFiles());
+    }
+}
@@ -0,0 +1,53 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void testDebtIsPaidOffAtTheRate() {
+        var bucket = new TokenBucket(1000, 0);
+        bucket.charge(1000, 0);
+        assertEquals(0, bucket.delayNanos(0));
+        bucket.charge(500, 0);
+        assertEquals(SECOND / 2, bucket.delayNanos(0));
+        assertEquals(SECOND / 4, bucket.delayNanos(SECOND / 4));
+        assertEquals(0, bucket.delayNanos(SECOND / 2));
+    }
+
+    @Test
+    void testBurstIsLimitedToOneSecond() {
+        var bucket = new TokenBucket(100, 0);
+        bucket.charge(150, 10 * SECOND);
+        assertEquals(SECOND / 2, bucket.delayNanos(10 * SECOND));
+    }
+
+    @Test
+    void testRateCanBeChangedAndRemoved() {
+        var bucket = new TokenBucket(0, 0);
+        bucket.charge(1_000_000, 0);
+        assertEquals(0, bucket.delayNanos(0));
+        bucket.setRate(10, 0);
+        bucket.charge(20, 0);
+        assertEquals(2 * SECOND, bucket.delayNanos(0));
+        bucket.setRate(0, 0);
+        assertEquals(0, bucket.delayNanos(0));
+        assertThrows(IllegalArgumentException.class, () -> bucket.setRate(-1));
+    }
+
+    @Test
+    void testConsumptionIsMeasured() {
+        var bucket = new TokenBucket(0, 0);
+        bucket.charge(300, 0);
+        bucket.charge(300, SECOND / 2);
+        assertEquals(600, bucket.getMeasuredRate(SECOND), 0.001);
+        assertEquals(0, bucket.getMeasuredRate(2 * SECOND), 0.001);
+    }
+}
@@ -0,0 +1,142 @@
+package com.sshdaemon.sftp;
+
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_CLOSE;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_EXTENDED;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_EXTENDED_REPLY;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_HANDLE;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FXP_STATUS;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FX_EOF;
+import static org.apache.sshd.sftp.common.SftpConstants.SSH_FX_OK;
+
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.apache.sshd.sftp.client.RawSftpClient;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.common.SftpException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reference client of the {@value TreeScanHandle#TREE_SCAN} extension, keeps several read requests
+ * in flight so the listing streams without waiting for a round trip per batch
+ */
+public class TreeScanClient {
+
+    private final SftpClient client;
+    private final RawSftpClient raw;
+
+    public TreeScanClient(SftpClient client) {
+        this.client = client;
+        this.raw = (RawSftpClient) client;
+    }
+
+    public boolean isSupported() {
+        return client.getServerExtensions().containsKey(TreeScanHandle.TREE_SCAN);
+    }
+
+    /**
+     * Returns all entries below the given directory
+     */
+    public List<TreeScanner.Entry> scan(String path, int readsInFlight) throws IOException {
+        var request = new ByteArrayBuffer();
+        request.putString(TreeScanHandle.TREE_SCAN);
+        request.putString(path);
+        var reply = raw.receive(raw.send(SSH_FXP_EXTENDED, request));
+        var handle = handleOf(reply);
+        var entries = new ArrayList<TreeScanner.Entry>();
+        try {
+            var pending = new ArrayList<Integer>();
+            for (var i = 0; i < readsInFlight; i++) {
+                pending.add(sendRead(handle));
+            }
+            var done = false;
+            while (!pending.isEmpty()) {
+                var response = raw.receive(pending.remove(0));
+                if (decode(response, entries)) {
+                    if (!done) {
+                        pending.add(sendRead(handle));
+                    }
+                } else {
+                    done = true;
+                }
+            }
+        } finally {
+            var close = new ByteArrayBuffer();
+            close.putBytes(handle);
+            checkStatus(raw.receive(raw.send(SSH_FXP_CLOSE, close)), SSH_FX_OK);
+        }
+        return entries;
+    }
+
+    /**
+     * Decodes the entries of a read reply, returns {@code false} at the end of the scan
+     */
+    static boolean decode(Buffer response, List<TreeScanner.Entry> entries) throws IOException {
+        var start = response.rpos();
+        response.getInt();
+        var type = response.getUByte();
+        response.getInt();
+        if (type == SSH_FXP_STATUS) {
+            response.rpos(start);
+            checkStatus(response, SSH_FX_EOF);
+            return false;
+        }
+        if (type != SSH_FXP_EXTENDED_REPLY) {
+            throw new IOException("Unexpected reply type: " + type);
+        }
+        decodeEntries(response, entries);
+        return true;
+    }
+
+    /**
+     * Decodes the entry count and the entries following it
+     */
+    static void decodeEntries(Buffer buffer, List<TreeScanner.Entry> entries) {
+        var count = buffer.getInt();
+        var previous = new byte[0];
+        for (var i = 0; i < count; i++) {
+            var shared = buffer.getInt();
+            var suffix = buffer.getBytes();
+            var path = Arrays.copyOf(previous, shared + suffix.length);
+            System.arraycopy(suffix, 0, path, shared, suffix.length);
+            entries.add(new TreeScanner.Entry(new String(path, StandardCharsets.UTF_8), buffer.getLong(),
+                    buffer.getLong(), buffer.getInt()));
+            previous = path;
+        }
+    }
+
+    private int sendRead(byte[] handle) throws IOException {
+        var request = new ByteArrayBuffer();
+        request.putString(TreeScanHandle.TREE_SCAN_READ);
+        request.putBytes(handle);
+        return raw.send(SSH_FXP_EXTENDED, request);
+    }
+
+    private static byte[] handleOf(Buffer response) throws IOException {
+        var start = response.rpos();
+        response.getInt();
+        var type = response.getUByte();
+        response.getInt();
+        if (type == SSH_FXP_HANDLE) {
+            return response.getBytes();
+        }
+        response.rpos(start);
+        checkStatus(response, SSH_FX_OK);
+        throw new IOException("Unexpected reply type: " + type);
+    }
+
+    private static void checkStatus(Buffer response, int expected) throws IOException {
+        response.getInt();
+        response.getUByte();
+        response.getInt();
+        var status = response.getInt();
+        var message = response.getString();
+        if (status != expected) {
+            throw new SftpException(status, message);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.mock;
+
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.apache.sshd.sftp.server.SftpSubsystem;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class TreeScannerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates levels of 4 directories below the given one, every directory holding 5 files. 3 levels
+     * make 84 directories and 425 files.
+     */
+    private void createTree(Path directory, int depth) throws IOException {
+        for (var i = 0; i < 5; i++) {
+            Files.writeString(directory.resolve("file" + i + ".jpg"), "x".repeat(i));
+        }
+        if (depth == 0) {
+            return;
+        }
+        for (var i = 0; i < 4; i++) {
+            var child = Files.createDirectory(directory.resolve("dir" + i));
+            createTree(child, depth - 1);
+        }
+    }
+
+    private static Map<String, TreeScanner.Entry> byPath(List<TreeScanner.Entry> entries) {
+        var byPath = new HashMap<String, TreeScanner.Entry>();
+        for (var entry : entries) {
+            byPath.put(entry.getPath(), entry);
+        }
+        assertEquals(entries.size(), byPath.size());
+        return byPath;
+    }
+
+    @Test
+    void testWholeTreeIsScanned() throws IOException {
+        createTree(tempDir, 3);
+        var scanner = new TreeScanner(tempDir, executor, 4, 16);
+        scanner.start();
+        var entries = new ArrayList<TreeScanner.Entry>();
+        List<TreeScanner.Entry> taken;
+        while (!(taken = scanner.take(7)).isEmpty()) {
+            entries.addAll(taken);
+        }
+        var byPath = byPath(entries);
+        assertEquals(84 + 425, entries.size());
+        assertEquals(85, scanner.getScannedDirectories());
+        var file = byPath.get("dir1/dir2/dir3/file3.jpg");
+        assertEquals(3, file.getSize());
+        assertEquals(0100000, file.getMode() & 0170000);
+        assertEquals(Files.getLastModifiedTime(tempDir.resolve("dir1/dir2/dir3/file3.jpg")).toMillis(),
+                file.getLastModified());
+        assertTrue(byPath.get("dir0/dir1").isDirectory());
+    }
+
+    @Test
+    void testScansSharingThreadsTakeTurns() throws IOException {
+        var large = Files.createDirectory(tempDir.resolve("large"));
+        createTree(large, 3);
+        var small = Files.createDirectory(tempDir.resolve("small"));
+        createTree(small, 0);
+        var thread = Executors.newSingleThreadExecutor();
+        try {
+            var largeScanner = new TreeScanner(large, thread, 1, 10_000);
+            var smallScanner = new TreeScanner(small, thread, 1, 10_000);
+            largeScanner.start();
+            smallScanner.start();
+            assertEquals(5, smallScanner.take(100).size());
+            // The large scan did not keep the thread until it was done
+            assertTrue(largeScanner.getScannedDirectories() < 85, "" + largeScanner.getScannedDirectories());
+        } finally {
+            thread.shutdownNow();
+        }
+    }
+
+    @Test
+    void testRepliesEncodeEntriesWithinLimit() throws IOException {
+        createTree(tempDir, 2);
+        var scanner = new TreeScanner(tempDir, executor, 2, 1024);
+        var handle = new TreeScanHandle(mock(SftpSubsystem.class, RETURNS_MOCKS), tempDir, "handle", scanner);
+        handle.start();
+        var entries = new ArrayList<TreeScanner.Entry>();
+        var replies = 0;
+        while (true) {
+            var buffer = new ByteArrayBuffer();
+            var count = handle.writeEntries(buffer, 1000);
+            if (count == 0) {
+                break;
+            }
+            assertTrue(buffer.available() <= 1000);
+            TreeScanClient.decodeEntries(buffer, entries);
+            assertEquals(0, buffer.available());
+            replies++;
+        }
+        handle.close();
+        assertEquals(20 + 105, byPath(entries).size());
+        assertTrue(replies > 1);
+        assertEquals(4, byPath(entries).get("dir3/dir3/file4.jpg").getSize());
+    }
+}
@@ -0,0 +1,144 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.sshdaemon.util.FileAllocator;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+class UploadFileChannelTest {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    private static void writeAt(FileChannel channel, long offset, byte[] data) throws IOException {
+        channel.position(offset);
+        channel.write(ByteBuffer.wrap(data));
+    }
+
+    @Test
+    void testSpaceIsReservedInStepsAndReleasedOnClose() throws IOException {
+        var file = tempDir.resolve("upload.bin");
+        var allocator = mock(FileAllocator.class);
+        var data = new byte[3000];
+        Arrays.fill(data, (byte) 7);
+        try (var channel = new UploadFileChannel(open(file), SyncPolicy.NONE, MEGABYTE, allocator, MEGABYTE)) {
+            for (var offset = 0; offset < data.length; offset += 1000) {
+                writeAt(channel, offset, Arrays.copyOfRange(data, offset, offset + 1000));
+            }
+            assertEquals(data.length, Files.size(file));
+            assertEquals(data.length, channel.size());
+            verify(allocator, never()).release();
+        }
+        verify(allocator, times(1)).allocate(anyLong(), anyLong());
+        verify(allocator).allocate(0, MEGABYTE);
+        verify(allocator).release();
+        verify(allocator).close();
+        assertArrayEquals(data, Files.readAllBytes(file));
+    }
+
+    @Test
+    void testWritesAfterReleaseReserveAgain() throws IOException {
+        var file = tempDir.resolve("upload.bin");
+        var allocator = mock(FileAllocator.class);
+        var delegate = open(file);
+        try (var channel = new UploadFileChannel(delegate, SyncPolicy.NONE, MEGABYTE, allocator, MEGABYTE)) {
+            writeAt(channel, 0, new byte[100]);
+            channel.release();
+            verify(allocator).release();
+            delegate.write(ByteBuffer.wrap(new byte[400]), 100);
+            writeAt(channel, 500, new byte[100]);
+            verify(allocator, times(2)).allocate(anyLong(), anyLong());
+        }
+        verify(allocator, times(2)).release();
+        assertEquals(600, Files.size(file));
+    }
+
+    @Test
+    void testFailedReservationKeepsWriting() throws IOException {
+        var file = tempDir.resolve("upload.bin");
+        var allocator = mock(FileAllocator.class);
+        doThrow(new IOException("Operation not supported")).when(allocator).allocate(anyLong(), anyLong());
+        try (var channel = new UploadFileChannel(open(file), SyncPolicy.NONE, MEGABYTE, allocator, MEGABYTE)) {
+            writeAt(channel, 0, new byte[100]);
+            writeAt(channel, 100, new byte[100]);
+        }
+        verify(allocator, times(1)).allocate(anyLong(), anyLong());
+        assertEquals(200, Files.size(file));
+    }
+
+    @Test
+    void testSyncPolicies() throws IOException {
+        assertEquals(1, writeAndCountSyncs(SyncPolicy.ON_CLOSE));
+        assertEquals(3, writeAndCountSyncs(SyncPolicy.BATCHED));
+        assertEquals(11, writeAndCountSyncs(SyncPolicy.PER_WRITE));
+        assertEquals(0, writeAndCountSyncs(SyncPolicy.NONE));
+    }
+
+    private int writeAndCountSyncs(SyncPolicy policy) throws IOException {
+        var counting = new SyncCountingFileChannel(open(tempDir.resolve(policy + ".bin")));
+        try (var channel = new UploadFileChannel(counting, policy, 4096, null, MEGABYTE)) {
+            for (var i = 0; i < 10; i++) {
+                writeAt(channel, i * 1000L, new byte[1000]);
+            }
+        }
+        return counting.syncs;
+    }
+
+    @Disabled("Benchmark, run manually")
+    @Test
+    void benchmarkSyncPolicies() throws IOException {
+        var chunk = new byte[32 * 1024];
+        var chunks = (int) (64 * MEGABYTE / chunk.length);
+        for (var i = 0; i < 2; i++) {
+            for (var policy : SyncPolicy.values()) {
+                var file = tempDir.resolve(policy + ".bin");
+                var t0 = System.nanoTime();
+                try (var channel = new UploadFileChannel(open(file), policy, 8 * MEGABYTE, null, 8 * MEGABYTE)) {
+                    for (var c = 0; c < chunks; c++) {
+                        writeAt(channel, (long) c * chunk.length, chunk);
+                    }
+                }
+                System.out.println(policy + ": " + 64e9 / (System.nanoTime() - t0) + " MB/s");
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static final class SyncCountingFileChannel extends ForwardingFileChannel {
+        private int syncs;
+
+        SyncCountingFileChannel(FileChannel delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            syncs++;
+            super.force(metaData);
+        }
+    }
+}
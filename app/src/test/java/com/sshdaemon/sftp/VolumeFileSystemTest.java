@@ -0,0 +1,75 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+class VolumeFileSystemTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path internal;
+    private Path sdcard;
+    private FileSystem fileSystem;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        internal = Files.createDirectories(tempDir.resolve("storage/emulated/0"));
+        sdcard = Files.createDirectories(tempDir.resolve("storage/1234-ABCD"));
+        var volumes = new LinkedHashMap<String, Path>();
+        volumes.put("internal", internal);
+        volumes.put("sdcard1", sdcard);
+        fileSystem = new VolumeFileSystemFactory(tempDir.resolve("volumes"), volumes).createFileSystem(null);
+    }
+
+    @Test
+    void testRootListsVolumes() throws Exception {
+        var names = new ArrayList<String>();
+        try (var entries = Files.newDirectoryStream(fileSystem.getPath("/"))) {
+            for (var entry : entries) {
+                names.add(entry.toString());
+            }
+        }
+        names.sort(null);
+        assertEquals(List.of("/internal", "/sdcard1"), names);
+    }
+
+    @Test
+    void testPathsResolveOnTheirVolume() throws Exception {
+        Files.writeString(fileSystem.getPath("/sdcard1/photo.jpg"), "data");
+        assertTrue(Files.exists(sdcard.resolve("photo.jpg")));
+        assertFalse(Files.exists(internal.resolve("photo.jpg")));
+        assertEquals(sdcard.resolve("photo.jpg").toFile(), fileSystem.getPath("/sdcard1/photo.jpg").toFile());
+
+        Files.createDirectories(internal.resolve("Download"));
+        try (var entries = Files.newDirectoryStream(fileSystem.getPath("/internal"))) {
+            assertEquals("/internal/Download", entries.iterator().next().toString());
+        }
+        assertEquals("sdcard1", VolumeFileSystem.getVolumeName(fileSystem.getPath("/internal/../sdcard1/a")));
+    }
+
+    @Test
+    void testVolumesCannotBeModified() throws Exception {
+        assertThrows(AccessDeniedException.class, () -> Files.createDirectory(fileSystem.getPath("/other")));
+        assertThrows(AccessDeniedException.class, () -> Files.writeString(fileSystem.getPath("/file"), "data"));
+        assertThrows(AccessDeniedException.class, () -> Files.delete(fileSystem.getPath("/sdcard1")));
+        assertThrows(AccessDeniedException.class,
+                () -> Files.move(fileSystem.getPath("/internal"), fileSystem.getPath("/internal/moved")));
+        assertFalse(Files.exists(fileSystem.getPath("/internal/../../etc")));
+        assertEquals(2, Files.list(tempDir.resolve("volumes")).count());
+    }
+}
@@ -0,0 +1,151 @@
+package com.sshdaemon.sftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.sshdaemon.util.BufferPool;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class WriteBehindFileChannelTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final BufferPool buffers = new BufferPool(4096, 4);
+
+    private FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    private static void writeAt(FileChannel channel, long offset, byte[] data) throws IOException {
+        // Mirrors the SFTP file handle: position, then write a wrapped packet array
+        channel.position(offset);
+        channel.write(ByteBuffer.wrap(data));
+    }
+
+    @Test
+    void testSmallWritesAreMergedIntoAlignedWrites() throws IOException {
+        var file = tempDir.resolve("out.bin");
+        var counting = new CountingFileChannel(open(file));
+        var expected = new byte[10_000];
+        try (var channel = new WriteBehindFileChannel(counting, buffers, 60_000, null)) {
+            for (var offset = 0; offset < expected.length; offset += 16) {
+                var record = new byte[Math.min(16, expected.length - offset)];
+                Arrays.fill(record, (byte) offset);
+                System.arraycopy(record, 0, expected, offset, record.length);
+                writeAt(channel, offset, record);
+            }
+            assertEquals(2, counting.writes);
+            assertEquals(expected.length, channel.size());
+        }
+        assertEquals(3, counting.writes);
+        assertArrayEquals(expected, Files.readAllBytes(file));
+    }
+
+    @Test
+    void testNonContiguousWriteFlushesPendingData() throws IOException {
+        var file = tempDir.resolve("out.bin");
+        var counting = new CountingFileChannel(open(file));
+        try (var channel = new WriteBehindFileChannel(counting, buffers, 60_000, null)) {
+            writeAt(channel, 100, new byte[]{1, 2});
+            writeAt(channel, 0, new byte[]{3});
+            assertEquals(1, counting.writes);
+            var read = ByteBuffer.allocate(2);
+            channel.position(100);
+            channel.read(read);
+            assertArrayEquals(new byte[]{1, 2}, read.array());
+            assertEquals(2, counting.writes);
+        }
+        var content = Files.readAllBytes(file);
+        assertEquals(102, content.length);
+        assertEquals(3, content[0]);
+    }
+
+    @Test
+    void testPendingDataIsWrittenAfterMaximumDelay() throws Exception {
+        var file = tempDir.resolve("out.bin");
+        var timer = Executors.newSingleThreadScheduledExecutor();
+        try (var channel = new WriteBehindFileChannel(open(file), buffers, 10, timer)) {
+            writeAt(channel, 0, new byte[]{1, 2, 3});
+            for (var i = 0; i < 100 && Files.size(file) == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, Files.size(file));
+        } finally {
+            timer.shutdownNow();
+            timer.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void testFailedDeferredWriteIsReportedOnClose() throws IOException {
+        var file = tempDir.resolve("out.bin");
+        var failing = new CountingFileChannel(open(file));
+        var channel = new WriteBehindFileChannel(failing, buffers, 60_000, null);
+        writeAt(channel, 0, new byte[]{1});
+        failing.fail = true;
+        assertThrows(IOException.class, () -> channel.force(false));
+        assertThrows(IOException.class, () -> writeAt(channel, 1, new byte[]{2}));
+        assertThrows(IOException.class, channel::close);
+    }
+
+    @Disabled("Benchmark, run manually")
+    @Test
+    void benchmarkSmallRecordWrites() throws IOException {
+        var record = "123456789abcdef\n".getBytes();
+        var records = 64 * 1024 * 1024 / record.length;
+        var pool = new BufferPool(256 * 1024, 4);
+        for (var i = 0; i < 3; i++) {
+            try (var plain = open(tempDir.resolve("plain.bin"))) {
+                System.out.println("Plain writes: " + writeRecords(plain, record, records) + " MB/s");
+            }
+            try (var coalescing = new WriteBehindFileChannel(open(tempDir.resolve("coalesced.bin")), pool, 500, null)) {
+                System.out.println("Write-behind: " + writeRecords(coalescing, record, records) + " MB/s");
+            }
+        }
+    }
+
+    private static double writeRecords(FileChannel channel, byte[] record, int records) throws IOException {
+        var t0 = System.nanoTime();
+        long offset = 0;
+        for (var i = 0; i < records; i++) {
+            writeAt(channel, offset, record);
+            offset += record.length;
+        }
+        channel.force(false);
+        var seconds = (System.nanoTime() - t0) / 1e9;
+        return offset / (1024.0 * 1024.0) / seconds;
+    }
+
+    private static final class CountingFileChannel extends ForwardingFileChannel {
+        private int writes;
+        private boolean fail;
+
+        CountingFileChannel(FileChannel delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (fail) {
+                throw new IOException("No space left on device");
+            }
+            writes++;
+            return super.write(src, position);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.sshdaemon.sshd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+class CommandIoPumpTest {
+
+    private final CommandIoPump pump = new CommandIoPump(2, 8192, 4);
+
+    @AfterEach
+    void tearDown() {
+        pump.close();
+    }
+
+    /**
+     * Input reporting its end through {@link InputStream#available()} as channel input does
+     */
+    private static InputStream channelInput(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int available() {
+                var available = super.available();
+                return available == 0 ? -1 : available;
+            }
+        };
+    }
+
+    private static Process sh(String script) throws IOException {
+        return new ProcessBuilder("/bin/sh", "-c", script).start();
+    }
+
+    @Test
+    void testOutputAndErrorsStaySeparate() throws Exception {
+        var process = sh("cat; echo failed >&2");
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var pumping = pump.start(process, channelInput("line 1\nline 2\n"), out, err);
+        assertEquals(0, process.waitFor());
+        assertTrue(pumping.awaitOutput(5000));
+        assertEquals("line 1\nline 2\n", out.toString(StandardCharsets.UTF_8));
+        assertEquals("failed\n", err.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testBulkOutputIsPassedOnCompletely() throws Exception {
+        var process = sh("head -c 3000000 /dev/zero");
+        var out = new ByteArrayOutputStream();
+        var pumping = pump.start(process, channelInput(""), out, new ByteArrayOutputStream());
+        process.waitFor();
+        assertTrue(pumping.awaitOutput(5000));
+        assertEquals(3000000, out.size());
+        assertTrue(pump.getPumpedBytes() >= 3000000);
+        assertTrue(pump.getPooledBuffers() > 0);
+    }
+
+    @Test
+    void testManyCommandsShareThreads() throws Exception {
+        var commands = 40;
+        var processes = new ArrayList<Process>();
+        var outputs = new ArrayList<ByteArrayOutputStream>();
+        var pumpings = new ArrayList<CommandIoPump.Pumping>();
+        for (var i = 0; i < commands; i++) {
+            var process = sh("sleep 0.2; echo " + i);
+            var out = new ByteArrayOutputStream();
+            processes.add(process);
+            outputs.add(out);
+            pumpings.add(pump.start(process, channelInput(""), out, new ByteArrayOutputStream()));
+        }
+        assertTrue(pump.getActiveStreams() > commands);
+        var pumpThreads = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("Command-IO")).count();
+        // Workers plus the timer
+        assertTrue(pumpThreads <= pump.getThreadCount() + 1, "Pump threads: " + pumpThreads);
+        for (var i = 0; i < commands; i++) {
+            processes.get(i).waitFor();
+            assertTrue(pumpings.get(i).awaitOutput(5000));
+            assertEquals(i + "\n", outputs.get(i).toString(StandardCharsets.UTF_8));
+        }
+        assertEquals(0, pump.getActiveStreams());
+    }
+
+    /**
+     * Output counting the flushes, standing in for the packets sent
+     */
+    private static final class FlushCountingStream extends ByteArrayOutputStream {
+        private int flushes;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    @Test
+    void testChattyOutputIsCoalesced() throws Exception {
+        // A line every few hundred microseconds
+        var script = "i=0; while [ $i -lt 300 ]; do echo line $i; j=0; while [ $j -lt 200 ]; do j=$((j+1)); done; "
+                + "i=$((i+1)); done";
+        var coalesced = new FlushCountingStream();
+        var process = sh(script);
+        var pumping = pump.start(process, channelInput(""), coalesced, new ByteArrayOutputStream(), false, null);
+        process.waitFor();
+        assertTrue(pumping.awaitOutput(5000));
+
+        var interactive = new FlushCountingStream();
+        process = sh(script);
+        pumping = pump.start(process, channelInput(""), interactive, new ByteArrayOutputStream(), true, null);
+        process.waitFor();
+        assertTrue(pumping.awaitOutput(5000));
+
+        assertEquals(interactive.toString(StandardCharsets.UTF_8), coalesced.toString(StandardCharsets.UTF_8));
+        assertTrue(coalesced.toString(StandardCharsets.UTF_8).endsWith("line 299\n"));
+        assertTrue(coalesced.flushes < 300 / 4 && coalesced.flushes < interactive.flushes,
+                "Coalesced flushes: " + coalesced.flushes + ", interactive flushes: " + interactive.flushes);
+    }
+
+    @Test
+    void testCoalescedOutputIsFlushedWhenIdle() throws Exception {
+        var process = sh("echo prompt; sleep 1");
+        var out = new FlushCountingStream();
+        var pumping = pump.start(process, channelInput(""), out, new ByteArrayOutputStream(), false, null);
+        // Flushed a few milliseconds after the output, long before the process exits
+        var deadline = System.currentTimeMillis() + 500;
+        while (out.flushes == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, out.flushes);
+        assertEquals("prompt\n", out.toString(StandardCharsets.UTF_8));
+        pumping.cancel();
+        process.destroy();
+    }
+
+    @Test
+    void testCancelStopsPumping() throws Exception {
+        var process = sh("sleep 5");
+        var pumping = pump.start(process, channelInput(""), new ByteArrayOutputStream(),
+                new ByteArrayOutputStream());
+        pumping.cancel();
+        assertTrue(pumping.awaitOutput(5000));
+        process.destroy();
+        process.waitFor();
+        assertEquals(0, pump.getActiveStreams());
+    }
+
+    @Test
+    void testStalledStreamsDoNotHoldUpOthers() throws Exception {
+        try (var single = new CommandIoPump(1, 8192, 4)) {
+            // A process not reading its input, the pipe fills up
+            var ignoring = sh("sleep 10");
+            var ignoringPumping = single.start(ignoring, new ByteArrayInputStream(new byte[1024 * 1024]),
+                    new ByteArrayOutputStream(), new ByteArrayOutputStream());
+            // A client not reading the output
+            var stalled = new CountDownLatch(1);
+            var unread = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    try {
+                        stalled.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            };
+            var chatty = sh("head -c 1000000 /dev/zero; sleep 10");
+            var chattyPumping = single.start(chatty, channelInput(""), unread, new ByteArrayOutputStream());
+            Thread.sleep(200);
+
+            var process = sh("echo through");
+            var out = new ByteArrayOutputStream();
+            var pumping = single.start(process, channelInput(""), out, new ByteArrayOutputStream());
+            assertTrue(pumping.awaitOutput(2000));
+            assertEquals("through\n", out.toString(StandardCharsets.UTF_8));
+
+            ignoringPumping.cancel();
+            chattyPumping.cancel();
+            stalled.countDown();
+            ignoring.destroy();
+            chatty.destroy();
+        }
+    }
+
+    @Test
+    void testOutputWrittenAfterExitIsPassedOn() throws Exception {
+        // A child left running in the background still holds the pipe when the process exits
+        var pipe = new PipedOutputStream();
+        var process = new ExitedProcess(new PipedInputStream(pipe));
+        var out = new ByteArrayOutputStream();
+        var pumping = pump.start(process, channelInput(""), out, new ByteArrayOutputStream());
+        assertFalse(pumping.awaitOutput(200));
+        pipe.write("late\n".getBytes(StandardCharsets.UTF_8));
+        pipe.close();
+        assertTrue(pumping.awaitOutput(5000));
+        assertEquals("late\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Process that has already exited, with the given output
+     */
+    private static final class ExitedProcess extends Process {
+        private final InputStream output;
+
+        ExitedProcess(InputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return output;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.sshdaemon.sshd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+class ProcessSupervisorTest {
+
+    private final ProcessSupervisor supervisor = new ProcessSupervisor(new CommandIoPump(2, 8192, 4), 300);
+
+    @AfterEach
+    void tearDown() {
+        supervisor.close();
+    }
+
+    private static InputStream noInput() {
+        return new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public synchronized int available() {
+                return -1;
+            }
+        };
+    }
+
+    private static Process sh(String script) throws IOException {
+        return new ProcessBuilder("/bin/sh", "-c", script).start();
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void testExitIsReportedPromptlyAfterOutput() throws Exception {
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var exit = new CompletableFuture<Integer>();
+        var started = System.nanoTime();
+        supervisor.supervise(sh("echo done; echo oops >&2; exit 3"), noInput(), out, err, false,
+                exit::complete);
+        assertEquals(3, exit.get(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1000);
+        assertEquals("done\n", out.toString(StandardCharsets.UTF_8));
+        assertEquals("oops\n", err.toString(StandardCharsets.UTF_8));
+        assertEquals(0, supervisor.getLiveProcesses());
+        assertEquals(1, supervisor.getStartedProcesses());
+    }
+
+    @Test
+    void testExitIsReportedWhenOutputEndsFirst() throws Exception {
+        var exit = new CompletableFuture<Integer>();
+        supervisor.supervise(sh("exec >&- 2>&-; sleep 0.3; exit 4"), noInput(), new ByteArrayOutputStream(),
+                new ByteArrayOutputStream(), false, exit::complete);
+        assertEquals(4, exit.get(5, TimeUnit.SECONDS));
+        assertEquals(0, supervisor.getLiveProcesses());
+    }
+
+    @Test
+    void testDestroyedProcessIsReaped() throws Exception {
+        var exit = new CompletableFuture<Integer>();
+        var process = sh("trap '' TERM; echo ready; while true; do sleep 1; done");
+        var out = new ByteArrayOutputStream();
+        var supervision = supervisor.supervise(process, noInput(), out, new ByteArrayOutputStream(), true,
+                exit::complete);
+        awaitCondition(() -> out.size() > 0);
+        assertEquals(1, supervisor.getLiveProcesses());
+
+        supervision.destroy();
+        assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+        awaitCondition(() -> supervisor.getLiveProcesses() == 0);
+        assertEquals(1, supervisor.getReapedProcesses());
+        assertFalse(exit.isDone());
+    }
+}
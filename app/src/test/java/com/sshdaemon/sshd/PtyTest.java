@@ -0,0 +1,159 @@
+package com.sshdaemon.sshd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.apache.sshd.common.channel.PtyMode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+class PtyTest {
+
+    private static final String SHELL = "/bin/sh";
+
+    /**
+     * Collects everything written to the terminal on a thread of its own
+     */
+    private static StringBuffer collect(Pty pty) {
+        var output = new StringBuffer();
+        var reader = new Thread(() -> {
+            var buffer = new byte[4096];
+            try {
+                int count;
+                while ((count = pty.getInputStream().read(buffer, 0, buffer.length)) != -1) {
+                    output.append(new String(buffer, 0, count, StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return output;
+    }
+
+    private static void awaitOutput(StringBuffer output, String expected) throws InterruptedException {
+        for (var i = 0; i < 500 && output.indexOf(expected) < 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(output.indexOf(expected) >= 0, output.toString());
+    }
+
+    private static void type(Pty pty, String line) throws IOException {
+        pty.getOutputStream().write(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean canRun() {
+        return Pty.isAvailable() && Files.isExecutable(Paths.get(SHELL));
+    }
+
+    @Test
+    void testShellRunsOnTerminal() throws Exception {
+        assumeTrue(canRun(), "No native terminal support or no shell");
+        var pty = Pty.start(SHELL, new String[]{SHELL}, Map.of("PS1", "$ ", "PATH", "/bin:/usr/bin"), "/",
+                Map.of(PtyMode.ECHO, 1, PtyMode.ONLCR, 1), 80, 24);
+        try (pty) {
+            var output = collect(pty);
+            type(pty, "test -t 0 && echo terminal-$((1 + 1))\n");
+            // The driver echoes what is typed, the output has the newlines translated
+            awaitOutput(output, "test -t 0 && echo terminal-$((1 + 1))\r\n");
+            awaitOutput(output, "terminal-2\r\n");
+            type(pty, "exit 3\n");
+            assertEquals(3, pty.waitFor());
+        }
+    }
+
+    @Test
+    void testModesOfClientAreApplied() throws Exception {
+        assumeTrue(canRun(), "No native terminal support or no shell");
+        var pty = Pty.start(SHELL, new String[]{SHELL}, Map.of("PS1", "", "PATH", "/bin:/usr/bin"), "/",
+                Map.of(PtyMode.ECHO, 0, PtyMode.ONLCR, 0), 80, 24);
+        try (pty) {
+            var output = collect(pty);
+            type(pty, "echo silent-$((2 + 2)); exit\n");
+            assertEquals(0, pty.waitFor());
+            awaitOutput(output, "silent-4\n");
+            assertFalse(output.toString().contains("$(("), output.toString());
+            assertFalse(output.toString().contains("\r"), output.toString());
+        }
+    }
+
+    @Test
+    void testWindowSizeChanges() throws Exception {
+        assumeTrue(canRun(), "No native terminal support or no shell");
+        var pty = Pty.start(SHELL, new String[]{SHELL}, Map.of("PS1", "", "PATH", "/bin:/usr/bin"), "/",
+                Map.of(PtyMode.ECHO, 0), 80, 24);
+        try (pty) {
+            var output = collect(pty);
+            type(pty, "stty size\n");
+            awaitOutput(output, "24 80");
+            pty.resize(132, 50);
+            type(pty, "stty size; exit\n");
+            awaitOutput(output, "50 132");
+            assertEquals(0, pty.waitFor());
+        }
+    }
+
+    @Test
+    void testSignalEndsProcess() throws Exception {
+        assumeTrue(canRun(), "No native terminal support or no shell");
+        var pty = Pty.start(SHELL, new String[]{SHELL, "-c", "sleep 30"}, Map.of("PATH", "/bin:/usr/bin"), "/",
+                Map.of(), 80, 24);
+        try (pty) {
+            pty.signal(15);
+            assertEquals(128 + 15, pty.waitFor());
+        }
+    }
+
+    @Test
+    void testCloseEndsReadInProgress() throws Exception {
+        assumeTrue(canRun(), "No native terminal support or no shell");
+        var pty = Pty.start(SHELL, new String[]{SHELL, "-c", "sleep 30"}, Map.of("PATH", "/bin:/usr/bin"), "/",
+                Map.of(), 80, 24);
+        try (pty) {
+            var read = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return pty.getInputStream().read(new byte[16], 0, 16);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(read.isDone());
+            pty.close();
+            assertEquals(-1, read.get(5, TimeUnit.SECONDS));
+        } finally {
+            pty.signal(9);
+            pty.waitFor();
+        }
+    }
+
+    @Test
+    void testProcessIgnoringHangUpIsKilledAfterGrace() throws Exception {
+        assumeTrue(canRun(), "No native terminal support or no shell");
+        var pty = Pty.start(SHELL, new String[]{SHELL, "-c", "trap '' HUP; while true; do sleep 1; done"},
+                Map.of("PATH", "/bin:/usr/bin"), "/", Map.of(), 80, 24);
+        var supervisor = new ProcessSupervisor(new CommandIoPump(1, 8192, 1), 300);
+        try (pty; supervisor) {
+            var exit = CompletableFuture.supplyAsync(pty::waitFor);
+            Thread.sleep(200);
+            pty.signal(1);
+            supervisor.killAfterGrace(pty::isAlive, () -> pty.signal(9));
+            assertEquals(128 + 9, exit.get(5, TimeUnit.SECONDS));
+            // Counted once the signal has been sent, which the exit may overtake
+            for (var i = 0; i < 500 && supervisor.getReapedProcesses() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, supervisor.getReapedProcesses());
+        }
+    }
+}
@@ -21,17 +21,25 @@ package com.sshdaemon.sshd;
 import static org.apache.sshd.common.compression.BuiltinCompressions.delayedZlib;
 import static org.apache.sshd.common.compression.BuiltinCompressions.zlib;
 
+import com.sshdaemon.sftp.TreeScanClient;
+
 import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.channel.ClientChannelEvent;
 import org.apache.sshd.client.session.ClientSession;
 import org.apache.sshd.sftp.client.SftpClient;
 import org.apache.sshd.sftp.client.SftpClientFactory;
+import org.apache.sshd.sftp.client.extensions.CheckFileNameExtension;
+import org.apache.sshd.sftp.client.extensions.CopyDataExtension;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.RepeatedTest;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -92,4 +100,577 @@ class SshDaemonPerformanceTest {
         }
         System.out.println("Average speed: " + totalSpeed / uploadSizes.size() + " kB/s");
     }
-}
\ No newline at end of file
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void smallWriteUpload() throws Exception {
+        // Every record is a separate SSH_FXP_WRITE, run once with and once without write-behind on the daemon
+        var uploadSizes = Arrays.asList(64, 128, 256);
+        var record = "123456789abcdef\n".getBytes();
+        var totalSpeed = 0d;
+        for (int kilobytes : uploadSizes) {
+            long t0 = System.currentTimeMillis();
+            try (var handle = sftpClient.open("small-writes.txt",
+                    SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate)) {
+                for (long offset = 0; offset < 1024L * kilobytes; offset += record.length) {
+                    sftpClient.write(handle, offset, record);
+                }
+            }
+            long uploadDuration = System.currentTimeMillis() - t0;
+            sftpClient.remove("small-writes.txt");
+            var speed = ((double) (kilobytes * 1000)) / (uploadDuration);
+            totalSpeed += speed;
+            System.out.println("Small write upload duration: " + uploadDuration + " ms for " + kilobytes + " kB" + " speed: " + speed + " kB/s");
+        }
+        System.out.println("Average speed: " + totalSpeed / uploadSizes.size() + " kB/s");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void downloadLatency() throws Exception {
+        var downloadSizes = Arrays.asList(1, 10, 100, 500);
+        var totalSpeed = 0d;
+        for (int megabytes : downloadSizes) {
+            var fileName = "download-" + megabytes + ".bin";
+            try (OutputStream os = sftpClient.write(fileName, 32768,
+                    SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate)) {
+                byte[] bytes = new byte[1024 * 1024];
+                for (int i = 0; i < megabytes; i++) {
+                    os.write(bytes);
+                }
+            }
+            long t0 = System.currentTimeMillis();
+            try (InputStream is = sftpClient.read(fileName, 65536)) {
+                byte[] buffer = new byte[65536];
+                while (is.read(buffer) != -1) {
+                    // discard
+                }
+            }
+            long downloadDuration = System.currentTimeMillis() - t0;
+            sftpClient.remove(fileName);
+            var speed = ((double) (megabytes * 1000 * 1024)) / (downloadDuration);
+            totalSpeed += speed;
+            System.out.println("Download duration: " + downloadDuration + " ms for " + megabytes + " MB" + " speed: " + speed + " kB/s");
+        }
+        System.out.println("Average speed: " + totalSpeed / downloadSizes.size() + " kB/s");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void scpThroughput() throws Exception {
+        var sizes = Arrays.asList(10, 100, 500);
+        byte[] bytes = new byte[1024 * 1024];
+        for (int megabytes : sizes) {
+            var fileName = "scp-" + megabytes + ".bin";
+            long size = megabytes * 1024L * 1024L;
+            long t0 = System.currentTimeMillis();
+            try (var channel = session.createExecChannel("scp -t " + fileName)) {
+                channel.open().verify(10, TimeUnit.SECONDS);
+                var in = channel.getInvertedOut();
+                var out = channel.getInvertedIn();
+                expectAcknowledge(in);
+                out.write(("C0644 " + size + " " + fileName + "\n").getBytes());
+                out.flush();
+                expectAcknowledge(in);
+                for (int i = 0; i < megabytes; i++) {
+                    out.write(bytes);
+                }
+                out.write(0);
+                out.flush();
+                expectAcknowledge(in);
+                out.close();
+                channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 60000);
+            }
+            long uploadDuration = System.currentTimeMillis() - t0;
+            t0 = System.currentTimeMillis();
+            try (var channel = session.createExecChannel("scp -f " + fileName)) {
+                channel.open().verify(10, TimeUnit.SECONDS);
+                var in = channel.getInvertedOut();
+                var out = channel.getInvertedIn();
+                out.write(0);
+                out.flush();
+                for (int c = in.read(); c != '\n'; c = in.read()) {
+                    if (c < 0) {
+                        throw new IOException("No file record");
+                    }
+                }
+                out.write(0);
+                out.flush();
+                for (long remaining = size; remaining > 0; ) {
+                    int count = in.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+                    if (count < 0) {
+                        throw new IOException("Download too short by " + remaining);
+                    }
+                    remaining -= count;
+                }
+                expectAcknowledge(in);
+                out.write(0);
+                out.close();
+                channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 60000);
+            }
+            long downloadDuration = System.currentTimeMillis() - t0;
+            sftpClient.remove(fileName);
+            System.out.println("Scp " + megabytes + " MB upload: " + megabytes * 1000 * 1024L / uploadDuration
+                    + " kB/s, download: " + megabytes * 1000 * 1024L / downloadDuration + " kB/s");
+        }
+    }
+
+    private static void expectAcknowledge(InputStream in) throws IOException {
+        int c = in.read();
+        if (c != 0) {
+            throw new IOException("Unexpected scp response: " + c);
+        }
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void statLatency() throws Exception {
+        var directory = "stat-benchmark";
+        var fileCount = 500;
+        sftpClient.mkdir(directory);
+        for (int i = 0; i < fileCount; i++) {
+            try (OutputStream os = sftpClient.write(directory + "/file-" + i)) {
+                os.write(i);
+            }
+        }
+        // The first pass misses the daemon's attribute cache, the following ones are served from it
+        for (int pass = 0; pass < 5; pass++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < fileCount; i++) {
+                sftpClient.stat(directory + "/file-" + i);
+                sftpClient.lstat(directory + "/file-" + i);
+            }
+            long duration = System.nanoTime() - t0;
+            System.out.println("Stat pass " + pass + ": " + duration / (2 * fileCount * 1000) + " us per request");
+        }
+        for (int i = 0; i < fileCount; i++) {
+            sftpClient.remove(directory + "/file-" + i);
+        }
+        sftpClient.rmdir(directory);
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void listLargeDirectory() throws Exception {
+        var directory = "readdir-benchmark";
+        var fileCount = 40000;
+        sftpClient.mkdir(directory);
+        for (int i = 0; i < fileCount; i++) {
+            sftpClient.write(directory + "/IMG_" + i + ".jpg").close();
+        }
+        long t0 = System.currentTimeMillis();
+        long firstBatch = -1;
+        int entries = 0;
+        try (var handle = sftpClient.openDir(directory)) {
+            List<SftpClient.DirEntry> batch;
+            while ((batch = sftpClient.readDir(handle)) != null) {
+                if (firstBatch < 0) {
+                    firstBatch = System.currentTimeMillis() - t0;
+                }
+                entries += batch.size();
+            }
+        }
+        long listDuration = System.currentTimeMillis() - t0;
+        System.out.println("Listed " + entries + " entries in " + listDuration + " ms, first batch after " + firstBatch + " ms");
+        for (int i = 0; i < fileCount; i++) {
+            sftpClient.remove(directory + "/IMG_" + i + ".jpg");
+        }
+        sftpClient.rmdir(directory);
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void sequentialDownload() throws Exception {
+        // One outstanding 32 KB read request at a time, like a client with minimal pipelining
+        var downloadSizes = Arrays.asList(4, 16);
+        var totalSpeed = 0d;
+        for (int megabytes : downloadSizes) {
+            var fileName = "sequential-" + megabytes + ".bin";
+            try (OutputStream os = sftpClient.write(fileName, 32768,
+                    SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate)) {
+                byte[] bytes = new byte[1024 * 1024];
+                for (int i = 0; i < megabytes; i++) {
+                    os.write(bytes);
+                }
+            }
+            long t0 = System.currentTimeMillis();
+            try (var handle = sftpClient.open(fileName, SftpClient.OpenMode.Read)) {
+                byte[] buffer = new byte[32768];
+                long offset = 0;
+                int read;
+                while ((read = sftpClient.read(handle, offset, buffer, 0, buffer.length)) > 0) {
+                    offset += read;
+                }
+            }
+            long downloadDuration = System.currentTimeMillis() - t0;
+            sftpClient.remove(fileName);
+            var speed = ((double) (megabytes * 1000 * 1024)) / (downloadDuration);
+            totalSpeed += speed;
+            System.out.println("Sequential download duration: " + downloadDuration + " ms for " + megabytes + " MB" + " speed: " + speed + " kB/s");
+        }
+        System.out.println("Average speed: " + totalSpeed / downloadSizes.size() + " kB/s");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void serverSideCopyAndHash() throws Exception {
+        var megabytes = 64;
+        var fileName = "hash-source.bin";
+        try (OutputStream os = sftpClient.write(fileName, 32768,
+                SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate)) {
+            byte[] bytes = new byte[1024 * 1024];
+            for (int i = 0; i < megabytes; i++) {
+                Arrays.fill(bytes, (byte) i);
+                os.write(bytes);
+            }
+        }
+        var checkFile = sftpClient.getExtension(CheckFileNameExtension.class);
+        long t0 = System.currentTimeMillis();
+        var wholeFile = checkFile.checkFileName(fileName, List.of("sha256"), 0, 0, 0);
+        long t1 = System.currentTimeMillis();
+        var blocks = checkFile.checkFileName(fileName, List.of("sha256"), 0, 0, 1024 * 1024);
+        long t2 = System.currentTimeMillis();
+        System.out.println("Hashed " + megabytes + " MB in " + (t1 - t0) + " ms, " + blocks.getValue().size()
+                + " blocks in " + (t2 - t1) + " ms (" + wholeFile.getKey() + ")");
+        // The file is unchanged, the daemon answers from its content hash index
+        checkFile.checkFileName(fileName, List.of("sha256"), 0, 0, 0);
+        System.out.println("Hashed unchanged file again in " + (System.currentTimeMillis() - t2) + " ms");
+
+        var copy = sftpClient.getExtension(CopyDataExtension.class);
+        long t3 = System.currentTimeMillis();
+        try (var source = sftpClient.open(fileName, SftpClient.OpenMode.Read);
+             var target = sftpClient.open("hash-copy.bin",
+                     SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate)) {
+            copy.copyData(source, 0, 0, target, 0);
+        }
+        long copyDuration = System.currentTimeMillis() - t3;
+        var copied = checkFile.checkFileName("hash-copy.bin", List.of("sha256"), 0, 0, 0);
+        System.out.println("Copied " + megabytes + " MB in " + copyDuration + " ms, hashes match: "
+                + Arrays.equals(wholeFile.getValue().iterator().next(), copied.getValue().iterator().next()));
+        sftpClient.remove(fileName);
+        sftpClient.remove("hash-copy.bin");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void statLatencyDuringDownload() throws Exception {
+        var megabytes = 64;
+        var fileName = "bulk.bin";
+        try (OutputStream os = sftpClient.write(fileName, 32768,
+                SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate)) {
+            byte[] bytes = new byte[1024 * 1024];
+            for (int i = 0; i < megabytes; i++) {
+                os.write(bytes);
+            }
+        }
+        // A second session hammering the daemon with a bulk download
+        var bulkSession = client.connect("user", "localhost", 8022)
+                .verify(10, TimeUnit.SECONDS)
+                .getSession();
+        bulkSession.addPasswordIdentity("gux");
+        bulkSession.auth().verify(10, TimeUnit.SECONDS);
+        var bulkDone = new java.util.concurrent.atomic.AtomicBoolean();
+        var bulk = new Thread(() -> {
+            try (SftpClient bulkClient = SftpClientFactory.instance().createSftpClient(bulkSession);
+                 InputStream is = bulkClient.read(fileName, 32768)) {
+                byte[] buffer = new byte[65536];
+                while (!bulkDone.get() && is.read(buffer) > 0) {
+                    // Keep reading
+                }
+            } catch (Exception e) {
+                // Stopped by closing the session
+            }
+        });
+        bulk.start();
+        Thread.sleep(200);
+        long t0 = System.nanoTime();
+        int requests = 200;
+        for (int i = 0; i < requests; i++) {
+            sftpClient.stat(fileName);
+        }
+        long duration = System.nanoTime() - t0;
+        bulkDone.set(true);
+        bulk.join();
+        bulkSession.close();
+        sftpClient.remove(fileName);
+        System.out.println("Stat during bulk download: " + duration / (requests * 1000) + " us per request");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void smallFileUpload() throws Exception {
+        // Run once with and once without atomic uploads on the daemon
+        var files = 200;
+        var photo = new byte[32 * 1024];
+        sftpClient.mkdir("photos");
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < files; i++) {
+            try (OutputStream os = sftpClient.write("photos/" + i + ".jpg", 32768,
+                    SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate)) {
+                os.write(photo);
+            }
+        }
+        long uploadDuration = System.currentTimeMillis() - t0;
+        for (int i = 0; i < files; i++) {
+            sftpClient.remove("photos/" + i + ".jpg");
+        }
+        sftpClient.rmdir("photos");
+        System.out.println("Small file upload: " + uploadDuration * 1000 / files + " us per file");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void reopenSameFile() throws Exception {
+        // The access pattern of sshfs: open, fstat, read a page and close, over and over
+        var fileName = "reopened.txt";
+        try (OutputStream os = sftpClient.write(fileName)) {
+            os.write(new byte[64 * 1024]);
+        }
+        var page = new byte[4096];
+        int requests = 500;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            try (var handle = sftpClient.open(fileName, SftpClient.OpenMode.Read)) {
+                sftpClient.stat(handle);
+                sftpClient.read(handle, (i % 16) * 4096L, page, 0, page.length);
+            }
+        }
+        long duration = System.nanoTime() - t0;
+        sftpClient.remove(fileName);
+        System.out.println("Open, fstat, read and close: " + duration / (requests * 1000) + " us per file");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void treeScanVersusWalk() throws Exception {
+        var root = "tree";
+        try {
+            sftpClient.lstat(root + "/done");
+        } catch (IOException e) {
+            createTree(root, 3);
+            sftpClient.write(root + "/done").close();
+        }
+        long t0 = System.nanoTime();
+        var walked = walk(root);
+        long walkDuration = System.nanoTime() - t0;
+        t0 = System.nanoTime();
+        var scanned = new TreeScanClient(sftpClient).scan(root, 4).size();
+        long scanDuration = System.nanoTime() - t0;
+        System.out.println("Walked " + walked + " entries in " + walkDuration / 1000000 + " ms, scanned "
+                + scanned + " entries in " + scanDuration / 1000000 + " ms");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void manyQuickCommands() throws Exception {
+        var commands = 200;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < commands; i++) {
+            var output = session.executeRemoteCommand("echo " + i);
+            if (!output.trim().equals(String.valueOf(i))) {
+                throw new IllegalStateException("Unexpected output: " + output);
+            }
+        }
+        long duration = System.nanoTime() - t0;
+        System.out.println("Quick commands: " + duration / (commands * 1000) + " us per command");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void builtinVersusShellCommands() throws Exception {
+        try (var out = sftpClient.write("builtin.txt")) {
+            out.write("builtin\n".getBytes());
+        }
+        var commands = 200;
+        // "command" keeps the same utility from being run as builtin
+        for (var prefix : List.of("", "command ")) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < commands; i++) {
+                var output = session.executeRemoteCommand(prefix + "stat -c %s builtin.txt");
+                if (!output.trim().equals("8")) {
+                    throw new IllegalStateException("Unexpected output: " + output);
+                }
+            }
+            long duration = System.nanoTime() - t0;
+            System.out.println((prefix.isEmpty() ? "Builtin" : "Shell") + " stat: "
+                    + duration / (commands * 1000) + " us per command");
+        }
+        sftpClient.remove("builtin.txt");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void tarManySmallFiles() throws Exception {
+        var files = 2000;
+        var content = new byte[4096];
+        try {
+            sftpClient.mkdir("tar-files");
+        } catch (Exception e) {
+            // Left over from an interrupted run
+        }
+        for (int i = 0; i < files; i++) {
+            try (var out = sftpClient.write("tar-files/file" + i)) {
+                out.write(content);
+            }
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            try (var in = sftpClient.read("tar-files/file" + i)) {
+                in.readAllBytes();
+            }
+        }
+        System.out.println("SFTP: " + files * 1_000_000_000L / (System.nanoTime() - t0) + " files/s");
+        // "command" runs the tar the device ships instead of the builtin
+        for (var prefix : List.of("", "command ")) {
+            var bytes = new long[1];
+            var output = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    bytes[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    bytes[0] += len;
+                }
+            };
+            t0 = System.nanoTime();
+            try (var channel = session.createExecChannel(prefix + "tar cf - tar-files")) {
+                channel.setOut(output);
+                channel.setErr(OutputStream.nullOutputStream());
+                channel.open().verify(10, TimeUnit.SECONDS);
+                channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 60000);
+            }
+            long duration = System.nanoTime() - t0;
+            if (bytes[0] < (long) files * content.length) {
+                throw new IllegalStateException("Archive too short: " + bytes[0]);
+            }
+            System.out.println((prefix.isEmpty() ? "Builtin" : "Shell") + " tar: "
+                    + files * 1_000_000_000L / duration + " files/s");
+        }
+        for (int i = 0; i < files; i++) {
+            sftpClient.remove("tar-files/file" + i);
+        }
+        sftpClient.rmdir("tar-files");
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void shellOnTerminalVersusPipes() throws Exception {
+        var keystrokes = 200;
+        var outputBytes = 20_000_000;
+        // Without a pty-req the shell runs on pipes with the emulated terminal
+        for (var usePty : List.of(true, false)) {
+            try (var channel = session.createShellChannel()) {
+                channel.setUsePty(usePty);
+                channel.open().verify(10, TimeUnit.SECONDS);
+                var in = channel.getInvertedOut();
+                var out = channel.getInvertedIn();
+                Thread.sleep(500);
+                in.skip(in.available());
+                // A comment, so the typed line does nothing
+                long t0 = System.nanoTime();
+                for (int i = 0; i < keystrokes; i++) {
+                    out.write(i == 0 ? '#' : 'x');
+                    out.flush();
+                    if (in.read() < 0) {
+                        throw new IOException("Shell closed");
+                    }
+                }
+                long echoDuration = System.nanoTime() - t0;
+                out.write('\r');
+                out.flush();
+                Thread.sleep(200);
+                in.skip(in.available());
+                out.write(("head -c " + outputBytes + " /dev/zero | tr '\\0' x").getBytes());
+                out.flush();
+                Thread.sleep(200);
+                out.write('\r');
+                out.flush();
+                var bytes = 0L;
+                var buffer = new byte[65536];
+                t0 = System.nanoTime();
+                // The output, besides the echoed command line
+                while (bytes < outputBytes) {
+                    int count = in.read(buffer);
+                    if (count < 0) {
+                        throw new IOException("Shell closed");
+                    }
+                    bytes += count;
+                }
+                long outputDuration = System.nanoTime() - t0;
+                System.out.println((usePty ? "Terminal" : "Pipes") + ": echo " + echoDuration / (keystrokes * 1000)
+                        + " us per keystroke, output " + bytes * 1000 / outputDuration + " MB/s");
+                out.write("exit".getBytes());
+                out.flush();
+                Thread.sleep(200);
+                out.write('\r');
+                out.flush();
+                channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 10000);
+            }
+        }
+    }
+
+    @Disabled("This should not be executed in github workflow")
+    @RepeatedTest(5)
+    void chattyCommandOutput() throws Exception {
+        // One write per line, like line buffered tools
+        var command = "awk 'BEGIN { for (i = 0; i < 200000; i++) { print \"line \" i; fflush() } }'";
+        var packets = new long[1];
+        var bytes = new long[1];
+        var output = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // Every channel data message is written on its own
+                packets[0]++;
+                bytes[0] += len;
+            }
+        };
+        long t0 = System.nanoTime();
+        try (var channel = session.createExecChannel(command)) {
+            channel.setOut(output);
+            channel.setErr(OutputStream.nullOutputStream());
+            channel.open().verify(10, TimeUnit.SECONDS);
+            channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 60000);
+        }
+        long duration = System.nanoTime() - t0;
+        System.out.println("Chatty output: " + bytes[0] / 1024 + " KiB, " + packets[0] * 1024 * 1024 / bytes[0]
+                + " packets per MiB, " + bytes[0] * 1000 / duration + " MB/s");
+    }
+
+    private void createTree(String directory, int depth) throws Exception {
+        try {
+            sftpClient.mkdir(directory);
+        } catch (Exception e) {
+            // Left over from an interrupted run
+        }
+        for (int i = 0; i < 20; i++) {
+            sftpClient.write(directory + "/photo" + i + ".jpg").close();
+        }
+        if (depth > 0) {
+            for (int i = 0; i < 6; i++) {
+                createTree(directory + "/dir" + i, depth - 1);
+            }
+        }
+    }
+
+    private int walk(String directory) throws Exception {
+        int count = 0;
+        for (var entry : sftpClient.readDir(directory)) {
+            var name = entry.getFilename();
+            if (".".equals(name) || "..".equals(name)) {
+                continue;
+            }
+            count++;
+            if (entry.getAttributes().isDirectory()) {
+                count += walk(directory + "/" + name);
+            }
+        }
+        return count;
+    }
+}
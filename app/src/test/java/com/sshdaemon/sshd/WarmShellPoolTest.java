@@ -0,0 +1,126 @@
+package com.sshdaemon.sshd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+class WarmShellPoolTest {
+
+    private static final String SHELL = "/bin/sh";
+
+    @TempDir
+    Path tempDir;
+
+    private WarmShellPool pool;
+
+    @AfterEach
+    void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private Map<String, String> environment(Map<String, String> sessionEnv) {
+        var environment = new HashMap<>(System.getenv());
+        AbstractNativeCommand.setupEnvironment(environment, sessionEnv, tempDir.toString(), SHELL);
+        return environment;
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * Takes a warm shell, after a first command has started the pool filling
+     */
+    private Process takeWarm(Map<String, String> sessionEnv, String command) throws Exception {
+        if (pool.getIdleCount() == 0) {
+            assertNull(pool.take(SHELL, environment(Map.of()), "true"));
+            awaitCondition(() -> pool.getIdleCount() > 0);
+        }
+        var process = pool.take(SHELL, environment(sessionEnv), command);
+        assertNotNull(process);
+        return process;
+    }
+
+    @Test
+    void testCommandRunsInWarmShell() throws Exception {
+        pool = new WarmShellPool(tempDir.toString(), 2);
+        var process = takeWarm(Map.of(), "echo \"$PWD\"; echo 'it''s' >&2; exit 3");
+        assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+        assertEquals(3, process.exitValue());
+        assertEquals(tempDir + "\n", new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+        assertEquals("its\n", new String(process.getErrorStream().readAllBytes(), StandardCharsets.UTF_8));
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    void testInputAfterHandOffReachesCommand() throws Exception {
+        pool = new WarmShellPool(tempDir.toString(), 2);
+        var process = takeWarm(Map.of(), "cat\nwc -l");
+        var stdin = process.getOutputStream();
+        stdin.write("line 1\nline 2\n".getBytes(StandardCharsets.UTF_8));
+        stdin.close();
+        assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+        // cat reads all input, nothing is left for wc
+        assertEquals("line1\nline2\n0\n",
+                new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).replace(" ", ""));
+    }
+
+    @Test
+    void testSessionEnvironmentIsExported() throws Exception {
+        pool = new WarmShellPool(tempDir.toString(), 2);
+        var process = takeWarm(Map.of("LANG", "C", "GREETING", "it's a\nmultiline value"),
+                "printf '%s|%s' \"$LANG\" \"$GREETING\"");
+        assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+        assertEquals("C|it's a\nmultiline value",
+                new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testInteractiveShellReadsInput() throws Exception {
+        pool = new WarmShellPool(tempDir.toString(), 2);
+        var process = takeWarm(Map.of(), null);
+        var stdin = process.getOutputStream();
+        stdin.write("echo out; echo err >&2; exit 5\n".getBytes(StandardCharsets.UTF_8));
+        stdin.flush();
+        assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+        assertEquals(5, process.exitValue());
+        assertEquals("out\nerr\n", new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testDisabledPoolStartsNothing() throws Exception {
+        pool = new WarmShellPool(tempDir.toString(), 0);
+        assertNull(pool.take(SHELL, environment(Map.of()), "true"));
+        Thread.sleep(200);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getStartedShells());
+        assertEquals(0, pool.getMisses());
+    }
+
+    @Test
+    void testHandOffExportsOnlyChanges() {
+        var base = Map.of("HOME", "/data", "PATH", "/bin", "OLD", "1");
+        var target = Map.of("HOME", "/data", "PATH", "/usr/bin", "bad-name", "x");
+        var script = WarmShellPool.handOff(base, target, SHELL, "ls");
+        assertEquals("3\nexport PATH='/usr/bin'\nunset OLD\nls\n", script);
+    }
+}
@@ -0,0 +1,179 @@
+package com.sshdaemon.sshd.builtin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+class BuiltinCommandsTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path root;
+    private BuiltinCommands builtins;
+    private String output;
+    private String errors;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        root = Files.createDirectory(tempDir.resolve("root"));
+        Files.writeString(root.resolve("hello.txt"), "hello\n");
+        Files.createDirectories(root.resolve("dir/sub"));
+        Files.write(root.resolve("dir/data.bin"), new byte[5000]);
+        Files.writeString(root.resolve("dir/sub/notes.TXT"), "notes");
+        Files.writeString(tempDir.resolve("outside.txt"), "secret");
+        builtins = new BuiltinCommands(root, null, null, null);
+    }
+
+    /**
+     * Runs the command as builtin on the calling thread, returns its exit code
+     */
+    private int run(String command) {
+        var builtin = (BuiltinCommand) builtins.create(command);
+        assertNotNull(builtin, command);
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var exitCode = new AtomicInteger(-1);
+        builtin.setInputStream(new ByteArrayInputStream(new byte[0]));
+        builtin.setOutputStream(out);
+        builtin.setErrorStream(err);
+        builtin.setExitCallback((code, message, closeSession) -> exitCode.set(code));
+        builtin.run();
+        output = out.toString(StandardCharsets.UTF_8);
+        errors = err.toString(StandardCharsets.UTF_8);
+        return exitCode.get();
+    }
+
+    @Test
+    void testSplitRemovesQuotes() {
+        assertEquals(List.of("cat", "a b", "c'd", "e"), BuiltinCommands.split("cat 'a b'  \"c'd\"\te"));
+        assertEquals(List.of("ls", ""), BuiltinCommands.split("ls ''"));
+    }
+
+    @Test
+    void testShellSyntaxIsLeftToShell() {
+        for (var command : new String[]{"cat a | wc", "cat a > b", "cat $HOME", "ls *.txt", "cat a; ls",
+                "ls ~", "cat \"$x\"", "X=1 ls", "ls # comment", "cat 'open", "cat `x`", "ls {a,b}"}) {
+            assertNull(BuiltinCommands.split(command), command);
+            assertNull(builtins.create(command), command);
+        }
+    }
+
+    @Test
+    void testUnsupportedInvocationsAreLeftToShell() {
+        for (var command : new String[]{"cat -n hello.txt", "ls -R", "ls dir -l", "stat hello.txt",
+                "stat -c %B hello.txt", "du -sa dir", "df", "find . -exec rm {} ;", "find . -newer hello.txt",
+                "find . -name 'a/b'", "sha256sum -c sums", "vi hello.txt", "command cat hello.txt"}) {
+            assertNull(builtins.create(command), command);
+        }
+    }
+
+    @Test
+    void testOperandsOutsideRootAreLeftToShell() throws Exception {
+        Files.createSymbolicLink(root.resolve("escape"), tempDir.resolve("outside.txt"));
+        for (var command : new String[]{"cat ../outside.txt", "cat " + tempDir.resolve("outside.txt"),
+                "cat escape", "ls dir/../..", "du /", "find .. -name x"}) {
+            assertNull(builtins.create(command), command);
+        }
+        assertNotNull(builtins.create("cat " + root.resolve("hello.txt")));
+    }
+
+    @Test
+    void testDisabled() {
+        builtins.setEnabled(false);
+        assertNull(builtins.create("cat hello.txt"));
+        builtins.setEnabled(true);
+        assertNotNull(builtins.create("cat hello.txt"));
+        assertEquals(1, builtins.getExecuted());
+    }
+
+    @Test
+    void testCat() {
+        assertEquals(0, run("cat hello.txt dir/sub/notes.TXT"));
+        assertEquals("hello\nnotes", output);
+        assertEquals(1, run("cat missing hello.txt"));
+        assertEquals("hello\n", output);
+        assertEquals("cat: missing: No such file or directory\n", errors);
+    }
+
+    @Test
+    void testStat() {
+        assertEquals(0, run("stat -c '%n %s %F' hello.txt dir"));
+        var lines = output.split("\n");
+        assertEquals("hello.txt 6 regular file", lines[0]);
+        assertTrue(lines[1].startsWith("dir "), lines[1]);
+        assertTrue(lines[1].endsWith(" directory"), lines[1]);
+        assertEquals(0, run("stat --format=%A%% hello.txt"));
+        assertTrue(output.matches("-[rwx-]{9}%\n"), output);
+    }
+
+    @Test
+    void testLs() {
+        assertEquals(0, run("ls"));
+        assertEquals("dir\nhello.txt\n", output);
+        assertEquals(0, run("ls -1 dir hello.txt"));
+        assertEquals("hello.txt\n\ndir:\ndata.bin\nsub\n", output);
+        assertEquals(0, run("ls -l dir"));
+        var lines = output.split("\n");
+        assertTrue(lines[0].startsWith("total "), lines[0]);
+        assertTrue(lines[1].startsWith("-rw") && lines[1].contains(" 5000 ") && lines[1].endsWith(" data.bin"),
+                lines[1]);
+        assertTrue(lines[2].startsWith("d") && lines[2].endsWith(" sub"), lines[2]);
+        assertEquals(1, run("ls missing"));
+        assertEquals("ls: missing: No such file or directory\n", errors);
+    }
+
+    @Test
+    void testSha256sum() {
+        assertEquals(0, run("sha256sum hello.txt"));
+        assertEquals("5891b5b522d5df086d0ff0b110fbd9d21bb4fc7163af34d08286a2e846f6be03  hello.txt\n", output);
+    }
+
+    @Test
+    void testDu() {
+        assertEquals(0, run("du -b dir"));
+        var lines = output.split("\n");
+        assertEquals("sub", lines[0].substring(lines[0].lastIndexOf('/') + 1));
+        assertTrue(lines[1].endsWith("\tdir"), lines[1]);
+        assertEquals(0, run("du -sk hello.txt dir"));
+        assertEquals("4\thello.txt\n", output.substring(0, output.indexOf('\n') + 1));
+        assertEquals(0, run("du -ab dir/sub"));
+        assertTrue(output.startsWith("5\tdir/sub/notes.TXT\n"), output);
+    }
+
+    @Test
+    void testDf() {
+        assertEquals(0, run("df -k ."));
+        var lines = output.split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("Filesystem"), lines[0]);
+    }
+
+    @Test
+    void testFind() {
+        assertEquals(0, run("find dir -type f"));
+        assertEquals(List.of("dir/data.bin", "dir/sub/notes.TXT"), sorted(output));
+        assertEquals(0, run("find -iname '*.txt' -print"));
+        assertEquals(List.of("./dir/sub/notes.TXT", "./hello.txt"), sorted(output));
+        assertEquals(0, run("find . -mindepth 1 -maxdepth 1 -type d"));
+        assertEquals("./dir\n", output);
+    }
+
+    private static List<String> sorted(String output) {
+        return output.lines().sorted().collect(Collectors.toList());
+    }
+}
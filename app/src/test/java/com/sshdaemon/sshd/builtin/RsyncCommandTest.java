@@ -0,0 +1,481 @@
+package com.sshdaemon.sshd.builtin;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.sshdaemon.sshd.CommandIoPump;
+import com.sshdaemon.sshd.ProcessSupervisor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RsyncCommandTest {
+
+    private static final int SEED = 0x12345678;
+
+    @TempDir
+    Path tempDir;
+
+    private final ProcessSupervisor supervisor = new ProcessSupervisor(new CommandIoPump(2, 8192, 4), 300);
+    private final Executor executor = command -> new Thread(command).start();
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+    private Path root;
+    private BuiltinCommands builtins;
+    private long sent;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        root = Files.createDirectory(tempDir.resolve("root"));
+        builtins = new BuiltinCommands(root, supervisor, null, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        supervisor.close();
+    }
+
+    /**
+     * Strips the frames of a multiplexed stream, keeping the messages
+     */
+    private final class Demultiplexer extends InputStream {
+        private final DataInputStream in;
+        private int remaining;
+
+        Demultiplexer(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (remaining == 0) {
+                var first = in.read();
+                if (first < 0) {
+                    return -1;
+                }
+                var header = first | in.readUnsignedByte() << 8 | in.readUnsignedByte() << 16
+                        | in.readUnsignedByte() << 24;
+                var length = header & 0xffffff;
+                var tag = (header >>> 24) - 7;
+                if (tag == RsyncOutput.MSG_DATA) {
+                    remaining = length;
+                } else {
+                    var text = new byte[length];
+                    in.readFully(text);
+                    messages.add(tag + ":" + new String(text, StandardCharsets.UTF_8));
+                }
+            }
+            var count = in.read(b, off, Math.min(len, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(remaining, in.available());
+        }
+    }
+
+    private static byte[] rules(String... rules) {
+        var out = new ByteArrayOutputStream();
+        for (var rule : rules) {
+            var bytes = rule.getBytes(StandardCharsets.UTF_8);
+            out.writeBytes(littleEndian(bytes.length));
+            out.writeBytes(bytes);
+        }
+        out.writeBytes(littleEndian(0));
+        return out.toByteArray();
+    }
+
+    private static byte[] littleEndian(int value) {
+        return new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)};
+    }
+
+    /**
+     * Runs the sending and the receiving side against each other, as the client would run the one
+     * the daemon does not
+     */
+    private void transfer(String options, String source, String destination, String... rules) throws Exception {
+        var senderOptions = RsyncOptions.parse(BuiltinCommands.split("--server --sender " + options + " . " + source));
+        var receiverOptions = RsyncOptions.parse(BuiltinCommands.split("--server " + options + " . " + destination));
+        assertNotNull(senderOptions);
+        assertNotNull(receiverOptions);
+        var sandbox = new Sandbox(root);
+        try (var server = new ServerSocket(0, 2, InetAddress.getLoopbackAddress());
+             var senderSide = new Socket(server.getInetAddress(), server.getLocalPort());
+             var receiverSide = server.accept()) {
+            var senderOut = new RsyncOutput(senderSide.getOutputStream());
+            senderOut.multiplex();
+            var receiverOut = new RsyncOutput(receiverSide.getOutputStream());
+            receiverOut.multiplex();
+            var filter = rules(rules);
+            var sender = new RsyncSender(senderOptions, sandbox.resolveAll(senderOptions.paths),
+                    new RsyncInput(new BufferedInputStream(new SequenceInputStream(new ByteArrayInputStream(filter),
+                            new Demultiplexer(senderSide.getInputStream())))), senderOut, SEED, executor);
+            var receiverIn = new Demultiplexer(receiverSide.getInputStream());
+            var receiver = new RsyncReceiver(receiverOptions, sandbox,
+                    sandbox.resolve(receiverOptions.paths.get(0)),
+                    new RsyncInput(new BufferedInputStream(receiverOptions.delete
+                            ? new SequenceInputStream(new ByteArrayInputStream(filter), receiverIn) : receiverIn)),
+                    receiverOut, SEED, executor);
+            var sending = new FutureTask<>(sender::run);
+            var receiving = new FutureTask<>(receiver::run);
+            new Thread(sending).start();
+            new Thread(receiving).start();
+            assertEquals(0, receiving.get(60, TimeUnit.SECONDS), messages.toString());
+            assertEquals(0, sending.get(60, TimeUnit.SECONDS), messages.toString());
+            sent = senderOut.getWritten();
+        }
+    }
+
+    private void createTree() throws Exception {
+        var random = new Random(3);
+        var tree = root.resolve("src");
+        Files.createDirectories(tree.resolve("sub/empty"));
+        for (var i = 0; i < 50; i++) {
+            var data = new byte[random.nextInt(5000)];
+            random.nextBytes(data);
+            Files.write(tree.resolve("sub/file" + i), data);
+        }
+        var large = new byte[3 * 1024 * 1024 + 5];
+        random.nextBytes(large);
+        Files.write(tree.resolve("large.bin"), large);
+        Files.write(tree.resolve("empty.txt"), new byte[0]);
+        Files.createSymbolicLink(tree.resolve("link"), Paths.get("sub/file1"));
+        Files.setLastModifiedTime(tree.resolve("sub"), FileTime.fromMillis(1_500_000_000_000L));
+    }
+
+    private static void assertSameTree(Path expected, Path actual) throws Exception {
+        try (var walk = Files.walk(expected)) {
+            for (var path : (Iterable<Path>) walk::iterator) {
+                var copy = actual.resolve(expected.relativize(path).toString());
+                if (Files.isSymbolicLink(path)) {
+                    assertEquals(Files.readSymbolicLink(path), Files.readSymbolicLink(copy));
+                } else if (Files.isDirectory(path)) {
+                    assertTrue(Files.isDirectory(copy), copy.toString());
+                } else {
+                    assertArrayEquals(Files.readAllBytes(path), Files.readAllBytes(copy), copy.toString());
+                    assertEquals(Files.getLastModifiedTime(path).toMillis() / 1000,
+                            Files.getLastModifiedTime(copy).toMillis() / 1000);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the rsync binary on the path, {@code null} if there is none
+     */
+    private static Path findRsync() {
+        var path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (var directory : path.split(":")) {
+            var rsync = Paths.get(directory, "rsync");
+            if (Files.isExecutable(rsync)) {
+                return rsync;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the remote shell the client runs, passing the command line and then the data of the
+     * transfer through a connection to the test
+     */
+    private Path remoteShell(int port) throws IOException {
+        var script = tempDir.resolve("remote-shell");
+        Files.writeString(script, "#!/bin/bash\n"
+                + "exec 3<>/dev/tcp/127.0.0.1/" + port + "\n"
+                + "shift\n"
+                + "echo \"$*\" >&3\n"
+                + "cat <&0 >&3 &\n"
+                + "cat <&3\n"
+                + "kill $! 2>/dev/null\n"
+                + "exit 0\n");
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwx------"));
+        return script;
+    }
+
+    /**
+     * Runs the builtin for every connection of the remote shell, as the daemon runs it for an exec request
+     */
+    private void serve(ServerSocket server, List<String> failures) {
+        while (true) {
+            Socket connection;
+            try {
+                connection = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            new Thread(() -> {
+                try (connection) {
+                    var in = new BufferedInputStream(connection.getInputStream());
+                    var line = new ByteArrayOutputStream();
+                    int b;
+                    while ((b = in.read()) != '\n' && b >= 0) {
+                        line.write(b);
+                    }
+                    var command = line.toString(StandardCharsets.UTF_8);
+                    var builtin = (BuiltinCommand) builtins.create(command);
+                    if (builtin == null) {
+                        failures.add("Not a builtin: " + command);
+                        return;
+                    }
+                    var err = new ByteArrayOutputStream();
+                    builtin.setInputStream(in);
+                    builtin.setOutputStream(connection.getOutputStream());
+                    builtin.setErrorStream(err);
+                    builtin.setExitCallback((code, message, closeSession) -> {
+                        if (code != 0) {
+                            failures.add(command + " exited with " + code + ": " + err);
+                        }
+                    });
+                    builtin.run();
+                } catch (IOException e) {
+                    failures.add(e.toString());
+                }
+            }).start();
+        }
+    }
+
+    private static void runClient(Path rsync, Path remoteShell, String source, String destination)
+            throws Exception {
+        var client = new ProcessBuilder(rsync.toString(), "-rlpt", "-e", remoteShell.toString(), source, destination)
+                .redirectErrorStream(true)
+                .start();
+        var output = new String(client.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(client.waitFor(60, TimeUnit.SECONDS), output);
+        assertEquals(0, client.exitValue(), output);
+    }
+
+    /**
+     * Transfers in both directions with the rsync binary as the client, so the wire format is checked
+     * against an implementation other than the builtin's own
+     */
+    @Test
+    void testRealClient() throws Exception {
+        var rsync = findRsync();
+        assumeTrue(rsync != null && Files.isExecutable(Paths.get("/bin/bash")), "No rsync or bash to run");
+        createTree();
+        var failures = new CopyOnWriteArrayList<String>();
+        try (var server = new ServerSocket(0, 2, InetAddress.getLoopbackAddress())) {
+            new Thread(() -> serve(server, failures)).start();
+            var remoteShell = remoteShell(server.getLocalPort());
+
+            runClient(rsync, remoteShell, root.resolve("src") + "/", "localhost:copy/");
+            assertEquals(List.of(), failures);
+            assertSameTree(root.resolve("src"), root.resolve("copy"));
+
+            var download = tempDir.resolve("download");
+            runClient(rsync, remoteShell, "localhost:src/", download + "/");
+            assertEquals(List.of(), failures);
+            assertSameTree(root.resolve("src"), download);
+        }
+    }
+
+    @Test
+    void testChecksums() {
+        var md4 = new Md4();
+        for (var vector : new String[][]{{"", "31d6cfe0d16ae931b73c59d7e0c089c0"},
+                {"abc", "a448017aaf21d8525fc10ae87aa6729d"},
+                {"message digest", "d9130a8164549fe818874806e1c7014b"},
+                {"12345678901234567890123456789012345678901234567890123456789012345678901234567890",
+                        "e33b4ddc9c38f2199c3e7b164fcc0536"}}) {
+            var data = vector[0].getBytes(StandardCharsets.US_ASCII);
+            md4.update(data, 0, data.length);
+            var digest = new StringBuilder();
+            for (var b : md4.digest()) {
+                digest.append(String.format("%02x", b));
+            }
+            assertEquals(vector[1], digest.toString(), vector[0]);
+        }
+        var data = "abcd".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0x03d4018a, RsyncChecksum.rolling(data, 0, data.length));
+        assertEquals(700, RsyncChecksum.blockLength(1000));
+        assertEquals(8192, RsyncChecksum.blockLength(1L << 40));
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+        createTree();
+        transfer("-rlpt", "src/", "copy");
+        assertSameTree(root.resolve("src"), root.resolve("copy"));
+        assertEquals(Files.getLastModifiedTime(root.resolve("src/sub")),
+                Files.getLastModifiedTime(root.resolve("copy/sub")));
+
+        // Nothing is sent for files already up to date
+        transfer("-rlpt", "src", "copy");
+        assertSameTree(root.resolve("src"), root.resolve("copy/src"));
+        transfer("-rlpt", "src", "copy");
+        assertTrue(sent < 16 * 1024, String.valueOf(sent));
+    }
+
+    @Test
+    void testOnlyChangedBlocksAreSent() throws Exception {
+        var random = new Random(5);
+        Files.createDirectories(root.resolve("src"));
+        Files.createDirectories(root.resolve("copy"));
+        // Scanned in memory and in parallel regions
+        for (var size : new int[]{RsyncSender.MEMORY_FILE_SIZE / 4, RsyncSender.MEMORY_FILE_SIZE * 2 + 11}) {
+            var data = new byte[size];
+            random.nextBytes(data);
+            Files.write(root.resolve("copy/file" + size), data);
+            var changed = new ByteArrayOutputStream();
+            changed.write(data, 0, 1000);
+            changed.write(new byte[]{1, 2, 3});
+            changed.write(data, 1000, size / 2 - 1000);
+            changed.write(new byte[100], 0, 100);
+            changed.write(data, size / 2 + 100, size - size / 2 - 100);
+            Files.write(root.resolve("src/file" + size), changed.toByteArray());
+        }
+        transfer("-rt", "src/", "copy", "- *.none");
+        assertSameTree(root.resolve("src"), root.resolve("copy"));
+        assertTrue(sent < 128 * 1024, String.valueOf(sent));
+    }
+
+    @Test
+    void testFilesAreSentWhole() throws Exception {
+        var data = new byte[100_000];
+        new Random(9).nextBytes(data);
+        Files.createDirectories(root.resolve("copy"));
+        Files.write(root.resolve("file"), data);
+        Files.write(root.resolve("copy/file"), Arrays.copyOf(data, 50_000));
+        transfer("-tW", "file", "copy/file");
+        assertArrayEquals(data, Files.readAllBytes(root.resolve("copy/file")));
+        assertTrue(sent > data.length);
+    }
+
+    @Test
+    void testDeleteSparesProtectedFiles() throws Exception {
+        createTree();
+        Files.createDirectories(root.resolve("copy/sub/gone"));
+        Files.write(root.resolve("copy/sub/gone/file"), new byte[10]);
+        Files.write(root.resolve("copy/stale.txt"), new byte[10]);
+        Files.write(root.resolve("copy/keep.tmp"), new byte[10]);
+        transfer("-rlptv --delete", "src/", "copy", "- *.tmp");
+        assertSameTree(root.resolve("src"), root.resolve("copy"));
+        assertFalse(Files.exists(root.resolve("copy/sub/gone")));
+        assertFalse(Files.exists(root.resolve("copy/stale.txt")));
+        assertTrue(Files.exists(root.resolve("copy/keep.tmp")));
+        assertTrue(messages.contains(RsyncOutput.MSG_DELETED + ":stale.txt"), messages.toString());
+        assertTrue(messages.contains(RsyncOutput.MSG_DELETED + ":sub/gone\0"), messages.toString());
+    }
+
+    @Test
+    void testExcludedFilesAreNotSent() throws Exception {
+        createTree();
+        Files.write(root.resolve("src/sub/debug.log"), new byte[10]);
+        transfer("-r", "src", "copy", "- *.log", "- /src/sub/empty/");
+        assertTrue(Files.exists(root.resolve("copy/src/sub/file1")));
+        assertFalse(Files.exists(root.resolve("copy/src/sub/debug.log")));
+        assertFalse(Files.exists(root.resolve("copy/src/sub/empty")));
+        assertFalse(Files.exists(root.resolve("copy/src/link")));
+        assertTrue(messages.contains(RsyncOutput.MSG_INFO + ":skipping non-regular file \"src/link\"\n"),
+                messages.toString());
+    }
+
+    @Test
+    void testProtocolVersionIsChecked() throws Exception {
+        Files.createDirectory(root.resolve("src"));
+        var builtin = (BuiltinCommand) builtins.create("rsync --server --sender -r . src");
+        assertNotNull(builtin);
+        var err = new ByteArrayOutputStream();
+        var exitCode = new AtomicInteger(-1);
+        builtin.setInputStream(new ByteArrayInputStream(littleEndian(28)));
+        builtin.setOutputStream(new ByteArrayOutputStream());
+        builtin.setErrorStream(err);
+        builtin.setExitCallback((code, message, closeSession) -> exitCode.set(code));
+        builtin.run();
+        assertEquals(RsyncCommand.EXIT_PROTOCOL, exitCode.get());
+        assertEquals("rsync: protocol version 28 is too old (minimum 29)\n", err.toString(StandardCharsets.UTF_8));
+
+        // The connection closing early ends the transfer
+        builtin = (BuiltinCommand) builtins.create("rsync --server --sender -r . src");
+        var out = new ByteArrayOutputStream();
+        builtin.setInputStream(new ByteArrayInputStream(littleEndian(31)));
+        builtin.setOutputStream(out);
+        builtin.setErrorStream(err);
+        builtin.setExitCallback((code, message, closeSession) -> exitCode.set(code));
+        builtin.run();
+        assertEquals(RsyncCommand.EXIT_STREAM_IO, exitCode.get());
+        assertArrayEquals(littleEndian(29), Arrays.copyOf(out.toByteArray(), 4));
+    }
+
+    @Test
+    void testReceivingIsRefusedWhenReadOnly() throws Exception {
+        Files.createDirectory(root.resolve("dst"));
+        builtins.setReadOnly(true);
+        var builtin = (BuiltinCommand) builtins.create("rsync --server -r . dst");
+        assertNotNull(builtin);
+        var out = new ByteArrayOutputStream();
+        var exitCode = new AtomicInteger(-1);
+        builtin.setInputStream(new ByteArrayInputStream(littleEndian(29)));
+        builtin.setOutputStream(out);
+        builtin.setErrorStream(new ByteArrayOutputStream());
+        builtin.setExitCallback((code, message, closeSession) -> exitCode.set(code));
+        builtin.run();
+        assertEquals(RsyncCommand.EXIT_SYNTAX, exitCode.get());
+        // Version and seed precede the multiplexed messages
+        var stream = new ByteArrayInputStream(out.toByteArray());
+        assertEquals(8, stream.skip(8));
+        assertEquals(-1, new Demultiplexer(stream).read());
+        assertEquals(List.of(RsyncOutput.MSG_ERROR + ":ERROR: module is read only\n"
+                + "rsync error: syntax or usage error (code 1)\n"), messages);
+
+        assertNotNull(builtins.create("rsync --server --sender -r . dst"));
+    }
+
+    @Test
+    void testUnsupportedInvocationsAreLeftToShell() {
+        for (var command : new String[]{"rsync -r src dst", "rsync --server -rz . dst", "rsync --server -rc . dst",
+                "rsync --server -rH . dst", "rsync --server -rR . dst", "rsync --server -s . dst",
+                "rsync --server --sender -r . ../src", "rsync --server --sender -r .", "rsync --server -r . a b",
+                "rsync --server --sender -r src", "rsync --server --backup -r . dst"}) {
+            assertNull(builtins.create(command), command);
+        }
+        assertNotNull(builtins.create("rsync --server -vlogDtpre.iLsfxC --delete . dst/"));
+        assertNotNull(builtins.create("rsync --server --sender -vlogDtpre.iLsfxC . src/ other"));
+    }
+}
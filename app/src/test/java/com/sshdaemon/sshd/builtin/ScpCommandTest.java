@@ -0,0 +1,226 @@
+package com.sshdaemon.sshd.builtin;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sshdaemon.sshd.CommandIoPump;
+import com.sshdaemon.sshd.ProcessSupervisor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ScpCommandTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final ProcessSupervisor supervisor = new ProcessSupervisor(new CommandIoPump(2, 8192, 4), 300);
+    private Path root;
+    private BuiltinCommands builtins;
+    private byte[] output;
+    private String errors;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        root = Files.createDirectory(tempDir.resolve("root"));
+        builtins = new BuiltinCommands(root, supervisor, null, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        supervisor.close();
+    }
+
+    private int run(String command, byte[] input) {
+        var builtin = (BuiltinCommand) builtins.create(command);
+        assertNotNull(builtin, command);
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var exitCode = new AtomicInteger(-1);
+        builtin.setInputStream(new ByteArrayInputStream(input));
+        builtin.setOutputStream(out);
+        builtin.setErrorStream(err);
+        builtin.setExitCallback((code, message, closeSession) -> exitCode.set(code));
+        builtin.run();
+        output = out.toByteArray();
+        errors = err.toString(StandardCharsets.UTF_8);
+        return exitCode.get();
+    }
+
+    private static byte[] records(String... records) {
+        return String.join("", records).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void createTree() throws Exception {
+        var random = new Random(11);
+        var tree = root.resolve("tree");
+        Files.createDirectories(tree.resolve("sub/empty"));
+        for (var i = 0; i < 50; i++) {
+            var data = new byte[random.nextInt(3000)];
+            random.nextBytes(data);
+            Files.write(tree.resolve("sub/file" + i), data);
+        }
+        var large = new byte[ScpCommand.BUFFER_SIZE * 3 + 17];
+        random.nextBytes(large);
+        Files.write(tree.resolve("large.bin"), large);
+        Files.setPosixFilePermissions(Files.createFile(tree.resolve("private")),
+                PosixFilePermissions.fromString("rw-------"));
+        Files.setLastModifiedTime(tree.resolve("large.bin"), FileTime.fromMillis(1_500_000_000_000L));
+    }
+
+    private static void assertSameTree(Path expected, Path actual) throws Exception {
+        try (var walk = Files.walk(expected)) {
+            for (var path : (Iterable<Path>) walk::iterator) {
+                var copy = actual.resolve(expected.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    assertTrue(Files.isDirectory(copy), copy.toString());
+                } else {
+                    assertArrayEquals(Files.readAllBytes(path), Files.readAllBytes(copy), copy.toString());
+                    assertEquals(Files.getPosixFilePermissions(path), Files.getPosixFilePermissions(copy));
+                    assertEquals(Files.getLastModifiedTime(path).toMillis() / 1000,
+                            Files.getLastModifiedTime(copy).toMillis() / 1000);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+        createTree();
+        // Every record is acknowledged by the sink
+        assertEquals(0, run("scp -r -p -f tree", new byte[1000]), errors);
+        var stream = output;
+
+        Files.createDirectory(root.resolve("copy"));
+        assertEquals(0, run("scp -r -p -d -t -- copy", stream), errors);
+        assertSameTree(root.resolve("tree"), root.resolve("copy/tree"));
+        for (var i = 0; i < output.length; i++) {
+            assertEquals(0, output[i]);
+        }
+    }
+
+    @Test
+    void testFileIsCopiedOntoTarget() throws Exception {
+        Files.writeString(root.resolve("target"), "old contents that are longer");
+        assertEquals(0, run("scp -t target", records("C0600 5 source\n", "hello", "\0")), errors);
+        assertEquals("hello", Files.readString(root.resolve("target")));
+        assertArrayEquals(new byte[3], output);
+
+        assertEquals(0, run("scp -t ''", records("C0666 3 new\n", "new", "\0")), errors);
+        assertEquals("new", Files.readString(root.resolve("new")));
+        assertEquals(PosixFilePermissions.fromString("rw-r--r--"),
+                Files.getPosixFilePermissions(root.resolve("new")));
+    }
+
+    @Test
+    void testSystemScpReceivesFiles() throws Exception {
+        var scp = Paths.get("/usr/bin/scp");
+        if (!Files.isExecutable(scp)) {
+            return;
+        }
+        createTree();
+        assertEquals(0, run("scp -r -p -f tree", new byte[1000]), errors);
+        var extracted = Files.createDirectory(tempDir.resolve("extracted"));
+        var process = new ProcessBuilder(scp.toString(), "-r", "-p", "-t", extracted.toString())
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (var in = process.getOutputStream()) {
+            in.write(output);
+        }
+        process.getInputStream().readAllBytes();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue());
+        assertSameTree(root.resolve("tree"), extracted.resolve("tree"));
+    }
+
+    @Test
+    void testFilesOfSystemScpAreReceived() throws Exception {
+        var scp = Paths.get("/usr/bin/scp");
+        if (!Files.isExecutable(scp)) {
+            return;
+        }
+        createTree();
+        var process = new ProcessBuilder(scp.toString(), "-r", "-p", "-f", root.resolve("tree").toString())
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (var in = process.getOutputStream()) {
+            in.write(new byte[1000]);
+        }
+        var stream = process.getInputStream().readAllBytes();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        Files.createDirectory(root.resolve("copy"));
+        assertEquals(0, run("scp -rp -t copy", stream), errors);
+        assertSameTree(root.resolve("tree"), root.resolve("copy/tree"));
+    }
+
+    @Test
+    void testNamesLeavingTargetAreRefused() throws Exception {
+        Files.createDirectory(root.resolve("target"));
+        for (var name : new String[]{"..", "../evil", "a/b", ""}) {
+            assertEquals(1, run("scp -t target", records("C0644 4 " + name + "\n", "evil", "\0")));
+            assertEquals(2, output[1], name);
+        }
+        assertFalse(Files.exists(root.resolve("evil")));
+
+        // Nor written through links pointing out of the tree
+        Files.createSymbolicLink(root.resolve("target/escape"), tempDir);
+        assertEquals(1, run("scp -r -t target", records("D0755 0 escape\n", "C0644 4 evil\n", "evil", "\0",
+                "E\n")));
+        assertFalse(Files.exists(tempDir.resolve("evil")));
+        assertEquals(1, output[1]);
+    }
+
+    @Test
+    void testSourceReportsUnreadableFiles() throws Exception {
+        Files.writeString(root.resolve("present"), "here");
+        Files.createDirectory(root.resolve("dir"));
+        assertEquals(1, run("scp -f missing dir present", new byte[10]));
+        assertEquals("\1scp: missing: No such file or directory\n\1scp: dir: not a regular file\n"
+                + "C0644 4 present\nhere\0", new String(output, StandardCharsets.UTF_8));
+
+        // Links are followed inside the tree only
+        Files.writeString(tempDir.resolve("outside"), "secret");
+        Files.createSymbolicLink(root.resolve("dir/escape"), tempDir.resolve("outside"));
+        Files.createSymbolicLink(root.resolve("dir/inside"), root.resolve("present"));
+        assertEquals(1, run("scp -r -f dir", new byte[10]));
+        assertEquals("D0755 0 dir\n\1scp: dir/escape: Permission denied\nC0644 4 inside\nhere\0E\n",
+                new String(output, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testUploadsAreRefusedWhenReadOnly() throws Exception {
+        builtins.setReadOnly(true);
+        assertEquals(1, run("scp -t .", records("C0644 4 file\n", "data", "\0")));
+        assertEquals("\2scp: Read-only file system\n", new String(output, StandardCharsets.UTF_8));
+        assertFalse(Files.exists(root.resolve("file")));
+
+        Files.writeString(root.resolve("file"), "data");
+        assertEquals(0, run("scp -f file", new byte[10]), errors);
+    }
+
+    @Test
+    void testUnsupportedInvocationsAreLeftToShell() {
+        for (var command : new String[]{"scp a b", "scp -t", "scp -t a b", "scp -f", "scp -t -f a",
+                "scp -P 22 -t a", "scp -f ../outside", "scp -t /etc"}) {
+            assertNull(builtins.create(command), command);
+        }
+        assertNotNull(builtins.create("scp -v -r -p -d -t -- ."));
+        assertNotNull(builtins.create("scp -f a b c"));
+    }
+}
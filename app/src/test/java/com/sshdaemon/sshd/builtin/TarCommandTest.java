@@ -0,0 +1,216 @@
+package com.sshdaemon.sshd.builtin;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sshdaemon.sshd.CommandIoPump;
+import com.sshdaemon.sshd.ProcessSupervisor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TarCommandTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final ProcessSupervisor supervisor = new ProcessSupervisor(new CommandIoPump(2, 8192, 4), 300);
+    private Path root;
+    private BuiltinCommands builtins;
+    private byte[] output;
+    private String errors;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        root = Files.createDirectory(tempDir.resolve("root"));
+        builtins = new BuiltinCommands(root, supervisor, null, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        supervisor.close();
+    }
+
+    private int run(String command, byte[] input) {
+        var builtin = (BuiltinCommand) builtins.create(command);
+        assertNotNull(builtin, command);
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var exitCode = new AtomicInteger(-1);
+        builtin.setInputStream(new ByteArrayInputStream(input));
+        builtin.setOutputStream(out);
+        builtin.setErrorStream(err);
+        builtin.setExitCallback((code, message, closeSession) -> exitCode.set(code));
+        builtin.run();
+        output = out.toByteArray();
+        errors = err.toString(StandardCharsets.UTF_8);
+        return exitCode.get();
+    }
+
+    private void createTree() throws Exception {
+        var random = new Random(7);
+        var tree = root.resolve("tree");
+        Files.createDirectories(tree.resolve("sub/empty"));
+        for (var i = 0; i < 100; i++) {
+            var data = new byte[random.nextInt(3000)];
+            random.nextBytes(data);
+            Files.write(tree.resolve("sub/file" + i), data);
+        }
+        var large = new byte[TarCommand.SMALL_FILE_SIZE * 3 + 17];
+        random.nextBytes(large);
+        Files.write(tree.resolve("large.bin"), large);
+        var longName = String.format("%0150d", 1) + ".txt";
+        Files.writeString(tree.resolve(longName), "long name");
+        Files.createSymbolicLink(tree.resolve("link"), Paths.get("sub/file1"));
+        Files.createLink(tree.resolve("hardlink"), tree.resolve("sub/file2"));
+    }
+
+    private static void assertSameTree(Path expected, Path actual) throws Exception {
+        try (var walk = Files.walk(expected)) {
+            for (var path : (Iterable<Path>) walk::iterator) {
+                var copy = actual.resolve(expected.relativize(path).toString());
+                if (Files.isSymbolicLink(path)) {
+                    assertEquals(Files.readSymbolicLink(path), Files.readSymbolicLink(copy));
+                } else if (Files.isDirectory(path)) {
+                    assertTrue(Files.isDirectory(copy), copy.toString());
+                } else {
+                    assertArrayEquals(Files.readAllBytes(path), Files.readAllBytes(copy), copy.toString());
+                    assertEquals(Files.getLastModifiedTime(path).toMillis() / 1000,
+                            Files.getLastModifiedTime(copy).toMillis() / 1000);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+        createTree();
+        assertEquals(0, run("tar cf - tree", new byte[0]), errors);
+        assertEquals(0, output.length % TarHeader.RECORD_SIZE);
+        var archive = output;
+
+        Files.createDirectory(root.resolve("copy"));
+        assertEquals(0, run("tar -C copy -xf -", archive), errors);
+        assertSameTree(root.resolve("tree"), root.resolve("copy/tree"));
+        assertEquals(Files.getAttribute(root.resolve("copy/tree/sub/file2"), "unix:ino"),
+                Files.getAttribute(root.resolve("copy/tree/hardlink"), "unix:ino"));
+    }
+
+    @Test
+    void testArchiveIsReadBySystemTar() throws Exception {
+        var tar = Paths.get("/bin/tar");
+        if (!Files.isExecutable(tar)) {
+            return;
+        }
+        createTree();
+        assertEquals(0, run("tar c tree", new byte[0]), errors);
+        var archive = Files.write(tempDir.resolve("archive.tar"), output);
+        var extracted = Files.createDirectory(tempDir.resolve("extracted"));
+        var process = new ProcessBuilder(tar.toString(), "xf", archive.toString(), "-C", extracted.toString())
+                .redirectErrorStream(true).start();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue(), new String(process.getInputStream().readAllBytes()));
+        assertSameTree(root.resolve("tree"), extracted.resolve("tree"));
+    }
+
+    @Test
+    void testArchiveOfSystemTarIsExtracted() throws Exception {
+        var tar = Paths.get("/bin/tar");
+        if (!Files.isExecutable(tar)) {
+            return;
+        }
+        createTree();
+        var process = new ProcessBuilder(tar.toString(), "cf", "-", "-C", root.toString(), "tree").start();
+        var archive = process.getInputStream().readAllBytes();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        Files.createDirectory(root.resolve("copy"));
+        assertEquals(0, run("tar xvf - -C copy", archive), errors);
+        assertTrue(new String(output, StandardCharsets.UTF_8).contains("tree/sub/file99\n"));
+        assertSameTree(root.resolve("tree"), root.resolve("copy/tree"));
+    }
+
+    @Test
+    void testMembersOutsideTargetAreSkipped() throws Exception {
+        var archive = new ByteArrayOutputStream();
+        var link = new TarHeader();
+        link.name = "escape";
+        link.type = TarHeader.SYMBOLIC_LINK;
+        link.linkName = tempDir.toString();
+        link.write(archive);
+        var file = new TarHeader();
+        file.name = "escape/evil";
+        file.mode = 0644;
+        file.size = 4;
+        file.write(archive);
+        archive.write("evil".getBytes(StandardCharsets.UTF_8));
+        archive.write(new byte[TarHeader.padding(4) + 2 * TarHeader.BLOCK_SIZE]);
+        var parent = new TarHeader();
+        parent.name = "../evil";
+        parent.write(archive);
+
+        // The link is extracted, the file is not written through it
+        Files.createDirectory(root.resolve("target"));
+        assertEquals(1, run("tar xf - -C target", archive.toByteArray()));
+        assertTrue(Files.isSymbolicLink(root.resolve("target/escape")));
+        assertFalse(Files.exists(tempDir.resolve("evil")));
+        assertEquals("tar: escape/evil: Member name outside of the target directory, skipped\n", errors);
+    }
+
+    @Test
+    void testTruncatedArchive() throws Exception {
+        Files.write(root.resolve("data"), new byte[5000]);
+        assertEquals(0, run("tar cf - data", new byte[0]));
+        var truncated = new byte[2000];
+        System.arraycopy(output, 0, truncated, 0, truncated.length);
+        Files.createDirectory(root.resolve("target"));
+        assertEquals(1, run("tar -x -C target", truncated));
+        assertEquals("tar: Unexpected EOF in archive\n", errors);
+    }
+
+    @Test
+    void testExtractIsRefusedWhenReadOnly() throws Exception {
+        Files.writeString(root.resolve("data"), "data");
+        assertEquals(0, run("tar cf - data", new byte[0]), errors);
+        var archive = output;
+        Files.delete(root.resolve("data"));
+        Files.createDirectory(root.resolve("target"));
+
+        builtins.setReadOnly(true);
+        assertEquals(2, run("tar -x -C target", archive));
+        assertEquals("tar: target/: Cannot open: Read-only file system\n"
+                + "tar: Error is not recoverable: exiting now\n", errors);
+        assertFalse(Files.exists(root.resolve("target/data")));
+        assertEquals(2, run("tar xf -", archive));
+        assertFalse(Files.exists(root.resolve("data")));
+
+        // Archives are still created
+        assertEquals(0, run("tar cf - target", new byte[0]), errors);
+    }
+
+    @Test
+    void testUnsupportedInvocationsAreLeftToShell() {
+        for (var command : new String[]{"tar czf - tree", "tar cf out.tar tree", "tar xf - member", "tar c",
+                "tar --exclude=x -cf - tree", "tar cf - tree -C other", "tar tf -", "tar cf - ../tree",
+                "tar -C missing -xf -", "tar xf"}) {
+            assertNull(builtins.create(command), command);
+        }
+        assertNotNull(builtins.create("tar -cvf - ."));
+        assertNotNull(builtins.create("tar -c -f- -C. ."));
+    }
+}
@@ -1,7 +1,9 @@
 package com.sshdaemon.util;
 
+import static com.sshdaemon.util.ExternalStorage.INTERNAL_VOLUME;
 import static com.sshdaemon.util.ExternalStorage.getAllStorageLocations;
 import static com.sshdaemon.util.ExternalStorage.getRootPath;
+import static com.sshdaemon.util.ExternalStorage.getStorageVolumes;
 import static com.sshdaemon.util.ExternalStorage.hasMultipleStorageLocations;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -14,6 +16,7 @@ import android.content.Context;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.util.Map;
 
 class ExternalStorageTest {
 
@@ -56,4 +59,11 @@ class ExternalStorageTest {
         when(contextMock.getExternalFilesDirs(any())).thenReturn(new File[]{new File("/bar/suffix"), new File("/bar/suffix")});
         assertThat(hasMultipleStorageLocations(contextMock), is(false));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testInternalStorageIsFirstVolume() {
+        var contextMock = mock(Context.class);
+        when(contextMock.getExternalFilesDirs(any())).thenReturn(new File[]{new File("/foo/suffix")});
+        assertThat(getStorageVolumes(contextMock), is(Map.of(INTERNAL_VOLUME, "/")));
+    }
+}
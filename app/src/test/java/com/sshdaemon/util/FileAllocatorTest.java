@@ -0,0 +1,37 @@
+package com.sshdaemon.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class FileAllocatorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testReservingKeepsSizeAndContent() throws IOException {
+        assumeTrue(FileAllocator.isAvailable(), "Native library not loaded");
+        var file = tempDir.resolve("upload.bin");
+        var data = new byte[]{1, 2, 3};
+        Files.write(file, data);
+        try (var allocator = FileAllocator.open(file.toFile())) {
+            try {
+                allocator.allocate(0, 1024 * 1024);
+            } catch (IOException e) {
+                assumeTrue(false, "No reserving space on this file system: " + e.getMessage());
+            }
+            assertEquals(data.length, Files.size(file));
+            allocator.release();
+        }
+        assertEquals(data.length, Files.size(file));
+        assertArrayEquals(data, Files.readAllBytes(file));
+    }
+}
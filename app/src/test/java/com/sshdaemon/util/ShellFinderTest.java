@@ -0,0 +1,32 @@
+package com.sshdaemon.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class ShellFinderTest {
+
+    @Test
+    void testShellIsResolvedOnce() {
+        var shell = ShellFinder.getShell();
+        assertThat(shell, is(notNullValue()));
+        assertThat(ShellFinder.getShell(), is(sameInstance(shell)));
+    }
+
+    @Test
+    void testFailureOfOtherShellKeepsResolvedShell() {
+        var shell = ShellFinder.getShell();
+        assertThat(ShellFinder.revalidate("/no/such/sh"), is(sameInstance(shell)));
+    }
+
+    @Test
+    void testFailedShellIsProbedAgain() {
+        var shell = ShellFinder.getShell();
+        // The shell still works, so probing finds it again
+        assertThat(ShellFinder.revalidate(shell), is(shell));
+        assertThat(ShellFinder.getShell(), is(shell));
+    }
+}